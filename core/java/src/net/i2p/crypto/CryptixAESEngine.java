@@ -13,6 +13,7 @@ import java.security.InvalidKeyException;
 
 // for using system version
 import java.security.GeneralSecurityException;
+import java.util.Map;
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -24,6 +25,7 @@ import freenet.support.CPUInformation.UnknownCPUException;
 import net.i2p.I2PAppContext;
 import net.i2p.data.DataHelper;
 import net.i2p.data.SessionKey;
+import net.i2p.util.LHMCache;
 import net.i2p.util.Log;
 import net.i2p.util.SimpleByteCache;
 import net.i2p.util.SystemVersion;
@@ -43,7 +45,34 @@ public final class CryptixAESEngine extends AESEngine {
     
     /** see test results below */
     private static final int MIN_SYSTEM_AES_LENGTH = 704;
-    private static final boolean USE_SYSTEM_AES = hasAESNI() && CryptoCheck.isUnlimited();
+
+    /**
+     *  System property to force the system AES on or off, for testing;
+     *  default is to use it if we have AES-NI
+     *  @since 0.9.31
+     */
+    public static final String PROP_SYSTEM_AES = "crypto.aes.useSystem";
+    private static final boolean USE_SYSTEM_AES = useSystemAES() && CryptoCheck.isUnlimited();
+
+    /**
+     *  Keep initialized system Ciphers per-thread, by key, default true
+     *  @since 0.9.31
+     */
+    public static final String PROP_CIPHER_CACHE = "crypto.aes.cipherCache";
+    /** per thread */
+    private static final int CIPHER_CACHE_SIZE = 32;
+    /** null if disabled or no system AES */
+    private final ThreadLocal<Map<SessionKey, CachedCipher>> _ciphers;
+
+    /**
+     *  @since 0.9.31
+     */
+    private static boolean useSystemAES() {
+        String force = System.getProperty(PROP_SYSTEM_AES);
+        if (force != null)
+            return Boolean.parseBoolean(force);
+        return hasAESNI();
+    }
 
     /**
      *  Do we have AES-NI support in the processor and JVM?
@@ -68,6 +97,57 @@ public final class CryptixAESEngine extends AESEngine {
     public CryptixAESEngine(I2PAppContext context) {
         super(context);
         //_cache = new CryptixAESKeyCache();
+        if (USE_SYSTEM_AES && context.getProperty(PROP_CIPHER_CACHE, true)) {
+            _ciphers = new ThreadLocal<Map<SessionKey, CachedCipher>>() {
+                @Override
+                protected Map<SessionKey, CachedCipher> initialValue() {
+                    return new LHMCache<SessionKey, CachedCipher>(CIPHER_CACHE_SIZE);
+                }
+            };
+        } else {
+            _ciphers = null;
+        }
+    }
+
+    /**
+     *  A system Cipher that has only ever been initialized with one key,
+     *  so re-initializing it with only a new IV reuses the key schedule.
+     *
+     *  @since 0.9.31
+     */
+    private static class CachedCipher {
+        public final SecretKeySpec key;
+        public final Cipher cipher;
+
+        public CachedCipher(SessionKey sessionKey) throws GeneralSecurityException {
+            key = new SecretKeySpec(sessionKey.getData(), "AES");
+            cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        }
+    }
+
+    /**
+     *  A system Cipher initialized for this key and IV.
+     *  Reused from the per-thread cache if enabled, so don't hold on to it.
+     *
+     *  @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     *  @since 0.9.31
+     */
+    private Cipher getCipher(int mode, SessionKey sessionKey, byte iv[], int ivOffset) throws GeneralSecurityException {
+        IvParameterSpec ivps = new IvParameterSpec(iv, ivOffset, 16);
+        if (_ciphers == null) {
+            SecretKeySpec key = new SecretKeySpec(sessionKey.getData(), "AES");
+            Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            cipher.init(mode, key, ivps, _context.random());
+            return cipher;
+        }
+        Map<SessionKey, CachedCipher> cache = _ciphers.get();
+        CachedCipher cc = cache.get(sessionKey);
+        if (cc == null) {
+            cc = new CachedCipher(sessionKey);
+            cache.put(sessionKey, cc);
+        }
+        cc.cipher.init(mode, cc.key, ivps, _context.random());
+        return cc.cipher;
     }
     
     /**
@@ -104,10 +184,7 @@ public final class CryptixAESEngine extends AESEngine {
 
         if (USE_SYSTEM_AES && length >= MIN_SYSTEM_AES_LENGTH) {
             try {
-                SecretKeySpec key = new SecretKeySpec(sessionKey.getData(), "AES");
-                IvParameterSpec ivps = new IvParameterSpec(iv, ivOffset, 16);
-                Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
-                cipher.init(Cipher.ENCRYPT_MODE, key, ivps, _context.random());
+                Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, sessionKey, iv, ivOffset);
                 cipher.doFinal(payload, payloadIndex, length, out, outIndex);
                 return;
             } catch (GeneralSecurityException gse) {
@@ -151,10 +228,7 @@ public final class CryptixAESEngine extends AESEngine {
 
         if (USE_SYSTEM_AES && length >= MIN_SYSTEM_AES_LENGTH) {
             try {
-                SecretKeySpec key = new SecretKeySpec(sessionKey.getData(), "AES");
-                IvParameterSpec ivps = new IvParameterSpec(iv, ivOffset, 16);
-                Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
-                cipher.init(Cipher.DECRYPT_MODE, key, ivps, _context.random());
+                Cipher cipher = getCipher(Cipher.DECRYPT_MODE, sessionKey, iv, ivOffset);
                 cipher.doFinal(payload, payloadIndex, length, out, outIndex);
                 return;
             } catch (GeneralSecurityException gse) {
@@ -43,6 +43,7 @@ import net.i2p.data.SigningPrivateKey;
 import net.i2p.data.SigningPublicKey;
 import net.i2p.util.LHMCache;
 import net.i2p.util.NativeBigInteger;
+import net.i2p.util.SystemVersion;
 
 
 /**
@@ -54,7 +55,24 @@ public final class SigUtil {
 
     private static final Map<SigningPublicKey, ECPublicKey> _ECPubkeyCache = new LHMCache<SigningPublicKey, ECPublicKey>(64);
     private static final Map<SigningPrivateKey, ECPrivateKey> _ECPrivkeyCache = new LHMCache<SigningPrivateKey, ECPrivateKey>(16);
-    private static final Map<SigningPublicKey, EdDSAPublicKey> _EdPubkeyCache = new LHMCache<SigningPublicKey, EdDSAPublicKey>(64);
+    /**
+     *  Decoding an Ed25519 key and its precomputation costs about as much as a verify,
+     *  and floodfills see the same few thousand router keys over and over.
+     *  About 2.5 KB per entry.
+     */
+    private static final int ED_PUBKEY_CACHE_SIZE;
+    static {
+        long maxMemory = SystemVersion.getMaxMemory();
+        if (maxMemory >= 512*1024*1024L)
+            ED_PUBKEY_CACHE_SIZE = 2048;
+        else if (maxMemory >= 256*1024*1024L)
+            ED_PUBKEY_CACHE_SIZE = 1024;
+        else if (maxMemory >= 128*1024*1024L)
+            ED_PUBKEY_CACHE_SIZE = 256;
+        else
+            ED_PUBKEY_CACHE_SIZE = 64;
+    }
+    private static final Map<SigningPublicKey, EdDSAPublicKey> _EdPubkeyCache = new LHMCache<SigningPublicKey, EdDSAPublicKey>(ED_PUBKEY_CACHE_SIZE);
     private static final Map<SigningPrivateKey, EdDSAPrivateKey> _EdPrivkeyCache = new LHMCache<SigningPrivateKey, EdDSAPrivateKey>(16);
 
     private SigUtil() {}
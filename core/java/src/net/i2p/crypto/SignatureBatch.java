@@ -0,0 +1,234 @@
+package net.i2p.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+import net.i2p.I2PAppContext;
+import net.i2p.crypto.eddsa.EdDSABatchVerifier;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.data.Signature;
+import net.i2p.data.SigningPublicKey;
+import net.i2p.util.Log;
+
+/**
+ *  Verify many signatures at once, of any mix of types.
+ *
+ *  Ed25519 signatures are checked in batches with EdDSABatchVerifier,
+ *  which costs much less per signature than one at a time,
+ *  and isolates any bad ones by splitting the batch.
+ *  Everything else is verified one at a time with DSAEngine.
+ *  If parallel, the batches and the others are spread over a shared pool
+ *  with one thread per core, and verify() blocks until all are done.
+ *
+ *  RSA is not allowed, as in DatabaseEntry, those always fail.
+ *
+ *  Not thread safe, use one per batch.
+ *
+ *  @since 0.9.31
+ */
+public class SignatureBatch {
+    private final I2PAppContext _context;
+    private final Log _log;
+    private final boolean _parallel;
+    private final List<Item> _items;
+
+    /** Ed25519 signatures per EdDSABatchVerifier */
+    private static final int ED_BATCH_SIZE = 128;
+    /** other signatures per task */
+    private static final int OTHER_CHUNK_SIZE = 8;
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static ForkJoinPool _pool;
+
+    /**
+     *  Parallel if we have more than one core
+     */
+    public SignatureBatch(I2PAppContext ctx) {
+        this(ctx, true);
+    }
+
+    /**
+     *  @param parallel if false, everything runs in the caller's thread,
+     *                  e.g. if the caller is already running in parallel
+     */
+    public SignatureBatch(I2PAppContext ctx, boolean parallel) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(SignatureBatch.class);
+        _parallel = parallel && CORES > 1;
+        _items = new ArrayList<Item>();
+    }
+
+    /**
+     *  @return the index in the results of verify()
+     */
+    public int add(Signature signature, byte[] data, SigningPublicKey key) {
+        return add(signature, data, 0, data.length, key);
+    }
+
+    /**
+     *  The data is not copied and must not be changed before verify().
+     *
+     *  @return the index in the results of verify()
+     */
+    public int add(Signature signature, byte[] data, int offset, int len, SigningPublicKey key) {
+        _items.add(new Item(signature, data, offset, len, key));
+        return _items.size() - 1;
+    }
+
+    public int size() {
+        return _items.size();
+    }
+
+    /**
+     *  Blocking.
+     *
+     *  @return the results, in the order added
+     */
+    public boolean[] verify() {
+        boolean[] rv = new boolean[_items.size()];
+        List<Integer> ed = new ArrayList<Integer>();
+        List<Integer> other = new ArrayList<Integer>();
+        for (int i = 0; i < _items.size(); i++) {
+            Item item = _items.get(i);
+            SigType type = item.signature.getType();
+            if (type == null || type != item.key.getType() ||
+                type.getBaseAlgorithm() == SigAlgo.RSA ||
+                item.signature.getData() == null || item.key.getData() == null) {
+                continue;
+            }
+            if (type == SigType.EdDSA_SHA512_Ed25519)
+                ed.add(Integer.valueOf(i));
+            else
+                other.add(Integer.valueOf(i));
+        }
+
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        // with a pool, spread the Ed25519 work evenly over the threads
+        int edSize = ED_BATCH_SIZE;
+        if (_parallel && !ed.isEmpty())
+            edSize = Math.min(ED_BATCH_SIZE, (ed.size() + CORES - 1) / CORES);
+        for (int i = 0; i < ed.size(); i += edSize) {
+            tasks.add(new EdDSATask(ed.subList(i, Math.min(i + edSize, ed.size())), rv));
+        }
+        for (int i = 0; i < other.size(); i += OTHER_CHUNK_SIZE) {
+            tasks.add(new OtherTask(other.subList(i, Math.min(i + OTHER_CHUNK_SIZE, other.size())), rv));
+        }
+        runAll(tasks);
+        return rv;
+    }
+
+    private void runAll(List<Runnable> tasks) {
+        if (!_parallel || tasks.size() <= 1) {
+            for (Runnable r : tasks) {
+                r.run();
+            }
+            return;
+        }
+        List<Callable<Object>> calls = new ArrayList<Callable<Object>>(tasks.size());
+        for (Runnable r : tasks) {
+            calls.add(Executors.callable(r));
+        }
+        List<Future<Object>> results = getPool().invokeAll(calls);
+        for (Future<Object> f : results) {
+            try {
+                f.get();
+            } catch (InterruptedException ie) {
+            } catch (ExecutionException ee) {
+                _log.error("Sig verify failure", ee);
+            }
+        }
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (_pool == null)
+            _pool = new ForkJoinPool(CORES, new Factory(), null, false);
+        return _pool;
+    }
+
+    private static class Item {
+        final Signature signature;
+        final byte[] data;
+        final int offset, len;
+        final SigningPublicKey key;
+
+        public Item(Signature signature, byte[] data, int offset, int len, SigningPublicKey key) {
+            this.signature = signature;
+            this.data = data;
+            this.offset = offset;
+            this.len = len;
+            this.key = key;
+        }
+    }
+
+    private class EdDSATask implements Runnable {
+        private final List<Integer> _indexes;
+        private final boolean[] _rv;
+
+        public EdDSATask(List<Integer> indexes, boolean[] rv) {
+            _indexes = indexes;
+            _rv = rv;
+        }
+
+        public void run() {
+            EdDSAParameterSpec spec;
+            try {
+                spec = (EdDSAParameterSpec) SigType.EdDSA_SHA512_Ed25519.getParams();
+            } catch (GeneralSecurityException gse) {
+                _log.error("No Ed25519", gse);
+                return;
+            }
+            EdDSABatchVerifier bv = new EdDSABatchVerifier(spec, _context.random());
+            for (Integer i : _indexes) {
+                Item item = _items.get(i.intValue());
+                bv.add(item.key.getData(), item.signature.getData(), item.data, item.offset, item.len);
+            }
+            boolean[] results = bv.verify();
+            for (int j = 0; j < results.length; j++) {
+                _rv[_indexes.get(j).intValue()] = results[j];
+                if (!results[j] && _log.shouldLog(Log.WARN))
+                    _log.warn(SigType.EdDSA_SHA512_Ed25519 + " Sig Verify Fail");
+            }
+        }
+    }
+
+    private class OtherTask implements Runnable {
+        private final List<Integer> _indexes;
+        private final boolean[] _rv;
+
+        public OtherTask(List<Integer> indexes, boolean[] rv) {
+            _indexes = indexes;
+            _rv = rv;
+        }
+
+        public void run() {
+            DSAEngine dsa = _context.dsa();
+            for (Integer i : _indexes) {
+                Item item = _items.get(i.intValue());
+                try {
+                    _rv[i.intValue()] = dsa.verifySignature(item.signature, item.data, item.offset, item.len, item.key);
+                } catch (RuntimeException re) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Sig verify error", re);
+                }
+            }
+        }
+    }
+
+    /**
+     *  Just to name the threads
+     */
+    private static class Factory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread rv = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            rv.setName("SigVerify " + rv.getPoolIndex());
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+}
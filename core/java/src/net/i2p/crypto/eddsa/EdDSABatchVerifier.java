@@ -0,0 +1,388 @@
+package net.i2p.crypto.eddsa;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.i2p.crypto.eddsa.math.Curve;
+import net.i2p.crypto.eddsa.math.GroupElement;
+import net.i2p.crypto.eddsa.math.ScalarOps;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
+
+/**
+ * Batch verification of EdDSA signatures, pure EdDSA only (not ph).
+ *<p>
+ * For signatures (R_i, S_i) by keys A_i with h_i = H(R_i,A_i,M_i),
+ * and random 128-bit z_i, checks
+ *<pre>
+ *  [8] (sum z_i S_i) B == [8] (sum z_i R_i + sum (z_i h_i) A_i)
+ *</pre>
+ * The left side is one fixed-base multiplication; the right side is
+ * a single multi-scalar multiplication (Pippenger's bucket method) over
+ * all the R_i and A_i, so the cost per signature is well below that of
+ * a single verification, and no per-key precomputation is needed.
+ *</p><p>
+ * If the batch fails, it is split in half and each half is checked again,
+ * down to a few signatures, which are verified one at a time with EdDSAEngine,
+ * so a few bad signatures don't cost much more than a full batch.
+ * Signatures with non-canonical encodings of R or A, S not less than
+ * the group order, or keys that aren't valid points,
+ * are always verified one at a time.
+ *</p><p>
+ * The check is cofactored, as a signature with a small-order component
+ * in R or A, which only the owner of the key can make, would otherwise
+ * pass or fail depending on z_i. EdDSAEngine falls back to the same
+ * cofactored check when R doesn't match exactly, so the results are
+ * always the same as for EdDSAEngine.
+ *</p><p>
+ * Not thread safe.
+ *</p>
+ * @since 0.9.31
+ */
+public final class EdDSABatchVerifier {
+    private final EdDSAParameterSpec _spec;
+    private final Curve _curve;
+    private final ScalarOps _scalarOps;
+    private final Random _rand;
+    private final List<Entry> _entries;
+
+    /** below this, verify one at a time */
+    private static final int MIN_BATCH = 4;
+    private static final byte[] ZERO = new byte[32];
+    /** the group order, little endian */
+    private static final byte[] L = {
+        (byte) 0xed, (byte) 0xd3, (byte) 0xf5, 0x5c, 0x1a, 0x63, 0x12, 0x58,
+        (byte) 0xd6, (byte) 0x9c, (byte) 0xf7, (byte) 0xa2, (byte) 0xde, (byte) 0xf9, (byte) 0xde, 0x14,
+        0, 0, 0, 0, 0, 0, 0, 0,
+        0, 0, 0, 0, 0, 0, 0, 0x10 };
+
+    /**
+     * @param spec the curve and hash, e.g. Ed25519 with SHA-512
+     * @param rand source for the random multipliers, should be a SecureRandom
+     */
+    public EdDSABatchVerifier(EdDSAParameterSpec spec, Random rand) {
+        _spec = spec;
+        _curve = spec.getCurve();
+        _scalarOps = spec.getScalarOps();
+        _rand = rand;
+        _entries = new ArrayList<Entry>();
+    }
+
+    /**
+     * @param pubkey the encoded public key, 32 bytes
+     * @param sig the signature, 64 bytes
+     * @return the index in the results of verify()
+     */
+    public int add(byte[] pubkey, byte[] sig, byte[] data, int off, int len) {
+        _entries.add(new Entry(pubkey, sig, data, off, len));
+        return _entries.size() - 1;
+    }
+
+    public int size() {
+        return _entries.size();
+    }
+
+    public void clear() {
+        _entries.clear();
+    }
+
+    /**
+     * @return the results, in the order added
+     * @throws IllegalStateException if the hash is not available
+     */
+    public boolean[] verify() {
+        int sz = _entries.size();
+        boolean[] rv = new boolean[sz];
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(_spec.getHashAlgorithm());
+        } catch (GeneralSecurityException gse) {
+            throw new IllegalStateException(gse);
+        }
+        List<Integer> batch = new ArrayList<Integer>(sz);
+        for (int i = 0; i < sz; i++) {
+            Entry e = _entries.get(i);
+            if (prepare(e, digest))
+                batch.add(Integer.valueOf(i));
+            else
+                rv[i] = verifyOne(e);
+        }
+        verify(batch, rv);
+        return rv;
+    }
+
+    /**
+     *  Check the batch, and if it fails, split it and check the halves.
+     */
+    private void verify(List<Integer> batch, boolean[] rv) {
+        int sz = batch.size();
+        if (sz < MIN_BATCH) {
+            for (Integer i : batch) {
+                rv[i.intValue()] = verifyOne(_entries.get(i.intValue()));
+            }
+            return;
+        }
+        if (check(batch)) {
+            for (Integer i : batch) {
+                rv[i.intValue()] = true;
+            }
+            return;
+        }
+        verify(batch.subList(0, sz / 2), rv);
+        verify(batch.subList(sz / 2, sz), rv);
+    }
+
+    /**
+     *  Decode R and A and compute h.
+     *
+     *  @return false if it must be verified individually
+     */
+    private boolean prepare(Entry e, MessageDigest digest) {
+        int b = _curve.getField().getb();
+        if (e.pubkey.length != b/8 || e.sig.length != b/4)
+            return false;
+        byte[] Rbyte = new byte[b/8];
+        System.arraycopy(e.sig, 0, Rbyte, 0, b/8);
+        if (!isCanonical(e.pubkey) || !isCanonical(Rbyte))
+            return false;
+        byte[] S = new byte[b/8];
+        System.arraycopy(e.sig, b/8, S, 0, b/8);
+        // the batch reduces S mod L, EdDSAEngine doesn't, and may not get
+        // the same answer for large S
+        if (!isReduced(S))
+            return false;
+        try {
+            e.A = decode(e.pubkey);
+            e.R = decode(Rbyte);
+        } catch (IllegalArgumentException iae) {
+            return false;
+        }
+        if (e.A == null || e.R == null)
+            return false;
+        digest.update(e.sig, 0, b/8);
+        digest.update(e.pubkey);
+        digest.update(e.data, e.off, e.len);
+        e.h = _scalarOps.reduce(digest.digest());
+        e.S = S;
+        return true;
+    }
+
+    /**
+     *  @return null if x is zero but the sign bit is set, as that's not canonical
+     *  @throws IllegalArgumentException if not on the curve
+     */
+    private GroupElement decode(byte[] s) {
+        GroupElement rv = new GroupElement(_curve, s);
+        if (!rv.getX().isNonZero() && (s[s.length - 1] & 0x80) != 0)
+            return null;
+        return rv;
+    }
+
+    /**
+     *  Is y less than p = 2**255 - 19
+     */
+    private static boolean isCanonical(byte[] s) {
+        if ((s[31] & 0x7f) != 0x7f)
+            return true;
+        for (int i = 30; i > 0; i--) {
+            if (s[i] != (byte) 0xff)
+                return true;
+        }
+        return (s[0] & 0xff) < 0xed;
+    }
+
+    /**
+     *  Is s less than L
+     */
+    private static boolean isReduced(byte[] s) {
+        for (int i = 31; i >= 0; i--) {
+            int x = s[i] & 0xff;
+            int l = L[i] & 0xff;
+            if (x < l)
+                return true;
+            if (x > l)
+                return false;
+        }
+        return false;
+    }
+
+    /**
+     *  The batch equation, cofactored.
+     *
+     *  @return true if all are valid (with high probability)
+     */
+    private boolean check(List<Integer> batch) {
+        int sz = batch.size();
+        GroupElement[] points = new GroupElement[2 * sz];
+        byte[][] scalars = new byte[2 * sz][];
+        byte[] sumS = ZERO;
+        for (int j = 0; j < sz; j++) {
+            Entry e = _entries.get(batch.get(j).intValue());
+            byte[] z = new byte[32];
+            do {
+                for (int k = 0; k < 16; k += 4) {
+                    int r = _rand.nextInt();
+                    z[k] = (byte) r;
+                    z[k + 1] = (byte) (r >> 8);
+                    z[k + 2] = (byte) (r >> 16);
+                    z[k + 3] = (byte) (r >> 24);
+                }
+            } while (isZero(z));
+            sumS = _scalarOps.multiplyAndAdd(z, e.S, sumS);
+            points[2 * j] = e.R;
+            scalars[2 * j] = z;
+            points[2 * j + 1] = e.A;
+            scalars[2 * j + 1] = _scalarOps.multiplyAndAdd(z, e.h, ZERO);
+        }
+        GroupElement left = _spec.getB().scalarMultiply(sumS);
+        GroupElement right = multiScalarMultiply(points, scalars);
+        return left.multiplyByCofactor().equals(right.multiplyByCofactor());
+    }
+
+    private static boolean isZero(byte[] z) {
+        for (int i = 0; i < z.length; i++) {
+            if (z[i] != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     *  sum scalars[i] * points[i] by Pippenger's bucket method,
+     *  with signed window digits.
+     *  Variable time, for public values only.
+     *
+     *  @param points P3
+     *  @param scalars 32 bytes little endian, less than 2**255
+     *  @return P3
+     */
+    private GroupElement multiScalarMultiply(GroupElement[] points, byte[][] scalars) {
+        int n = points.length;
+        int c;
+        if (n < 16)
+            c = 3;
+        else if (n < 48)
+            c = 4;
+        else if (n < 160)
+            c = 5;
+        else if (n < 400)
+            c = 6;
+        else
+            c = 7;
+        int half = 1 << (c - 1);
+        int windows = (256 + c - 1) / c + 1;
+
+        // signed digits in [-half, half]
+        int[][] digits = new int[n][windows];
+        for (int i = 0; i < n; i++) {
+            int carry = 0;
+            for (int w = 0; w < windows; w++) {
+                int raw = bits(scalars[i], w * c, c) + carry;
+                if (raw > half) {
+                    digits[i][w] = raw - (1 << c);
+                    carry = 1;
+                } else {
+                    digits[i][w] = raw;
+                    carry = 0;
+                }
+            }
+        }
+
+        GroupElement[] cached = new GroupElement[n];
+        for (int i = 0; i < n; i++) {
+            cached[i] = points[i].toCached();
+        }
+
+        GroupElement zero = _curve.getZero(GroupElement.Representation.P3);
+        GroupElement acc = null;
+        GroupElement[] buckets = new GroupElement[half];
+        for (int w = windows - 1; w >= 0; w--) {
+            if (acc != null) {
+                for (int k = 0; k < c; k++) {
+                    GroupElement t = acc.dbl();
+                    acc = (k == c - 1) ? t.toP3() : t.toP2();
+                }
+            }
+            for (int j = 0; j < half; j++) {
+                buckets[j] = null;
+            }
+            for (int i = 0; i < n; i++) {
+                int d = digits[i][w];
+                if (d > 0) {
+                    GroupElement bk = buckets[d - 1];
+                    buckets[d - 1] = (bk == null ? zero : bk).add(cached[i]).toP3();
+                } else if (d < 0) {
+                    GroupElement bk = buckets[-d - 1];
+                    buckets[-d - 1] = (bk == null ? zero : bk).sub(cached[i]).toP3();
+                }
+            }
+            // sum of j * bucket[j]
+            GroupElement running = null;
+            GroupElement sum = null;
+            for (int j = half - 1; j >= 0; j--) {
+                if (buckets[j] != null)
+                    running = running == null ? buckets[j] : running.add(buckets[j].toCached()).toP3();
+                if (running != null)
+                    sum = sum == null ? running : sum.add(running.toCached()).toP3();
+            }
+            if (sum != null)
+                acc = acc == null ? sum : acc.add(sum.toCached()).toP3();
+        }
+        return acc != null ? acc : zero;
+    }
+
+    /**
+     *  @return c bits of little endian s starting at bit pos
+     */
+    private static int bits(byte[] s, int pos, int c) {
+        int rv = 0;
+        for (int i = 0; i < c; i++) {
+            int k = pos + i;
+            if (k >= 256)
+                break;
+            rv |= ((s[k >> 3] >> (k & 7)) & 1) << i;
+        }
+        return rv;
+    }
+
+    /**
+     *  The standard way
+     */
+    private boolean verifyOne(Entry e) {
+        try {
+            EdDSAPublicKey key = new EdDSAPublicKey(new EdDSAPublicKeySpec(e.pubkey, _spec));
+            EdDSAEngine engine = new EdDSAEngine(MessageDigest.getInstance(_spec.getHashAlgorithm()));
+            engine.initVerify(key);
+            return engine.verifyOneShot(e.data, e.off, e.len, e.sig);
+        } catch (GeneralSecurityException gse) {
+            return false;
+        } catch (IllegalArgumentException iae) {
+            // bad key
+            return false;
+        }
+    }
+
+    private static class Entry {
+        final byte[] pubkey;
+        final byte[] sig;
+        final byte[] data;
+        final int off;
+        final int len;
+        /** set by prepare() */
+        GroupElement A;
+        GroupElement R;
+        byte[] S;
+        byte[] h;
+
+        public Entry(byte[] pubkey, byte[] sig, byte[] data, int off, int len) {
+            this.pubkey = pubkey;
+            this.sig = sig;
+            this.data = data;
+            this.off = off;
+            this.len = len;
+        }
+    }
+}
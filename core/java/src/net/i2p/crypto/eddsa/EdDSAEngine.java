@@ -295,11 +295,35 @@ public final class EdDSAEngine extends Signature {
         byte[] Rcalc = R.toByteArray();
         for (int i = 0; i < Rcalc.length; i++) {
             if (Rcalc[i] != sigBytes[i])
-                return false;
+                return cofactoredVerify(curve, R, sigBytes);
         }
         return true;
     }
 
+    /**
+     *  R doesn't match exactly. Check [8]R == [8](SB - hA) instead, as allowed by RFC 8032,
+     *  so that the result is always the same as for EdDSABatchVerifier,
+     *  which must be cofactored. The difference is only for signatures with
+     *  a small-order component in R or A, which only the owner of the key can make.
+     *  R must still be a canonical encoding of a point.
+     *
+     *  @param Rcalc SB - hA
+     *  @since 0.9.31
+     */
+    private static boolean cofactoredVerify(Curve curve, GroupElement Rcalc, byte[] sigBytes) {
+        byte[] Rbyte = Arrays.copyOfRange(sigBytes, 0, curve.getField().getb()/8);
+        GroupElement R;
+        try {
+            R = new GroupElement(curve, Rbyte);
+        } catch (IllegalArgumentException iae) {
+            return false;
+        }
+        // y >= p, or x == 0 with the sign bit set
+        if (!Arrays.equals(R.toByteArray(), Rbyte))
+            return false;
+        return R.multiplyByCofactor().equals(Rcalc.multiplyByCofactor());
+    }
+
     /**
      *  To efficiently sign all the data in one shot, if it is available,
      *  use this method, which will avoid copying the data.
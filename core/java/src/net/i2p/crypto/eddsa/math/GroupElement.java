@@ -174,16 +174,31 @@ public class GroupElement implements Serializable {
      * filled if necessary.
      * <p>
      * Variable is package private only so that tests run.
+     * Volatile so it may be used without locking once set.
      */
-    GroupElement[][] precmp;
+    volatile GroupElement[][] precmp;
 
     /**
      * Precomputed table for {@link #doubleScalarMultiplyVariableTime(GroupElement, byte[], byte[])},
      * filled if necessary.
      * <p>
      * Variable is package private only so that tests run.
+     * Volatile so it may be used without locking once set.
      */
-    GroupElement[] dblPrecmp;
+    volatile GroupElement[] dblPrecmp;
+
+    /**
+     * Precomputed table for the fixed base in
+     * {@link #doubleScalarMultiplyVariableTime(GroupElement, byte[], byte[])},
+     * with a wider window than dblPrecmp: P,3P,5P,...,127P.
+     * Filled along with precmp, i.e. for the base point only.
+     *
+     * @since 0.9.31
+     */
+    private volatile GroupElement[] wideDblPrecmp;
+
+    /** largest digit for wideDblPrecmp */
+    private static final int WIDE_SLIDE_MAX = 127;
 
     /**
      * Creates a group element for a curve.
@@ -454,16 +469,13 @@ public class GroupElement implements Serializable {
 
         if (precomputeSingle && this.precmp == null) {
             // Precomputation for single scalar multiplication.
-            this.precmp = new GroupElement[32][8];
+            final GroupElement[] p = new GroupElement[32 * 8];
             // TODO-CR BR: check that this == base point when the method is called.
             Bi = this;
             for (int i = 0; i < 32; i++) {
                 GroupElement Bij = Bi;
                 for (int j = 0; j < 8; j++) {
-                    final FieldElement recip = Bij.Z.invert();
-                    final FieldElement x = Bij.X.multiply(recip);
-                    final FieldElement y = Bij.Y.multiply(recip);
-                    this.precmp[i][j] = precomp(this.curve, y.add(x), y.subtract(x), x.multiply(y).multiply(this.curve.get2D()));
+                    p[i * 8 + j] = Bij;
                     Bij = Bij.add(Bi.toCached()).toP3();
                 }
                 // Only every second summand is precomputed (16^2 = 256)
@@ -471,22 +483,72 @@ public class GroupElement implements Serializable {
                     Bi = Bi.add(Bi.toCached()).toP3();
                 }
             }
+            final GroupElement[] pre = toPrecomp(p);
+            final GroupElement[][] table = new GroupElement[32][8];
+            for (int i = 0; i < 32; i++) {
+                System.arraycopy(pre, i * 8, table[i], 0, 8);
+            }
+            this.wideDblPrecmp = oddMultiples((WIDE_SLIDE_MAX + 1) / 2);
+            this.precmp = table;
         }
 
         // Precomputation for double scalar multiplication.
         // P,3P,5P,7P,9P,11P,13P,15P
         if (this.dblPrecmp != null)
             return;
-        this.dblPrecmp = new GroupElement[8];
-        Bi = this;
-        for (int i = 0; i < 8; i++) {
-            final FieldElement recip = Bi.Z.invert();
-            final FieldElement x = Bi.X.multiply(recip);
-            final FieldElement y = Bi.Y.multiply(recip);
-            this.dblPrecmp[i] = precomp(this.curve, y.add(x), y.subtract(x), x.multiply(y).multiply(this.curve.get2D()));
-            // Bi = edwards(B,edwards(B,Bi))
-            Bi = this.add(this.add(Bi.toCached()).toP3().toCached()).toP3();
+        this.dblPrecmp = oddMultiples(8);
+    }
+
+    /**
+     * P,3P,5P,... in PRECOMP representation.
+     *
+     * @param count how many
+     * @since 0.9.31 split out of precompute()
+     */
+    private GroupElement[] oddMultiples(final int count) {
+        final GroupElement[] p = new GroupElement[count];
+        final GroupElement twice = this.toP3().dbl().toP3().toCached();
+        GroupElement Bi = this.toP3();
+        for (int i = 0; i < count; i++) {
+            p[i] = Bi;
+            Bi = Bi.add(twice).toP3();
+        }
+        return toPrecomp(p);
+    }
+
+    /**
+     * Convert P3 points to PRECOMP representation,
+     * with only one field inversion for all of them (Montgomery's trick),
+     * instead of one per point.
+     *
+     * @param p in P3 representation, non-empty
+     * @since 0.9.31
+     */
+    private static GroupElement[] toPrecomp(final GroupElement[] p) {
+        final int n = p.length;
+        final Curve curve = p[0].curve;
+        // prod[i] = Z_0 * ... * Z_i
+        final FieldElement[] prod = new FieldElement[n];
+        prod[0] = p[0].Z;
+        for (int i = 1; i < n; i++) {
+            prod[i] = prod[i - 1].multiply(p[i].Z);
+        }
+        // inv = 1 / (Z_0 * ... * Z_i), going down
+        FieldElement inv = prod[n - 1].invert();
+        final GroupElement[] rv = new GroupElement[n];
+        for (int i = n - 1; i >= 0; i--) {
+            final FieldElement recip;
+            if (i > 0) {
+                recip = inv.multiply(prod[i - 1]);
+                inv = inv.multiply(p[i].Z);
+            } else {
+                recip = inv;
+            }
+            final FieldElement x = p[i].X.multiply(recip);
+            final FieldElement y = p[i].Y.multiply(recip);
+            rv[i] = precomp(curve, y.add(x), y.subtract(x), x.multiply(y).multiply(curve.get2D()));
         }
+        return rv;
     }
 
     /**
@@ -711,6 +773,19 @@ public class GroupElement implements Serializable {
         return this.curve.getZero(Representation.P3).sub(toCached()).toP3();
     }
 
+    /**
+     * Multiplies this group element by the cofactor 8, for cofactored verification.
+     * Small-order components are removed, so two points are equal after this
+     * if they differ only by a small-order point.
+     *
+     * @return [8]this in P2 representation
+     * @throws UnsupportedOperationException if not P2 or P3 representation
+     * @since 0.9.31
+     */
+    public GroupElement multiplyByCofactor() {
+        return dbl().toP2().dbl().toP2().dbl().toP2();
+    }
+
     @Override
     public int hashCode() {
         return Arrays.hashCode(this.toByteArray());
@@ -840,15 +915,16 @@ public class GroupElement implements Serializable {
         final int babs = b - (((-bnegative) & b) << 1);
 
         // 16^i |r_i| B
+        final GroupElement[] row = this.precmp[pos];
         final GroupElement t = this.curve.getZero(Representation.PRECOMP)
-                .cmov(this.precmp[pos][0], Utils.equal(babs, 1))
-                .cmov(this.precmp[pos][1], Utils.equal(babs, 2))
-                .cmov(this.precmp[pos][2], Utils.equal(babs, 3))
-                .cmov(this.precmp[pos][3], Utils.equal(babs, 4))
-                .cmov(this.precmp[pos][4], Utils.equal(babs, 5))
-                .cmov(this.precmp[pos][5], Utils.equal(babs, 6))
-                .cmov(this.precmp[pos][6], Utils.equal(babs, 7))
-                .cmov(this.precmp[pos][7], Utils.equal(babs, 8));
+                .cmov(row[0], Utils.equal(babs, 1))
+                .cmov(row[1], Utils.equal(babs, 2))
+                .cmov(row[2], Utils.equal(babs, 3))
+                .cmov(row[3], Utils.equal(babs, 4))
+                .cmov(row[4], Utils.equal(babs, 5))
+                .cmov(row[5], Utils.equal(babs, 6))
+                .cmov(row[6], Utils.equal(babs, 7))
+                .cmov(row[7], Utils.equal(babs, 8));
         // -16^i |r_i| B
         final GroupElement tminus = precomp(curve, t.Y, t.X, t.Z.negate());
         // 16^i r_i B
@@ -873,22 +949,21 @@ public class GroupElement implements Serializable {
         final byte[] e = toRadix16(a);
 
         GroupElement h = this.curve.getZero(Representation.P3);
-        synchronized(this) {
-            // TODO: Get opinion from a crypto professional.
-            // This should in practice never be necessary, the only point that
-            // this should get called on is EdDSA's B.
-            //precompute();
-            for (i = 1; i < 64; i += 2) {
-                t = select(i/2, e[i]);
-                h = h.madd(t).toP3();
-            }
+        // No lock needed, the table is never changed once set.
+        // TODO: Get opinion from a crypto professional.
+        // This should in practice never be necessary, the only point that
+        // this should get called on is EdDSA's B.
+        //precompute();
+        for (i = 1; i < 64; i += 2) {
+            t = select(i/2, e[i]);
+            h = h.madd(t).toP3();
+        }
 
-            h = h.dbl().toP2().dbl().toP2().dbl().toP2().dbl().toP3();
+        h = h.dbl().toP2().dbl().toP2().dbl().toP2().dbl().toP3();
 
-            for (i = 0; i < 64; i += 2) {
-                t = select(i/2, e[i]);
-                h = h.madd(t).toP3();
-            }
+        for (i = 0; i < 64; i += 2) {
+            t = select(i/2, e[i]);
+            h = h.madd(t).toP3();
         }
 
         return h;
@@ -907,7 +982,21 @@ public class GroupElement implements Serializable {
      * @return The byte array r in the above described form.
      */
     static byte[] slide(final byte[] a) {
+        return slide(a, 15);
+    }
+
+    /**
+     * Sliding-windows base 2 representation with odd digits up to max.
+     *
+     * @param a = a[0]+256*a[1]+...+256^31 a[31].
+     * @param max 2^w - 1, 127 or less
+     * @return The byte array r, with ri odd and in [-max, max], or 0
+     * @since 0.9.31
+     */
+    private static byte[] slide(final byte[] a, final int max) {
         byte[] r = new byte[256];
+        // window search limit, 6 for max = 15
+        final int limit = 34 - Integer.numberOfLeadingZeros(max);
 
         // Put each bit of 'a' into a separate byte, 0 or 1
         for (int i = 0; i < 256; ++i) {
@@ -917,13 +1006,13 @@ public class GroupElement implements Serializable {
         // Note: r[i] will always be odd.
         for (int i = 0; i < 256; ++i) {
             if (r[i] != 0) {
-                for (int b = 1; b <= 6 && i + b < 256; ++b) {
+                for (int b = 1; b <= limit && i + b < 256; ++b) {
                     // Accumulate bits if possible
                     if (r[i + b] != 0) {
-                        if (r[i] + (r[i + b] << b) <= 15) {
+                        if (r[i] + (r[i + b] << b) <= max) {
                             r[i] += r[i + b] << b;
                             r[i + b] = 0;
-                        } else if (r[i] - (r[i + b] << b) >= -15) {
+                        } else if (r[i] - (r[i + b] << b) >= -max) {
                             r[i] -= r[i + b] << b;
                             for (int k = i + b; k < 256; ++k) {
                                 if (r[k] == 0) {
@@ -955,8 +1044,13 @@ public class GroupElement implements Serializable {
      */
     public GroupElement doubleScalarMultiplyVariableTime(final GroupElement A, final byte[] a, final byte[] b) {
         // TODO-CR BR: A check that this is the base point is needed.
+        // No lock needed, the tables are never changed once set.
+        final GroupElement[] aTable = A.dblPrecmp;
+        // Wider window for the base point, if it has the table, for fewer additions
+        final GroupElement[] wide = this.wideDblPrecmp;
+        final GroupElement[] bTable = wide != null ? wide : this.dblPrecmp;
         final byte[] aslide = slide(a);
-        final byte[] bslide = slide(b);
+        final byte[] bslide = wide != null ? slide(b, WIDE_SLIDE_MAX) : slide(b);
 
         GroupElement r = this.curve.getZero(Representation.P2);
 
@@ -965,29 +1059,27 @@ public class GroupElement implements Serializable {
             if (aslide[i] != 0 || bslide[i] != 0) break;
         }
 
-        synchronized(this) {
-            // TODO-CR BR strange comment below.
-            // TODO: Get opinion from a crypto professional.
-            // This should in practice never be necessary, the only point that
-            // this should get called on is EdDSA's B.
-            //precompute();
-            for (; i >= 0; --i) {
-                GroupElement t = r.dbl();
-
-                if (aslide[i] > 0) {
-                    t = t.toP3().madd(A.dblPrecmp[aslide[i]/2]);
-                } else if(aslide[i] < 0) {
-                    t = t.toP3().msub(A.dblPrecmp[(-aslide[i])/2]);
-                }
-
-                if (bslide[i] > 0) {
-                    t = t.toP3().madd(this.dblPrecmp[bslide[i]/2]);
-                } else if(bslide[i] < 0) {
-                    t = t.toP3().msub(this.dblPrecmp[(-bslide[i])/2]);
-                }
+        // TODO-CR BR strange comment below.
+        // TODO: Get opinion from a crypto professional.
+        // This should in practice never be necessary, the only point that
+        // this should get called on is EdDSA's B.
+        //precompute();
+        for (; i >= 0; --i) {
+            GroupElement t = r.dbl();
+
+            if (aslide[i] > 0) {
+                t = t.toP3().madd(aTable[aslide[i]/2]);
+            } else if(aslide[i] < 0) {
+                t = t.toP3().msub(aTable[(-aslide[i])/2]);
+            }
 
-                r = t.toP2();
+            if (bslide[i] > 0) {
+                t = t.toP3().madd(bTable[bslide[i]/2]);
+            } else if(bslide[i] < 0) {
+                t = t.toP3().msub(bTable[(-bslide[i])/2]);
             }
+
+            r = t.toP2();
         }
 
         return r;
@@ -1,5 +1,7 @@
 package net.i2p.stat;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.Properties;
 
@@ -524,6 +526,59 @@ public class Rate {
         coalesce();
     }
 
+    /**
+     * Length of the binary form written by store(DataOutput)
+     * @since 0.9.31
+     */
+    static final int STORED_LENGTH = 8 + (4 * 4) + (4 * 6) + (8 * 2);
+
+    /**
+     * Compact binary form of the same data as store(String, StringBuilder),
+     * without the period, which is written by RateStat.
+     * The last coalesce date is not stored, so the output does not change
+     * unless the data does; load(DataInput) treats the data as current.
+     *
+     * @since 0.9.31
+     */
+    synchronized void store(DataOutput out) throws IOException {
+        out.writeLong(_creationDate);
+        out.writeFloat(_currentTotalValue);
+        out.writeInt(_currentEventCount);
+        out.writeInt(_currentTotalEventTime);
+        out.writeFloat(_lastTotalValue);
+        out.writeInt(_lastEventCount);
+        out.writeInt(_lastTotalEventTime);
+        out.writeFloat(_extremeTotalValue);
+        out.writeInt(_extremeEventCount);
+        out.writeInt(_extremeTotalEventTime);
+        out.writeFloat(_lifetimeTotalValue);
+        out.writeLong(_lifetimeEventCount);
+        out.writeLong(_lifetimeTotalEventTime);
+    }
+
+    /**
+     * Load the data written by store(DataOutput),
+     * as if no time has elapsed since it was written out.
+     *
+     * @since 0.9.31
+     */
+    synchronized void load(DataInput in) throws IOException {
+        _creationDate = in.readLong();
+        _currentTotalValue = in.readFloat();
+        _currentEventCount = in.readInt();
+        _currentTotalEventTime = in.readInt();
+        _lastTotalValue = in.readFloat();
+        _lastEventCount = in.readInt();
+        _lastTotalEventTime = in.readInt();
+        _extremeTotalValue = in.readFloat();
+        _extremeEventCount = in.readInt();
+        _extremeTotalEventTime = in.readInt();
+        _lifetimeTotalValue = in.readFloat();
+        _lifetimeEventCount = in.readLong();
+        _lifetimeTotalEventTime = in.readLong();
+        _lastCoalesceDate = now();
+    }
+
     /**
      * This is used in StatSummarizer and SummaryListener.
      * We base it on the stat we are tracking, not the stored data.
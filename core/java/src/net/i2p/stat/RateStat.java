@@ -1,5 +1,7 @@
 package net.i2p.stat;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.OutputStream;
 import static java.util.Arrays.*;
@@ -220,6 +222,42 @@ public class RateStat {
         }
     }
 
+    /**
+     * Compact binary form of the same data as store(OutputStream, String).
+     * The number of rates, then the period and data of each.
+     *
+     * @since 0.9.31
+     */
+    public void store(DataOutput out) throws IOException {
+        out.writeByte(_rates.length);
+        for (Rate r : _rates) {
+            out.writeInt((int) r.getPeriod());
+            r.store(out);
+        }
+    }
+
+    /**
+     * Load the data written by store(DataOutput), as if no time has elapsed
+     * since it was written out. Rates with periods that this RateStat
+     * does not have are skipped; rates that are not in the data are unchanged.
+     *
+     * @throws IOException on EOF
+     * @since 0.9.31
+     */
+    public void load(DataInput in) throws IOException {
+        int count = in.readUnsignedByte();
+        for (int i = 0; i < count; i++) {
+            int period = in.readInt();
+            Rate r = getRate(period);
+            if (r != null) {
+                r.load(in);
+                r.coalesce();
+            } else {
+                in.readFully(new byte[Rate.STORED_LENGTH]);
+            }
+        }
+    }
+
 /*********
     public static void main(String args[]) {
         RateStat rs = new RateStat("moo", "moo moo moo", "cow trueisms", new long[] { 60 * 1000, 60 * 60 * 1000,
@@ -10,9 +10,12 @@ package net.i2p.util;
  */
 
 import gnu.crypto.prng.AsyncFortunaStandalone;
+import gnu.crypto.prng.FortunaStandalone;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Random;
 
 import net.i2p.I2PAppContext;
@@ -23,12 +26,24 @@ import net.i2p.crypto.EntropyHarvester;
  * ./prngseed.rnd on startup (if they exist), writing a new seed to ./prngseed.rnd
  * on an explicit call to saveSeed().
  *
+ * If prng.perThread=true, each thread gets its own Fortuna generator,
+ * keyed and periodically rekeyed from the shared one, so only
+ * the reseeds take the shared lock. See LocalGenerator.
+ *
  */
 public class FortunaRandomSource extends RandomSource implements EntropyHarvester {
     private final AsyncFortunaStandalone _fortuna;
+    /** null unless per-thread mode */
+    private final ThreadLocal<LocalGenerator> _local;
     private double _nextGaussian;
     private boolean _haveNextGaussian;
 
+    /**
+     *  Use a generator per thread, default false
+     *  @since 0.9.31
+     */
+    public static final String PROP_PER_THREAD = "prng.perThread";
+
     /**
      *  May block up to 10 seconds or forever
      */
@@ -51,6 +66,16 @@ public class FortunaRandomSource extends RandomSource implements EntropyHarveste
         // kickstart it
         _fortuna.nextBytes(seed);
         _haveNextGaussian = false;
+        if (context.getBooleanProperty(PROP_PER_THREAD)) {
+            _local = new ThreadLocal<LocalGenerator>() {
+                @Override
+                protected LocalGenerator initialValue() {
+                    return new LocalGenerator();
+                }
+            };
+        } else {
+            _local = null;
+        }
     }
     
     /**
@@ -119,8 +144,12 @@ public class FortunaRandomSource extends RandomSource implements EntropyHarveste
         else
             numBits = 8;
         int rv;
-        synchronized(_fortuna) {
-            rv = nextBits(numBits);
+        if (_local != null) {
+            rv = nextBits(_local.get(), numBits);
+        } else {
+            synchronized(_fortuna) {
+                rv = nextBits(numBits);
+            }
         }
         return rv % n;
         
@@ -154,6 +183,10 @@ public class FortunaRandomSource extends RandomSource implements EntropyHarveste
      * Implementation from Sun's java.util.Random javadocs
      */
     private long signedNextLong() {
+        if (_local != null) {
+            LocalGenerator lg = _local.get();
+            return ((long)nextBits(lg, 32) << 32) + nextBits(lg, 32);
+        }
         synchronized(_fortuna) {
             return ((long)nextBits(32) << 32) + nextBits(32);
         }
@@ -161,15 +194,16 @@ public class FortunaRandomSource extends RandomSource implements EntropyHarveste
 
     @Override
     public boolean nextBoolean() { 
-        byte val;
-        synchronized(_fortuna) {
-            val = _fortuna.nextByte();
-        }
+        byte val = nextByte();
         return ((val & 0x01) != 0);
     }
 
     @Override
     public void nextBytes(byte buf[]) { 
+        if (_local != null) {
+            _local.get().nextBytes(buf, 0, buf.length);
+            return;
+        }
         synchronized(_fortuna) {
             _fortuna.nextBytes(buf);
         }
@@ -182,6 +216,10 @@ public class FortunaRandomSource extends RandomSource implements EntropyHarveste
      */
     @Override
     public void nextBytes(byte buf[], int offset, int length) {
+        if (_local != null) {
+            _local.get().nextBytes(buf, offset, length);
+            return;
+        }
         synchronized(_fortuna) {
             _fortuna.nextBytes(buf, offset, length);
         }
@@ -193,6 +231,8 @@ public class FortunaRandomSource extends RandomSource implements EntropyHarveste
      * @since 0.9.24
      */
     public byte nextByte() { 
+        if (_local != null)
+            return _local.get().nextByte();
         synchronized(_fortuna) {
             return _fortuna.nextByte();
         }
@@ -204,8 +244,13 @@ public class FortunaRandomSource extends RandomSource implements EntropyHarveste
     @Override
     public double nextDouble() { 
         long d;
-        synchronized(_fortuna) {
-            d = ((long)nextBits(26) << 27) + nextBits(27);
+        if (_local != null) {
+            LocalGenerator lg = _local.get();
+            d = ((long)nextBits(lg, 26) << 27) + nextBits(lg, 27);
+        } else {
+            synchronized(_fortuna) {
+                d = ((long)nextBits(26) << 27) + nextBits(27);
+            }
         }
         return d / (double)(1L << 53);
     }
@@ -216,8 +261,12 @@ public class FortunaRandomSource extends RandomSource implements EntropyHarveste
     @Override
     public float nextFloat() { 
         int d;
-        synchronized(_fortuna) {
-            d = nextBits(24);
+        if (_local != null) {
+            d = nextBits(_local.get(), 24);
+        } else {
+            synchronized(_fortuna) {
+                d = nextBits(24);
+            }
         }
         return d / ((float)(1 << 24));
     }
@@ -263,6 +312,107 @@ public class FortunaRandomSource extends RandomSource implements EntropyHarveste
         rv >>>= off;
         return (int)rv;
     }
+
+    /**
+     * Same as nextBits(int) but from a per-thread generator, no lock needed.
+     *
+     * @since 0.9.31
+     */
+    private static int nextBits(LocalGenerator lg, int numBits) {
+        long rv = 0;
+        int bytes = (numBits + 7) / 8;
+        for (int i = 0; i < bytes; i++)
+            rv += ((lg.nextByte() & 0xFF) << i*8);
+        if (rv < 0)
+            rv = 0 - rv;
+        int off = 8*bytes - numBits;
+        rv >>>= off;
+        return (int)rv;
+    }
+
+    /**
+     * A Fortuna generator for one thread, keyed from the shared Fortuna.
+     * Output is generated a block at a time into a small buffer,
+     * which is zeroed as it is used. The generator rekeys itself
+     * after every block as usual, and is reseeded with 32 bytes from
+     * the shared Fortuna, which gets all the entropy fed to us,
+     * every RESEED_BYTES of output or RESEED_TIME, whichever is first.
+     *
+     * Not thread safe, one per thread.
+     *
+     * @since 0.9.31
+     */
+    private class LocalGenerator {
+        private final FortunaStandalone.Generator _gen;
+        private final byte[] _buf;
+        private final byte[] _seed;
+        private int _ndx;
+        private long _sinceReseed;
+        private long _lastReseed;
+
+        private static final int BUFSIZE = 1024;
+        private static final int SEED_BYTES = 32;
+        private static final long RESEED_BYTES = 1024*1024;
+        private static final long RESEED_TIME = 60*1000;
+
+        public LocalGenerator() {
+            _gen = new FortunaStandalone.Generator();
+            _buf = new byte[BUFSIZE];
+            _seed = new byte[SEED_BYTES];
+            getSeed();
+            _gen.init(Collections.singletonMap(FortunaStandalone.SEED, _seed));
+            Arrays.fill(_seed, (byte) 0);
+            _ndx = BUFSIZE;
+        }
+
+        public byte nextByte() {
+            if (_ndx >= BUFSIZE)
+                refill();
+            byte rv = _buf[_ndx];
+            _buf[_ndx++] = 0;
+            return rv;
+        }
+
+        public void nextBytes(byte[] out, int offset, int length) {
+            int avail = BUFSIZE - _ndx;
+            if (length <= avail) {
+                System.arraycopy(_buf, _ndx, out, offset, length);
+                Arrays.fill(_buf, _ndx, _ndx + length, (byte) 0);
+                _ndx += length;
+                return;
+            }
+            // big ones direct from the generator, don't bother with the buffer
+            checkReseed(length);
+            _gen.nextBytes(out, offset, length);
+        }
+
+        private void refill() {
+            checkReseed(BUFSIZE);
+            _gen.nextBytes(_buf, 0, BUFSIZE);
+            _ndx = 0;
+        }
+
+        private void checkReseed(int length) {
+            _sinceReseed += length;
+            if (_sinceReseed > RESEED_BYTES ||
+                System.currentTimeMillis() - _lastReseed > RESEED_TIME)
+                reseed();
+        }
+
+        private void reseed() {
+            getSeed();
+            _gen.addRandomBytes(_seed);
+            Arrays.fill(_seed, (byte) 0);
+        }
+
+        private void getSeed() {
+            synchronized(_fortuna) {
+                _fortuna.nextBytes(_seed);
+            }
+            _sinceReseed = 0;
+            _lastReseed = System.currentTimeMillis();
+        }
+    }
     
     @Override
     public EntropyHarvester harvester() { return this; }
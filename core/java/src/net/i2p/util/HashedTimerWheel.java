@@ -0,0 +1,220 @@
+package net.i2p.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import net.i2p.I2PAppContext;
+
+/**
+ * Hashed timing wheel backend for SimpleTimer2.
+ *
+ * Each slot is an intrusive doubly-linked list threaded through the
+ * SimpleTimer2.TimedEvent fields, so insert, cancel, and reschedule are O(1)
+ * and allocate nothing. Each slot has its own lock; there is no global lock.
+ * A single ticker thread walks the slots and hands expired events
+ * to an executor. Events further out than one rotation stay in their slot
+ * and are skipped until their tick comes up.
+ *
+ * Uses System.nanoTime(), like ScheduledThreadPoolExecutor,
+ * so it is not affected by wall clock shifts.
+ *
+ * Package private, for SimpleTimer2 only.
+ *
+ * @since 0.9.31
+ */
+class HashedTimerWheel implements Runnable {
+    /** ms per tick */
+    private static final long TICK = 5;
+    /** 1024 * 5 ms = 5.12 s per rotation */
+    private static final int SIZE = 1024;
+    private static final int MASK = SIZE - 1;
+    /** max time to park with nothing scheduled */
+    private static final long IDLE_PARK_NS = 1000*1000*1000L;
+
+    private final Slot[] _slots;
+    private final Executor _runner;
+    private final long _start;
+    private final AtomicInteger _size = new AtomicInteger();
+    /** last tick processed, only written under the lock of that tick's slot */
+    private volatile long _curTick;
+    private volatile boolean _idle;
+    private volatile boolean _alive;
+    private volatile Thread _thread;
+
+    /**
+     *  One list per tick; also the lock for that list.
+     *  Package private so TimedEvent can point to it.
+     */
+    static class Slot {
+        SimpleTimer2.TimedEvent head;
+    }
+
+    /**
+     *  Does not start the ticker thread, caller must call start()
+     *
+     *  @param runner runs the expired events, must not block in execute()
+     */
+    public HashedTimerWheel(Executor runner) {
+        _runner = runner;
+        _slots = new Slot[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            _slots[i] = new Slot();
+        }
+        // _curTick is 0, matching now()
+        _start = System.nanoTime();
+    }
+
+    public synchronized void start(String name) {
+        if (_alive)
+            return;
+        _alive = true;
+        Thread t = new I2PAppThread(this, name, true);
+        t.setPriority(Thread.NORM_PRIORITY + 1);
+        _thread = t;
+        t.start();
+    }
+
+    public void stop() {
+        _alive = false;
+        Thread t = _thread;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    /**
+     *  @return monotonic ms since the wheel was created
+     */
+    long now() {
+        return (System.nanoTime() - _start) / (1000*1000);
+    }
+
+    /**
+     *  Schedule the event, moving it if it is already in the wheel.
+     *  Caller must hold the event's lock.
+     */
+    public void schedule(SimpleTimer2.TimedEvent e, long timeoutMs) {
+        remove(e);
+        long deadline = now() + timeoutMs;
+        e._wheelDeadline = deadline;
+        // round up so we never fire early
+        long tick = (deadline + TICK - 1) / TICK;
+        // count it first, so the ticker won't park past it
+        if (_size.incrementAndGet() == 1 && _idle) {
+            Thread t = _thread;
+            if (t != null)
+                LockSupport.unpark(t);
+        }
+        while (true) {
+            long cur = _curTick;
+            if (tick <= cur)
+                tick = cur + 1;
+            Slot s = _slots[(int) (tick & MASK)];
+            synchronized (s) {
+                // if the ticker got to this tick while we were getting the lock,
+                // it would not come back for a full rotation, so pick again
+                if (tick <= _curTick)
+                    continue;
+                e._wheelTick = tick;
+                e._wheelSlot = s;
+                e._wheelPrev = null;
+                e._wheelNext = s.head;
+                if (s.head != null)
+                    s.head._wheelPrev = e;
+                s.head = e;
+                return;
+            }
+        }
+    }
+
+    /**
+     *  Remove the event if it is in the wheel.
+     *  Caller must hold the event's lock.
+     *
+     *  @return true if removed, false if not scheduled or already handed off to run
+     */
+    public boolean remove(SimpleTimer2.TimedEvent e) {
+        Slot s = e._wheelSlot;
+        if (s == null)
+            return false;
+        synchronized (s) {
+            // the ticker may have beaten us to it
+            if (e._wheelSlot != s)
+                return false;
+            unlink(s, e);
+        }
+        _size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     *  @return ms until the event's scheduled time, negative if late
+     */
+    public long getDelay(SimpleTimer2.TimedEvent e) {
+        return e._wheelDeadline - now();
+    }
+
+    /**
+     *  @return the number of scheduled events
+     */
+    public int size() {
+        return _size.get();
+    }
+
+    public void run() {
+        try {
+            while (_alive) {
+                long nowTick = now() / TICK;
+                while (_curTick < nowTick) {
+                    long tick = _curTick + 1;
+                    Slot s = _slots[(int) (tick & MASK)];
+                    synchronized (s) {
+                        _curTick = tick;
+                        SimpleTimer2.TimedEvent e = s.head;
+                        while (e != null) {
+                            SimpleTimer2.TimedEvent next = e._wheelNext;
+                            if (e._wheelTick <= tick) {
+                                unlink(s, e);
+                                _size.decrementAndGet();
+                                _runner.execute(e);
+                            }
+                            e = next;
+                        }
+                    }
+                }
+                if (_size.get() <= 0) {
+                    _idle = true;
+                    if (_size.get() <= 0)
+                        LockSupport.parkNanos(this, IDLE_PARK_NS);
+                    _idle = false;
+                } else {
+                    long sleep = ((_curTick + 1) * TICK) - now();
+                    if (sleep > 0)
+                        LockSupport.parkNanos(this, sleep * 1000*1000);
+                }
+            }
+        } catch (Throwable t) {
+            if (_alive) {
+                Log log = I2PAppContext.getGlobalContext().logManager().getLog(HashedTimerWheel.class);
+                log.log(Log.CRIT, "timer wheel died", t);
+            }
+        }
+    }
+
+    /**
+     *  Caller must hold the slot lock
+     */
+    private static void unlink(Slot s, SimpleTimer2.TimedEvent e) {
+        SimpleTimer2.TimedEvent prev = e._wheelPrev;
+        SimpleTimer2.TimedEvent next = e._wheelNext;
+        if (prev != null)
+            prev._wheelNext = next;
+        else
+            s.head = next;
+        if (next != null)
+            next._wheelPrev = prev;
+        e._wheelPrev = null;
+        e._wheelNext = null;
+        e._wheelSlot = null;
+    }
+}
@@ -1,6 +1,7 @@
 package net.i2p.util;
 
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -24,6 +25,11 @@ import net.i2p.I2PAppContext;
  *
  * SimpleTimer is deprecated, use this or SimpleScheduler.
  *
+ * As of 0.9.31, setting i2p.simpleTimer2.wheel=true in the context properties
+ * replaces the ScheduledThreadPoolExecutor with a hashed timing wheel,
+ * for O(1) schedule and cancel with no allocation or global lock.
+ * Expired events run on a plain thread pool of the same size.
+ *
  * @author zzz
  */
 public class SimpleTimer2 {
@@ -37,7 +43,17 @@ public class SimpleTimer2 {
 
     private static final int MIN_THREADS = 2;
     private static final int MAX_THREADS = 4;
-    private final ScheduledThreadPoolExecutor _executor;
+    /**
+     *  Context property to use the timing wheel backend.
+     *  @since 0.9.31
+     */
+    public static final String PROP_TIMER_WHEEL = "i2p.simpleTimer2.wheel";
+    /** runs the events, a ScheduledThreadPoolExecutor unless using the wheel */
+    private final ThreadPoolExecutor _executor;
+    /** same as _executor, or null if using the wheel */
+    private final ScheduledThreadPoolExecutor _scheduler;
+    /** null unless using the wheel */
+    private final HashedTimerWheel _wheel;
     private final String _name;
     private final AtomicInteger _count = new AtomicInteger();
     private final int _threads;
@@ -67,7 +83,16 @@ public class SimpleTimer2 {
         _name = name;
         long maxMemory = SystemVersion.getMaxMemory();
         _threads = (int) Math.max(MIN_THREADS, Math.min(MAX_THREADS, 1 + (maxMemory / (32*1024*1024))));
-        _executor = new CustomScheduledThreadPoolExecutor(_threads, new CustomThreadFactory());
+        if (context.getBooleanProperty(PROP_TIMER_WHEEL)) {
+            _scheduler = null;
+            _executor = new CustomThreadPoolExecutor(_threads, new CustomThreadFactory());
+            _wheel = new HashedTimerWheel(_executor);
+            _wheel.start(name + " Wheel");
+        } else {
+            _scheduler = new CustomScheduledThreadPoolExecutor(_threads, new CustomThreadFactory());
+            _executor = _scheduler;
+            _wheel = null;
+        }
         if (prestartAllThreads)
             _executor.prestartAllCoreThreads();
         // don't bother saving ref to remove hook if somebody else calls stop
@@ -89,6 +114,8 @@ public class SimpleTimer2 {
      * Cannot be restarted.
      */
     public void stop() {
+        if (_wheel != null)
+            _wheel.stop();
         _executor.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
         _executor.shutdownNow();
     }
@@ -108,6 +135,25 @@ public class SimpleTimer2 {
         }
     }
 
+    /**
+     *  Runs the events for the timing wheel
+     *  @since 0.9.31
+     */
+    private static class CustomThreadPoolExecutor extends ThreadPoolExecutor {
+        public CustomThreadPoolExecutor(int threads, ThreadFactory factory) {
+             super(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            super.afterExecute(r, t);
+            if (t != null) { // shoudn't happen, caught in RunnableEvent.run()
+                Log log = I2PAppContext.getGlobalContext().logManager().getLog(SimpleTimer2.class);
+                log.log(Log.CRIT, "event borked: " + r, t);
+            }
+        }
+    }
+
     private class CustomThreadFactory implements ThreadFactory {
         public Thread newThread(Runnable r) {
             Thread rv = Executors.defaultThreadFactory().newThread(r);
@@ -123,8 +169,53 @@ public class SimpleTimer2 {
         }
     }
 
-    private ScheduledFuture<?> schedule(TimedEvent t, long timeoutMs) {
-        return _executor.schedule(t, timeoutMs, TimeUnit.MILLISECONDS);
+    /**
+     *  Caller must hold the event's lock
+     */
+    private void schedule(TimedEvent t, long timeoutMs) {
+        if (_wheel != null)
+            _wheel.schedule(t, timeoutMs);
+        else
+            t._future = _scheduler.schedule(t, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *  Caller must hold the event's lock
+     *  @return success
+     *  @since 0.9.31
+     */
+    private boolean cancel(TimedEvent t) {
+        if (_wheel != null) {
+            // If it isn't in the wheel, it's already been handed to the executor;
+            // the CANCELLED state will stop it in run2().
+            _wheel.remove(t);
+            return true;
+        }
+        return t._future.cancel(true);
+    }
+
+    /**
+     *  Remove any other pending execution of an event that is about to run.
+     *  Only the wheel can do this; the executor may still have a duplicate.
+     *  Caller must hold the event's lock
+     *  @since 0.9.31
+     */
+    private void removePending(TimedEvent t) {
+        if (_wheel != null)
+            _wheel.remove(t);
+    }
+
+    /**
+     *  @return ms until scheduled time, or 0 if unknown
+     *  @since 0.9.31
+     */
+    private long getDelay(TimedEvent t) {
+        if (_wheel != null)
+            return _wheel.getDelay(t);
+        ScheduledFuture<?> f = t._future;
+        if (f != null)
+            return f.getDelay(TimeUnit.MILLISECONDS);
+        return 0;
     }
     
     /**
@@ -251,6 +342,12 @@ public class SimpleTimer2 {
         protected static final int DEFAULT_FUZZ = 3;
         private ScheduledFuture<?> _future; // _executor.remove() doesn't work so we have to use this
                                          // ... and I expect cancelling this way is more efficient
+        // Intrusive links for HashedTimerWheel, all but _wheelSlot and _wheelDeadline LOCKING: _wheelSlot
+        volatile HashedTimerWheel.Slot _wheelSlot;
+        TimedEvent _wheelPrev;
+        TimedEvent _wheelNext;
+        long _wheelTick;
+        volatile long _wheelDeadline;
 
         /** state of the current event.  All access should be under lock. */
         protected TimedEventState _state;
@@ -310,7 +407,7 @@ public class SimpleTimer2 {
                 break;
               case IDLE:  // fall through
               case CANCELLED:
-                _future = _pool.schedule(this, timeoutMs); 
+                _pool.schedule(this, timeoutMs); 
                 _state = TimedEventState.SCHEDULED;
                 break;
               case SCHEDULED: // nothing
@@ -396,7 +493,7 @@ public class SimpleTimer2 {
                 // There's probably a race here, where it's cancelled after it's running
                 // The result (if rescheduled) is a dup on the queue, see tickets 1694, 1705
                 // Mitigated by close-to-execution check in reschedule()
-                boolean cancelled = _future.cancel(true);
+                boolean cancelled = _pool.cancel(this);
                 if (cancelled)
                     _state = TimedEventState.CANCELLED;
                 else
@@ -454,12 +551,13 @@ public class SimpleTimer2 {
                 }
                 
                 // else proceed to run
+                _pool.removePending(this);
                 _state = TimedEventState.RUNNING;
             }
             // cancel()-ing after this point only works if the event supports it explicitly
             // none of these _future checks should be necessary anymore
-            if (_future != null)
-                delay = _future.getDelay(TimeUnit.MILLISECONDS);
+            if (_future != null || _pool._wheel != null)
+                delay = _pool.getDelay(this);
             else if (_log.shouldLog(Log.WARN))
                 _log.warn(_pool + " no _future " + this);
             // This can be an incorrect warning especially after a schedule(0)
@@ -538,7 +636,8 @@ public class SimpleTimer2 {
             " Pool: " + _name +
             " Active: " + _executor.getActiveCount() + '/' + _executor.getPoolSize() +
             " Completed: " + _executor.getCompletedTaskCount() +
-            " Queued: " + _executor.getQueue().size();
+            " Queued: " + _executor.getQueue().size() +
+            (_wheel != null ? " Wheel: " + _wheel.size() : "");
     }
     
     /**
@@ -143,6 +143,58 @@ public class AES256Bench {
         System.out.println("Data size                  : " + message.length);
         System.out.println("Encryption Time Average    : " + (encrypttime/times) + "ms\ttotal: " + encrypttime + "ms\tmin: " + minE + "ms\tmax: " + maxE + "ms\tEncryption Bps: " + (times*message.length*1000)/encrypttime);
         System.out.println("Decryption Time Average    : " + (decrypttime/times) + "ms\ttotal: " + decrypttime + "ms\tmin: " + minD + "ms\tmax: " + maxD + "ms\tDecryption Bps: " + (times*message.length*1000)/decrypttime);
+
+        System.out.println();
+        tunnelBench();
+    }
+
+    /**
+     * 1 KB CBC, the size of a tunnel message, with one key and with
+     * several keys in rotation, like a thread handling many tunnels,
+     * with and without the cipher cache.
+     * Only differs if the system AES is used; run with
+     * -Dcrypto.aes.useSystem=true to force it, or =false for Cryptix only.
+     *
+     * @since 0.9.31
+     */
+    private static void tunnelBench() {
+        final int runs = 50000;
+        final int[] keyCounts = { 1, 8, 64 };
+        System.out.println("1 KB CBC, " + runs + " encrypt+decrypt runs, system AES " +
+                           System.getProperty(CryptixAESEngine.PROP_SYSTEM_AES, "auto"));
+        byte[] iv = new byte[16];
+        byte[] message = new byte[1024];
+        byte[] e = new byte[1024];
+        byte[] d = new byte[1024];
+        _context.random().nextBytes(message);
+        for (int round = 0; round < 2; round++) {
+            // first round is warmup
+            for (int c = 0; c < 2; c++) {
+                boolean cache = c == 1;
+                System.setProperty(CryptixAESEngine.PROP_CIPHER_CACHE, Boolean.toString(cache));
+                CryptixAESEngine aes = new CryptixAESEngine(_context);
+                for (int n : keyCounts) {
+                    SessionKey[] keys = new SessionKey[n];
+                    for (int i = 0; i < n; i++) {
+                        keys[i] = _context.keyGenerator().generateSessionKey();
+                    }
+                    long start = System.nanoTime();
+                    for (int i = 0; i < runs; i++) {
+                        SessionKey key = keys[i % n];
+                        iv[0] = (byte) i;
+                        aes.encrypt(message, 0, e, 0, key, iv, 1024);
+                        aes.decrypt(e, 0, d, 0, key, iv, 1024);
+                    }
+                    long time = System.nanoTime() - start;
+                    if (!DataHelper.eq(d, message))
+                        throw new RuntimeException("decrypted != source message");
+                    if (round == 1)
+                        System.out.println("cipher cache " + (cache ? "on " : "off") + ", " + n + " key(s): " +
+                                           (time / (2 * runs)) + " ns/KB, " +
+                                           (2L * runs * 1024 * 1000 / Math.max(1, time / 1000000)) + " Bps");
+                }
+            }
+        }
     }
 }
 
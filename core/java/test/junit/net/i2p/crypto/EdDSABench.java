@@ -0,0 +1,167 @@
+package net.i2p.crypto;
+
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPublicKey;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
+import net.i2p.data.Signature;
+import net.i2p.data.SigningPrivateKey;
+import net.i2p.data.SigningPublicKey;
+import net.i2p.data.SimpleDataStructure;
+
+/**
+ * Ed25519 signatures per second, for a set of keys verified over and over,
+ * as a floodfill sees the same routers' keys.
+ *
+ *<ul>
+ *<li>decode: a new EdDSAPublicKey for every verify, i.e. a key cache miss
+ *<li>cached: DSAEngine, using the SigUtil key cache
+ *<li>threads: DSAEngine from several threads at once
+ *<li>sign: DSAEngine signing
+ *</ul>
+ * Also reports the heap used per decoded key.
+ *
+ * Usage: EdDSABench [keys [ms per run [threads]]]
+ *
+ * @since 0.9.31
+ */
+public class EdDSABench {
+
+    private static final int MSG_LEN = 700;
+
+    public static void main(String args[]) throws Exception {
+        int keys = 1000;
+        long time = 3000;
+        int threads = 4;
+        if (args.length > 0)
+            keys = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            time = Long.parseLong(args[1]);
+        if (args.length > 2)
+            threads = Integer.parseInt(args[2]);
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        final SigningPublicKey[] pubs = new SigningPublicKey[keys];
+        final SigningPrivateKey[] privs = new SigningPrivateKey[keys];
+        final Signature[] sigs = new Signature[keys];
+        final byte[][] data = new byte[keys][MSG_LEN];
+        for (int i = 0; i < keys; i++) {
+            SimpleDataStructure[] kp = ctx.keyGenerator().generateSigningKeys(SigType.EdDSA_SHA512_Ed25519);
+            pubs[i] = (SigningPublicKey) kp[0];
+            privs[i] = (SigningPrivateKey) kp[1];
+            ctx.random().nextBytes(data[i]);
+            sigs[i] = ctx.dsa().sign(data[i], privs[i]);
+        }
+        final EdDSAParameterSpec spec = (EdDSAParameterSpec) SigType.EdDSA_SHA512_Ed25519.getParams();
+
+        // warmup
+        for (int i = 0; i < 2; i++) {
+            decode(pubs, sigs, data, spec, time / 2);
+            cached(pubs, sigs, data, 1, time / 2);
+        }
+
+        System.out.println(keys + " keys, signatures/s:");
+        System.out.println("decode:    " + decode(pubs, sigs, data, spec, time));
+        System.out.println("cached:    " + cached(pubs, sigs, data, 1, time));
+        System.out.println("threads " + threads + ": " + cached(pubs, sigs, data, threads, time));
+        System.out.println("sign:      " + sign(privs, data, time));
+        System.out.println("bytes/key: " + keySize(pubs, spec));
+    }
+
+    private static long decode(SigningPublicKey[] pubs, Signature[] sigs, byte[][] data,
+                               EdDSAParameterSpec spec, long time) throws Exception {
+        long ops = 0;
+        long end = System.currentTimeMillis() + time;
+        long start = System.nanoTime();
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < pubs.length; i++) {
+                EdDSAPublicKey key = new EdDSAPublicKey(new EdDSAPublicKeySpec(pubs[i].getData(), spec));
+                EdDSAEngine engine = new EdDSAEngine(MessageDigest.getInstance("SHA-512"));
+                engine.initVerify(key);
+                if (!engine.verifyOneShot(data[i], sigs[i].getData()))
+                    throw new IllegalStateException("Verify fail");
+                ops++;
+                if ((ops & 0x3f) == 0 && System.currentTimeMillis() >= end)
+                    break;
+            }
+        }
+        return ops * 1000 * 1000 * 1000 / (System.nanoTime() - start);
+    }
+
+    private static long cached(final SigningPublicKey[] pubs, final Signature[] sigs, final byte[][] data,
+                               int threads, final long time) throws Exception {
+        final DSAEngine dsa = I2PAppContext.getGlobalContext().dsa();
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * pubs.length / threads;
+            Thread thr = new Thread() {
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException ie) {}
+                    long ops = 0;
+                    long end = System.currentTimeMillis() + time;
+                    int i = offset;
+                    while (System.currentTimeMillis() < end) {
+                        for (int j = 0; j < 64; j++) {
+                            if (!dsa.verifySignature(sigs[i], data[i], pubs[i]))
+                                throw new IllegalStateException("Verify fail");
+                            if (++i >= pubs.length)
+                                i = 0;
+                        }
+                        ops += 64;
+                    }
+                    total.addAndGet(ops);
+                    done.countDown();
+                }
+            };
+            thr.start();
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        return total.get() * 1000 * 1000 * 1000 / (System.nanoTime() - start);
+    }
+
+    private static long sign(SigningPrivateKey[] privs, byte[][] data, long time) {
+        DSAEngine dsa = I2PAppContext.getGlobalContext().dsa();
+        long ops = 0;
+        long end = System.currentTimeMillis() + time;
+        long start = System.nanoTime();
+        // same few keys, as a router signs with its own
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < 64; i++) {
+                dsa.sign(data[i % data.length], privs[(i & 0x07) % privs.length]);
+            }
+            ops += 64;
+        }
+        return ops * 1000 * 1000 * 1000 / (System.nanoTime() - start);
+    }
+
+    private static long keySize(SigningPublicKey[] pubs, EdDSAParameterSpec spec) throws Exception {
+        EdDSAPublicKey[] keys = new EdDSAPublicKey[pubs.length];
+        long before = usedMemory();
+        for (int i = 0; i < pubs.length; i++) {
+            keys[i] = new EdDSAPublicKey(new EdDSAPublicKeySpec(pubs[i].getData(), spec));
+        }
+        long after = usedMemory();
+        if (keys[0] == null)
+            System.out.print("");
+        return (after - before) / pubs.length;
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,100 @@
+package net.i2p.crypto;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Signature;
+import net.i2p.data.SigningPrivateKey;
+import net.i2p.data.SigningPublicKey;
+import net.i2p.data.SimpleDataStructure;
+
+/**
+ * SignatureBatch vs. DSAEngine one at a time.
+ *
+ * For each batch size, signs RouterInfo-sized messages with that many
+ * Ed25519 keys, with and without a few ECDSA P-256 signatures mixed in,
+ * and with a few corrupted signatures, checks that the batch results
+ * match the single results, and reports the time per signature.
+ *
+ * Usage: SignatureBatchBench [rounds [sizes...]]
+ *
+ * @since 0.9.31
+ */
+public class SignatureBatchBench {
+
+    private static final int[] DEFAULT_SIZES = { 16, 64, 256 };
+    private static final int MSG_LEN = 700;
+
+    public static void main(String args[]) throws Exception {
+        int rounds = 10;
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0)
+            rounds = Integer.parseInt(args[0]);
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        // warmup
+        run(ctx, 64, 0, 0, 5, false);
+        System.out.println("    size  ecdsa  bad   single us/sig   batch us/sig");
+        for (int sz : sizes) {
+            run(ctx, sz, 0, 0, rounds, true);
+            run(ctx, sz, 0, 2, rounds, true);
+            run(ctx, sz, sz / 8, 0, rounds, true);
+        }
+    }
+
+    /**
+     *  @param ecdsa how many of the size are ECDSA
+     *  @param bad how many to corrupt
+     */
+    private static void run(I2PAppContext ctx, int size, int ecdsa, int bad,
+                            int rounds, boolean print) throws Exception {
+        Signature[] sigs = new Signature[size];
+        SigningPublicKey[] keys = new SigningPublicKey[size];
+        byte[][] data = new byte[size][MSG_LEN];
+        KeyGenerator kg = ctx.keyGenerator();
+        for (int i = 0; i < size; i++) {
+            SigType type = i < ecdsa ? SigType.ECDSA_SHA256_P256 : SigType.EdDSA_SHA512_Ed25519;
+            SimpleDataStructure[] kp = kg.generateSigningKeys(type);
+            keys[i] = (SigningPublicKey) kp[0];
+            ctx.random().nextBytes(data[i]);
+            sigs[i] = ctx.dsa().sign(data[i], (SigningPrivateKey) kp[1]);
+        }
+        for (int i = 0; i < bad; i++) {
+            int j = ecdsa + ctx.random().nextInt(size - ecdsa);
+            data[j][ctx.random().nextInt(MSG_LEN)] ^= 0x01;
+        }
+
+        boolean[] single = new boolean[size];
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < size; i++) {
+                single[i] = ctx.dsa().verifySignature(sigs[i], data[i], keys[i]);
+            }
+        }
+        long singleTime = System.nanoTime() - start;
+
+        boolean[] batch = null;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            SignatureBatch sb = new SignatureBatch(ctx);
+            for (int i = 0; i < size; i++) {
+                sb.add(sigs[i], data[i], keys[i]);
+            }
+            batch = sb.verify();
+        }
+        long batchTime = System.nanoTime() - start;
+
+        for (int i = 0; i < size; i++) {
+            if (single[i] != batch[i])
+                throw new IllegalStateException("Mismatch at " + i + " single: " + single[i] + " batch: " + batch[i]);
+        }
+        if (print) {
+            long n = ((long) rounds) * size;
+            System.out.println(String.format("%8d %6d %4d %15d %14d", size, ecdsa, bad,
+                                             singleTime / n / 1000, batchTime / n / 1000));
+        }
+    }
+}
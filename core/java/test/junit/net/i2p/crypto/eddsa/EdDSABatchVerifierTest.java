@@ -0,0 +1,399 @@
+package net.i2p.crypto.eddsa;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.i2p.crypto.eddsa.math.GroupElement;
+import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Batch results must be the same as EdDSAEngine's, for good and bad signatures,
+ * in batches smaller and larger than the minimum batch size (4).
+ */
+public class EdDSABatchVerifierTest {
+    private static final EdDSAParameterSpec SPEC = EdDSANamedCurveTable.getByName("ed25519-sha-512");
+    private static final BigInteger L = BigInteger.ONE.shiftLeft(252).add(
+            new BigInteger("27742317777372353535851937790883648493"));
+    private static final int KEYS = 8;
+
+    private static EdDSAPrivateKey[] privs;
+    private static byte[][] pubs;
+
+    @BeforeClass
+    public static void init() {
+        Random rand = new Random(1);
+        privs = new EdDSAPrivateKey[KEYS];
+        pubs = new byte[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            byte[] seed = new byte[32];
+            rand.nextBytes(seed);
+            EdDSAPrivateKeySpec spec = new EdDSAPrivateKeySpec(seed, SPEC);
+            privs[i] = new EdDSAPrivateKey(spec);
+            pubs[i] = new EdDSAPublicKey(new EdDSAPublicKeySpec(spec.getA(), SPEC)).getAbyte();
+        }
+    }
+
+    @Test
+    public void testAllValid() throws Exception {
+        Random rand = new Random(2);
+        for (int sz = 0; sz <= 40; sz += sz < 10 ? 1 : 10) {
+            Sig[] sigs = new Sig[sz];
+            for (int i = 0; i < sz; i++) {
+                sigs[i] = sign(rand);
+            }
+            boolean[] results = check(sigs, rand);
+            for (int i = 0; i < sz; i++) {
+                assertTrue("size " + sz + " index " + i, results[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptR() throws Exception {
+        Random rand = new Random(3);
+        runMixed(rand, 0, 1, 4, 5, 16, 37);
+    }
+
+    @Test
+    public void testCorruptS() throws Exception {
+        Random rand = new Random(4);
+        runMixed(rand, 1, 1, 4, 5, 16, 37);
+    }
+
+    @Test
+    public void testSOverL() throws Exception {
+        Random rand = new Random(5);
+        runMixed(rand, 2, 1, 4, 5, 16, 37, 64);
+    }
+
+    @Test
+    public void testWrongKey() throws Exception {
+        Random rand = new Random(6);
+        runMixed(rand, 3, 1, 4, 5, 16, 37);
+    }
+
+    @Test
+    public void testNonCanonical() throws Exception {
+        Random rand = new Random(7);
+        runMixed(rand, 4, 1, 4, 5, 16, 37);
+    }
+
+    /**
+     *  Signatures made with the private key, with a small-order component
+     *  in R or in A. They pass the cofactored check but not the exact one,
+     *  so a cofactorless batch would pass or fail them depending on z.
+     *  Each batch is checked many times, with different z.
+     */
+    @Test
+    public void testSmallOrder() throws Exception {
+        Random rand = new Random(9);
+        GroupElement[] torsion = smallOrderPoints();
+        for (int sz : new int[] { 1, 4, 5, 16, 37 }) {
+            for (int bad : new int[] { 1, 2, sz }) {
+                if (bad > sz)
+                    continue;
+                Sig[] sigs = new Sig[sz];
+                for (int i = 0; i < sz; i++) {
+                    sigs[i] = i < bad ? signSmallOrder(rand, torsion[rand.nextInt(torsion.length)], rand.nextBoolean())
+                                      : sign(rand);
+                }
+                for (int i = 0; i < 10; i++) {
+                    Collections.shuffle(Arrays.asList(sigs), rand);
+                    boolean[] results = check(sigs, rand);
+                    for (int j = 0; j < sz; j++) {
+                        assertTrue(results[j]);
+                    }
+                }
+            }
+        }
+    }
+
+    /** all kinds together */
+    @Test
+    public void testRandom() throws Exception {
+        Random rand = new Random(8);
+        for (int sz = 1; sz <= 64; sz *= 2) {
+            Sig[] sigs = new Sig[sz];
+            for (int i = 0; i < sz; i++) {
+                sigs[i] = sign(rand);
+                if (rand.nextInt(4) == 0)
+                    damage(sigs[i], rand.nextInt(5), rand);
+            }
+            check(sigs, rand);
+        }
+    }
+
+    /**
+     *  Each size with one, two, and all of the signatures damaged the same way
+     */
+    private void runMixed(Random rand, int kind, int... sizes) throws Exception {
+        for (int sz : sizes) {
+            for (int bad : new int[] { 1, 2, sz }) {
+                if (bad > sz)
+                    continue;
+                Sig[] sigs = new Sig[sz];
+                for (int i = 0; i < sz; i++) {
+                    sigs[i] = sign(rand);
+                }
+                List<Integer> idx = new ArrayList<Integer>(sz);
+                for (int i = 0; i < sz; i++) {
+                    idx.add(Integer.valueOf(i));
+                }
+                Collections.shuffle(idx, rand);
+                for (int i = 0; i < bad; i++) {
+                    damage(sigs[idx.get(i).intValue()], kind, rand);
+                }
+                check(sigs, rand);
+            }
+        }
+    }
+
+    /**
+     *  The expected result comes from EdDSAEngine, but also check that
+     *  the damage did what it should, so the comparison means something.
+     *  EdDSAEngine doesn't check S &lt; L, and accepts S + kL
+     *  unless it's close to 2**256, so there's no expected result for those.
+     */
+    private static void damage(Sig s, int kind, Random rand) {
+        switch (kind) {
+            case 0:
+                // corrupt R, may or may not decode
+                s.sig[rand.nextInt(32)] ^= (byte) (1 << rand.nextInt(8));
+                s.expected = Boolean.FALSE;
+                break;
+            case 1:
+                // corrupt S, keeping it under 2**253
+                s.sig[32 + rand.nextInt(31)] ^= (byte) (1 << rand.nextInt(8));
+                s.expected = Boolean.FALSE;
+                break;
+            case 2:
+                // S >= L, S + L or as large as fits
+                addL(s.sig, rand.nextBoolean());
+                s.expected = null;
+                break;
+            case 3:
+                // wrong key, or not a point at all
+                if (rand.nextBoolean()) {
+                    byte[] pub = pubs[rand.nextInt(KEYS)];
+                    if (pub == s.pubkey)
+                        pub = pubs[(indexOf(pub) + 1) % KEYS];
+                    s.pubkey = pub;
+                } else {
+                    s.pubkey = new byte[32];
+                    rand.nextBytes(s.pubkey);
+                }
+                s.expected = Boolean.FALSE;
+                break;
+            default:
+                // R with y >= p, or x == 0 with the sign bit set
+                if (rand.nextBoolean()) {
+                    byte[] r = nonCanonicalY(rand.nextInt(19));
+                    System.arraycopy(r, 0, s.sig, 0, 32);
+                } else {
+                    // y = 1, x = 0, sign bit set
+                    for (int i = 0; i < 32; i++) {
+                        s.sig[i] = 0;
+                    }
+                    s.sig[0] = 1;
+                    s.sig[31] = (byte) 0x80;
+                }
+                s.expected = Boolean.FALSE;
+                break;
+        }
+    }
+
+    /**
+     *  Checks the batch against EdDSAEngine and against the expected results
+     *  @return the batch results
+     */
+    private static boolean[] check(Sig[] sigs, Random rand) throws Exception {
+        EdDSABatchVerifier bv = new EdDSABatchVerifier(SPEC, rand);
+        for (int i = 0; i < sigs.length; i++) {
+            assertEquals(i, bv.add(sigs[i].pubkey, sigs[i].sig, sigs[i].data, sigs[i].off, sigs[i].len));
+        }
+        assertEquals(sigs.length, bv.size());
+        boolean[] rv = bv.verify();
+        assertEquals(sigs.length, rv.length);
+        for (int i = 0; i < sigs.length; i++) {
+            Sig s = sigs[i];
+            boolean engine = engineVerify(s);
+            assertEquals("size " + sigs.length + " index " + i, engine, rv[i]);
+            if (s.expected != null)
+                assertEquals("size " + sigs.length + " index " + i, s.expected.booleanValue(), engine);
+        }
+        bv.clear();
+        assertEquals(0, bv.size());
+        return rv;
+    }
+
+    private static boolean engineVerify(Sig s) throws Exception {
+        EdDSAPublicKey key;
+        try {
+            key = new EdDSAPublicKey(new EdDSAPublicKeySpec(s.pubkey, SPEC));
+        } catch (IllegalArgumentException iae) {
+            // not a point
+            return false;
+        }
+        EdDSAEngine engine = new EdDSAEngine(MessageDigest.getInstance("SHA-512"));
+        engine.initVerify(key);
+        return engine.verifyOneShot(s.data, s.off, s.len, s.sig);
+    }
+
+    /** signed by a random key, over a random part of a random array */
+    private static Sig sign(Random rand) throws GeneralSecurityException {
+        int k = rand.nextInt(KEYS);
+        byte[] data = new byte[1 + rand.nextInt(200)];
+        rand.nextBytes(data);
+        int off = rand.nextInt(data.length);
+        int len = rand.nextInt(data.length - off + 1);
+        EdDSAEngine engine = new EdDSAEngine(MessageDigest.getInstance("SHA-512"));
+        engine.initSign(privs[k]);
+        byte[] sig = engine.signOneShot(data, off, len);
+        return new Sig(pubs[k], sig, data, off, len);
+    }
+
+    /**
+     *  Signed with the private key, with T added to R, or to A.
+     *  S = r + ha as usual, so SB - hA = rB, which differs from R, or from R - hA',
+     *  by a small-order point.
+     */
+    private static Sig signSmallOrder(Random rand, GroupElement T, boolean inR) throws GeneralSecurityException {
+        int k = rand.nextInt(KEYS);
+        byte[] data = new byte[1 + rand.nextInt(200)];
+        rand.nextBytes(data);
+        BigInteger r = new BigInteger(300, rand).mod(L);
+        GroupElement R = SPEC.getB().scalarMultiply(toLE(r));
+        byte[] pub;
+        if (inR) {
+            R = R.add(T.toCached()).toP3();
+            pub = pubs[k];
+        } else {
+            pub = privs[k].getA().add(T.toCached()).toP3().toByteArray();
+        }
+        byte[] Rbyte = R.toByteArray();
+        MessageDigest md = MessageDigest.getInstance("SHA-512");
+        md.update(Rbyte);
+        md.update(pub);
+        md.update(data);
+        BigInteger h = fromLE(md.digest()).mod(L);
+        BigInteger a = fromLE(privs[k].geta());
+        BigInteger S = r.add(h.multiply(a)).mod(L);
+        byte[] sig = new byte[64];
+        System.arraycopy(Rbyte, 0, sig, 0, 32);
+        System.arraycopy(toLE(S), 0, sig, 32, 32);
+        return new Sig(pub, sig, data, 0, data.length);
+    }
+
+    /**
+     *  Points of order 2, 4, and 8
+     */
+    private static GroupElement[] smallOrderPoints() {
+        String[] enc = {
+            // order 2, y = -1
+            "ecffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff7f",
+            // order 4, y = 0
+            "0000000000000000000000000000000000000000000000000000000000000000",
+            "0000000000000000000000000000000000000000000000000000000000000080",
+            // order 8
+            "26e8958fc2b227b045c3f489f2ef98f0d5dfac05d3c63339b13802886d53fc05",
+            "c7176a703d4dd84fba3c0b760d10670f2a2053fa2c39ccc64ec7fd7792ac037a"
+        };
+        GroupElement zero = SPEC.getCurve().getZero(GroupElement.Representation.P3);
+        GroupElement[] rv = new GroupElement[enc.length];
+        for (int i = 0; i < enc.length; i++) {
+            rv[i] = new GroupElement(SPEC.getCurve(), Utils.hexToBytes(enc[i]));
+            assertFalse(enc[i], rv[i].equals(zero));
+            assertTrue(enc[i], rv[i].multiplyByCofactor().equals(zero));
+        }
+        return rv;
+    }
+
+    private static BigInteger fromLE(byte[] b) {
+        byte[] be = new byte[b.length];
+        for (int i = 0; i < b.length; i++) {
+            be[i] = b[b.length - 1 - i];
+        }
+        return new BigInteger(1, be);
+    }
+
+    /** 32 bytes little endian */
+    private static byte[] toLE(BigInteger n) {
+        byte[] b = n.toByteArray();
+        byte[] rv = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            int j = b.length - 1 - i;
+            rv[i] = j >= 0 ? b[j] : 0;
+        }
+        return rv;
+    }
+
+    /**
+     *  Little endian S in sig[32..63] += L, or += kL for the largest k that fits in 32 bytes
+     */
+    private static void addL(byte[] sig, boolean max) {
+        byte[] be = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            be[i] = sig[63 - i];
+        }
+        BigInteger s = new BigInteger(1, be).add(L);
+        while (max && s.add(L).bitLength() <= 256) {
+            s = s.add(L);
+        }
+        byte[] b = s.toByteArray();
+        for (int i = 0; i < 32; i++) {
+            int j = b.length - 1 - i;
+            sig[32 + i] = j >= 0 ? b[j] : 0;
+        }
+    }
+
+    /** y + p for small y, little endian */
+    private static byte[] nonCanonicalY(int y) {
+        BigInteger p = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+        byte[] b = p.add(BigInteger.valueOf(y)).toByteArray();
+        byte[] rv = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            rv[i] = b[b.length - 1 - i];
+        }
+        return rv;
+    }
+
+    private static int indexOf(byte[] pub) {
+        for (int i = 0; i < KEYS; i++) {
+            if (pubs[i] == pub)
+                return i;
+        }
+        return -1;
+    }
+
+    private static class Sig {
+        byte[] pubkey;
+        final byte[] sig;
+        final byte[] data;
+        final int off;
+        final int len;
+        /** null if unknown */
+        Boolean expected = Boolean.TRUE;
+
+        public Sig(byte[] pubkey, byte[] sig, byte[] data, int off, int len) {
+            this.pubkey = pubkey;
+            this.sig = sig;
+            this.data = data;
+            this.off = off;
+            this.len = len;
+        }
+    }
+}
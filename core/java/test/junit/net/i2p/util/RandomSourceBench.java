@@ -0,0 +1,97 @@
+package net.i2p.util;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+
+/**
+ * Throughput of FortunaRandomSource with the shared, locked generator
+ * and with prng.perThread=true, at 1 to 32 threads.
+ *
+ * Each thread makes a mix of the calls the router makes most:
+ * nextInt(n), nextLong(), and nextBytes() of 32 bytes.
+ *
+ * Usage: RandomSourceBench [ms per run [threads...]]
+ *
+ * @since 0.9.31
+ */
+public class RandomSourceBench {
+
+    private static final int[] DEFAULT_THREADS = { 1, 2, 4, 8, 16, 32 };
+
+    public static void main(String args[]) throws Exception {
+        long time = 2000;
+        int[] threads = DEFAULT_THREADS;
+        if (args.length > 0)
+            time = Long.parseLong(args[0]);
+        if (args.length > 1) {
+            threads = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                threads[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        RandomSource locked = create(false);
+        RandomSource perThread = create(true);
+        // warmup
+        run(locked, 2, time / 2);
+        run(perThread, 2, time / 2);
+        System.out.println("threads   locked ops/s   per-thread ops/s");
+        for (int n : threads) {
+            long l = run(locked, n, time);
+            long p = run(perThread, n, time);
+            System.out.println(String.format("%7d %14d %18d", n, l, p));
+        }
+        ((FortunaRandomSource) locked).shutdown();
+        ((FortunaRandomSource) perThread).shutdown();
+    }
+
+    private static RandomSource create(boolean perThread) {
+        Properties props = new Properties();
+        props.setProperty(FortunaRandomSource.PROP_PER_THREAD, Boolean.toString(perThread));
+        I2PAppContext ctx = new I2PAppContext(props);
+        return new FortunaRandomSource(ctx);
+    }
+
+    /**
+     * @return total calls per second
+     */
+    private static long run(final RandomSource rand, int threads, final long time) throws Exception {
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    byte[] buf = new byte[32];
+                    long ops = 0;
+                    long sink = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException ie) {}
+                    long end = System.currentTimeMillis() + time;
+                    while (System.currentTimeMillis() < end) {
+                        for (int j = 0; j < 100; j++) {
+                            sink += rand.nextInt(1000);
+                            sink += rand.nextLong();
+                            rand.nextBytes(buf);
+                            sink += buf[0];
+                        }
+                        ops += 300;
+                    }
+                    if (sink == 42)
+                        System.out.print("");
+                    total.addAndGet(ops);
+                    done.countDown();
+                }
+            };
+            t.start();
+        }
+        long begin = System.currentTimeMillis();
+        start.countDown();
+        done.await();
+        long elapsed = System.currentTimeMillis() - begin;
+        return total.get() * 1000 / Math.max(1, elapsed);
+    }
+}
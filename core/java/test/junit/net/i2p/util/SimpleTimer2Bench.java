@@ -0,0 +1,121 @@
+package net.i2p.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+
+/**
+ * Compare the ScheduledThreadPoolExecutor and timing wheel backends
+ * of SimpleTimer2.
+ *
+ * The reschedule test models streaming and SSU ACK timers: many events,
+ * each pushed back repeatedly, then cancelled, without ever firing.
+ * The fire test measures how late events run.
+ *
+ * Usage: SimpleTimer2Bench [events [reschedules]]
+ *
+ * @since 0.9.31
+ */
+public class SimpleTimer2Bench {
+
+    public static void main(String args[]) throws Exception {
+        int events = 20000;
+        int rescheds = 50;
+        if (args.length > 0)
+            events = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            rescheds = Integer.parseInt(args[1]);
+        for (int i = 0; i < 2; i++) {
+            // first round is warmup
+            if (i == 1)
+                System.out.println();
+            run(false, events, rescheds);
+            run(true, events, rescheds);
+        }
+    }
+
+    private static void run(boolean wheel, int events, int rescheds) throws Exception {
+        // the context falls back to system properties
+        System.setProperty(SimpleTimer2.PROP_TIMER_WHEEL, Boolean.toString(wheel));
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        SimpleTimer2 timer = new SimpleTimer2(ctx, wheel ? "Wheel" : "Executor", true) {};
+        String name = wheel ? "Wheel   " : "Executor";
+
+        // reschedule/cancel
+        NopEvent[] evs = new NopEvent[events];
+        for (int i = 0; i < events; i++) {
+            evs[i] = new NopEvent(timer);
+        }
+        System.gc();
+        long freeBefore = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            evs[i].schedule(60*1000 + i);
+        }
+        for (int j = 0; j < rescheds; j++) {
+            for (int i = 0; i < events; i++) {
+                evs[i].forceReschedule(60*1000 + i + j * 100);
+            }
+        }
+        for (int i = 0; i < events; i++) {
+            evs[i].cancel();
+        }
+        long time = System.nanoTime() - start;
+        long freeAfter = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        long ops = events * (long) (rescheds + 2);
+        System.out.println(name + " schedule/reschedule/cancel: " + ops + " ops in " +
+                           (time / 1000000) + " ms, " + (time / ops) + " ns/op, heap growth ~" +
+                           (Math.max(0, freeAfter - freeBefore) / 1024) + " KB");
+
+        // fire
+        int fire = Math.min(events, 5000);
+        CountDownLatch latch = new CountDownLatch(fire);
+        AtomicLong totalLate = new AtomicLong();
+        AtomicLong maxLate = new AtomicLong();
+        start = System.nanoTime();
+        for (int i = 0; i < fire; i++) {
+            new FireEvent(timer, 10 + (i % 500), latch, totalLate, maxLate);
+        }
+        if (!latch.await(30, TimeUnit.SECONDS))
+            System.out.println(name + " fire: TIMEOUT, " + latch.getCount() + " not fired");
+        else
+            System.out.println(name + " fire: " + fire + " events, avg late " +
+                               (totalLate.get() / fire) + " ms, max late " + maxLate.get() + " ms");
+        timer.stop();
+    }
+
+    private static class NopEvent extends SimpleTimer2.TimedEvent {
+        public NopEvent(SimpleTimer2 pool) {
+            super(pool);
+            setFuzz(0);
+        }
+
+        public void timeReached() {}
+    }
+
+    private static class FireEvent extends SimpleTimer2.TimedEvent {
+        private final long _due;
+        private final CountDownLatch _latch;
+        private final AtomicLong _total, _max;
+
+        public FireEvent(SimpleTimer2 pool, long delay, CountDownLatch latch,
+                         AtomicLong total, AtomicLong max) {
+            super(pool);
+            _due = System.nanoTime() + (delay * 1000000);
+            _latch = latch;
+            _total = total;
+            _max = max;
+            schedule(delay);
+        }
+
+        public void timeReached() {
+            long late = Math.max(0, (System.nanoTime() - _due) / 1000000);
+            _total.addAndGet(late);
+            long max;
+            while ((max = _max.get()) < late && !_max.compareAndSet(max, late)) {}
+            _latch.countDown();
+        }
+    }
+}
@@ -44,6 +44,10 @@ public class TunnelDataMessage extends FastI2NPMessageImpl {
      * to the next peer (or explicitly by the fragment handler's completion).
      * Setting this to false just increases memory churn
      *
+     * As of 0.9.31, a participant's message is released by OutNetMessage.discardData()
+     * via releaseData(), when the transports are done with it, and not
+     * on the first write, which may be followed by a requeue to another transport.
+     *
      * Well, this is tricky to get right and avoid data corruption,
      * here's an example after checks were put in:
      *
@@ -193,9 +197,10 @@ public class TunnelDataMessage extends FastI2NPMessageImpl {
         System.arraycopy(_data, 0, out, curIndex, DATA_SIZE);
         curIndex += _data.length;
 
-        // We can use from the cache, we just can't release to the cache, due to the bug
-        // noted above. In effect, this means that transmitted TDMs don't get their
-        // dataBufs released - but received TDMs do (via FragmentHandler)
+        // We can't release to the cache here, due to the bug noted above,
+        // as we may be written again after a requeue.
+        // Transmitted TDMs get their dataBufs released via releaseData(),
+        // received TDMs via FragmentHandler
         //if (_hadCache) {
         //    _cache.release(_dataBuf);
         //    _dataBuf = null;
@@ -203,6 +208,24 @@ public class TunnelDataMessage extends FastI2NPMessageImpl {
         return curIndex;
     }
     
+    /**
+     *  Return the data buffer to the cache, if it came from there.
+     *  Call only when the message will not be written again,
+     *  i.e. after the last send attempt or a drop.
+     *  Subsequent getData() or writes will throw.
+     *  Does nothing if the data was not from the cache or was already released.
+     *
+     *  @since 0.9.31
+     */
+    public synchronized void releaseData() {
+        ByteArray ba = _dataBuf;
+        if (ba != null) {
+            _dataBuf = null;
+            // no need to zero, readMessage() overwrites all of it
+            _cache.release(ba, false);
+        }
+    }
+
     public int getType() { return MESSAGE_TYPE; }
     
     @Override
@@ -31,12 +31,14 @@ import net.i2p.crypto.SHA1;
 import net.i2p.crypto.SHA1Hash;
 import net.i2p.crypto.SHA256Generator;
 import net.i2p.crypto.SigType;
+import net.i2p.crypto.SignatureBatch;
 import net.i2p.data.DatabaseEntry;
 import net.i2p.data.DataFormatException;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
 import net.i2p.data.KeysAndCert;
 import net.i2p.data.Signature;
+import net.i2p.data.SigningPublicKey;
 import net.i2p.data.SimpleDataStructure;
 import net.i2p.router.Router;
 import net.i2p.util.Clock;
@@ -389,6 +391,51 @@ public class RouterInfo extends DatabaseEntry {
         return isValid();
     }
 
+    /**
+     * Validate the signatures of many RouterInfos at once with a SignatureBatch,
+     * and cache the results, as isValid() does for one.
+     * Ones that were already validated are not checked again.
+     *
+     * @param parallel use the SignatureBatch thread pool
+     * @return the results, same size and order as ris
+     * @since 0.9.31
+     */
+    public static boolean[] isValid(List<RouterInfo> ris, boolean parallel) {
+        int sz = ris.size();
+        boolean[] rv = new boolean[sz];
+        SignatureBatch batch = new SignatureBatch(I2PAppContext.getGlobalContext(), parallel);
+        int[] idx = new int[sz];
+        for (int i = 0; i < sz; i++) {
+            RouterInfo ri = ris.get(i);
+            idx[i] = -1;
+            if (ri._validated) {
+                rv[i] = ri._isValid;
+                continue;
+            }
+            Signature sig = ri._signature;
+            byte[] data;
+            try {
+                data = ri.getBytes();
+            } catch (DataFormatException dfe) {
+                data = null;
+            }
+            SigningPublicKey spk = data != null ? ri.getSigningPublicKey() : null;
+            if (sig == null || spk == null) {
+                ri.setValid(false);
+                continue;
+            }
+            idx[i] = batch.add(sig, data, spk);
+        }
+        boolean[] results = batch.verify();
+        for (int i = 0; i < sz; i++) {
+            if (idx[i] >= 0) {
+                rv[i] = results[idx[i]];
+                ris.get(i).setValid(rv[i]);
+            }
+        }
+        return rv;
+    }
+
     /**
      * which network is this routerInfo a part of.  configured through the property
      * PROP_NETWORK_ID
@@ -495,7 +542,15 @@ public class RouterInfo extends DatabaseEntry {
      * Actually validate the signature
      */
     private void doValidate() {
-        _isValid = super.verifySignature();
+        setValid(super.verifySignature());
+    }
+
+    /**
+     * Cache the result of validation
+     * @since 0.9.31 split out of doValidate()
+     */
+    private void setValid(boolean valid) {
+        _isValid = valid;
         _validated = true;
 
         if (!_isValid) {
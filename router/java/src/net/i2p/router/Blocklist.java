@@ -31,9 +31,8 @@ import net.i2p.data.Hash;
 import net.i2p.data.router.RouterAddress;
 import net.i2p.data.router.RouterInfo;
 import net.i2p.router.networkdb.kademlia.FloodfillNetworkDatabaseFacade;
+import net.i2p.router.util.IPAddressSet;
 import net.i2p.util.Addresses;
-import net.i2p.util.ConcurrentHashSet;
-import net.i2p.util.LHMCache;
 import net.i2p.util.Log;
 import net.i2p.util.Translate;
 
@@ -73,6 +72,8 @@ public class Blocklist {
     private final RouterContext _context;
     private long _blocklist[];
     private int _blocklistSize;
+    /** null unless the list is large, see buildIndex(); reset whenever _blocklist is replaced */
+    private int _blocklistIndex[];
     private final Object _lock = new Object();
     private Entry _wrapSave;
     private final Set<Hash> _inProcess = new HashSet<Hash>(4);
@@ -95,10 +96,16 @@ public class Blocklist {
     private static final int MAX_IPV4_SINGLES = 8192;
     private static final int MAX_IPV6_SINGLES = 4096;
 
-    private final Set<Integer> _singleIPBlocklist = new ConcurrentHashSet<Integer>(4);
-    private final Map<BigInteger, Object> _singleIPv6Blocklist = new LHMCache<BigInteger, Object>(MAX_IPV6_SINGLES);
-
-    private static final Object DUMMY = Integer.valueOf(0);    
+    /** full is full */
+    private final IPAddressSet _singleIPBlocklist = new IPAddressSet(MAX_IPV4_SINGLES, false);
+    /** oldest are removed when full */
+    private final IPAddressSet _singleIPv6Blocklist = new IPAddressSet(MAX_IPV6_SINGLES, true);
+    /**
+     *  Index the range list by /16 if at least this big.
+     *  The index is 256 KB, binary search is fine for small lists.
+     *  @since 0.9.31
+     */
+    private static final int INDEX_THRESHOLD = 4096;
 
     /**
      *  Router MUST call startup()
@@ -228,11 +235,33 @@ public class Blocklist {
         }
     }
 
+    /**
+     *  Read and merge the files in this thread, without the job queue,
+     *  and without banlisting any router hashes. For testing.
+     *
+     *  @param files not necessarily existing, but avoid dups
+     *  @since 0.9.31
+     */
+    void readFiles(List<File> files) {
+        allocate(files);
+        if (_blocklist == null)
+            return;
+        int count = 0;
+        synchronized (_lock) {
+            for (File f : files) {
+                count = readBlocklistFile(f, count);
+            }
+        }
+        _peerBlocklist.clear();
+        merge(count);
+    }
+
     public void disable() {
         // hmm better block out any checks in process
         synchronized (_lock) {
             _blocklistSize = 0;
             _blocklist = null;
+            _blocklistIndex = null;
         }
     }
 
@@ -245,6 +274,8 @@ public class Blocklist {
         for (File f : files) {
             maxSize += getSize(f);
         }
+        // the old index doesn't cover the new list
+        _blocklistIndex = null;
         try {
             _blocklist = new long[maxSize + files.size()];  // extra for wrapsave
         } catch (OutOfMemoryError oom) {
@@ -335,6 +366,7 @@ public class Blocklist {
             return count;
         } catch (OutOfMemoryError oom) {
             _blocklist = null;
+            _blocklistIndex = null;
             _log.log(Log.CRIT, "OOM reading the blocklist");
             return count;
         } finally {
@@ -378,10 +410,20 @@ public class Blocklist {
             }
         } catch (OutOfMemoryError oom) {
             _blocklist = null;
+            _blocklistIndex = null;
             _log.log(Log.CRIT, "OOM sorting the blocklist");
             return;
         }
         _blocklistSize = count - removed;
+        int[] index = null;
+        if (_blocklistSize >= INDEX_THRESHOLD) {
+            try {
+                index = buildIndex(_blocklist, _blocklistSize);
+            } catch (OutOfMemoryError oom) {
+                _log.log(Log.CRIT, "OOM indexing the blocklist");
+            }
+        }
+        _blocklistIndex = index;
         if (_log.shouldLog(Log.INFO)) {
             _log.info("Merged Stats");
             _log.info("Read " + count + " total entries from the blocklists");
@@ -558,8 +600,11 @@ public class Blocklist {
                 if (_log.shouldLog(Log.WARN))
                     _log.warn("Combining entries " + toStr(blist[i]) + " and " + toStr(blist[next]));
                 int nextTo = getTo(blist[next]);
-                if (nextTo > to) // else entry next is totally inside entry i
+                if (nextTo > to) { // else entry next is totally inside entry i
                     store(getFrom(blist[i]), nextTo, i);
+                    // so we merge the ones overlapping the extended entry too
+                    to = nextTo;
+                }
                 blist[next] = Long.MAX_VALUE;  // to be removed with another sort
                 lines++;
                 removed++;
@@ -592,9 +637,9 @@ public class Blocklist {
     public void add(byte ip[]) {
         boolean rv;
         if (ip.length == 4)
-            rv = add(toInt(ip));
+            rv = _singleIPBlocklist.add(ip);
         else if (ip.length == 16)
-            rv = add(new BigInteger(1, ip));
+            rv = _singleIPv6Blocklist.add(ip);
         else
             rv = false;
         if (rv && _log.shouldLog(Log.WARN))
@@ -611,56 +656,9 @@ public class Blocklist {
      */
     public void remove(byte ip[]) {
         if (ip.length == 4)
-            remove(toInt(ip));
+            _singleIPBlocklist.remove(ip);
         else if (ip.length == 16)
-            remove(new BigInteger(1, ip));
-    }
-
-    private boolean add(int ip) {
-        if (_singleIPBlocklist.size() >= MAX_IPV4_SINGLES)
-            return false;
-        return _singleIPBlocklist.add(Integer.valueOf(ip));
-    }
-
-    /**
-     * @since 0.9.28
-     */
-    private void remove(int ip) {
-        _singleIPBlocklist.remove(Integer.valueOf(ip));
-    }
-
-    private boolean isOnSingleList(int ip) {
-        return _singleIPBlocklist.contains(Integer.valueOf(ip));
-    }
-
-    /**
-     * @param ip IPv6 non-negative
-     * @since IPv6
-     */
-    private boolean add(BigInteger ip) {
-        synchronized(_singleIPv6Blocklist) {
-            return _singleIPv6Blocklist.put(ip, DUMMY) == null;
-        }
-    }
-
-    /**
-     * @param ip IPv6 non-negative
-     * @since 0.9.28
-     */
-    private void remove(BigInteger ip) {
-        synchronized(_singleIPv6Blocklist) {
             _singleIPv6Blocklist.remove(ip);
-        }
-    }
-
-    /**
-     * @param ip IPv6 non-negative
-     * @since IPv6
-     */
-    private boolean isOnSingleList(BigInteger ip) {
-        synchronized(_singleIPv6Blocklist) {
-            return _singleIPv6Blocklist.get(ip) != null;
-        }
     }
 
     /**
@@ -757,7 +755,7 @@ public class Blocklist {
         if (ip.length == 4)
             return isBlocklisted(toInt(ip));
         if (ip.length == 16)
-            return isOnSingleList(new BigInteger(1, ip));
+            return _singleIPv6Blocklist.contains(ip);
         return false;
     }
 
@@ -768,10 +766,16 @@ public class Blocklist {
      * is a sorted array of longs.
      * The array is sorted in signed order, but we don't care.
      * Each long is ((from << 32) | to)
+     *
+     * As of 0.9.31, for large lists, the search is only over the
+     * entries for the IP's /16, see buildIndex().
      **/ 
     private boolean isBlocklisted(int ip) {
-        if (isOnSingleList(ip))
+        if (_singleIPBlocklist.contains(ip))
             return true;
+        int[] index = _blocklistIndex;
+        if (index != null)
+            return isBlocklisted(ip, index);
         int hi = _blocklistSize - 1;
         if (hi <= 0)
             return false;
@@ -797,6 +801,54 @@ public class Blocklist {
         return match(ip, cur);
     }
 
+    /**
+     *  Index of the first entry in each /16 (in signed order, as the list is sorted)
+     *  that ends at or after the start of the /16, plus the size at the end.
+     *  Entries are non-overlapping after removeOverlap(),
+     *  so the 'to' values are sorted too.
+     *
+     *  @return 65537 entries
+     *  @since 0.9.31
+     */
+    private static int[] buildIndex(long blist[], int size) {
+        int[] rv = new int[65536 + 1];
+        int e = 0;
+        for (int p = 0; p < 65536; p++) {
+            int start = (p - 32768) << 16;
+            while (e < size && getTo(blist[e]) < start) {
+                e++;
+            }
+            rv[p] = e;
+        }
+        rv[65536] = size;
+        return rv;
+    }
+
+    /**
+     *  The only possible match is the first entry ending at or after ip,
+     *  which is between index[p] and index[p + 1] inclusive.
+     *  That's a handful of entries at most, for any real list.
+     *
+     *  @since 0.9.31
+     */
+    private boolean isBlocklisted(int ip, int[] index) {
+        long[] blist = _blocklist;
+        int size = _blocklistSize;
+        if (blist == null)
+            return false;
+        int p = (ip >> 16) + 32768;
+        int lo = index[p];
+        int hi = Math.min(index[p + 1], size - 1);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getTo(blist[mid]) < ip)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo < size && match(ip, blist[lo]);
+    }
+
     // Is the IP included in the entry _blocklist[cur] ?
     private boolean match(int ip, int cur) {
         return match(ip, _blocklist[cur]);
@@ -850,7 +902,7 @@ public class Blocklist {
 
     private void store(int ip1, int ip2, int idx) {
         long entry = ((long) ip1) << 32;
-        entry |= ((long)ip2) & 0xffffffff;
+        entry |= ((long)ip2) & 0xffffffffL;
         _blocklist[idx] = entry;
     }
 
@@ -1015,7 +1067,9 @@ public class Blocklist {
         // move to the jsp
         //out.write("<h2>Banned IPs</h2>");
         Set<Integer> singles = new TreeSet<Integer>();
-        singles.addAll(_singleIPBlocklist);
+        for (byte[] ip : _singleIPBlocklist.getAll()) {
+            singles.add(Integer.valueOf(toInt(ip)));
+        }
         if (!(singles.isEmpty() && _singleIPv6Blocklist.isEmpty())) {
             out.write("<table id=\"bannedips\"><tr><td>");
             out.write("<table id=\"banneduntilrestart\"><tr><th align=\"center\"><b>");
@@ -1049,9 +1103,9 @@ public class Blocklist {
                 out.write("<tr id=\"ipv6\" align=\"center\"><td><b>");
                 out.write(_t("IPv6 Addresses"));
                 out.write("</b></td></tr>");
-                List<BigInteger> s6;
-                synchronized(_singleIPv6Blocklist) {
-                    s6 = new ArrayList<BigInteger>(_singleIPv6Blocklist.keySet());
+                List<BigInteger> s6 = new ArrayList<BigInteger>(_singleIPv6Blocklist.size());
+                for (byte[] ip : _singleIPv6Blocklist.getAll()) {
+                    s6.add(new BigInteger(1, ip));
                 }
                 Collections.sort(s6);
                 for (BigInteger bi : s6) {
@@ -61,6 +61,8 @@ public class JobQueue {
     
     private final Object _jobLock;
     private volatile long _nextPumperRun;
+    /** non-null if router.jobQueueWorkStealing=true, replaces the above queues and pumper */
+    private final WorkStealingJobScheduler _stealer;
     
     /** how many when we go parallel */
     private static final int RUNNERS;
@@ -78,6 +80,16 @@ public class JobQueue {
     private final static int DEFAULT_MAX_RUNNERS = 1;
     /** router.config parameter to override the max runners */
     private final static String PROP_MAX_RUNNERS = "router.maxJobRunners";
+
+    /**
+     *  router.config parameter to use per-runner deques with work stealing
+     *  and a timing wheel, instead of the single ready queue and timed set.
+     *  Not changeable at runtime.
+     *  @since 0.9.31
+     */
+    public final static String PROP_WORK_STEALING = "router.jobQueueWorkStealing";
+    /** cap on the default number of runners in work stealing mode */
+    private final static int MAX_STEALING_RUNNERS = 16;
     
     /** how frequently should we check and update the max runners */
     private final static long MAX_LIMIT_UPDATE_DELAY = 60*1000;
@@ -162,7 +174,13 @@ public class JobQueue {
         _jobLock = new Object();
         _queueRunners = new ConcurrentHashMap<Integer,JobQueueRunner>(RUNNERS);
         _jobStats = new ConcurrentHashMap<String,JobStats>();
-        _pumper = new QueuePumper();
+        if (_context.getBooleanProperty(PROP_WORK_STEALING)) {
+            _stealer = new WorkStealingJobScheduler(context, this);
+            _pumper = null;
+        } else {
+            _stealer = null;
+            _pumper = new QueuePumper();
+        }
     }
     
     /**
@@ -187,44 +205,63 @@ public class JobQueue {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Scheduling job far in the future: " + (new Date(start)) + ' ' + job);
         }
-        synchronized (_jobLock) {
-            if (_readyJobs.contains(job))
-                alreadyExists = true;
-            numReady = _readyJobs.size();
+        if (_stealer != null) {
+            numReady = _stealer.getReadyCount();
+            alreadyExists = _stealer.isReady(job);
             if (!alreadyExists) {
-                //if (_timedJobs.contains(job))
-                //    alreadyExists = true;
-                // Always remove and re-add, since it needs to be
-                // re-sorted in the TreeSet.
-                boolean removed = _timedJobs.remove(job);
-                if (removed && _log.shouldLog(Log.WARN))
-                    _log.warn("Rescheduling job: " + job);
+                if (shouldDrop(job, numReady)) {
+                    _stealer.unschedule(job);
+                    job.dropped();
+                    dropped = true;
+                } else if (start <= now) {
+                    job.getTiming().setStartAfter(now);
+                    if (job instanceof JobImpl)
+                        ((JobImpl)job).madeReady();
+                    _stealer.addReady(job);
+                } else {
+                    _stealer.addTimed(job, start);
+                }
             }
-
-            if ((!alreadyExists) && shouldDrop(job, numReady)) {
-                job.dropped();
-                dropped = true;
-            } else {
+        } else {
+            synchronized (_jobLock) {
+                if (_readyJobs.contains(job))
+                    alreadyExists = true;
+                numReady = _readyJobs.size();
                 if (!alreadyExists) {
-                    if (start <= now) {
-                        // don't skew us - its 'start after' its been queued, or later
-                        job.getTiming().setStartAfter(now);
-                        if (job instanceof JobImpl)
-                            ((JobImpl)job).madeReady();
-                        _readyJobs.offer(job);
-                    } else {
-                        _timedJobs.add(job);
-                        // only notify for _timedJobs, as _readyJobs does not use that lock
-                        // only notify if sooner, to reduce contention
-                        if (start < _nextPumperRun)
-                            _jobLock.notifyAll();
+                    //if (_timedJobs.contains(job))
+                    //    alreadyExists = true;
+                    // Always remove and re-add, since it needs to be
+                    // re-sorted in the TreeSet.
+                    boolean removed = _timedJobs.remove(job);
+                    if (removed && _log.shouldLog(Log.WARN))
+                        _log.warn("Rescheduling job: " + job);
+                }
+
+                if ((!alreadyExists) && shouldDrop(job, numReady)) {
+                    job.dropped();
+                    dropped = true;
+                } else {
+                    if (!alreadyExists) {
+                        if (start <= now) {
+                            // don't skew us - its 'start after' its been queued, or later
+                            job.getTiming().setStartAfter(now);
+                            if (job instanceof JobImpl)
+                                ((JobImpl)job).madeReady();
+                            _readyJobs.offer(job);
+                        } else {
+                            _timedJobs.add(job);
+                            // only notify for _timedJobs, as _readyJobs does not use that lock
+                            // only notify if sooner, to reduce contention
+                            if (start < _nextPumperRun)
+                                _jobLock.notifyAll();
+                        }
                     }
                 }
             }
         }
         
         _context.statManager().addRateData("jobQueue.readyJobs", numReady);
-        _context.statManager().addRateData("jobQueue.queuedJobs", _timedJobs.size());
+        _context.statManager().addRateData("jobQueue.queuedJobs", getTimedCount());
         if (dropped) {
             _context.statManager().addRateData("jobQueue.droppedJobs", 1);
             if (_log.shouldLog(Log.WARN))
@@ -243,6 +280,10 @@ public class JobQueue {
     }
     
     public void removeJob(Job job) {
+        if (_stealer != null) {
+            _stealer.remove(job);
+            return;
+        }
         synchronized (_jobLock) {
             _readyJobs.remove(job);
             _timedJobs.remove(job);
@@ -257,9 +298,14 @@ public class JobQueue {
      */
     @Deprecated
     public boolean isJobActive(Job job) {
-        synchronized (_jobLock) {
-            if (_readyJobs.contains(job) || _timedJobs.contains(job))
+        if (_stealer != null) {
+            if (_stealer.isScheduled(job))
                 return true;
+        } else {
+            synchronized (_jobLock) {
+                if (_readyJobs.contains(job) || _timedJobs.contains(job))
+                    return true;
+            }
         }
         for (JobQueueRunner runner: _queueRunners.values())
             if (runner.getCurrentJob() == job)
@@ -278,10 +324,25 @@ public class JobQueue {
     }
     
     public int getReadyCount() { 
+            if (_stealer != null)
+                return _stealer.getReadyCount();
             return _readyJobs.size();
     }
 
+    /** @since 0.9.31 */
+    private int getTimedCount() { 
+            if (_stealer != null)
+                return _stealer.getTimedCount();
+            return _timedJobs.size();
+    }
+
     public long getMaxLag() { 
+            if (_stealer != null) {
+                long startAfter = _stealer.getOldestReadyStart();
+                if (startAfter <= 0)
+                    return 0;
+                return _context.clock().now() - startAfter;
+            }
             // first job is the one that has been waiting the longest
             Job j = _readyJobs.peek();
             if (j == null) return 0;
@@ -339,7 +400,13 @@ public class JobQueue {
     
     public void allowParallelOperation() { 
         _allowParallelOperation = true; 
-        runQueue(_context.getProperty(PROP_MAX_RUNNERS, RUNNERS));
+        int runners = RUNNERS;
+        if (_stealer != null) {
+            // the point of stealing is to use the cores
+            int cores = Runtime.getRuntime().availableProcessors();
+            runners = Math.max(RUNNERS, Math.min(cores, MAX_STEALING_RUNNERS));
+        }
+        runQueue(_context.getProperty(PROP_MAX_RUNNERS, runners));
     }
     
     /** 
@@ -348,6 +415,10 @@ public class JobQueue {
      */
     public void startup() {
         _alive = true;
+        if (_stealer != null) {
+            _stealer.startup();
+            return;
+        }
         I2PThread pumperThread = new I2PThread(_pumper, "Job Queue Pumper", true);
         pumperThread.setPriority(Thread.NORM_PRIORITY + 1);
         pumperThread.start();
@@ -356,6 +427,10 @@ public class JobQueue {
     /** @deprecated do you really want to do this? */
     @Deprecated
     public void restart() {
+        if (_stealer != null) {
+            _stealer.clear();
+            return;
+        }
         synchronized (_jobLock) {
             _timedJobs.clear();
             _readyJobs.clear();
@@ -365,18 +440,25 @@ public class JobQueue {
     
     void shutdown() { 
         _alive = false; 
-        synchronized (_jobLock) {
-            _timedJobs.clear();
-            _readyJobs.clear();
-            _jobLock.notifyAll();
-        }
         // The JobQueueRunners are NOT daemons,
         // so they must be stopped.
         Job poison = new PoisonJob();
-        for (JobQueueRunner runner : _queueRunners.values()) {
-             runner.stopRunning();
-            _readyJobs.offer(poison);
-            // TODO interrupt thread for each runner
+        if (_stealer != null) {
+            for (JobQueueRunner runner : _queueRunners.values()) {
+                runner.stopRunning();
+            }
+            _stealer.shutdown(poison);
+        } else {
+            synchronized (_jobLock) {
+                _timedJobs.clear();
+                _readyJobs.clear();
+                _jobLock.notifyAll();
+            }
+            for (JobQueueRunner runner : _queueRunners.values()) {
+                 runner.stopRunning();
+                _readyJobs.offer(poison);
+                // TODO interrupt thread for each runner
+            }
         }
         _queueRunners.clear();
         _jobStats.clear();
@@ -466,8 +548,15 @@ public class JobQueue {
     /**
      * Blocking call to retrieve the next ready job
      *
+     * @param runnerId the calling runner, to find its deque in work stealing mode
      */
-    Job getNext() {
+    Job getNext(int runnerId) {
+        if (_stealer != null) {
+            Job j = _stealer.getNext(runnerId);
+            if (j == null || j.getJobId() == POISON_ID)
+                return null;
+            return j;
+        }
         while (_alive) {
             try {
                 Job j = _readyJobs.take();
@@ -493,6 +582,8 @@ public class JobQueue {
             // we're still starting up [serially] and we've got at least one runner,
             // so dont do anything
             if ( (!_queueRunners.isEmpty()) && (!_allowParallelOperation) ) return;
+            if (_stealer != null)
+                _stealer.ensureWorkers(numThreads);
 
             // we've already enabled parallel operation, so grow to however many are
             // specified
@@ -638,13 +729,20 @@ public class JobQueue {
      * Update the clock data for all jobs in process or scheduled for
      * completion.
      */
-    private void updateJobTimings(long delta) {
-        synchronized (_jobLock) {
-            for (Job j : _timedJobs) {
+    void updateJobTimings(long delta) {
+        if (_stealer != null) {
+            for (Job j : _stealer.getAllJobs()) {
                 j.getTiming().offsetChanged(delta);
             }
-            for (Job j : _readyJobs) {
-                j.getTiming().offsetChanged(delta);
+            _stealer.timingsChanged();
+        } else {
+            synchronized (_jobLock) {
+                for (Job j : _timedJobs) {
+                    j.getTiming().offsetChanged(delta);
+                }
+                for (Job j : _readyJobs) {
+                    j.getTiming().offsetChanged(delta);
+                }
             }
         }
         synchronized (_runnerLock) {
@@ -778,9 +876,13 @@ public class JobQueue {
                     justFinishedJobs.add(job);
             }
         }
-        synchronized (_jobLock) {
-            readyJobs.addAll(_readyJobs); 
-            timedJobs.addAll(_timedJobs);
+        if (_stealer != null) {
+            _stealer.getJobs(readyJobs, timedJobs);
+        } else {
+            synchronized (_jobLock) {
+                readyJobs.addAll(_readyJobs); 
+                timedJobs.addAll(_timedJobs);
+            }
         }
         return _queueRunners.size();
     }
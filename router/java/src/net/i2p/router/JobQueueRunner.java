@@ -41,7 +41,7 @@ class JobQueueRunner extends I2PThread {
         while ( (_keepRunning) && (_context.jobQueue().isAlive()) ) { 
             //_state = 3;
             try {
-                Job job = _context.jobQueue().getNext();
+                Job job = _context.jobQueue().getNext(_id);
                 //_state = 4;
                 if (job == null) {
                     //_state = 5;
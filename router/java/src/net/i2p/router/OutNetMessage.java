@@ -20,6 +20,7 @@ import java.util.Set;
 
 import net.i2p.data.router.RouterInfo;
 import net.i2p.data.i2np.I2NPMessage;
+import net.i2p.data.i2np.TunnelDataMessage;
 import net.i2p.router.util.CDPQEntry;
 import net.i2p.util.Log;
 
@@ -356,8 +357,12 @@ public class OutNetMessage implements CDPQEntry {
     /** 
      * We've done what we need to do with the data from this message, though
      * we may keep the object around for a while to use its ID, jobs, etc.
+     *
+     * As of 0.9.31, returns a forwarded tunnel message's buffer to its cache.
      */
     public void discardData() {
+        if (_message instanceof TunnelDataMessage)
+            ((TunnelDataMessage) _message).releaseData();
     }
     
     @Override
@@ -0,0 +1,684 @@
+package net.i2p.router;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import net.i2p.util.Clock;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+import net.i2p.util.RandomSource;
+
+/**
+ *  Alternate scheduler backend for the JobQueue, enabled with
+ *  router.jobQueueWorkStealing=true.
+ *
+ *  Each JobQueueRunner owns a lock-free deque of ready jobs.
+ *  Jobs added from a runner thread go on that runner's deque,
+ *  all others are spread round-robin. An idle runner first drains its own
+ *  deque, then steals the oldest job from another runner's deque,
+ *  and parks only when all deques are empty.
+ *
+ *  Timed jobs go into a hierarchical timing wheel that is owned by the
+ *  pumper thread alone, so adding a timed job is a map update plus a
+ *  lock-free queue offer, with no lock shared between the runners.
+ *
+ *  Drop-on-overload, JobStats, and the lag calculation stay in JobQueue.
+ *
+ *  For use by JobQueue only.
+ *
+ *  @since 0.9.31
+ */
+class WorkStealingJobScheduler {
+    private final RouterContext _context;
+    private final Log _log;
+    private final JobQueue _queue;
+    /**
+     *  Indexed by runner ID, copy-on-grow, guarded by JobQueue.runQueue().
+     *  Never empty, so push() never has to grow it.
+     */
+    private volatile Worker[] _workers;
+    /**
+     *  Job to READY if it is on a deque, or to its TimedEntry if it is waiting
+     *  for the wheel. Jobs not in the map are neither ready nor scheduled.
+     */
+    private final ConcurrentHashMap<Job, Object> _scheduled;
+    /** timed jobs added since the last pumper pass */
+    private final ConcurrentLinkedQueue<TimedEntry> _pending;
+    private final AtomicInteger _readyCount = new AtomicInteger();
+    private final AtomicInteger _timedCount = new AtomicInteger();
+    private final AtomicInteger _idleCount = new AtomicInteger();
+    private final AtomicInteger _nextWorker = new AtomicInteger();
+    private final Pumper _pumper;
+    private volatile Thread _pumperThread;
+    private volatile long _nextPumperRun;
+    private volatile boolean _rebuild;
+    private volatile boolean _alive;
+
+    private static final Object READY = new Object();
+    /** how long an idle runner parks before looking around again */
+    private static final long IDLE_PARK_NS = 100*1000*1000L;
+    private static final long MIN_PUMPER_WAIT = 10;
+    private static final long MAX_PUMPER_WAIT = 10*1000;
+
+    public WorkStealingJobScheduler(RouterContext context, JobQueue queue) {
+        _context = context;
+        _log = context.logManager().getLog(WorkStealingJobScheduler.class);
+        _queue = queue;
+        // one deque for jobs added before runQueue() is called
+        _workers = new Worker[] { new Worker() };
+        _scheduled = new ConcurrentHashMap<Job, Object>(256);
+        _pending = new ConcurrentLinkedQueue<TimedEntry>();
+        _pumper = new Pumper();
+    }
+
+    /**
+     *  Start the pumper.
+     */
+    public void startup() {
+        _alive = true;
+        I2PThread pumperThread = new I2PThread(_pumper, "Job Queue Pumper", true);
+        pumperThread.setPriority(Thread.NORM_PRIORITY + 1);
+        _pumperThread = pumperThread;
+        pumperThread.start();
+    }
+
+    /**
+     *  Stop the pumper, forget all jobs, and release every runner
+     *  with the given poison job.
+     */
+    public void shutdown(Job poison) {
+        _alive = false;
+        clear();
+        Thread t = _pumperThread;
+        if (t != null)
+            LockSupport.unpark(t);
+        for (Worker w : _workers) {
+            w.deque.offer(poison);
+            Thread rt = w.thread;
+            if (rt != null)
+                LockSupport.unpark(rt);
+        }
+    }
+
+    /**
+     *  Forget all ready and timed jobs.
+     *  Entries still in the wheel are discarded by the pumper when they expire.
+     */
+    public void clear() {
+        _scheduled.clear();
+        _pending.clear();
+        for (Worker w : _workers) {
+            w.deque.clear();
+        }
+        _readyCount.set(0);
+        _timedCount.set(0);
+    }
+
+    /**
+     *  Make sure there is a deque for each runner ID below numThreads.
+     *  Caller must synchronize.
+     */
+    public void ensureWorkers(int numThreads) {
+        Worker[] old = _workers;
+        if (old.length >= numThreads)
+            return;
+        Worker[] nw = new Worker[numThreads];
+        System.arraycopy(old, 0, nw, 0, old.length);
+        for (int i = old.length; i < numThreads; i++) {
+            nw[i] = new Worker();
+        }
+        _workers = nw;
+    }
+
+    /**
+     *  @return true if the job is on a ready deque
+     */
+    public boolean isReady(Job job) {
+        return _scheduled.get(job) == READY;
+    }
+
+    /**
+     *  @return true if the job is ready or timed
+     */
+    public boolean isScheduled(Job job) {
+        return _scheduled.containsKey(job);
+    }
+
+    /**
+     *  Remove any timed entry for this job, as JobQueue.addJob() does
+     *  before dropping or re-adding.
+     *
+     *  @return true if the job was waiting on the timed queue
+     */
+    public boolean unschedule(Job job) {
+        Object prev = _scheduled.get(job);
+        if (prev instanceof TimedEntry && _scheduled.remove(job, prev)) {
+            _timedCount.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     *  Queue a job that is ready now.
+     *  Caller must have set the start time and called madeReady().
+     */
+    public void addReady(Job job) {
+        if (!transition(job, READY))
+            return;
+        push(job);
+    }
+
+    /**
+     *  Queue a job to run at or after start.
+     */
+    public void addTimed(Job job, long start) {
+        TimedEntry entry = new TimedEntry(job, start);
+        if (!transition(job, entry))
+            return;
+        _pending.offer(entry);
+        // only wake the pumper if sooner, to reduce contention
+        if (start < _nextPumperRun) {
+            Thread t = _pumperThread;
+            if (t != null)
+                LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     *  Remove the job from wherever it is queued.
+     */
+    public void remove(Job job) {
+        Object prev = _scheduled.remove(job);
+        if (prev == null)
+            return;
+        if (prev == READY) {
+            for (Worker w : _workers) {
+                if (w.deque.remove(job)) {
+                    _readyCount.decrementAndGet();
+                    break;
+                }
+            }
+        } else {
+            _timedCount.decrementAndGet();
+        }
+    }
+
+    /**
+     *  Atomically replace any timed entry for the job with the new value.
+     *  Does nothing if the job is already ready, or another thread
+     *  changed the entry first; that thread wins.
+     *
+     *  @param val READY or a TimedEntry
+     *  @return success
+     */
+    private boolean transition(Job job, Object val) {
+        Object prev = _scheduled.get(job);
+        if (prev == READY)
+            return false;
+        if (prev == null) {
+            if (_scheduled.putIfAbsent(job, val) != null)
+                return false;
+        } else {
+            if (!_scheduled.replace(job, prev, val))
+                return false;
+        }
+        if (prev == null && val != READY)
+            _timedCount.incrementAndGet();
+        else if (prev != null && val == READY)
+            _timedCount.decrementAndGet();
+        return true;
+    }
+
+    public int getReadyCount() {
+        return Math.max(0, _readyCount.get());
+    }
+
+    public int getTimedCount() {
+        return Math.max(0, _timedCount.get());
+    }
+
+    /**
+     *  The oldest ready job over all the deques.
+     *  Each deque is FIFO, so only the heads need to be checked.
+     *
+     *  @return the earliest start time of a ready job, or 0 if none
+     */
+    public long getOldestReadyStart() {
+        long oldest = 0;
+        for (Worker w : _workers) {
+            Job j = w.deque.peekFirst();
+            if (j == null)
+                continue;
+            JobTiming jt = j.getTiming();
+            // PoisonJob timing is null
+            if (jt == null)
+                continue;
+            long start = jt.getStartAfter();
+            if (oldest == 0 || start < oldest)
+                oldest = start;
+        }
+        return oldest;
+    }
+
+    /**
+     *  Blocking call to retrieve the next ready job for this runner.
+     *  Takes from the runner's own deque first, then steals.
+     *
+     *  @return the job, which may be the poison job at shutdown, or null if no longer alive
+     */
+    public Job getNext(int runnerId) {
+        Worker[] workers = _workers;
+        if (runnerId < 0 || runnerId >= workers.length) {
+            _log.error("No deque for runner " + runnerId);
+            return null;
+        }
+        Worker me = workers[runnerId];
+        me.thread = Thread.currentThread();
+        while (_alive) {
+            Job j = take(me);
+            if (j != null)
+                return j;
+            // park, rechecking after advertising so a concurrent push isn't missed
+            me.idle.set(true);
+            _idleCount.incrementAndGet();
+            if (hasReady()) {
+                if (me.idle.compareAndSet(true, false))
+                    _idleCount.decrementAndGet();
+                continue;
+            }
+            LockSupport.parkNanos(this, IDLE_PARK_NS);
+            // if signal() woke us, it already cleared the flag and the count
+            if (me.idle.compareAndSet(true, false))
+                _idleCount.decrementAndGet();
+        }
+        // drain the poison job, if any
+        return me.deque.pollFirst();
+    }
+
+    /**
+     *  Dump the current state.
+     */
+    public void getJobs(Collection<Job> readyJobs, Collection<Job> timedJobs) {
+        for (Worker w : _workers) {
+            readyJobs.addAll(w.deque);
+        }
+        for (Map.Entry<Job, Object> e : _scheduled.entrySet()) {
+            if (e.getValue() != READY)
+                timedJobs.add(e.getKey());
+        }
+    }
+
+    /**
+     *  All ready and timed jobs, for clock adjustment.
+     */
+    public Collection<Job> getAllJobs() {
+        return new ArrayList<Job>(_scheduled.keySet());
+    }
+
+    /**
+     *  The clock changed, so the wheel positions no longer match the job timings.
+     *  Have the pumper re-add everything.
+     */
+    public void timingsChanged() {
+        _rebuild = true;
+        Thread t = _pumperThread;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    private Job take(Worker me) {
+        Job j = me.deque.pollFirst();
+        if (j == null) {
+            // steal the oldest job from someone else, starting at a random victim
+            Worker[] workers = _workers;
+            int sz = workers.length;
+            if (sz > 1) {
+                int off = RandomSource.getInstance().nextInt(sz);
+                for (int i = 0; i < sz && j == null; i++) {
+                    Worker w = workers[(off + i) % sz];
+                    if (w != me)
+                        j = w.deque.pollFirst();
+                }
+            }
+            if (j == null)
+                return null;
+        }
+        if (j.getTiming() != null) {
+            _readyCount.decrementAndGet();
+            _scheduled.remove(j, READY);
+        }
+        return j;
+    }
+
+    private boolean hasReady() {
+        for (Worker w : _workers) {
+            if (!w.deque.isEmpty())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     *  Put a ready job on the current runner's deque, or round-robin
+     *  if not called from a runner, and wake an idle runner.
+     */
+    private void push(Job job) {
+        Worker[] workers = _workers;
+        int sz = workers.length;
+        Worker target = null;
+        Thread cur = Thread.currentThread();
+        if (cur instanceof JobQueueRunner) {
+            int id = ((JobQueueRunner) cur).getRunnerId();
+            if (id >= 0 && id < sz)
+                target = workers[id];
+        }
+        if (target == null)
+            target = workers[(_nextWorker.getAndIncrement() & Integer.MAX_VALUE) % sz];
+        _readyCount.incrementAndGet();
+        target.deque.offerLast(job);
+        signal(workers);
+    }
+
+    /**
+     *  Wake one idle runner, if any
+     */
+    private void signal(Worker[] workers) {
+        if (_idleCount.get() <= 0)
+            return;
+        int sz = workers.length;
+        int off = _nextWorker.get() & Integer.MAX_VALUE;
+        for (int i = 0; i < sz; i++) {
+            Worker w = workers[(off + i) % sz];
+            if (w.idle.compareAndSet(true, false)) {
+                _idleCount.decrementAndGet();
+                Thread t = w.thread;
+                if (t != null)
+                    LockSupport.unpark(t);
+                return;
+            }
+        }
+    }
+
+    /**
+     *  Move a timed entry to a ready deque, if it is still the current
+     *  entry for its job.
+     */
+    private void makeReady(TimedEntry entry) {
+        Job job = entry.job;
+        if (_scheduled.get(job) != entry)
+            return;
+        if (job instanceof JobImpl)
+            ((JobImpl)job).madeReady();
+        if (_scheduled.replace(job, entry, READY)) {
+            _timedCount.decrementAndGet();
+            push(job);
+        }
+    }
+
+    private static class Worker {
+        final ConcurrentLinkedDeque<Job> deque = new ConcurrentLinkedDeque<Job>();
+        final AtomicBoolean idle = new AtomicBoolean();
+        volatile Thread thread;
+    }
+
+    /**
+     *  A job waiting in the wheel. Also the token in _scheduled, so that
+     *  removing or rescheduling a job makes its old entry stale.
+     */
+    private static class TimedEntry {
+        final Job job;
+        long when;
+
+        TimedEntry(Job j, long w) {
+            job = j;
+            when = w;
+        }
+    }
+
+    /**
+     *  Moves jobs from the timing wheel to the ready deques.
+     */
+    private class Pumper implements Runnable, Clock.ClockUpdateListener, RouterClock.ClockShiftListener {
+        private final TimingWheel _wheel = new TimingWheel();
+        private final List<TimedEntry> _expired = new ArrayList<TimedEntry>();
+
+        public Pumper() {
+            _context.clock().addUpdateListener(this);
+            ((RouterClock) _context.clock()).addShiftListener(this);
+        }
+
+        public void run() {
+            try {
+                while (_alive) {
+                    long now = _context.clock().now();
+                    if (_rebuild) {
+                        _rebuild = false;
+                        _wheel.rebuild(now);
+                    }
+                    TimedEntry e;
+                    while ((e = _pending.poll()) != null) {
+                        if (_scheduled.get(e.job) != e)
+                            continue;
+                        if (e.when <= now)
+                            makeReady(e);
+                        else
+                            _wheel.add(e);
+                    }
+                    _wheel.advance(now, _expired);
+                    for (int i = 0; i < _expired.size(); i++) {
+                        e = _expired.get(i);
+                        if (_scheduled.get(e.job) != e)
+                            continue;
+                        // failsafe - a job may have changed setStartAfter()
+                        // without calling addJob()
+                        long start = e.job.getTiming().getStartAfter();
+                        if (start > now) {
+                            e.when = start;
+                            _wheel.add(e);
+                        } else {
+                            makeReady(e);
+                        }
+                    }
+                    _expired.clear();
+                    long timeToWait = _wheel.nextDeadline() - now;
+                    if (timeToWait < MIN_PUMPER_WAIT)
+                        timeToWait = MIN_PUMPER_WAIT;
+                    else if (timeToWait > MAX_PUMPER_WAIT)
+                        timeToWait = MAX_PUMPER_WAIT;
+                    _nextPumperRun = now + timeToWait;
+                    if (_pending.isEmpty() && !_rebuild)
+                        LockSupport.parkNanos(this, timeToWait * 1000*1000L);
+                }
+            } catch (Throwable t) {
+                if (_log.shouldLog(Log.ERROR))
+                    _log.error("pumper killed?!", t);
+            } finally {
+                _context.clock().removeUpdateListener(this);
+                ((RouterClock) _context.clock()).removeShiftListener(this);
+            }
+        }
+
+        public void offsetChanged(long delta) {
+            _queue.updateJobTimings(delta);
+        }
+
+        /**
+         *  Clock shift listener.
+         *  Only adjust timings for negative shifts.
+         *  For positive shifts, just wake up the pumper.
+         */
+        public void clockShift(long delta) {
+            if (delta < 0) {
+                offsetChanged(delta);
+            } else {
+                timingsChanged();
+            }
+        }
+    }
+
+    /**
+     *  Hierarchical timing wheel, in the style of the Linux kernel timers.
+     *  Level 0 has one slot per tick, each higher level has one slot per
+     *  full rotation of the level below, and anything further out than the
+     *  top level sits in an overflow list that is re-added once per top level rotation.
+     *  Insert is O(1); entries cascade down at most once per level.
+     *
+     *  Not thread safe, the pumper thread owns it.
+     */
+    private static class TimingWheel {
+        private static final long TICK = 10;
+        private static final int L0_BITS = 8;
+        private static final int LN_BITS = 6;
+        private static final int L0_SIZE = 1 << L0_BITS;
+        private static final int LN_SIZE = 1 << LN_BITS;
+        private static final int L1_SHIFT = L0_BITS;
+        private static final int L2_SHIFT = L0_BITS + LN_BITS;
+        private static final int TOP_SHIFT = L0_BITS + 2 * LN_BITS;
+        /** don't spin through more than this many ticks, rebuild instead */
+        private static final long MAX_ADVANCE = 1L << TOP_SHIFT;
+
+        private final List<TimedEntry>[] _l0;
+        private final List<TimedEntry>[] _l1;
+        private final List<TimedEntry>[] _l2;
+        private final List<TimedEntry> _overflow;
+        /** last tick processed */
+        private long _curTick = -1;
+        private int _size;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public TimingWheel() {
+            _l0 = new List[L0_SIZE];
+            _l1 = new List[LN_SIZE];
+            _l2 = new List[LN_SIZE];
+            for (int i = 0; i < L0_SIZE; i++) {
+                _l0[i] = new ArrayList<TimedEntry>(4);
+            }
+            for (int i = 0; i < LN_SIZE; i++) {
+                _l1[i] = new ArrayList<TimedEntry>(4);
+                _l2[i] = new ArrayList<TimedEntry>(4);
+            }
+            _overflow = new ArrayList<TimedEntry>();
+        }
+
+        public void add(TimedEntry e) {
+            // round up so we never fire early
+            long t = (e.when + TICK - 1) / TICK;
+            if (_curTick < 0)
+                _curTick = t - 1;
+            if (t <= _curTick)
+                t = _curTick + 1;
+            long delta = t - _curTick;
+            List<TimedEntry> slot;
+            if (delta < L0_SIZE)
+                slot = _l0[(int) (t & (L0_SIZE - 1))];
+            else if (delta < (1L << L2_SHIFT))
+                slot = _l1[(int) ((t >> L1_SHIFT) & (LN_SIZE - 1))];
+            else if (delta < (1L << TOP_SHIFT))
+                slot = _l2[(int) ((t >> L2_SHIFT) & (LN_SIZE - 1))];
+            else
+                slot = _overflow;
+            slot.add(e);
+            _size++;
+        }
+
+        /**
+         *  Process all ticks up to now, adding the expired entries to the list.
+         */
+        public void advance(long now, List<TimedEntry> expired) {
+            long nowTick = now / TICK;
+            if (_curTick < 0) {
+                _curTick = nowTick;
+                return;
+            }
+            if (nowTick < _curTick || nowTick - _curTick > MAX_ADVANCE) {
+                // clock jumped, start over
+                rebuild(now);
+            }
+            while (_curTick < nowTick) {
+                if (_size <= 0) {
+                    _curTick = nowTick;
+                    break;
+                }
+                long t = ++_curTick;
+                if ((t & (L0_SIZE - 1)) == 0) {
+                    if ((t & ((1L << L2_SHIFT) - 1)) == 0) {
+                        if ((t & ((1L << TOP_SHIFT) - 1)) == 0)
+                            cascade(_overflow);
+                        cascade(_l2[(int) ((t >> L2_SHIFT) & (LN_SIZE - 1))]);
+                    }
+                    cascade(_l1[(int) ((t >> L1_SHIFT) & (LN_SIZE - 1))]);
+                }
+                List<TimedEntry> slot = _l0[(int) (t & (L0_SIZE - 1))];
+                if (!slot.isEmpty()) {
+                    expired.addAll(slot);
+                    _size -= slot.size();
+                    slot.clear();
+                }
+            }
+        }
+
+        /**
+         *  @return the time of the next non-empty level 0 slot, or the next
+         *          cascade, whichever is sooner
+         */
+        public long nextDeadline() {
+            if (_size <= 0)
+                return Long.MAX_VALUE;
+            long t = _curTick + 1;
+            long end = (_curTick | (L0_SIZE - 1)) + 1;
+            for ( ; t < end; t++) {
+                if (!_l0[(int) (t & (L0_SIZE - 1))].isEmpty())
+                    break;
+            }
+            return t * TICK;
+        }
+
+        /**
+         *  Re-add everything relative to now.
+         */
+        public void rebuild(long now) {
+            List<TimedEntry> all = new ArrayList<TimedEntry>(_size);
+            drain(_l0, all);
+            drain(_l1, all);
+            drain(_l2, all);
+            all.addAll(_overflow);
+            _overflow.clear();
+            _size = 0;
+            _curTick = now / TICK;
+            for (TimedEntry e : all) {
+                // pick up any offset adjustments
+                JobTiming jt = e.job.getTiming();
+                if (jt != null)
+                    e.when = jt.getStartAfter();
+                add(e);
+            }
+        }
+
+        private void cascade(List<TimedEntry> slot) {
+            if (slot.isEmpty())
+                return;
+            List<TimedEntry> tmp = new ArrayList<TimedEntry>(slot);
+            _size -= slot.size();
+            slot.clear();
+            for (TimedEntry e : tmp) {
+                add(e);
+            }
+        }
+
+        private static void drain(List<TimedEntry>[] level, List<TimedEntry> all) {
+            for (List<TimedEntry> slot : level) {
+                all.addAll(slot);
+                slot.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package net.i2p.router.crypto;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.SessionTag;
+
+/**
+ *  Inbound session tags for TransientSessionKeyManager,
+ *  with no SessionTag or map entry object per tag.
+ *
+ *  The tags received together, with their value (the TagSet) and expiration,
+ *  are a Group. The group stores the tag bytes in a long array, 4 longs per tag.
+ *  The index is an open-addressed table with linear probing,
+ *  keyed by the first 8 bytes of the tag, and storing a reference to the group
+ *  and the tag's position in it. The full tag is compared on a match.
+ *
+ *  The table is split into stripes, each with its own lock,
+ *  so consume() on one tag doesn't wait for adds, consumes, or expiration
+ *  in other stripes. The stripe and the slot come from a keyed hash,
+ *  so a peer can't choose tags that collide.
+ *
+ *  The groups are also kept in a queue in expiration order,
+ *  so expire() only looks at the groups that have expired,
+ *  instead of every tag.
+ *
+ *  Thread safe.
+ *
+ *  @since 0.9.31
+ */
+class InboundTagIndex<V> {
+    private final Stripe[] _stripes;
+    private final long _salt;
+    /** expiration order, synch on this */
+    private final PriorityQueue<Group<V>> _groups;
+    private final AtomicInteger _size = new AtomicInteger();
+
+    private static final int STRIPES = 16;
+    private static final int STRIPE_SHIFT = 60;
+    private static final int MIN_CAPACITY = 64;
+
+    public InboundTagIndex(I2PAppContext ctx) {
+        _salt = ctx.random().nextLong();
+        _stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            _stripes[i] = new Stripe(_salt);
+        }
+        _groups = new PriorityQueue<Group<V>>(64, new GroupComparator());
+    }
+
+    /**
+     *  Add the tags, all mapping to the value.
+     *  A tag that is already present is mapped to the new value instead,
+     *  and the old value is returned so the caller can decide what to do with it.
+     *
+     *  @param value non-null
+     *  @param expiration absolute time
+     *  @return the distinct old values for tags that were already present, or null if none
+     */
+    public List<V> add(Set<SessionTag> tags, V value, long expiration) {
+        Group<V> group = new Group<V>(tags, value, expiration);
+        synchronized (_groups) {
+            _groups.add(group);
+        }
+        List<V> rv = null;
+        long[] data = group.tags;
+        for (int i = 0; i < group.count; i++) {
+            int off = i * 4;
+            long hash = hash(data[off]);
+            Stripe s = _stripes[(int) (hash >>> STRIPE_SHIFT)];
+            Group<?> old = s.put(hash, group, i);
+            if (old == null) {
+                _size.incrementAndGet();
+            } else {
+                old.remaining.decrementAndGet();
+                @SuppressWarnings("unchecked")
+                V oldValue = ((Group<V>) old).value;
+                if (rv == null)
+                    rv = new ArrayList<V>(1);
+                if (!rv.contains(oldValue))
+                    rv.add(oldValue);
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  Remove the tag and return its value
+     *
+     *  @return the value or null if not present
+     */
+    public V consume(SessionTag tag) {
+        byte[] b = tag.getData();
+        long l0 = fromBytes(b, 0);
+        long hash = hash(l0);
+        Stripe s = _stripes[(int) (hash >>> STRIPE_SHIFT)];
+        Group<?> group = s.remove(hash, l0, fromBytes(b, 8), fromBytes(b, 16), fromBytes(b, 24));
+        if (group == null)
+            return null;
+        _size.decrementAndGet();
+        group.remaining.decrementAndGet();
+        @SuppressWarnings("unchecked")
+        V rv = ((Group<V>) group).value;
+        return rv;
+    }
+
+    /**
+     *  Remove all the tags for this value.
+     *  O(number of groups), use sparingly.
+     *
+     *  @return number of tags removed
+     */
+    public int remove(V value) {
+        List<Group<V>> removed = new ArrayList<Group<V>>(1);
+        synchronized (_groups) {
+            for (Iterator<Group<V>> iter = _groups.iterator(); iter.hasNext(); ) {
+                Group<V> g = iter.next();
+                if (g.value == value) {
+                    iter.remove();
+                    removed.add(g);
+                }
+            }
+        }
+        int rv = 0;
+        for (Group<V> g : removed) {
+            rv += removeTags(g);
+        }
+        return rv;
+    }
+
+    /**
+     *  Remove all groups that expire at or before now.
+     *
+     *  @return number of tags removed
+     */
+    public int expire(long now) {
+        int rv = 0;
+        while (true) {
+            Group<V> g;
+            synchronized (_groups) {
+                g = _groups.peek();
+                if (g == null || g.expiration > now)
+                    break;
+                _groups.poll();
+            }
+            rv += removeTags(g);
+        }
+        return rv;
+    }
+
+    /**
+     *  Remove the groups that expire soonest until at least this many tags are gone.
+     *
+     *  @return number of tags removed
+     */
+    public int removeOldest(int count) {
+        int rv = 0;
+        while (rv < count) {
+            Group<V> g;
+            synchronized (_groups) {
+                g = _groups.poll();
+            }
+            if (g == null)
+                break;
+            rv += removeTags(g);
+        }
+        return rv;
+    }
+
+    /**
+     *  @return number of tags
+     */
+    public int size() {
+        return _size.get();
+    }
+
+    /**
+     *  @return a snapshot of the values and how many tags each has left
+     */
+    public Map<V, Integer> getValues() {
+        synchronized (_groups) {
+            Map<V, Integer> rv = new HashMap<V, Integer>(_groups.size());
+            for (Group<V> g : _groups) {
+                Integer old = rv.get(g.value);
+                int n = Math.max(0, g.remaining.get());
+                rv.put(g.value, old != null ? old + n : n);
+            }
+            return rv;
+        }
+    }
+
+    public void clear() {
+        synchronized (_groups) {
+            _groups.clear();
+        }
+        for (Stripe s : _stripes) {
+            s.clear();
+        }
+        _size.set(0);
+    }
+
+    /**
+     *  Remove any tags of the group that are still indexed to it,
+     *  consumed ones or ones replaced by a later group are not found.
+     *
+     *  @return number of tags removed
+     */
+    private int removeTags(Group<V> g) {
+        long[] data = g.tags;
+        int rv = 0;
+        for (int i = 0; i < g.count; i++) {
+            int off = i * 4;
+            long hash = hash(data[off]);
+            Stripe s = _stripes[(int) (hash >>> STRIPE_SHIFT)];
+            if (s.remove(hash, g, i))
+                rv++;
+        }
+        if (rv > 0) {
+            _size.addAndGet(0 - rv);
+            g.remaining.addAndGet(0 - rv);
+        }
+        return rv;
+    }
+
+    private long hash(long l) {
+        return hash(l, _salt);
+    }
+
+    /** keyed SplitMix64 finalizer */
+    private static long hash(long l, long salt) {
+        long z = l ^ salt;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long fromBytes(byte[] b, int off) {
+        long rv = 0;
+        for (int i = off; i < off + 8; i++) {
+            rv = (rv << 8) | (b[i] & 0xff);
+        }
+        return rv;
+    }
+
+    /**
+     *  The tags received together
+     */
+    private static class Group<V> {
+        /** 4 longs per tag */
+        final long[] tags;
+        final int count;
+        final V value;
+        final long expiration;
+        /** tags still indexed to this group */
+        final AtomicInteger remaining;
+
+        public Group(Set<SessionTag> sessionTags, V value, long expiration) {
+            count = sessionTags.size();
+            tags = new long[count * 4];
+            int off = 0;
+            for (SessionTag tag : sessionTags) {
+                byte[] b = tag.getData();
+                for (int i = 0; i < SessionTag.BYTE_LENGTH; i += 8) {
+                    tags[off++] = fromBytes(b, i);
+                }
+            }
+            this.value = value;
+            this.expiration = expiration;
+            remaining = new AtomicInteger(count);
+        }
+    }
+
+    private static class GroupComparator implements Comparator<Group<?>> {
+        public int compare(Group<?> l, Group<?> r) {
+            if (l.expiration < r.expiration)
+                return -1;
+            if (l.expiration > r.expiration)
+                return 1;
+            return 0;
+        }
+    }
+
+    /**
+     *  One lock's worth of the table.
+     *  A slot holds the first 8 bytes of the tag, the group, and the tag's index in the group.
+     *  Empty slots have a null group.
+     *  The slot is chosen from the low bits of the hash; the stripe used the high bits.
+     */
+    private static class Stripe {
+        private final long _salt;
+        private long[] _first;
+        private Group<?>[] _group;
+        private int[] _index;
+        private int _mask;
+        private int _count;
+
+        public Stripe(long salt) {
+            _salt = salt;
+            alloc(MIN_CAPACITY);
+        }
+
+        /**
+         *  @return the old group if the tag was already present, else null
+         */
+        public synchronized Group<?> put(long hash, Group<?> group, int index) {
+            long[] data = group.tags;
+            int off = index * 4;
+            long l0 = data[off];
+            int i = find(hash, l0, data[off + 1], data[off + 2], data[off + 3]);
+            if (i >= 0) {
+                Group<?> rv = _group[i];
+                _group[i] = group;
+                _index[i] = index;
+                return rv;
+            }
+            if ((_count + 1) * 2 > _group.length)
+                alloc(_group.length * 2);
+            insert(hash, l0, group, index);
+            _count++;
+            return null;
+        }
+
+        /**
+         *  Remove by value
+         *  @return the group or null
+         */
+        public synchronized Group<?> remove(long hash, long l0, long l1, long l2, long l3) {
+            int i = find(hash, l0, l1, l2, l3);
+            if (i < 0)
+                return null;
+            Group<?> rv = _group[i];
+            delete(i);
+            return rv;
+        }
+
+        /**
+         *  Remove if still indexed to this group and position
+         *  @return success
+         */
+        public synchronized boolean remove(long hash, Group<?> group, int index) {
+            long l0 = group.tags[index * 4];
+            int i = (int) hash & _mask;
+            while (_group[i] != null) {
+                if (_first[i] == l0 && _group[i] == group && _index[i] == index) {
+                    delete(i);
+                    return true;
+                }
+                i = (i + 1) & _mask;
+            }
+            return false;
+        }
+
+        public synchronized void clear() {
+            _count = 0;
+            alloc(MIN_CAPACITY);
+        }
+
+        ////// caller must synch
+
+        /** @return slot or -1 */
+        private int find(long hash, long l0, long l1, long l2, long l3) {
+            int i = (int) hash & _mask;
+            Group<?> g;
+            while ((g = _group[i]) != null) {
+                if (_first[i] == l0) {
+                    long[] data = g.tags;
+                    int off = _index[i] * 4;
+                    if (data[off + 1] == l1 && data[off + 2] == l2 && data[off + 3] == l3)
+                        return i;
+                }
+                i = (i + 1) & _mask;
+            }
+            return -1;
+        }
+
+        /** does not check for dups or change _count */
+        private void insert(long hash, long l0, Group<?> group, int index) {
+            int i = (int) hash & _mask;
+            while (_group[i] != null) {
+                i = (i + 1) & _mask;
+            }
+            _first[i] = l0;
+            _group[i] = group;
+            _index[i] = index;
+        }
+
+        /**
+         *  Backward shift deletion, no tombstones.
+         *  Shrinks the table when it gets mostly empty.
+         */
+        private void delete(int i) {
+            int j = i;
+            while (true) {
+                j = (j + 1) & _mask;
+                if (_group[j] == null)
+                    break;
+                int home = (int) hash(_first[j], _salt) & _mask;
+                // move j to i if its home is not cyclically in (i, j]
+                if (((j - home) & _mask) >= ((j - i) & _mask)) {
+                    _first[i] = _first[j];
+                    _group[i] = _group[j];
+                    _index[i] = _index[j];
+                    i = j;
+                }
+            }
+            _group[i] = null;
+            _count--;
+            if (_count * 8 < _group.length && _group.length > MIN_CAPACITY)
+                alloc(_group.length / 2);
+        }
+
+        /** rehash everything into a new table */
+        private void alloc(int capacity) {
+            long[] oldFirst = _first;
+            Group<?>[] oldGroup = _group;
+            int[] oldIndex = _index;
+            _first = new long[capacity];
+            _group = new Group<?>[capacity];
+            _index = new int[capacity];
+            _mask = capacity - 1;
+            if (oldGroup != null && _count > 0) {
+                for (int i = 0; i < oldGroup.length; i++) {
+                    if (oldGroup[i] != null)
+                        insert(hash(oldFirst[i], _salt), oldFirst[i], oldGroup[i], oldIndex[i]);
+                }
+            }
+        }
+    }
+}
@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
@@ -79,8 +80,10 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     private final Log _log;
     /** Map allowing us to go from the targeted PublicKey to the OutboundSession used */
     private final Map<PublicKey, OutboundSession> _outboundSessions;
-    /** Map allowing us to go from a SessionTag to the containing TagSet */
+    /** Map allowing us to go from a SessionTag to the containing TagSet; null if _inboundIndex used */
     private final Map<SessionTag, TagSet> _inboundTagSets;
+    /** null unless PROP_STRIPED_INDEX */
+    private final InboundTagIndex<TagSet> _inboundIndex;
     protected final I2PAppContext _context;
     private volatile boolean _alive;
     /** for debugging */
@@ -155,6 +158,12 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     /** ditto */
     public static final int LOW_THRESHOLD = 30;
 
+    /**
+     *  Keep inbound tags in an InboundTagIndex instead of a HashMap, default false
+     *  @since 0.9.31
+     */
+    public static final String PROP_STRIPED_INDEX = "router.stripedTagIndex";
+
     /** 
      * The session key manager should only be constructed and accessed through the 
      * application context.  This constructor should only be used by the 
@@ -179,7 +188,13 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         _log = context.logManager().getLog(TransientSessionKeyManager.class);
         _context = context;
         _outboundSessions = new HashMap<PublicKey, OutboundSession>(64);
-        _inboundTagSets = new HashMap<SessionTag, TagSet>(128);
+        if (context.getBooleanProperty(PROP_STRIPED_INDEX)) {
+            _inboundTagSets = null;
+            _inboundIndex = new InboundTagIndex<TagSet>(context);
+        } else {
+            _inboundTagSets = new HashMap<SessionTag, TagSet>(128);
+            _inboundIndex = null;
+        }
         context.statManager().createRateStat("crypto.sessionTagsExpired", "How many tags/sessions are expired?", "Encryption", new long[] { 10*60*1000, 60*60*1000, 3*60*60*1000 });
         context.statManager().createRateStat("crypto.sessionTagsRemaining", "How many tags/sessions are remaining after a cleanup?", "Encryption", new long[] { 10*60*1000, 60*60*1000, 3*60*60*1000 });
          _alive = true;
@@ -189,8 +204,12 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     @Override
     public void shutdown() {
          _alive = false;
-        synchronized (_inboundTagSets) {
-            _inboundTagSets.clear();
+        if (_inboundIndex != null) {
+            _inboundIndex.clear();
+        } else {
+            synchronized (_inboundTagSets) {
+                _inboundTagSets.clear();
+            }
         }
         synchronized (_outboundSessions) {
             _outboundSessions.clear();
@@ -212,6 +231,8 @@ public class TransientSessionKeyManager extends SessionKeyManager {
 
     /** TagSet - used only by HTML */
     private Set<TagSet> getInboundTagSets() {
+        if (_inboundIndex != null)
+            return new HashSet<TagSet>(_inboundIndex.getValues().keySet());
         synchronized (_inboundTagSets) {
             return new HashSet<TagSet>(_inboundTagSets.values());
         }
@@ -229,17 +250,25 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         if (_log.shouldLog(Log.INFO))
             _log.info("Loading " + inboundTagSets.size() + " inbound tag sets, and " 
                       + outboundSessions.size() + " outbound sessions");
-        Map<SessionTag, TagSet> tagSets = new HashMap(inboundTagSets.size());
-        for (Iterator<TagSet> iter = inboundTagSets.iterator(); iter.hasNext();) {
-            TagSet ts = iter.next();
-            for (Iterator<SessionTag> tsIter = ts.getTags().iterator(); tsIter.hasNext();) {
-                SessionTag tag = tsIter.next();
-                tagSets.put(tag, ts);
+        if (_inboundIndex != null) {
+            // for inbound tagsets, getDate() is the expire time
+            _inboundIndex.clear();
+            for (TagSet ts : inboundTagSets) {
+                _inboundIndex.add(ts.getTags(), ts, ts.getDate());
+            }
+        } else {
+            Map<SessionTag, TagSet> tagSets = new HashMap(inboundTagSets.size());
+            for (Iterator<TagSet> iter = inboundTagSets.iterator(); iter.hasNext();) {
+                TagSet ts = iter.next();
+                for (Iterator<SessionTag> tsIter = ts.getTags().iterator(); tsIter.hasNext();) {
+                    SessionTag tag = tsIter.next();
+                    tagSets.put(tag, ts);
+                }
+            }
+            synchronized (_inboundTagSets) {
+                _inboundTagSets.clear();
+                _inboundTagSets.putAll(tagSets);
             }
-        }
-        synchronized (_inboundTagSets) {
-            _inboundTagSets.clear();
-            _inboundTagSets.putAll(tagSets);
         }
         Map<PublicKey, OutboundSession> sessions = new HashMap(outboundSessions.size());
         for (Iterator<OutboundSession> iter = outboundSessions.iterator(); iter.hasNext();) {
@@ -518,6 +547,10 @@ public class TransientSessionKeyManager extends SessionKeyManager {
      */
     @Override
     public void tagsReceived(SessionKey key, Set<SessionTag> sessionTags, long expire) {
+        if (_inboundIndex != null) {
+            indexTagsReceived(key, sessionTags, expire);
+            return;
+        }
         TagSet tagSet = new TagSet(sessionTags, key, _context.clock().now() + expire,
                                    _rcvTagSetID.incrementAndGet());
         if (_log.shouldLog(Log.INFO)) {
@@ -568,6 +601,48 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         //    _log.debug("Received 0 tags for key " + key);
         //if (false) aggressiveExpire();
     }
+
+    /**
+     *  tagsReceived() for the InboundTagIndex.
+     *  The TagSet does not keep the tags, the index does.
+     *
+     *  @since 0.9.31
+     */
+    private void indexTagsReceived(SessionKey key, Set<SessionTag> sessionTags, long expire) {
+        long expiration = _context.clock().now() + expire;
+        TagSet tagSet = new TagSet(sessionTags.size(), key, expiration,
+                                   _rcvTagSetID.incrementAndGet());
+        if (_log.shouldLog(Log.INFO)) {
+            _log.info("Received " + tagSet);
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Tags: " + DataHelper.toString(sessionTags));
+        }
+        List<TagSet> olds = _inboundIndex.add(sessionTags, tagSet, expiration);
+        if (olds != null) {
+            for (TagSet old : olds) {
+                if (old.getAssociatedKey().equals(key))
+                    continue; // ignore the dup
+                // drop both old and tagSet tags
+                _inboundIndex.remove(old);
+                _inboundIndex.remove(tagSet);
+                if (_log.shouldLog(Log.WARN)) {
+                    _log.warn("Multiple tags matching!  tagSet: " + tagSet + " and old tagSet: " + old);
+                    _log.warn("Earlier tag set creation: " + old + ": key=" + old.getAssociatedKey());
+                    _log.warn("Current tag set creation: " + tagSet + ": key=" + tagSet.getAssociatedKey());
+                }
+                break;
+            }
+        }
+
+        int overage = _inboundIndex.size() - MAX_INBOUND_SESSION_TAGS;
+        if (overage > 0) {
+            // the index has them in expiration order, so remove the oldest
+            int removed = _inboundIndex.removeOldest(overage * 2);
+            _log.logAlways(Log.WARN, "TOO MANY SESSION TAGS!  removed " + removed 
+                           + " of the oldest tags, overage was " + overage
+                           + ", leaving a total of " + _inboundIndex.size() + " tags behind");
+        }
+    }
     
     /**
      * remove a bunch of arbitrarily selected tags, then drop all of
@@ -635,14 +710,23 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     @Override
     public SessionKey consumeTag(SessionTag tag) {
         TagSet tagSet;
-        synchronized (_inboundTagSets) {
-            tagSet = _inboundTagSets.remove(tag);
+        if (_inboundIndex != null) {
+            tagSet = _inboundIndex.consume(tag);
             if (tagSet == null) {
                 if (_log.shouldLog(Log.DEBUG))
                     _log.debug("Cannot consume IB " + tag + " as it is not known");
                 return null;
             }
-            tagSet.consume(tag);
+        } else {
+            synchronized (_inboundTagSets) {
+                tagSet = _inboundTagSets.remove(tag);
+                if (tagSet == null) {
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Cannot consume IB " + tag + " as it is not known");
+                    return null;
+                }
+                tagSet.consume(tag);
+            }
         }
 
         SessionKey key = tagSet.getAssociatedKey();
@@ -685,17 +769,23 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         int remaining = 0;
         long now = _context.clock().now();
 
-        synchronized (_inboundTagSets) {
-            for (Iterator<TagSet> iter = _inboundTagSets.values().iterator(); iter.hasNext();) {
-                TagSet ts = iter.next();
-                // for inbound tagsets, getDate() is the expire time
-                if (ts.getDate() <= now) {
-                    iter.remove();
-                    // bug, this counts inbound tags, not tag sets
-                    removed++;
+        if (_inboundIndex != null) {
+            // only looks at the expired ones
+            removed = _inboundIndex.expire(now);
+            remaining = _inboundIndex.size();
+        } else {
+            synchronized (_inboundTagSets) {
+                for (Iterator<TagSet> iter = _inboundTagSets.values().iterator(); iter.hasNext();) {
+                    TagSet ts = iter.next();
+                    // for inbound tagsets, getDate() is the expire time
+                    if (ts.getDate() <= now) {
+                        iter.remove();
+                        // bug, this counts inbound tags, not tag sets
+                        removed++;
+                    }
                 }
+                remaining = _inboundTagSets.size();
             }
-            remaining = _inboundTagSets.size();
         }
         _context.statManager().addRateData("crypto.sessionTagsRemaining", remaining, 0);
         if (removed > 0 && _log.shouldLog(Log.DEBUG))
@@ -722,6 +812,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         buf.append("<h2>Inbound sessions</h2>" +
                    "<table>");
         Set<TagSet> inbound = getInboundTagSets();
+        Map<TagSet, Integer> indexed = _inboundIndex != null ? _inboundIndex.getValues() : null;
         Map<SessionKey, Set<TagSet>> inboundSets = new HashMap<SessionKey, Set<TagSet>>(inbound.size());
         // Build a map of the inbound tag sets, grouped by SessionKey
         for (TagSet ts : inbound) {
@@ -742,7 +833,13 @@ public class TransientSessionKeyManager extends SessionKeyManager {
                        "<td><b># Sets:</b> ").append(sets.size()).append("</td></tr>" +
                        "<tr><td colspan=\"2\"><ul>");
             for (TagSet ts : sets) {
-                int size = ts.getTags().size();
+                int size;
+                if (indexed != null) {
+                    Integer sz = indexed.get(ts);
+                    size = sz != null ? sz : 0;
+                } else {
+                    size = ts.getTags().size();
+                }
                 total += size;
                 buf.append("<li><b>ID: ").append(ts.getID());
                 long expires = ts.getDate() - now;
@@ -1117,6 +1214,22 @@ public class TransientSessionKeyManager extends SessionKeyManager {
             //}
         }
 
+        /**
+         *  For inbound with InboundTagIndex, which keeps the tags.
+         *  getTags() will be empty.
+         *
+         *  @param date when the TagSet will expire
+         *  @since 0.9.31
+         */
+        public TagSet(int size, SessionKey key, long date, int id) {
+            if (key == null) throw new IllegalArgumentException("Missing key");
+            _sessionTags = Collections.emptySet();
+            _key = key;
+            _date = date;
+            _id = id;
+            _origSize = size;
+        }
+
         /**
          *  For inbound: when the TagSet will expire; for outbound: creation time
          */
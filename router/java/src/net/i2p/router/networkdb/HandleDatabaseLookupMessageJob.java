@@ -43,7 +43,7 @@ public class HandleDatabaseLookupMessageJob extends JobImpl {
     private final DatabaseLookupMessage _message;
     private boolean _replyKeyConsumed;
 
-    private final static int MAX_ROUTERS_RETURNED = 3;
+    protected final static int MAX_ROUTERS_RETURNED = 3;
     private final static int CLOSENESS_THRESHOLD = 8; // FNDF.MAX_TO_FLOOD + 1
     private final static int REPLY_TIMEOUT = 60*1000;
     private final static int MESSAGE_PRIORITY = OutNetMessage.PRIORITY_NETDB_REPLY;
@@ -213,6 +213,8 @@ public class HandleDatabaseLookupMessageJob extends JobImpl {
         // to pass to findNearestRouters()
         Set<Hash> dontInclude = _message.getDontIncludePeers();
         Hash us = getContext().routerHash();
+        boolean onlyUs = dontInclude == null || dontInclude.isEmpty() ||
+                         (dontInclude.size() == 1 && dontInclude.contains(Hash.FAKE_HASH));
         if (dontInclude == null && lookupType == DatabaseLookupMessage.Type.EXPL) {
             dontInclude = new HashSet<Hash>(2);
             dontInclude.add(us);
@@ -228,9 +230,20 @@ public class HandleDatabaseLookupMessageJob extends JobImpl {
         // Honor flag to exclude all floodfills
         //if (dontInclude.contains(Hash.FAKE_HASH)) {
         // This is handled in FloodfillPeerSelector
-        return getContext().netDb().findNearestRouters(_message.getSearchKey(), 
-                                                       MAX_ROUTERS_RETURNED, 
-                                                       dontInclude);
+        return findNearestRouters(_message.getSearchKey(), dontInclude, onlyUs);
+    }
+
+    /**
+     *  Overridden in HFDLMJ to use the SearchReplyCache.
+     *
+     *  @param dontInclude non-null, contains us, and FAKE_HASH for exploratory lookups
+     *  @param onlyUs true if the requestor did not exclude any peers,
+     *                so the result depends only on the key and whether dontInclude contains FAKE_HASH
+     *  @return at most MAX_ROUTERS_RETURNED
+     *  @since 0.9.31 pulled out of getNearestRouters()
+     */
+    protected Set<Hash> findNearestRouters(Hash key, Set<Hash> dontInclude, boolean onlyUs) {
+        return getContext().netDb().findNearestRouters(key, MAX_ROUTERS_RETURNED, dontInclude);
     }
 
     private static boolean isUnreachable(RouterInfo info) {
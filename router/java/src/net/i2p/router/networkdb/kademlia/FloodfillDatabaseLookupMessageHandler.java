@@ -18,7 +18,8 @@ import net.i2p.router.RouterContext;
 import net.i2p.util.Log;
 
 /**
- * Build a HandleDatabaseLookupMessageJob whenever a DatabaseLookupMessage arrives
+ * Build a HandleDatabaseLookupMessageJob whenever a DatabaseLookupMessage arrives,
+ * or as of 0.9.31, hand it to the FloodfillLookupPipeline if enabled.
  *
  */
 public class FloodfillDatabaseLookupMessageHandler implements HandlerJobBuilder {
@@ -47,6 +48,13 @@ public class FloodfillDatabaseLookupMessageHandler implements HandlerJobBuilder
 
         DatabaseLookupMessage dlm = (DatabaseLookupMessage)receivedMessage;
         if (!_facade.shouldThrottleLookup(dlm.getFrom(), dlm.getReplyTunnel())) {
+            FloodfillLookupPipeline pipeline = _facade.getLookupPipeline();
+            if (pipeline != null) {
+                // handled in the pipeline's threads, or dropped there for load
+                if (!pipeline.offer(dlm, from, fromHash))
+                    _context.statManager().addRateData("netDb.lookupsDropped", 1, 1);
+                return null;
+            }
             Job j = new HandleFloodfillDatabaseLookupMessageJob(_context, dlm, from, fromHash);
             //if (false) {
             //    // might as well inline it, all the heavy lifting is queued up in later jobs, if necessary
@@ -0,0 +1,203 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import net.i2p.data.Hash;
+import net.i2p.router.Banlist;
+import net.i2p.router.RouterContext;
+import net.i2p.util.Log;
+
+/**
+ *  The floodfills, sorted by hash, so the ones closest to a key
+ *  by the XOR metric can be found by walking the implicit binary trie,
+ *  without sorting all the floodfills for every lookup and store.
+ *
+ *  A query takes O(max * log(n)) and does not allocate anything
+ *  except the result list.
+ *
+ *  The floodfills are at their router hashes, only the search key
+ *  is a routing key, so the index does not change at the daily
+ *  routing key rotation. It is a snapshot of
+ *  peerManager().getPeersByCapability('f'), rebuilt when that changes
+ *  size (at most every MIN_REBUILD) or gets old.
+ *  Floodfills that have left that set since the last rebuild are skipped
+ *  in queries; new ones are not returned until the next rebuild.
+ *
+ *  One per FloodfillPeerSelector.
+ *
+ *  @since 0.9.31
+ */
+class FloodfillIndex {
+    private final RouterContext _context;
+    private final Log _log;
+    private final Object _rebuildLock = new Object();
+    private volatile Snapshot _snapshot;
+
+    private static final long MIN_REBUILD = 10*1000;
+    private static final long MAX_AGE = 2*60*1000;
+
+    public FloodfillIndex(RouterContext ctx) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(FloodfillIndex.class);
+    }
+
+    /**
+     *  @param key the ROUTING key (NOT the original key)
+     *  @param max max to return
+     *  @param toIgnore can be null
+     *  @return floodfills closest to the key that are not banlisted forever,
+     *          sorted by closest first.
+     *          List MAY INCLUDE our own hash unless in toIgnore.
+     */
+    public List<Hash> selectClosest(Hash key, int max, Set<Hash> toIgnore) {
+        Set<Hash> live = _context.peerManager().getPeersByCapability(FloodfillNetworkDatabaseFacade.CAPABILITY_FLOODFILL);
+        if (live == null || live.isEmpty() || max <= 0)
+            return new ArrayList<Hash>(0);
+        Snapshot s = getSnapshot(live);
+        List<Hash> rv = new ArrayList<Hash>(Math.min(max, s.size()));
+        s.selectClosest(key, max, toIgnore, live, _context.banlist(), rv);
+        return rv;
+    }
+
+    /**
+     *  Force a rebuild on the next query
+     */
+    public void clear() {
+        _snapshot = null;
+    }
+
+    private Snapshot getSnapshot(Set<Hash> live) {
+        Snapshot s = _snapshot;
+        long now = _context.clock().now();
+        if (s != null && !isStale(s, live, now))
+            return s;
+        synchronized (_rebuildLock) {
+            s = _snapshot;
+            if (s != null && !isStale(s, live, now))
+                return s;
+            long start = System.currentTimeMillis();
+            s = new Snapshot(live, now);
+            _snapshot = s;
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Rebuilt floodfill index, " + s.size() + " floodfills in " +
+                           (System.currentTimeMillis() - start) + " ms");
+        }
+        return s;
+    }
+
+    private static boolean isStale(Snapshot s, Set<Hash> live, long now) {
+        long age = now - s.built;
+        return age > MAX_AGE || age < 0 ||
+               (age > MIN_REBUILD && live.size() != s.size());
+    }
+
+    /**
+     *  Immutable. Package private for the bench.
+     */
+    static class Snapshot {
+        private final Hash[] _peers;
+        final long built;
+
+        /**
+         *  @param peers will be copied
+         */
+        public Snapshot(Collection<Hash> peers, long now) {
+            Hash[] p = peers.toArray(new Hash[peers.size()]);
+            Arrays.sort(p, new HashComparator());
+            _peers = p;
+            built = now;
+        }
+
+        public int size() {
+            return _peers.length;
+        }
+
+        /**
+         *  @param key the ROUTING key (NOT the original key)
+         *  @param toIgnore can be null
+         *  @param live only return these, can be null for all
+         *  @param banlist can be null
+         *  @param rv out parameter, at most max will be added, closest first
+         */
+        public void selectClosest(Hash key, int max, Set<Hash> toIgnore, Set<Hash> live,
+                                  Banlist banlist, List<Hash> rv) {
+            if (_peers.length > 0 && max > 0)
+                walk(0, _peers.length, 0, key.getData(), max, toIgnore, live, banlist, rv);
+        }
+
+        /**
+         *  All peers in [lo, hi) have the same first 'bit' bits,
+         *  so those closer to the key by XOR are the ones that also
+         *  share the next bit with it. Visit that half first.
+         */
+        private void walk(int lo, int hi, int bit, byte[] key, int max,
+                          Set<Hash> toIgnore, Set<Hash> live, Banlist banlist, List<Hash> rv) {
+            while (hi - lo > 1 && bit < Hash.HASH_LENGTH * 8) {
+                int split = split(lo, hi, bit);
+                if (split == lo || split == hi) {
+                    // all the same at this bit
+                    bit++;
+                    continue;
+                }
+                if (bit(key, bit) == 0) {
+                    walk(lo, split, bit + 1, key, max, toIgnore, live, banlist, rv);
+                    lo = split;
+                } else {
+                    walk(split, hi, bit + 1, key, max, toIgnore, live, banlist, rv);
+                    hi = split;
+                }
+                if (rv.size() >= max)
+                    return;
+                bit++;
+            }
+            for (int i = lo; i < hi && rv.size() < max; i++) {
+                Hash h = _peers[i];
+                if ((toIgnore != null && toIgnore.contains(h)) ||
+                    (live != null && !live.contains(h)) ||
+                    (banlist != null && banlist.isBanlistedForever(h)))
+                    continue;
+                rv.add(h);
+            }
+        }
+
+        /**
+         *  @return the first index in [lo, hi) with the bit set, or hi
+         */
+        private int split(int lo, int hi, int bit) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (bit(_peers[mid].getData(), bit) == 0)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+
+        /** bit 0 is the high bit of byte 0 */
+        private static int bit(byte[] b, int bit) {
+            return (b[bit >> 3] >> (7 - (bit & 0x07))) & 0x01;
+        }
+    }
+
+    /**
+     *  Unsigned, so the order is the same as the XOR order from all zeros
+     */
+    private static class HashComparator implements Comparator<Hash> {
+        public int compare(Hash l, Hash r) {
+            byte[] lb = l.getData();
+            byte[] rb = r.getData();
+            for (int i = 0; i < Hash.HASH_LENGTH; i++) {
+                int d = (lb[i] & 0xff) - (rb[i] & 0xff);
+                if (d != 0)
+                    return d;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import net.i2p.data.Hash;
+import net.i2p.data.i2np.DatabaseLookupMessage;
+import net.i2p.data.router.RouterIdentity;
+import net.i2p.router.RouterContext;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+
+/**
+ *  Dedicated handling of incoming DatabaseLookupMessages,
+ *  instead of a HandleFloodfillDatabaseLookupMessageJob on the job queue
+ *  for every lookup.
+ *  Used by FloodfillDatabaseLookupMessageHandler if
+ *  router.floodfillLookupPipeline=true.
+ *
+ *  Lookups are split into three classes, each with a bounded queue,
+ *  served in strict priority order by our own threads:
+ *  LeaseSet lookups (and untyped ones from old routers), then
+ *  RouterInfo lookups, then exploratory lookups.
+ *
+ *  Admission control is by the measured service time, not by job lag:
+ *  a lookup is dropped at arrival if the queued lookups of the same or
+ *  higher priority would take longer than the class's maximum wait to serve,
+ *  and dropped at dequeue if it has waited longer than that anyway.
+ *  The requestor will have given up on us by then, so there is no point.
+ *
+ *  Per-class stats:
+ *  netDb.ffLookupTime.X (queue + service time),
+ *  netDb.ffLookupServiceTime.X,
+ *  netDb.ffLookupShed.X (dropped at arrival, value is the estimated wait),
+ *  netDb.ffLookupExpired.X (dropped at dequeue, value is the wait).
+ *
+ *  @since 0.9.31
+ */
+class FloodfillLookupPipeline {
+    private final RouterContext _context;
+    private final Log _log;
+    private final List<BlockingQueue<Request>> _queues;
+    /** one permit per queued request */
+    private final Semaphore _available;
+    /** moving averages, nanoseconds */
+    private final long[] _avgServiceTime;
+    private final List<Thread> _threads;
+    private final int _numThreads;
+    private volatile boolean _isRunning;
+
+    public static final String PROP_THREADS = "router.floodfillLookupThreads";
+    private static final int DEFAULT_THREADS = 1;
+    private static final int MAX_THREADS = 4;
+
+    static final int CLASS_LS = 0;
+    static final int CLASS_RI = 1;
+    static final int CLASS_EXPL = 2;
+    private static final String[] CLASS_NAMES = { "LS", "RI", "Expl" };
+    private static final int[] QUEUE_SIZE = { 256, 256, 64 };
+    /**
+     *  IterativeSearchJob gives up on a floodfill after a few seconds,
+     *  and exploration is not urgent at all.
+     */
+    private static final long[] MAX_WAIT = { 4*1000, 4*1000, 2*1000 };
+    /** until we have measured something */
+    private static final long INITIAL_SERVICE_TIME = 2*1000*1000;
+    /** EWMA weight is 1/2**this */
+    private static final int AVG_SHIFT = 4;
+
+    public FloodfillLookupPipeline(RouterContext ctx) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(FloodfillLookupPipeline.class);
+        _queues = new ArrayList<BlockingQueue<Request>>(CLASS_NAMES.length);
+        _avgServiceTime = new long[CLASS_NAMES.length];
+        for (int i = 0; i < CLASS_NAMES.length; i++) {
+            _queues.add(new LinkedBlockingQueue<Request>(QUEUE_SIZE[i]));
+            _avgServiceTime[i] = INITIAL_SERVICE_TIME;
+            String name = CLASS_NAMES[i];
+            ctx.statManager().createRateStat("netDb.ffLookupTime." + name, "Queue + service time of " + name + " lookups (ms)", "NetworkDatabase", new long[] { 60*1000, 60*60*1000l });
+            ctx.statManager().createRateStat("netDb.ffLookupServiceTime." + name, "Service time of " + name + " lookups (ms)", "NetworkDatabase", new long[] { 60*1000, 60*60*1000l });
+            ctx.statManager().createRateStat("netDb.ffLookupShed." + name, "Estimated wait when a " + name + " lookup was dropped at arrival (ms)", "NetworkDatabase", new long[] { 60*1000, 60*60*1000l });
+            ctx.statManager().createRateStat("netDb.ffLookupExpired." + name, "Wait when a " + name + " lookup was dropped at dequeue (ms)", "NetworkDatabase", new long[] { 60*1000, 60*60*1000l });
+        }
+        _available = new Semaphore(0);
+        _numThreads = Math.max(1, Math.min(MAX_THREADS, ctx.getProperty(PROP_THREADS, DEFAULT_THREADS)));
+        _threads = new ArrayList<Thread>(_numThreads);
+    }
+
+    public synchronized void startup() {
+        if (_isRunning)
+            return;
+        _isRunning = true;
+        for (int i = 1; i <= _numThreads; i++) {
+            Thread t = new I2PThread(new Runner(), "FF Lookup Handler " + i + '/' + _numThreads, true);
+            _threads.add(t);
+            t.start();
+        }
+    }
+
+    public synchronized void shutdown() {
+        _isRunning = false;
+        for (Thread t : _threads) {
+            t.interrupt();
+        }
+        _threads.clear();
+        for (BlockingQueue<Request> q : _queues) {
+            q.clear();
+        }
+        _available.drainPermits();
+    }
+
+    /**
+     *  @return true if queued, false if dropped
+     */
+    public boolean offer(DatabaseLookupMessage dlm, RouterIdentity from, Hash fromHash) {
+        if (!_isRunning)
+            return false;
+        int cls = getClass(dlm);
+        long wait = estimateWait(cls);
+        if (wait > MAX_WAIT[cls]) {
+            _context.statManager().addRateData("netDb.ffLookupShed." + CLASS_NAMES[cls], wait);
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Dropping " + CLASS_NAMES[cls] + " lookup for " + dlm.getSearchKey() +
+                          ", estimated wait " + wait + "ms");
+            return false;
+        }
+        Request req = new Request(dlm, from, fromHash, cls, _context.clock().now());
+        if (!_queues.get(cls).offer(req)) {
+            _context.statManager().addRateData("netDb.ffLookupShed." + CLASS_NAMES[cls], wait);
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Dropping " + CLASS_NAMES[cls] + " lookup for " + dlm.getSearchKey() + ", queue full");
+            return false;
+        }
+        _available.release();
+        return true;
+    }
+
+    /**
+     *  @return total queued
+     */
+    public int getQueueSize() {
+        int rv = 0;
+        for (BlockingQueue<Request> q : _queues) {
+            rv += q.size();
+        }
+        return rv;
+    }
+
+    /**
+     *  Time to serve everything queued at the same or higher priority,
+     *  plus this one, in ms.
+     */
+    private long estimateWait(int cls) {
+        long rv = 0;
+        synchronized (_avgServiceTime) {
+            for (int i = 0; i <= cls; i++) {
+                rv += (_queues.get(i).size() + (i == cls ? 1 : 0)) * _avgServiceTime[i];
+            }
+        }
+        return rv / (_numThreads * 1000000L);
+    }
+
+    private void updateServiceTime(int cls, long nanos) {
+        synchronized (_avgServiceTime) {
+            _avgServiceTime[cls] += (nanos - _avgServiceTime[cls]) >> AVG_SHIFT;
+        }
+    }
+
+    private static int getClass(DatabaseLookupMessage dlm) {
+        switch (dlm.getSearchType()) {
+            case RI:
+                return CLASS_RI;
+            case EXPL:
+                return CLASS_EXPL;
+            case LS:
+            case ANY:
+            default:
+                return CLASS_LS;
+        }
+    }
+
+    /**
+     *  Highest priority first
+     *
+     *  @return null if interrupted
+     */
+    private Request take() {
+        try {
+            _available.acquire();
+        } catch (InterruptedException ie) {
+            return null;
+        }
+        // there must be one, unless we were shut down
+        for (BlockingQueue<Request> q : _queues) {
+            Request rv = q.poll();
+            if (rv != null)
+                return rv;
+        }
+        return null;
+    }
+
+    private void handle(Request req) {
+        String name = CLASS_NAMES[req.cls];
+        long waited = _context.clock().now() - req.queued;
+        if (waited > MAX_WAIT[req.cls]) {
+            _context.statManager().addRateData("netDb.ffLookupExpired." + name, waited);
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Dropping " + name + " lookup for " + req.dlm.getSearchKey() +
+                          ", waited " + waited + "ms");
+            return;
+        }
+        long start = System.nanoTime();
+        HandleFloodfillDatabaseLookupMessageJob job =
+            new HandleFloodfillDatabaseLookupMessageJob(_context, req.dlm, req.from, req.fromHash);
+        job.runJob();
+        long service = System.nanoTime() - start;
+        updateServiceTime(req.cls, service);
+        _context.statManager().addRateData("netDb.ffLookupServiceTime." + name, service / 1000000);
+        _context.statManager().addRateData("netDb.ffLookupTime." + name, waited + (service / 1000000));
+    }
+
+    private class Runner implements Runnable {
+        public void run() {
+            while (_isRunning) {
+                Request req = take();
+                if (req == null)
+                    continue;
+                try {
+                    handle(req);
+                } catch (RuntimeException re) {
+                    _log.error("Error handling lookup", re);
+                }
+            }
+        }
+    }
+
+    private static class Request {
+        final DatabaseLookupMessage dlm;
+        final RouterIdentity from;
+        final Hash fromHash;
+        final int cls;
+        final long queued;
+
+        public Request(DatabaseLookupMessage dlm, RouterIdentity from, Hash fromHash, int cls, long queued) {
+            this.dlm = dlm;
+            this.from = from;
+            this.fromHash = fromHash;
+            this.cls = cls;
+            this.queued = queued;
+        }
+    }
+}
@@ -19,8 +19,10 @@ import net.i2p.router.JobImpl;
 import net.i2p.router.OutNetMessage;
 import net.i2p.router.Router;
 import net.i2p.router.RouterContext;
+import net.i2p.router.util.SojournHistogram;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.Log;
+import net.i2p.util.SimpleTimer;
 import net.i2p.util.SystemVersion;
 
 /**
@@ -33,6 +35,23 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
     private final Set<Hash> _verifiesInProgress;
     private FloodThrottler _floodThrottler;
     private LookupThrottler _lookupThrottler;
+    private volatile FloodfillLookupPipeline _lookupPipeline;
+    private volatile SearchReplyCache _searchReplyCache;
+    /** percentiles of successful iterative lookup times, reported once a minute */
+    private final SojournHistogram _lookupLatency;
+
+    /**
+     *  Handle incoming lookups in a FloodfillLookupPipeline
+     *  instead of a job per lookup.
+     *  @since 0.9.31
+     */
+    public static final String PROP_LOOKUP_PIPELINE = "router.floodfillLookupPipeline";
+
+    /**
+     *  Cache the closest peers sent in search replies, see SearchReplyCache.
+     *  @since 0.9.31
+     */
+    public static final String PROP_SEARCH_REPLY_CACHE = "router.searchReplyCache";
 
     /**
      *  This is the flood redundancy. Entries are
@@ -47,6 +66,7 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
     private static final long NEXT_RKEY_RI_ADVANCE_TIME = 45*60*1000;
     private static final long NEXT_RKEY_LS_ADVANCE_TIME = 10*60*1000;
     private static final int NEXT_FLOOD_QTY = 2;
+    private static final long LOOKUP_LATENCY_REPORT_TIME = 60*1000;
     
     public FloodfillNetworkDatabaseFacade(RouterContext context) {
         super(context);
@@ -68,6 +88,9 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
         _context.statManager().createRateStat("netDb.republishQuantity", "How many peers do we need to send a found leaseSet to?", "NetworkDatabase", new long[] { 10*60*1000l, 60*60*1000l, 3*60*60*1000l, 24*60*60*1000l });
         // for ISJ
         _context.statManager().createRateStat("netDb.RILookupDirect", "Was an iterative RI lookup sent directly?", "NetworkDatabase", new long[] { 60*60*1000 });
+        _context.statManager().createRateStat("netDb.lookupHedged", "Concurrency after a slow floodfill reply in an iterative lookup", "NetworkDatabase", new long[] { 60*60*1000 });
+        _lookupLatency = new SojournHistogram(_context, "netDb.lookupLatency", "time for successful lookups", "NetworkDatabase");
+        _context.simpleTimer2().addPeriodicEvent(new LookupLatencyReporter(), LOOKUP_LATENCY_REPORT_TIME);
     }
 
     @Override
@@ -75,6 +98,13 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
         super.startup();
         _context.jobQueue().addJob(new FloodfillMonitorJob(_context, this));
         _lookupThrottler = new LookupThrottler();
+        if (_context.getBooleanProperty(PROP_LOOKUP_PIPELINE)) {
+            FloodfillLookupPipeline pipeline = new FloodfillLookupPipeline(_context);
+            pipeline.startup();
+            _lookupPipeline = pipeline;
+        }
+        if (_context.getBooleanProperty(PROP_SEARCH_REPLY_CACHE))
+            _searchReplyCache = new SearchReplyCache(_context, HandleFloodfillDatabaseLookupMessageJob.MAX_REPLY_PEERS);
 
         // refresh old routers
         Job rrj = new RefreshRoutersJob(_context, this);
@@ -114,6 +144,12 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
                 } catch (InterruptedException ie) {}
             }
         }
+        FloodfillLookupPipeline pipeline = _lookupPipeline;
+        if (pipeline != null) {
+            _lookupPipeline = null;
+            pipeline.shutdown();
+        }
+        _searchReplyCache = null;
         super.shutdown();
     }
 
@@ -177,6 +213,62 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
         return _lookupThrottler == null || _lookupThrottler.shouldThrottle(from, id);
     }
 
+    /**
+     *  @return null if not enabled or before startup
+     *  @since 0.9.31
+     */
+    FloodfillLookupPipeline getLookupPipeline() {
+        return _lookupPipeline;
+    }
+
+    /**
+     *  @return null if not enabled or before startup
+     *  @since 0.9.31
+     */
+    SearchReplyCache getSearchReplyCache() {
+        return _searchReplyCache;
+    }
+
+    /**
+     *  For ISJ
+     *  @since 0.9.31
+     */
+    SojournHistogram getLookupLatencyStats() {
+        return _lookupLatency;
+    }
+
+    /** @since 0.9.31 */
+    private class LookupLatencyReporter implements SimpleTimer.TimedEvent {
+        public void timeReached() {
+            _lookupLatency.report();
+        }
+    }
+
+    /**
+     *  Overridden to invalidate cached search replies
+     *  @since 0.9.31
+     */
+    @Override
+    RouterInfo store(Hash key, RouterInfo routerInfo, boolean persist, boolean verify) throws IllegalArgumentException {
+        RouterInfo rv = super.store(key, routerInfo, persist, verify);
+        SearchReplyCache cache = _searchReplyCache;
+        if (cache != null && rv != routerInfo && (rv == null || !rv.equals(routerInfo)))
+            cache.invalidate(key, isFloodfill(routerInfo) || (rv != null && isFloodfill(rv)));
+        return rv;
+    }
+
+    /**
+     *  Overridden to invalidate cached search replies
+     *  @since 0.9.31
+     */
+    @Override
+    void dropAfterLookupFailed(Hash peer) {
+        super.dropAfterLookupFailed(peer);
+        SearchReplyCache cache = _searchReplyCache;
+        if (cache != null)
+            cache.invalidate(peer, true);
+    }
+
     /**
      *  Send to a subset of all floodfill peers.
      *  We do this to implement Kademlia within the floodfills, i.e.
@@ -42,8 +42,11 @@ import net.i2p.util.Log;
  */
 class FloodfillPeerSelector extends PeerSelector {
 
+    private final FloodfillIndex _index;
+
     public FloodfillPeerSelector(RouterContext ctx) {
         super(ctx);
+        _index = new FloodfillIndex(ctx);
     }
     
     /**
@@ -203,13 +206,15 @@ class FloodfillPeerSelector extends PeerSelector {
      *  @param kbuckets now unused
      */
     private List<Hash> selectFloodfillParticipantsIncludingUs(Hash key, int howMany, Set<Hash> toIgnore, KBucketSet<Hash> kbuckets) {
-        List<Hash> ffs = selectFloodfillParticipants(toIgnore, kbuckets);
-        TreeSet<Hash> sorted = new TreeSet<Hash>(new XORComparator<Hash>(key));
-        sorted.addAll(ffs);
+        // 5 == FNDF.MAX_TO_FLOOD + 1
+        int limit = Math.max(5, howMany);
+        // closest first, we only look at the first limit anyway
+        List<Hash> sorted = _index.selectClosest(key, limit, toIgnore);
+        limit = sorted.size();
 
         List<Hash> rv = new ArrayList<Hash>(howMany);
-        List<Hash> okff = new ArrayList<Hash>(ffs.size());
-        List<Hash> badff = new ArrayList<Hash>(ffs.size());
+        List<Hash> okff = new ArrayList<Hash>(limit);
+        List<Hash> badff = new ArrayList<Hash>(limit);
         int found = 0;
         long now = _context.clock().now();
         long installed = _context.getProperty("router.firstInstalled", 0L);
@@ -227,16 +232,10 @@ class FloodfillPeerSelector extends PeerSelector {
             }
         }
 
-        // 5 == FNDF.MAX_TO_FLOOD + 1
-        int limit = Math.max(5, howMany);
-        limit = Math.min(limit, ffs.size());
         MaskedIPSet maskedIPs = new MaskedIPSet(limit * 3);
         // split sorted list into 3 sorted lists
         for (int i = 0; found < howMany && i < limit; i++) {
-            Hash entry = sorted.first();
-            if (entry == null)
-                break;  // shouldn't happen
-            sorted.remove(entry);
+            Hash entry = sorted.get(i);
             // put anybody in the same /16 at the end
             RouterInfo info = _context.netDb().lookupRouterInfoLocally(entry);
             MaskedIPSet entryIPs = new MaskedIPSet(_context, entry, info, 2);
@@ -26,6 +26,10 @@ import net.i2p.router.networkdb.HandleDatabaseLookupMessageJob;
  *
  */
 public class HandleFloodfillDatabaseLookupMessageJob extends HandleDatabaseLookupMessageJob {
+
+    /** @since 0.9.31 */
+    static final int MAX_REPLY_PEERS = MAX_ROUTERS_RETURNED;
+
     public HandleFloodfillDatabaseLookupMessageJob(RouterContext ctx, DatabaseLookupMessage receivedMessage, RouterIdentity from, Hash fromHash) {
         super(ctx, receivedMessage, from, fromHash);    
     }
@@ -42,6 +46,27 @@ public class HandleFloodfillDatabaseLookupMessageJob extends HandleDatabaseLooku
         return FloodfillNetworkDatabaseFacade.isFloodfill(getContext().router().getRouterInfo());
     }
 
+    /**
+     * Use the SearchReplyCache if enabled and the requestor didn't exclude anybody.
+     * @since 0.9.31
+     */
+    @Override
+    protected Set<Hash> findNearestRouters(Hash key, Set<Hash> dontInclude, boolean onlyUs) {
+        SearchReplyCache cache = null;
+        if (onlyUs && getContext().netDb() instanceof FloodfillNetworkDatabaseFacade)
+            cache = ((FloodfillNetworkDatabaseFacade) getContext().netDb()).getSearchReplyCache();
+        if (cache == null)
+            return super.findNearestRouters(key, dontInclude, onlyUs);
+        // the selector adds to dontInclude, check first
+        boolean exploratory = dontInclude.contains(Hash.FAKE_HASH);
+        Set<Hash> rv = cache.get(key, exploratory);
+        if (rv == null) {
+            rv = super.findNearestRouters(key, dontInclude, onlyUs);
+            cache.put(key, exploratory, rv);
+        }
+        return rv;
+    }
+
     /**
      * We extend this here to send our routerInfo back as well, if we are not floodfill.
      * This gets the word out to routers that we are no longer floodfill, so they
@@ -0,0 +1,31 @@
+package net.i2p.router.networkdb.kademlia;
+
+import net.i2p.data.Hash;
+import net.i2p.router.JobImpl;
+import net.i2p.router.RouterContext;
+
+/**
+ *  Run when a single lookup is taking longer than we expected
+ *  from the peer's profile, but before IterativeTimeoutJob.
+ *  Only in adaptive concurrency mode. The lookup is not failed,
+ *  the search may send another one in parallel.
+ *  Removed from the job queue when the search completes.
+ *
+ *  @since 0.9.31
+ */
+class IterativeHedgeJob extends JobImpl {
+    private final IterativeSearchJob _search;
+    private final Hash _peer;
+
+    public IterativeHedgeJob(RouterContext ctx, Hash peer, IterativeSearchJob job) {
+        super(ctx);
+        _peer = peer;
+        _search = job;
+    }
+
+    public void runJob() {
+        _search.slowPeer(_peer);
+    }
+
+    public String getName() { return "Iterative search hedge"; }
+}
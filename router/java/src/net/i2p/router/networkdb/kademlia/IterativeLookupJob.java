@@ -47,6 +47,8 @@ class IterativeLookupJob extends JobImpl {
                 // Chase the hashes from the reply
                 // 255 max, see comments in SingleLookupJob
                 int limit = Math.min(_dsrm.getNumReplies(), SingleLookupJob.MAX_TO_FOLLOW);
+                // adaptive mode, no use looking up RIs for a completed search
+                boolean chase = !_search.isCancelled();
                 int newPeers = 0;
                 int oldPeers = 0;
                 int invalidPeers = 0;
@@ -72,7 +74,7 @@ class IterativeLookupJob extends JobImpl {
                         // to query it.
                         // Zero-hop outbound tunnel will be failed in ISJ.sendQuery()
                         _search.newPeerToTry(peer);
-                        if (_search.getFromHash() == null) {
+                        if (chase && _search.getFromHash() == null) {
                             // get the RI from the peer that told us about it
                             // Only if original search used expl. tunnels
                             getContext().jobQueue().addJob(new SingleSearchJob(getContext(), peer, from));
@@ -85,7 +87,7 @@ class IterativeLookupJob extends JobImpl {
                              !FloodfillNetworkDatabaseFacade.isFloodfill(ri)) {
                         // get an updated RI from the (now ff?) peer
                         // Only if original search used expl. tunnels
-                        if (_search.getFromHash() == null) {
+                        if (chase && _search.getFromHash() == null) {
                             getContext().jobQueue().addJob(new IterativeFollowupJob(getContext(), peer, peer, _search));
                         } else {
                             // for now, don't believe him, don't call newPeerToTry()
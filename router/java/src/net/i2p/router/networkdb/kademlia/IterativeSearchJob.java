@@ -27,8 +27,10 @@ import net.i2p.router.ReplyJob;
 import net.i2p.router.RouterContext;
 import net.i2p.router.TunnelInfo;
 import net.i2p.router.TunnelManagerFacade;
+import net.i2p.router.peermanager.PeerProfile;
 import net.i2p.router.util.MaskedIPSet;
 import net.i2p.router.util.RandomIterator;
+import net.i2p.stat.RateStat;
 import net.i2p.util.Log;
 import net.i2p.util.NativeBigInteger;
 import net.i2p.util.SystemVersion;
@@ -54,6 +56,10 @@ import net.i2p.util.VersionComparator;
  * Halves search traffic for successful searches, as this doesn't do
  * two sesarches in parallel like FOSJ does.
  *
+ * With netdb.adaptiveConcurrency=true, a query that takes longer than the
+ * floodfill's profile says it should allows one more query in parallel,
+ * up to netdb.maxAdaptiveConcurrent, without waiting for the timeout.
+ *
  * @since 0.8.9
  */
 class IterativeSearchJob extends FloodSearchJob {
@@ -109,6 +115,24 @@ class IterativeSearchJob extends FloodSearchJob {
      * The default _maxConcurrent
      */
     private static final int MAX_CONCURRENT = 1;
+    /** adaptive mode only, the current concurrency limit, starts at _maxConcurrent */
+    private int _concurrent;
+    private final boolean _adaptive;
+    private final int _maxAdaptiveConcurrent;
+    /** adaptive mode only, timeout and hedge jobs to remove when we are done */
+    private final List<Job> _pendingJobs;
+
+    /**
+     *  Send another query in parallel when a floodfill is slower
+     *  than its profile says it should be, and remove
+     *  the pending timeouts when done.
+     *  @since 0.9.31
+     */
+    public static final String PROP_ADAPTIVE = "netdb.adaptiveConcurrency";
+    /** @since 0.9.31 */
+    private static final int MAX_ADAPTIVE_CONCURRENT = 3;
+    /** @since 0.9.31 */
+    private static final long MIN_HEDGE_TIME = 500;
 
     public static final String PROP_ENCRYPT_RI = "router.encryptRouterLookups";
 
@@ -147,6 +171,10 @@ class IterativeSearchJob extends FloodSearchJob {
         _ipSet = new MaskedIPSet(2 * (_totalSearchLimit + EXTRA_PEERS));
         _singleSearchTime = ctx.getProperty("netdb.singleSearchTime", SINGLE_SEARCH_TIME);
         _maxConcurrent = ctx.getProperty("netdb.maxConcurrent", MAX_CONCURRENT);
+        _concurrent = _maxConcurrent;
+        _adaptive = ctx.getBooleanProperty(PROP_ADAPTIVE);
+        _maxAdaptiveConcurrent = Math.max(_maxConcurrent, ctx.getProperty("netdb.maxAdaptiveConcurrent", MAX_ADAPTIVE_CONCURRENT));
+        _pendingJobs = _adaptive ? new ArrayList<Job>(2 * _totalSearchLimit) : null;
         _unheardFrom = new HashSet<Hash>(CONCURRENT_SEARCHES);
         _failedPeers = new HashSet<Hash>(_totalSearchLimit);
         _skippedPeers = new HashSet<Hash>(4);
@@ -258,7 +286,7 @@ class IterativeSearchJob extends FloodSearchJob {
             synchronized (this) {
                 if (_dead) return;
                 pend = _unheardFrom.size();
-                if (pend >= _maxConcurrent)
+                if (pend >= _concurrent)
                     return;
                 done = _failedPeers.size();
             }
@@ -465,10 +493,96 @@ class IterativeSearchJob extends FloodSearchJob {
             Job j = new IterativeTimeoutJob(getContext(), peer, this);
             long expire = Math.min(_expiration, now + _singleSearchTime);
             j.getTiming().setStartAfter(expire);
+            if (_adaptive) {
+                long hedge = now + getHedgeTime(peer);
+                Job h = null;
+                if (hedge < expire) {
+                    h = new IterativeHedgeJob(getContext(), peer, this);
+                    h.getTiming().setStartAfter(hedge);
+                }
+                synchronized(this) {
+                    _pendingJobs.add(j);
+                    if (h != null)
+                        _pendingJobs.add(h);
+                }
+                if (h != null)
+                    getContext().jobQueue().addJob(h);
+            }
             getContext().jobQueue().addJob(j);
 
     }
 
+    /**
+     *  Adaptive mode only.
+     *  When to send another query if this peer hasn't answered,
+     *  from the average response time in its profile.
+     *
+     *  @return ms from now
+     *  @since 0.9.31
+     */
+    private long getHedgeTime(Hash peer) {
+        double avg = 0;
+        PeerProfile prof = getContext().profileOrganizer().getProfile(peer);
+        if (prof != null && prof.getIsExpandedDB()) {
+            RateStat rs = prof.getDbResponseTime();
+            avg = rs.getRate(60*60*1000).getAverageValue();
+            if (avg <= 0)
+                avg = rs.getLifetimeAverageValue();
+        }
+        if (avg <= 0)
+            return _singleSearchTime / 2;
+        return Math.max(MIN_HEDGE_TIME, (long) (avg * 3 / 2));
+    }
+
+    /**
+     *  Adaptive mode only.
+     *  The peer is taking longer than expected, allow one more
+     *  concurrent query, up to the limit, and send it.
+     *
+     *  @since 0.9.31
+     */
+    void slowPeer(Hash peer) {
+        int concurrent;
+        synchronized (this) {
+            if (_dead || !_unheardFrom.contains(peer) || _concurrent >= _maxAdaptiveConcurrent)
+                return;
+            concurrent = ++_concurrent;
+        }
+        getContext().statManager().addRateData("netDb.lookupHedged", concurrent);
+        if (_log.shouldLog(Log.INFO))
+            _log.info(getJobId() + ": slow reply from " + peer + ", concurrency now " + concurrent);
+        retry();
+    }
+
+    /**
+     *  Adaptive mode only.
+     *  Remove the timeout and hedge jobs, they would do nothing.
+     *
+     *  @since 0.9.31
+     */
+    private void cancelPendingJobs() {
+        if (!_adaptive)
+            return;
+        List<Job> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<Job>(_pendingJobs);
+            _pendingJobs.clear();
+        }
+        for (Job j : jobs) {
+            getContext().jobQueue().removeJob(j);
+        }
+    }
+
+    /**
+     *  In adaptive mode, true once the search is complete,
+     *  so there's no use chasing the peers in a late DSRM.
+     *
+     *  @since 0.9.31
+     */
+    boolean isCancelled() {
+        return _adaptive && _dead;
+    }
+
     @Override
     public String getName() { return "Iterative search"; }
     
@@ -568,6 +682,7 @@ class IterativeSearchJob extends FloodSearchJob {
             if (_dead) return;
             _dead = true;
         }
+        cancelPendingJobs();
         _facade.complete(_key);
         if (getContext().commSystem().getStatus() != Status.DISCONNECTED)
             _facade.lookupFailed(_key);
@@ -616,6 +731,7 @@ class IterativeSearchJob extends FloodSearchJob {
                 _unheardFrom.clear();
             }
         }
+        cancelPendingJobs();
         _facade.complete(_key);
         if (peer != null) {
             Long timeSent = _sentTime.get(peer);
@@ -627,6 +743,7 @@ class IterativeSearchJob extends FloodSearchJob {
             _log.info(getJobId() + ": ISJ for " + _key + " successful after " + time +
                       ", peers queried: " + tries);
         getContext().statManager().addRateData("netDb.successTime", time);
+        _facade.getLookupLatencyStats().add(time);
         getContext().statManager().addRateData("netDb.successRetries", tries - 1);
         for (Job j : _onFind) {
             getContext().jobQueue().addJob(j);
@@ -473,6 +473,8 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
             else
                 fail(key);
         } else if (rv.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
+            if (!verifyOnUse(key, (RouterInfo)rv))
+                return null;
             try {
                 if (validate((RouterInfo)rv) == null)
                     return rv;
@@ -636,6 +638,8 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         DatabaseEntry ds = _ds.get(key);
         if (ds != null) {
             if (ds.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
+                if (!verifyOnUse(key, (RouterInfo)ds))
+                    return null;
                 // more aggressive than perhaps is necessary, but makes sure we
                 // drop old references that we had accepted on startup (since 
                 // startup allows some lax rules).
@@ -900,12 +904,22 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
      * @return reason why the entry is not valid, or null if it is valid
      */
     private String validate(Hash key, RouterInfo routerInfo) throws IllegalArgumentException {
+        return validate(key, routerInfo, true);
+    }
+
+    /**
+     * As validate(key, routerInfo), optionally without checking the signature.
+     *
+     * @param verify if false, the signature will be checked on first use by verifyOnUse()
+     * @since 0.9.31
+     */
+    private String validate(Hash key, RouterInfo routerInfo, boolean verify) throws IllegalArgumentException {
         if (!key.equals(routerInfo.getIdentity().getHash())) {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Invalid store attempt! key does not match routerInfo.identity!  key = " + key + ", router = " + routerInfo);
             return "Key does not match routerInfo.identity";
         }
-        if (!routerInfo.isValid()) {
+        if (verify && !routerInfo.isValid()) {
             // throws UnsupportedCryptoException
             processStoreFailure(key, routerInfo);
             if (_log.shouldLog(Log.WARN))
@@ -1028,6 +1042,20 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
      * @return previous entry or null
      */
     RouterInfo store(Hash key, RouterInfo routerInfo, boolean persist) throws IllegalArgumentException {
+        return store(key, routerInfo, persist, true);
+    }
+
+    /**
+     * Store the routerInfo, optionally deferring the signature check to first use.
+     * Only for RouterInfos we wrote to disk ourselves, after checking them on the way in.
+     *
+     * @param verify if false, the signature will be checked on first use by verifyOnUse()
+     * @throws IllegalArgumentException if the routerInfo is not valid
+     * @throws UnsupportedCryptoException if that's why it failed.
+     * @return previous entry or null
+     * @since 0.9.31
+     */
+    RouterInfo store(Hash key, RouterInfo routerInfo, boolean persist, boolean verify) throws IllegalArgumentException {
         if (!_initialized) return null;
         
         RouterInfo rv = null;
@@ -1045,7 +1073,7 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         if (rv != null && !routerInfo.getIdentity().equals(rv.getIdentity()))
             throw new IllegalArgumentException("RI Hash collision");
 
-        String err = validate(key, routerInfo);
+        String err = validate(key, routerInfo, verify);
         if (err != null)
             throw new IllegalArgumentException("Invalid store attempt - " + err);
         
@@ -1148,6 +1176,23 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         dropAfterLookupFailed(peer);
     }
 
+    /**
+     *  Check the signature of a RouterInfo stored without verification,
+     *  if not already checked, and drop it if bad.
+     *  Cheap after the first call for each RouterInfo.
+     *
+     *  @return true if valid
+     *  @since 0.9.31
+     */
+    boolean verifyOnUse(Hash key, RouterInfo ri) {
+        if (ri.isValid())
+            return true;
+        if (_log.shouldLog(Log.WARN))
+            _log.warn("Dropping stored RouterInfo with bad signature: " + key);
+        dropAfterLookupFailed(key);
+        return false;
+    }
+
     /**
      *  Final remove for a router info.
      *  Do NOT use for leasesets.
@@ -10,6 +10,7 @@ package net.i2p.router.networkdb.kademlia;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
@@ -24,7 +25,10 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.i2p.data.Base64;
 import net.i2p.data.DatabaseEntry;
@@ -55,9 +59,37 @@ public class PersistentDataStore extends TransientDataStore {
     private volatile boolean _initialized;
     private final boolean _flat;
     private final int _networkID;
+    private final boolean _singleFile;
+    /** null unless _singleFile */
+    private final RouterInfoLog _riLog;
+    private final RouterInfoLoader _loader;
+    private final boolean _lazyVerify;
+    /** lazy verify only, stored but not yet verified */
+    private final Queue<RouterInfo> _unverified;
+    private final AtomicBoolean _verifyQueued;
     
     private final static int READ_DELAY = 2*60*1000;
     private static final String PROP_FLAT = "router.networkDatabase.flat";
+    /**
+     *  Store all RouterInfos in one append-only file, see RouterInfoLog.
+     *  Existing RouterInfo files are imported and deleted.
+     *  @since 0.9.31
+     */
+    private static final String PROP_SINGLE_FILE = "router.networkDatabase.singleFile";
+    /**
+     *  Threads to read and parse stored RouterInfos. Default is processors, max 4.
+     *  @since 0.9.31
+     */
+    private static final String PROP_LOAD_THREADS = "router.networkDatabase.loadThreads";
+    /**
+     *  Don't check the signatures of stored RouterInfos at startup,
+     *  check each on first use, and the rest in the background.
+     *  @since 0.9.31
+     */
+    private static final String PROP_LAZY_VERIFY = "router.networkDatabase.lazyVerify";
+    private static final int MAX_LOAD_THREADS = 4;
+    private static final int VERIFY_BATCH = 256;
+    private static final long VERIFY_DELAY = 500;
     static final String DIR_PREFIX = "r";
     private static final String B64 = Base64.ALPHABET_I2P;
     
@@ -68,7 +100,14 @@ public class PersistentDataStore extends TransientDataStore {
         super(ctx);
         _networkID = ctx.router().getNetworkID();
         _flat = ctx.getBooleanProperty(PROP_FLAT);
+        _singleFile = ctx.getBooleanProperty(PROP_SINGLE_FILE);
         _dbDir = getDbDir(dbDir);
+        _riLog = _singleFile ? new RouterInfoLog(ctx, _dbDir) : null;
+        int threads = ctx.getProperty(PROP_LOAD_THREADS, Math.min(MAX_LOAD_THREADS, Runtime.getRuntime().availableProcessors()));
+        _loader = new RouterInfoLoader(ctx, threads);
+        _lazyVerify = ctx.getBooleanProperty(PROP_LAZY_VERIFY);
+        _unverified = new ConcurrentLinkedQueue<RouterInfo>();
+        _verifyQueued = new AtomicBoolean();
         _facade = facade;
         _readJob = new ReadJob();
         _context.jobQueue().addJob(_readJob);
@@ -92,6 +131,7 @@ public class PersistentDataStore extends TransientDataStore {
     public void stop() {
         super.stop();
         _writer.flush();
+        _loader.shutdown();
     }
     
     @Override
@@ -177,7 +217,10 @@ public class PersistentDataStore extends TransientDataStore {
             if (_log.shouldLog(Log.INFO))
                 _log.info("Removing key " + _key /* , getAddedBy() */);
             try {
-                removeFile(_key, _dbDir);
+                if (_riLog != null)
+                    _riLog.remove(_key);
+                else
+                    removeFile(_key, _dbDir);
             } catch (IOException ioe) {
                 _log.error("Error removing key " + _key, ioe);
             }
@@ -228,6 +271,19 @@ public class PersistentDataStore extends TransientDataStore {
             int lastCount = 0;
             long startTime = 0;
             while (true) {
+                if (_riLog != null && !_riLog.isOpen()) {
+                    // leave the writes queued until the ReadJob has loaded the log
+                    if (_quit)
+                        break;
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Waiting for the netDb log to be loaded, pending writes: " + _keys.size());
+                    synchronized (_waitLock) {
+                        try {
+                            _waitLock.wait(WRITE_DELAY);
+                        } catch (InterruptedException ie) {}
+                    }
+                    continue;
+                }
                 // get a new iterator every time to get a random entry without
                 // having concurrency issues or copying to a List or Array
                 Iterator<Map.Entry<Hash, DatabaseEntry>> iter = _keys.entrySet().iterator();
@@ -265,6 +321,11 @@ public class PersistentDataStore extends TransientDataStore {
                          _context.statManager().addRateData("netDb.writeOut", lastCount);
                          _context.statManager().addRateData("netDb.writeTime", time);
                     }
+                    if (_riLog != null) {
+                        synchronized (_dbDir) {
+                            syncLog();
+                        }
+                    }
                     if (_quit)
                         break;
                     synchronized (_waitLock) {
@@ -275,6 +336,8 @@ public class PersistentDataStore extends TransientDataStore {
                     startTime = _context.clock().now();
                 }
             }
+            if (_riLog != null)
+                _riLog.close();
         }
 
         public void flush() {
@@ -288,6 +351,10 @@ public class PersistentDataStore extends TransientDataStore {
     private void write(Hash key, DatabaseEntry data) {
         if (_log.shouldLog(Log.INFO))
             _log.info("Writing key " + key);
+        if (_riLog != null) {
+            writeLog(key, data);
+            return;
+        }
         OutputStream fos = null;
         File dbFile = null;
         try {
@@ -330,6 +397,40 @@ public class PersistentDataStore extends TransientDataStore {
     private long getPublishDate(DatabaseEntry data) {
         return data.getDate();
     }
+
+    /**
+     *  Single file only. Does nothing if the log has the same or newer.
+     *  @since 0.9.31
+     */
+    private void writeLog(Hash key, DatabaseEntry data) {
+        if (data.getType() != DatabaseEntry.KEY_TYPE_ROUTERINFO)
+            return;
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+            data.writeBytes(baos);
+            _riLog.write(key, getPublishDate(data), baos.toByteArray());
+        } catch (DataFormatException dfe) {
+            _log.error("Error writing out malformed object as " + key + ": "
+                       + data, dfe);
+        } catch (IOException ioe) {
+            _log.error("Error writing out the object", ioe);
+        }
+    }
+
+    /**
+     *  Single file only. Sync, and compact if necessary.
+     *  Caller must synch on _dbDir.
+     *  @since 0.9.31
+     */
+    private void syncLog() {
+        try {
+            _riLog.sync();
+            if (_riLog.shouldCompact())
+                _riLog.compact();
+        } catch (IOException ioe) {
+            _log.error("Error writing the netDb log", ioe);
+        }
+    }
     
     /**
      *  This was mostly for manual reseeding, i.e. the user manually
@@ -343,6 +444,7 @@ public class PersistentDataStore extends TransientDataStore {
     private class ReadJob extends JobImpl {
         private volatile long _lastModified;
         private volatile long _lastReseed;
+        private boolean _logLoaded;
         private static final int MIN_ROUTERS = KademliaNetworkDatabaseFacade.MIN_RESEED;
         private static final long MIN_RESEED_INTERVAL = 90*60*1000;
 
@@ -393,23 +495,23 @@ public class PersistentDataStore extends TransientDataStore {
             int routerCount = 0;
 
             File routerInfoFiles[] = _dbDir.listFiles(RouterInfoFilter.getInstance());
-            if (_flat) {
+            if (_riLog != null) {
+                if (!_logLoaded) {
+                    readLog();
+                    importFiles(routerInfoFiles, true);
+                    _logLoaded = true;
+                } else {
+                    importFiles(routerInfoFiles, false);
+                }
+                routerCount = _riLog.size();
+            } else if (_flat) {
                 if (routerInfoFiles != null) {
                     routerCount = routerInfoFiles.length;
+                    List<File> toRead = new ArrayList<File>(routerInfoFiles.length);
                     for (int i = 0; i < routerInfoFiles.length; i++) {
-                        // drop out if the router gets killed right after startup
-                        if (!_context.router().isAlive())
-                            break;
-                        Hash key = getRouterInfoHash(routerInfoFiles[i].getName());
-                        if ( (key != null) && (!isKnown(key)) ) {
-                            // Run it inline so we don't clog up the job queue, esp. at startup
-                            // Also this allows us to wait until it is really done to call checkReseed() and set _initialized
-                            //PersistentDataStore.this._context.jobQueue().addJob(new ReadRouterJob(routerInfoFiles[i], key));
-                            //long start = System.currentTimeMillis();
-                            (new ReadRouterJob(routerInfoFiles[i], key)).runJob();
-                            //_context.statManager().addRateData("netDb.readTime", System.currentTimeMillis() - start);
-                        }
+                        toRead.add(routerInfoFiles[i]);
                     }
+                    readRouterFiles(toRead, true);
                 }
             } else {
                 // move all new RIs to subdirs, then scan those
@@ -435,12 +537,9 @@ public class PersistentDataStore extends TransientDataStore {
                     }
                 }
                 Collections.shuffle(toRead, _context.random());
-                for (File file : toRead) {
-                    Hash key = getRouterInfoHash(file.getName());
-                    if (key != null && !isKnown(key))
-                        (new ReadRouterJob(file, key)).runJob();
-                }
+                readRouterFiles(toRead, true);
             }
+            queueVerify();
             
             if (!_initialized) {
                 _initialized = true;
@@ -461,12 +560,107 @@ public class PersistentDataStore extends TransientDataStore {
                 }
             }
         }
+
+        /**
+         *  Single file only.
+         *  Everything in one sequential read, then parse and verify.
+         *  @since 0.9.31
+         */
+        private void readLog() {
+            Map<Hash, byte[]> ris;
+            try {
+                ris = _riLog.load();
+            } catch (IOException ioe) {
+                _log.error("Error reading the netDb log", ioe);
+                return;
+            }
+            // as in readFiles(), don't load in-order
+            List<Hash> keys = new ArrayList<Hash>(ris.size());
+            for (Hash key : ris.keySet()) {
+                if (isKnown(key))
+                    continue;
+                // e.g. our old identity, LoadRouterInfoJob can't delete it from the log
+                if (_context.banlist().isBanlistedForever(key)) {
+                    try {
+                        _riLog.remove(key);
+                    } catch (IOException ioe) {}
+                    continue;
+                }
+                keys.add(key);
+            }
+            Collections.shuffle(keys, _context.random());
+            List<byte[]> data = new ArrayList<byte[]>(keys.size());
+            for (Hash key : keys) {
+                data.add(ris.get(key));
+            }
+            ris.clear();
+            RouterInfo[] parsed = _loader.parse(data, !_lazyVerify);
+            data.clear();
+            for (int i = 0; i < parsed.length; i++) {
+                // drop out if the router gets killed right after startup
+                if (!_context.router().isAlive())
+                    break;
+                Hash key = keys.get(i);
+                RouterInfo ri = parsed[i];
+                boolean corrupt = ri == null || !load(ri, key, 0, RouterInfoLog.FILENAME);
+                if (corrupt) {
+                    try {
+                        _riLog.remove(key);
+                    } catch (IOException ioe) {}
+                }
+            }
+        }
+
+        /**
+         *  Single file only.
+         *  Import and delete RI files from a reseed or from
+         *  the old directory layout.
+         *
+         *  @param files in the top directory, may be null
+         *  @param subdirs also look in the old subdirectories, and remove them if empty
+         *  @since 0.9.31
+         */
+        private void importFiles(File[] files, boolean subdirs) {
+            List<File> toRead = new ArrayList<File>();
+            if (files != null) {
+                for (int i = 0; i < files.length; i++) {
+                    toRead.add(files[i]);
+                }
+            }
+            if (subdirs) {
+                for (int j = 0; j < B64.length(); j++) {
+                    File subdir = new File(_dbDir, DIR_PREFIX + B64.charAt(j));
+                    File[] sfiles = subdir.listFiles(RouterInfoFilter.getInstance());
+                    if (sfiles == null)
+                        continue;
+                    for (int i = 0; i < sfiles.length; i++) {
+                        toRead.add(sfiles[i]);
+                    }
+                }
+            }
+            if (!toRead.isEmpty()) {
+                Collections.shuffle(toRead, _context.random());
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Importing " + toRead.size() + " RouterInfo files to the netDb log");
+                readRouterFiles(toRead, false);
+                syncLog();
+            }
+            if (subdirs) {
+                for (int j = 0; j < B64.length(); j++) {
+                    // only if empty
+                    new File(_dbDir, DIR_PREFIX + B64.charAt(j)).delete();
+                }
+            }
+        }
     }
     
     private class ReadRouterJob extends JobImpl {
         private final File _routerFile;
         private final Hash _key;
         private long _knownDate;
+        private boolean _skip;
+        private RouterInfo _ri;
+        private boolean _corrupt;
 
         /**
          *  @param key must match the RI hash in the file
@@ -496,7 +690,20 @@ public class PersistentDataStore extends TransientDataStore {
         }
 
         public void runJob() {
-            if (!shouldRead()) return;
+            readFile();
+            store();
+        }
+
+        /**
+         *  The file I/O, parsing, and signature check unless lazy.
+         *  May be run in parallel with other ReadRouterJobs.
+         *  @since 0.9.31 split out of runJob()
+         */
+        public void readFile() {
+            if (!shouldRead()) {
+                _skip = true;
+                return;
+            }
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Reading " + _routerFile);
 
@@ -506,41 +713,8 @@ public class PersistentDataStore extends TransientDataStore {
                     fis = new FileInputStream(_routerFile);
                     fis = new BufferedInputStream(fis);
                     RouterInfo ri = new RouterInfo();
-                    ri.readBytes(fis, true);  // true = verify sig on read
-                    if (ri.getNetworkId() != _networkID) {
-                        corrupt = true;
-                        if (_log.shouldLog(Log.ERROR))
-                            _log.error("The router "
-                                       + ri.getIdentity().calculateHash().toBase64() 
-                                       + " is from a different network");
-                    } else if (!ri.getIdentity().calculateHash().equals(_key)) {
-                        // prevent injection from reseeding
-                        // this is checked in KNDF.validate() but catch it sooner and log as error.
-                        corrupt = true;
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn(ri.getIdentity().calculateHash() + " does not match " + _key + " from " + _routerFile);
-                    } else if (ri.getPublished() <= _knownDate) {
-                        // Don't store but don't delete
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn("Skipping since netdb newer than " + _routerFile);
-                    } else if (getContext().blocklist().isBlocklisted(ri)) {
-                        corrupt = true;
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn(ri.getHash() + " is blocklisted");
-                    } else {
-                        try {
-                            // persist = false so we don't write what we just read
-                            _facade.store(ri.getIdentity().getHash(), ri, false);
-                            // when heardAbout() was removed from TransientDataStore, it broke
-                            // profile bootstrapping for new routers,
-                            // so add it here.
-                            getContext().profileManager().heardAbout(ri.getIdentity().getHash(), ri.getPublished());
-                        } catch (IllegalArgumentException iae) {
-                            if (_log.shouldLog(Log.INFO))
-                                _log.info("Refused locally loaded routerInfo - deleting", iae);
-                            corrupt = true;
-                        }
-                    }
+                    ri.readBytes(fis, !_lazyVerify);  // true = verify sig on read, else on first use
+                    _ri = ri;
                 } catch (DataFormatException dfe) {
                     if (_log.shouldLog(Log.INFO))
                         _log.info("Error reading the routerInfo from " + _routerFile.getName(), dfe);
@@ -557,11 +731,167 @@ public class PersistentDataStore extends TransientDataStore {
                 } finally {
                     if (fis != null) try { fis.close(); } catch (IOException ioe) {}
                 }
-                if (corrupt) _routerFile.delete();
+                _corrupt = corrupt;
+        }
+
+        /**
+         *  Store what readFile() read. Not thread safe.
+         *  @since 0.9.31 split out of runJob()
+         */
+        public void store() {
+            if (_skip) {
+                // single file: we have the same or newer
+                if (_riLog != null)
+                    _routerFile.delete();
+                return;
+            }
+            boolean corrupt = _corrupt;
+            if (!corrupt && _ri != null)
+                corrupt = !load(_ri, _key, _knownDate, _routerFile);
+            if (corrupt) {
+                _routerFile.delete();
+            } else if (_riLog != null) {
+                // import whatever is newer, then we're done with the file
+                DatabaseEntry cur = get(_key, false);
+                if (cur != null)
+                    writeLog(_key, cur);
+                _routerFile.delete();
+            }
         }
     }
+
+    /**
+     *  Validate and store a RouterInfo read from disk.
+     *  Pulled out of ReadRouterJob.runJob().
+     *
+     *  @param key must match the RI hash
+     *  @param knownDate published date of the one we have, or 0
+     *  @param from for logging
+     *  @return false if corrupt and should be deleted
+     *  @since 0.9.31
+     */
+    private boolean load(RouterInfo ri, Hash key, long knownDate, Object from) {
+        boolean corrupt = false;
+        if (ri.getNetworkId() != _networkID) {
+            corrupt = true;
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("The router "
+                           + ri.getIdentity().calculateHash().toBase64() 
+                           + " is from a different network");
+        } else if (!ri.getIdentity().calculateHash().equals(key)) {
+            // prevent injection from reseeding
+            // this is checked in KNDF.validate() but catch it sooner and log as error.
+            corrupt = true;
+            if (_log.shouldLog(Log.WARN))
+                _log.warn(ri.getIdentity().calculateHash() + " does not match " + key + " from " + from);
+        } else if (ri.getPublished() <= knownDate) {
+            // Don't store but don't delete
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Skipping since netdb newer than " + from);
+        } else if (_context.blocklist().isBlocklisted(ri)) {
+            corrupt = true;
+            if (_log.shouldLog(Log.WARN))
+                _log.warn(ri.getHash() + " is blocklisted");
+        } else {
+            try {
+                // persist = false so we don't write what we just read
+                _facade.store(ri.getIdentity().getHash(), ri, false, !_lazyVerify);
+                if (_lazyVerify)
+                    _unverified.offer(ri);
+                // when heardAbout() was removed from TransientDataStore, it broke
+                // profile bootstrapping for new routers,
+                // so add it here.
+                _context.profileManager().heardAbout(ri.getIdentity().getHash(), ri.getPublished());
+            } catch (IllegalArgumentException iae) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Refused locally loaded routerInfo - deleting", iae);
+                corrupt = true;
+            }
+        }
+        return !corrupt;
+    }
     
     
+    /**
+     *  Read and parse the files in parallel, then store them in order.
+     *  Run inline so we don't clog up the job queue, esp. at startup.
+     *  Also this allows us to wait until it is really done to call checkReseed() and set _initialized.
+     *
+     *  @param unknownOnly only read files for routers we don't know
+     *  @since 0.9.31
+     */
+    private void readRouterFiles(List<File> files, boolean unknownOnly) {
+        final List<ReadRouterJob> jobs = new ArrayList<ReadRouterJob>(files.size());
+        for (File file : files) {
+            Hash key = getRouterInfoHash(file.getName());
+            if (key != null && (!unknownOnly || !isKnown(key)))
+                jobs.add(new ReadRouterJob(file, key));
+        }
+        List<Runnable> tasks = new ArrayList<Runnable>(jobs.size());
+        for (final ReadRouterJob job : jobs) {
+            tasks.add(new Runnable() {
+                public void run() { job.readFile(); }
+            });
+        }
+        _loader.runAll(tasks);
+        for (ReadRouterJob job : jobs) {
+            // drop out if the router gets killed right after startup
+            if (!_context.router().isAlive())
+                break;
+            job.store();
+        }
+    }
+
+    /**
+     *  Lazy verify only. Start the VerifyJob if necessary.
+     *  @since 0.9.31
+     */
+    private void queueVerify() {
+        if (!_unverified.isEmpty() && _verifyQueued.compareAndSet(false, true))
+            _context.jobQueue().addJob(new VerifyJob());
+    }
+
+    /**
+     *  Lazy verify only.
+     *  Check the signatures of the stored RouterInfos not yet used,
+     *  in parallel batches, and drop the bad ones.
+     *  KNDF.verifyOnUse() checks them first if they are used sooner.
+     *
+     *  @since 0.9.31
+     */
+    private class VerifyJob extends JobImpl {
+        public VerifyJob() {
+            super(PersistentDataStore.this._context);
+        }
+
+        public String getName() { return "Verify RouterInfos"; }
+
+        public void runJob() {
+            List<RouterInfo> batch = new ArrayList<RouterInfo>(VERIFY_BATCH);
+            RouterInfo ri;
+            while (batch.size() < VERIFY_BATCH && (ri = _unverified.poll()) != null) {
+                batch.add(ri);
+            }
+            List<RouterInfo> bad = _loader.verify(batch);
+            for (RouterInfo b : bad) {
+                Hash key = b.getIdentity().getHash();
+                // don't drop a newer one received since
+                if (get(key, false) == b)
+                    _facade.verifyOnUse(key, b);
+            }
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Verified " + batch.size() + " stored RouterInfos, " + bad.size() + " bad, " +
+                          _unverified.size() + " remaining");
+            if (!_unverified.isEmpty()) {
+                requeue(VERIFY_DELAY);
+            } else {
+                _verifyQueued.set(false);
+                // in case of a race with queueVerify()
+                queueVerify();
+            }
+        }
+    }
+
     private File getDbDir(String dbDir) throws IOException {
         File f = new SecureDirectory(_context.getRouterDir(), dbDir);
         if (!f.exists()) {
@@ -577,7 +907,7 @@ public class PersistentDataStore extends TransientDataStore {
             throw new IOException("DB directory [" + f.getAbsolutePath() + "] is not writable!");
         if (_flat) {
             unmigrate(f);
-        } else {
+        } else if (!_singleFile) {
             for (int j = 0; j < B64.length(); j++) {
                 File subdir = new SecureDirectory(f, DIR_PREFIX + B64.charAt(j));
                 if (!subdir.exists())
@@ -0,0 +1,188 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+import net.i2p.data.router.RouterInfo;
+import net.i2p.router.RouterContext;
+import net.i2p.util.Log;
+
+/**
+ * Parse and verify stored RouterInfos on a bounded fork-join pool,
+ * so a large netDb isn't loaded one RouterInfo at a time on a job runner.
+ * With one thread, everything runs in the caller's thread.
+ *
+ * One per PersistentDataStore.
+ *
+ * @since 0.9.31
+ */
+class RouterInfoLoader {
+    private final Log _log;
+    private final ForkJoinPool _pool;
+    private final int _threads;
+
+    /**
+     *  @param threads the pool size, if 1 or less, no pool
+     */
+    public RouterInfoLoader(RouterContext ctx, int threads) {
+        _log = ctx.logManager().getLog(RouterInfoLoader.class);
+        _threads = Math.max(1, threads);
+        _pool = _threads > 1 ? new ForkJoinPool(_threads, new Factory(), null, false) : null;
+    }
+
+    /**
+     *  Run the tasks, in parallel if we have a pool, blocking until all are done.
+     *  Tasks must catch their own exceptions.
+     */
+    public void runAll(List<? extends Runnable> tasks) {
+        if (_pool == null || tasks.size() <= 1) {
+            for (Runnable r : tasks) {
+                r.run();
+            }
+            return;
+        }
+        List<Callable<Object>> calls = new ArrayList<Callable<Object>>(tasks.size());
+        for (Runnable r : tasks) {
+            calls.add(Executors.callable(r));
+        }
+        List<Future<Object>> results = _pool.invokeAll(calls);
+        for (Future<Object> f : results) {
+            try {
+                f.get();
+            } catch (InterruptedException ie) {
+            } catch (ExecutionException ee) {
+                _log.error("RouterInfo load failure", ee);
+            }
+        }
+    }
+
+    /**
+     *  Parse in parallel.
+     *
+     *  @param verify check the signatures too
+     *  @return same size and order as data, with null for failures
+     */
+    public RouterInfo[] parse(List<byte[]> data, boolean verify) {
+        final RouterInfo[] rv = new RouterInfo[data.size()];
+        List<ParseTask> tasks = new ArrayList<ParseTask>(data.size());
+        for (int i = 0; i < rv.length; i++) {
+            tasks.add(new ParseTask(data.get(i), verify, rv, i));
+        }
+        runAll(tasks);
+        return rv;
+    }
+
+    /**
+     *  Check the signatures in parallel, one chunk per thread,
+     *  each chunk as a SignatureBatch.
+     *  The results are cached in the RouterInfos, see RouterInfo.isValid().
+     *
+     *  @return the bad ones, non-null
+     */
+    public List<RouterInfo> verify(List<RouterInfo> ris) {
+        int sz = ris.size();
+        int chunks = Math.min(_threads, sz);
+        boolean[] valid = new boolean[sz];
+        List<VerifyTask> tasks = new ArrayList<VerifyTask>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            tasks.add(new VerifyTask(ris, valid, i * sz / chunks, (i + 1) * sz / chunks));
+        }
+        runAll(tasks);
+        List<RouterInfo> rv = new ArrayList<RouterInfo>(0);
+        for (int i = 0; i < sz; i++) {
+            if (!valid[i])
+                rv.add(ris.get(i));
+        }
+        return rv;
+    }
+
+    public void shutdown() {
+        if (_pool != null)
+            _pool.shutdownNow();
+    }
+
+    private class ParseTask implements Runnable {
+        private final byte[] _data;
+        private final boolean _verify;
+        private final RouterInfo[] _rv;
+        private final int _idx;
+
+        public ParseTask(byte[] data, boolean verify, RouterInfo[] rv, int idx) {
+            _data = data;
+            _verify = verify;
+            _rv = rv;
+            _idx = idx;
+        }
+
+        public void run() {
+            try {
+                RouterInfo ri = new RouterInfo();
+                ri.readBytes(new ByteArrayInputStream(_data), _verify);
+                _rv[_idx] = ri;
+            } catch (Exception e) {
+                // DataFormatException, IOException,
+                // or key certificate problems, etc., don't let one bad RI kill the whole thing
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Error reading a stored routerInfo", e);
+            }
+        }
+    }
+
+    private class VerifyTask implements Runnable {
+        private final List<RouterInfo> _ris;
+        private final boolean[] _valid;
+        private final int _from, _to;
+
+        /**
+         *  @param from inclusive
+         *  @param to exclusive
+         */
+        public VerifyTask(List<RouterInfo> ris, boolean[] valid, int from, int to) {
+            _ris = ris;
+            _valid = valid;
+            _from = from;
+            _to = to;
+        }
+
+        /**
+         *  Batch verify the chunk, in this thread, as we are already one of the pool threads.
+         *  If the batch fails for some reason, fall back to one at a time.
+         */
+        public void run() {
+            try {
+                boolean[] valid = RouterInfo.isValid(_ris.subList(_from, _to), false);
+                System.arraycopy(valid, 0, _valid, _from, valid.length);
+                return;
+            } catch (RuntimeException e) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Batch verify failed, verifying " + (_to - _from) + " RouterInfos one at a time", e);
+            }
+            for (int i = _from; i < _to; i++) {
+                try {
+                    _valid[i] = _ris.get(i).isValid();
+                } catch (RuntimeException e) {
+                    _valid[i] = false;
+                }
+            }
+        }
+    }
+
+    /**
+     *  Just to name and prioritize the threads
+     */
+    private static class Factory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread rv = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            rv.setName("NetDbLoad " + rv.getPoolIndex());
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+import net.i2p.router.util.RecordLog;
+import net.i2p.util.Log;
+
+/**
+ *  Append-only store of RouterInfos in a single file,
+ *  instead of one file per RouterInfo.
+ *  Used by PersistentDataStore if router.networkDatabase.singleFile=true.
+ *
+ *  The record date is the RouterInfo's published date,
+ *  and the data is the RouterInfo bytes.
+ *  The whole file is read sequentially at startup, and an index of
+ *  hash to offset and published date is kept in memory.
+ *  See RecordLog for the file layout and crash recovery.
+ *
+ *  All public methods are synchronized.
+ *
+ *  @since 0.9.31
+ */
+class RouterInfoLog extends RecordLog<RouterInfoLog.RIEntry> {
+
+    static final String FILENAME = "routerInfos.log";
+    private static final byte[] MAGIC = DataHelper.getASCII("I2PRILG");
+    private static final int TYPE_ROUTERINFO = 1;
+    private static final int TYPE_REMOVE = 2;
+    /** RIs are a few KB at most */
+    private static final int MAX_DATA_LEN = 64*1024;
+
+    static class RIEntry extends RecordLog.Entry {
+        final long published;
+
+        public RIEntry(long published) {
+            this.published = published;
+        }
+    }
+
+    /**
+     *  Does not open the file, call load() first.
+     */
+    public RouterInfoLog(RouterContext ctx, File dir) {
+        super(ctx, new File(dir, FILENAME), MAGIC, TYPE_REMOVE, MAX_DATA_LEN, "netDb log");
+        ctx.statManager().createRateStat("netDb.logLoadTime", "How long to read the netDb log at startup", "NetworkDatabase", new long[] { 60*60*1000 });
+        ctx.statManager().createRateStat("netDb.logCompactTime", "How long to compact the netDb log", "NetworkDatabase", new long[] { 60*60*1000 });
+    }
+
+    /**
+     *  Read the whole file in one pass, recovering from a crash if necessary,
+     *  and open it for appending.
+     *
+     *  @return the live RouterInfo bytes, in file order
+     */
+    public synchronized Map<Hash, byte[]> load() throws IOException {
+        long begin = System.currentTimeMillis();
+        Map<Hash, Record> recs = loadRecords();
+        Map<Hash, byte[]> rv = new LinkedHashMap<Hash, byte[]>(recs.size() * 4 / 3 + 16);
+        for (Map.Entry<Hash, Record> e : recs.entrySet()) {
+            rv.put(e.getKey(), e.getValue().data);
+        }
+        long time = System.currentTimeMillis() - begin;
+        _context.statManager().addRateData("netDb.logLoadTime", time);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Read " + rv.size() + " RouterInfos in " + time + "ms");
+        return rv;
+    }
+
+    /**
+     *  Appends the RouterInfo unless it is no newer than what we have.
+     *
+     *  @param data the RouterInfo bytes
+     *  @return true if written
+     */
+    public synchronized boolean write(Hash key, long published, byte[] data) throws IOException {
+        RIEntry old = _index.get(key);
+        if (old != null && old.published >= published)
+            return false;
+        appendRecord(TYPE_ROUTERINFO, key, published, data, new RIEntry(published));
+        return true;
+    }
+
+    /**
+     *  Copy the live records to a new file and replace the old one.
+     */
+    @Override
+    public synchronized long compact() throws IOException {
+        long time = super.compact();
+        _context.statManager().addRateData("netDb.logCompactTime", time);
+        return time;
+    }
+
+    protected boolean isValidType(int type) {
+        return type == TYPE_ROUTERINFO;
+    }
+
+    protected RIEntry createEntry(int type, long published, byte[] data) {
+        return new RIEntry(published);
+    }
+}
@@ -0,0 +1,205 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+import net.i2p.util.LHMCache;
+
+/**
+ *  Short-lived cache of the closest peers we send back in a
+ *  DatabaseSearchReplyMessage, so that repeated lookups for the same key
+ *  (popular leasesets, a router everybody is looking for, retries)
+ *  don't each walk the kbuckets.
+ *  Used by HandleFloodfillDatabaseLookupMessageJob if
+ *  router.searchReplyCache=true.
+ *
+ *  Only lookups that don't exclude any peers are cached,
+ *  as the answer then depends only on the key and the lookup type.
+ *  There is one cache for floodfill answers and one for exploratory
+ *  (non-floodfill) answers.
+ *
+ *  Each entry remembers its routing key and the XOR distance of the
+ *  farthest peer in it. When a RouterInfo is stored or dropped, only the
+ *  entries it could be in, or could now get into, are removed.
+ *  Everything is removed when the routing keys change at midnight.
+ *
+ *  Stats: netDb.searchReplyCacheHit, netDb.searchReplyCacheMiss.
+ *
+ *  @since 0.9.31
+ */
+class SearchReplyCache {
+    private final RouterContext _context;
+    private final Map<Hash, Entry> _floodfill;
+    private final Map<Hash, Entry> _exploratory;
+    private long _lastKeyChange;
+    private final int _wanted;
+
+    private static final int MAX_ENTRIES = 1024;
+    /** long enough to help with bursts and retries, short enough not to matter */
+    private static final long TTL = 10*1000;
+    private static final byte[] MAX_DISTANCE = new byte[Hash.HASH_LENGTH];
+    static {
+        for (int i = 0; i < MAX_DISTANCE.length; i++) {
+            MAX_DISTANCE[i] = (byte) 0xff;
+        }
+    }
+
+    /**
+     *  @param wanted how many peers a full answer has
+     */
+    public SearchReplyCache(RouterContext ctx, int wanted) {
+        _context = ctx;
+        _wanted = wanted;
+        _floodfill = new LHMCache<Hash, Entry>(MAX_ENTRIES);
+        _exploratory = new LHMCache<Hash, Entry>(MAX_ENTRIES);
+        ctx.statManager().createRateStat("netDb.searchReplyCacheHit", "Closest peers for a lookup reply found in cache", "NetworkDatabase", new long[] { 60*1000, 60*60*1000l });
+        ctx.statManager().createRateStat("netDb.searchReplyCacheMiss", "Closest peers for a lookup reply not in cache", "NetworkDatabase", new long[] { 60*1000, 60*60*1000l });
+    }
+
+    /**
+     *  @param exploratory true for non-floodfill peers
+     *  @return unmodifiable, or null if not cached
+     */
+    public Set<Hash> get(Hash key, boolean exploratory) {
+        long now = _context.clock().now();
+        Entry e;
+        synchronized (this) {
+            checkKeyChange();
+            Map<Hash, Entry> cache = exploratory ? _exploratory : _floodfill;
+            e = cache.get(key);
+            if (e != null && e.created < now - TTL) {
+                cache.remove(key);
+                e = null;
+            }
+        }
+        if (e != null) {
+            _context.statManager().addRateData("netDb.searchReplyCacheHit", 1);
+            return e.peers;
+        }
+        _context.statManager().addRateData("netDb.searchReplyCacheMiss", 1);
+        return null;
+    }
+
+    /**
+     *  Empty answers are not cached.
+     *
+     *  @param exploratory true for non-floodfill peers
+     *  @param peers will be copied
+     */
+    public void put(Hash key, boolean exploratory, Set<Hash> peers) {
+        if (peers.isEmpty())
+            return;
+        byte[] rkey = _context.routingKeyGenerator().getRoutingKey(key).getData();
+        byte[] radius;
+        if (peers.size() < _wanted) {
+            // anybody new would get in
+            radius = MAX_DISTANCE;
+        } else {
+            radius = null;
+            for (Hash h : peers) {
+                byte[] d = distance(rkey, h.getData());
+                if (radius == null || compare(d, radius) > 0)
+                    radius = d;
+            }
+        }
+        Entry e = new Entry(Collections.unmodifiableSet(new HashSet<Hash>(peers)), rkey, radius,
+                            _context.clock().now());
+        synchronized (this) {
+            checkKeyChange();
+            if (exploratory)
+                _exploratory.put(key, e);
+            else
+                _floodfill.put(key, e);
+        }
+    }
+
+    /**
+     *  A RouterInfo was stored, changed, or dropped.
+     *  Remove every answer it is in or would now be in.
+     *
+     *  @param floodfill if the peer is or was a floodfill
+     */
+    public void invalidate(Hash peer, boolean floodfill) {
+        byte[] p = peer.getData();
+        synchronized (this) {
+            if (floodfill)
+                invalidate(_floodfill, p);
+            // a peer that stopped or started being a floodfill changes these too
+            invalidate(_exploratory, p);
+        }
+    }
+
+    public synchronized void clear() {
+        _floodfill.clear();
+        _exploratory.clear();
+    }
+
+    /** caller must synch */
+    private static void invalidate(Map<Hash, Entry> cache, byte[] peer) {
+        for (Iterator<Entry> iter = cache.values().iterator(); iter.hasNext(); ) {
+            Entry e = iter.next();
+            if (isWithin(e.rkey, peer, e.radius))
+                iter.remove();
+        }
+    }
+
+    /**
+     *  Same as compare(distance(rkey, peer), radius) <= 0, without the garbage
+     */
+    private static boolean isWithin(byte[] rkey, byte[] peer, byte[] radius) {
+        for (int i = 0; i < Hash.HASH_LENGTH; i++) {
+            int c = ((rkey[i] ^ peer[i]) & 0xff) - (radius[i] & 0xff);
+            if (c != 0)
+                return c < 0;
+        }
+        return true;
+    }
+
+    /** caller must synch */
+    private void checkKeyChange() {
+        long changed = _context.routingKeyGenerator().getLastChanged();
+        if (changed != _lastKeyChange) {
+            _lastKeyChange = changed;
+            _floodfill.clear();
+            _exploratory.clear();
+        }
+    }
+
+    private static byte[] distance(byte[] l, byte[] r) {
+        byte[] rv = new byte[Hash.HASH_LENGTH];
+        for (int i = 0; i < Hash.HASH_LENGTH; i++) {
+            rv[i] = (byte) (l[i] ^ r[i]);
+        }
+        return rv;
+    }
+
+    /** unsigned */
+    private static int compare(byte[] l, byte[] r) {
+        for (int i = 0; i < Hash.HASH_LENGTH; i++) {
+            int c = (l[i] & 0xff) - (r[i] & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    private static class Entry {
+        final Set<Hash> peers;
+        final byte[] rkey;
+        /** distance of the farthest peer */
+        final byte[] radius;
+        final long created;
+
+        public Entry(Set<Hash> peers, byte[] rkey, byte[] radius, long created) {
+            this.peers = peers;
+            this.rkey = rkey;
+            this.radius = radius;
+            this.created = created;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package net.i2p.router.peermanager;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Locale;
@@ -302,6 +304,40 @@ public class DBHistory {
         }
     }
     
+    /**
+     *  Compact binary form of the same data as store(OutputStream),
+     *  for ProfileLog.
+     *
+     *  @since 0.9.31
+     */
+    public void store(DataOutput out) throws IOException {
+        out.writeLong(_unpromptedDbStoreNew);
+        out.writeLong(_unpromptedDbStoreOld);
+        out.writeLong(_lastLookupSuccessful);
+        out.writeLong(_lastLookupFailed);
+        out.writeLong(_lastStoreSuccessful);
+        out.writeLong(_lastStoreFailed);
+        _failedLookupRate.store(out);
+        _invalidReplyRate.store(out);
+    }
+
+    /**
+     *  Load the data written by store(DataOutput)
+     *
+     *  @throws IOException on EOF
+     *  @since 0.9.31
+     */
+    public void load(DataInput in) throws IOException {
+        _unpromptedDbStoreNew = in.readLong();
+        _unpromptedDbStoreOld = in.readLong();
+        _lastLookupSuccessful = in.readLong();
+        _lastLookupFailed = in.readLong();
+        _lastStoreSuccessful = in.readLong();
+        _lastStoreFailed = in.readLong();
+        _failedLookupRate.load(in);
+        _invalidReplyRate.load(in);
+    }
+    
     private synchronized void createRates(String statGroup) {
         if (_failedLookupRate == null)
             _failedLookupRate = new RateStat("dbHistory.failedLookupRate", "How often does this peer to respond to a lookup?", statGroup, new long[] { 10*60*1000l, 60*60*1000l, 24*60*60*1000l });
@@ -157,9 +157,14 @@ class PeerManager {
             return;
         try {
             Set<Hash> peers = selectPeers();
+            List<PeerProfile> profiles = new ArrayList<PeerProfile>(peers.size());
             for (Hash peer : peers) {
-                storeProfile(peer);
+                PeerProfile prof = _organizer.getProfile(peer);
+                if (prof != null)
+                    profiles.add(prof);
             }
+            // in one batch so the single file can skip the unchanged ones
+            _persistenceHelper.writeProfiles(profiles);
         } finally {
             _storeLock.set(false);
         }
@@ -177,14 +182,6 @@ class PeerManager {
         return _organizer.selectAllPeers();
     }
 
-    void storeProfile(Hash peer) {
-        if (peer == null) return;
-        PeerProfile prof = _organizer.getProfile(peer);
-        if (prof == null) return;
-        if (true)
-            _persistenceHelper.writeProfile(prof);
-    }
-
     /**
      *  Load the profiles in a separate thread, so we don't spend
      *  forever in the constructor (slowing down the Router constructor
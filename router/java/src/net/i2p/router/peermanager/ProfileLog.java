@@ -0,0 +1,152 @@
+package net.i2p.router.peermanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+import net.i2p.router.util.RecordLog;
+import net.i2p.util.Log;
+
+/**
+ *  Append-only store of binary profiles in a single file,
+ *  instead of one gzipped text file per peer.
+ *  Used by ProfilePersistenceHelper if router.profiles.singleFile=true.
+ *
+ *  The record date is when it was written, and the data is the profile.
+ *  The type byte is also the version of the profile data format.
+ *  The whole file is read sequentially at startup, and an index of
+ *  hash to offset and data checksum is kept in memory, so that
+ *  a profile is only appended again if its data has changed.
+ *  See RecordLog for the file layout and crash recovery.
+ *
+ *  All public methods are synchronized.
+ *
+ *  @since 0.9.31
+ */
+class ProfileLog extends RecordLog<ProfileLog.ProfileEntry> {
+
+    static final String FILENAME = "profiles.log";
+    private static final byte[] MAGIC = DataHelper.getASCII("I2PPRLG");
+    /** the format written by ProfilePersistenceHelper.writeBinaryProfile() */
+    static final int TYPE_PROFILE_V1 = 1;
+    private static final int TYPE_REMOVE = 0xff;
+    /** a fully expanded profile is about 2 KB */
+    private static final int MAX_DATA_LEN = 32*1024;
+
+    static class ProfileEntry extends RecordLog.Entry {
+        /** of the data only */
+        final long crc;
+        /** when last written, or offered unchanged to write() */
+        long seen;
+
+        public ProfileEntry(long crc, long seen) {
+            this.crc = crc;
+            this.seen = seen;
+        }
+    }
+
+    /**
+     *  Does not open the file, call load() first.
+     */
+    public ProfileLog(RouterContext ctx, File dir) {
+        super(ctx, new File(dir, FILENAME), MAGIC, TYPE_REMOVE, MAX_DATA_LEN, "profile log");
+        ctx.statManager().createRateStat("peer.profileLogLoadTime", "How long to read the profile log at startup", "Peers", new long[] { 60*60*1000 });
+        ctx.statManager().createRateStat("peer.profileLogStoreTime", "How long to append changed profiles to the log", "Peers", new long[] { 60*60*1000 });
+        ctx.statManager().createRateStat("peer.profileLogCompactTime", "How long to compact the profile log", "Peers", new long[] { 60*60*1000 });
+    }
+
+    /**
+     *  Read the whole file in one pass, recovering from a crash if necessary,
+     *  and open it for appending. May be called again to reload.
+     *
+     *  @return the live records, in file order
+     */
+    public synchronized Map<Hash, Record> load() throws IOException {
+        long begin = System.currentTimeMillis();
+        Map<Hash, Record> rv = loadRecords();
+        long time = System.currentTimeMillis() - begin;
+        _context.statManager().addRateData("peer.profileLogLoadTime", time);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Read " + rv.size() + " profiles in " + time + "ms");
+        return rv;
+    }
+
+    /**
+     *  Appends the profile data unless it is the same as what we have.
+     *
+     *  @param type TYPE_PROFILE_V1
+     *  @return true if written
+     */
+    public synchronized boolean write(Hash key, int type, byte[] data) throws IOException {
+        if (!isOpen())
+            throw new IOException("not open");
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        long dcrc = crc.getValue();
+        long now = _context.clock().now();
+        ProfileEntry old = _index.get(key);
+        if (old != null && old.crc == dcrc && old.getLength() == recordLength(data.length)) {
+            old.seen = now;
+            return false;
+        }
+        appendRecord(type, key, now, data, new ProfileEntry(dcrc, now));
+        return true;
+    }
+
+    /**
+     *  Remove the profiles that have not been offered to write()
+     *  since the cutoff, or since they were written if not since startup.
+     *  Same as deleting the files not modified since then.
+     *
+     *  @return number removed
+     */
+    public synchronized int removeOlderThan(long cutoff) throws IOException {
+        if (!isOpen())
+            return 0;
+        List<Hash> old = new ArrayList<Hash>();
+        for (Map.Entry<Hash, ProfileEntry> e : _index.entrySet()) {
+            if (e.getValue().seen < cutoff)
+                old.add(e.getKey());
+        }
+        for (Hash h : old) {
+            remove(h);
+        }
+        return old.size();
+    }
+
+    /**
+     *  For stats after a batch of writes
+     */
+    public void storeTime(long time) {
+        _context.statManager().addRateData("peer.profileLogStoreTime", time);
+    }
+
+    /**
+     *  Copy the live records to a new file and replace the old one.
+     */
+    @Override
+    public synchronized long compact() throws IOException {
+        long time = super.compact();
+        _context.statManager().addRateData("peer.profileLogCompactTime", time);
+        return time;
+    }
+
+    /**
+     *  Unknown types (newer versions) are kept and passed up
+     */
+    protected boolean isValidType(int type) {
+        return true;
+    }
+
+    protected ProfileEntry createEntry(int type, long written, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return new ProfileEntry(crc.getValue(), written);
+    }
+}
@@ -14,6 +14,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -35,6 +36,14 @@ import net.i2p.util.Log;
  * actively update anything - the reorganize() method should be called periodically
  * to recalculate thresholds and move profiles into the appropriate tiers, and addProfile()
  * should be used to add new profiles (placing them into the appropriate groupings).
+ *
+ * As of 0.9.31, the tiers are published to the readers as a copy-on-write snapshot,
+ * so the select and count methods do not lock and never wait for a reorganize.
+ * With profileOrganizer.incremental=true, reorganize() keeps the profiles in
+ * ProfileRanking order-statistic trees instead of re-sorting all of them,
+ * so only profiles whose values changed are moved, the thresholds come from
+ * the trees, and only the top of the capacity order is checked for the high capacity
+ * and fast tiers.
  */
 public class ProfileOrganizer {
     private final Log _log;
@@ -45,10 +54,12 @@ public class ProfileOrganizer {
     private final Map<Hash, PeerProfile> _highCapacityPeers;
     /** TO BE REMOVED H(routerIdentity) to PeerProfile for all peers that well integrated into the network and not failing horribly */
     private final Map<Hash, PeerProfile> _wellIntegratedPeers;
-    /** H(routerIdentity) to PeerProfile for all peers that are not failing horribly */
-    private final Map<Hash, PeerProfile> _notFailingPeers;
-    /** H(routerIdnetity), containing elements in _notFailingPeers */
-    private final List<Hash> _notFailingPeersList;
+    /**
+     *  H(routerIdentity) to PeerProfile for all peers that are not failing horribly.
+     *  As of 0.9.31, concurrent and shared with the readers' snapshot,
+     *  so replace it instead of clearing it when rebuilding the tiers.
+     */
+    private Map<Hash, PeerProfile> _notFailingPeers;
     /** TO BE REMOVED H(routerIdentity) to PeerProfile for all peers that ARE failing horribly (but that we haven't dropped reference to yet) */
     private final Map<Hash, PeerProfile> _failingPeers;
     /** who are we? */
@@ -57,6 +68,13 @@ public class ProfileOrganizer {
     
     /** PeerProfile objects for all peers profiled, orderd by the ones with the highest capacity first */
     private Set<PeerProfile> _strictCapacityOrder;
+    /** incremental mode only, all peers, replaces _strictCapacityOrder */
+    private final ProfileRanking _capacityRanking;
+    /** incremental mode only, active and not failing peers, for the thresholds */
+    private final ProfileRanking _activeRanking;
+    private final boolean _incremental;
+    /** what the readers see, copied from the maps above after every change */
+    private volatile Tiers _tiers;
     
     /** threshold speed value, seperating fast from slow */
     private double _thresholdSpeedValue;
@@ -88,7 +106,17 @@ public class ProfileOrganizer {
     public static final int DEFAULT_MINIMUM_HIGH_CAPACITY_PEERS = 10;
     private static final int ABSOLUTE_MAX_HIGHCAP_PEERS = 150;
     
-    /** synchronized against this lock when updating the tier that peers are located in (and when fetching them from a peer) */
+    /**
+     * Incremental tier maintenance
+     * @since 0.9.31
+     */
+    public static final String PROP_INCREMENTAL = "profileOrganizer.incremental";
+
+    /**
+     * Synchronized against this lock when updating the tier that peers are located in.
+     * As of 0.9.31, readers use the _tiers snapshot instead,
+     * the read lock is only for iterating _strictCapacityOrder.
+     */
     private final ReentrantReadWriteLock _reorganizeLock = new ReentrantReadWriteLock(false);
     
     public ProfileOrganizer(RouterContext context) {
@@ -98,11 +126,14 @@ public class ProfileOrganizer {
         _fastPeers = new HashMap<Hash, PeerProfile>(32);
         _highCapacityPeers = new HashMap<Hash, PeerProfile>(64);
         _wellIntegratedPeers = new HashMap<Hash, PeerProfile>(128);
-        _notFailingPeers = new HashMap<Hash, PeerProfile>(256);
-        _notFailingPeersList = new ArrayList<Hash>(256);
+        _notFailingPeers = new ConcurrentHashMap<Hash, PeerProfile>(256);
         _failingPeers = new HashMap<Hash, PeerProfile>(16);
         _strictCapacityOrder = new TreeSet<PeerProfile>(_comp);
+        _incremental = context.getBooleanProperty(PROP_INCREMENTAL);
+        _capacityRanking = new ProfileRanking();
+        _activeRanking = new ProfileRanking();
         _persistenceHelper = new ProfilePersistenceHelper(_context);
+        locked_publish();
         
         _context.statManager().createRateStat("peer.profileSortTime", "How long the reorg takes sorting peers", "Peers", new long[] { 60*60*1000 });
         _context.statManager().createRateStat("peer.profileCoalesceTime", "How long the reorg takes coalescing peer stats", "Peers", new long[] { 60*60*1000 });
@@ -117,15 +148,6 @@ public class ProfileOrganizer {
         _reorganizeLock.readLock().lock();
     }
 
-    /**
-     *  Get the lock if we can. Non-blocking.
-     *  @return true if the lock was acquired
-     *  @since 0.8.12
-     */
-    private boolean tryReadLock() {
-        return _reorganizeLock.readLock().tryLock();
-    }
-
     private void releaseReadLock() {
         _reorganizeLock.readLock().unlock();
     }
@@ -154,7 +176,7 @@ public class ProfileOrganizer {
     
     /**
      * Retrieve the profile for the given peer, if one exists (else null).
-     * Blocking if a reorganize is happening.
+     * As of 0.9.31, non-blocking.
      */
     public PeerProfile getProfile(Hash peer) {
         if (peer.equals(_us)) {
@@ -162,29 +184,16 @@ public class ProfileOrganizer {
                 _log.warn("Who wanted our own profile?", new Exception("I did"));
             return null;
         }
-        getReadLock();
-        try {
-            return locked_getProfile(peer);
-        } finally { releaseReadLock(); }
+        return getProfile(_tiers, peer);
     }
     
     /**
      * Retrieve the profile for the given peer, if one exists (else null).
-     * Non-blocking. Returns null if a reorganize is happening.
+     * Non-blocking. As of 0.9.31, same as getProfile().
      * @since 0.8.12
      */
     public PeerProfile getProfileNonblocking(Hash peer) {
-        if (peer.equals(_us)) {
-            if (_log.shouldWarn())
-                _log.warn("Who wanted our own profile?", new Exception("I did"));
-            return null;
-        }
-        if (tryReadLock()) {
-            try {
-                return locked_getProfile(peer);
-            } finally { releaseReadLock(); }
-        }
-        return null;
+        return getProfile(peer);
     }
     
     /**
@@ -217,67 +226,60 @@ public class ProfileOrganizer {
             // The downside is that new peers don't become high cap until the next reorg
             // if we are at our limit.
             //locked_placeProfile(profile);
-            _notFailingPeers.put(peer, profile);
-            if (old == null)
-                _notFailingPeersList.add(peer);
+            boolean changed = _notFailingPeers.put(peer, profile) == null;
             // Add to high cap only if we have room. Don't add to Fast; wait for reorg.
             if (_thresholdCapacityValue <= profile.getCapacityValue() &&
                 isSelectable(peer) &&
                 _highCapacityPeers.size() < getMaximumHighCapPeers()) {
                 _highCapacityPeers.put(peer, profile);
+                changed = true;
+            }
+            if (changed) {
+                // only the high cap tier or the not failing keys changed, don't copy the rest
+                _tiers = new Tiers(_tiers, _highCapacityPeers);
+            }
+            if (_incremental) {
+                _capacityRanking.update(profile);
+                if (isRanked(profile))
+                    _activeRanking.update(profile);
+            } else {
+                _strictCapacityOrder.add(profile);
             }
-            _strictCapacityOrder.add(profile);
         } finally { releaseWriteLock(); }
         return old;
     }
-    
-    private int count(Map<Hash, PeerProfile> m) {
-        getReadLock();
-        try {
-            return m.size();
-        } finally { releaseReadLock(); }
-    }
 
-    public int countFastPeers() { return count(_fastPeers); }
-    public int countHighCapacityPeers() { return count(_highCapacityPeers); }
+    public int countFastPeers() { return _tiers.fast.size(); }
+    public int countHighCapacityPeers() { return _tiers.highCap.size(); }
     /** @deprecated use ProfileManager.getPeersByCapability('f').size() */
     @Deprecated
-    public int countWellIntegratedPeers() { return count(_wellIntegratedPeers); }
-    public int countNotFailingPeers() { return count(_notFailingPeers); }
-    public int countFailingPeers() { return count(_failingPeers); }
+    public int countWellIntegratedPeers() { return _tiers.wellIntegrated.size(); }
+    public int countNotFailingPeers() { return _tiers.notFailing.size(); }
+    public int countFailingPeers() { return _tiers.failing.size(); }
     
     public int countActivePeers() {
         int activePeers = 0;
         long hideBefore = _context.clock().now() - 6*60*60*1000;
        
-        getReadLock();
-        try {
-            for (PeerProfile profile : _failingPeers.values()) {
-                if (profile.getLastSendSuccessful() >= hideBefore)
-                    activePeers++;
-                else if (profile.getLastHeardFrom() >= hideBefore)
-                    activePeers++;
-            }
-            for (PeerProfile profile : _notFailingPeers.values()) {
-                if (profile.getLastSendSuccessful() >= hideBefore)
-                    activePeers++;
-                else if (profile.getLastHeardFrom() >= hideBefore)
-                    activePeers++;
-            }
-        } finally { releaseReadLock(); }
+        Tiers t = _tiers;
+        for (PeerProfile profile : t.failing.values()) {
+            if (profile.getLastSendSuccessful() >= hideBefore)
+                activePeers++;
+            else if (profile.getLastHeardFrom() >= hideBefore)
+                activePeers++;
+        }
+        for (PeerProfile profile : t.notFailing.values()) {
+            if (profile.getLastSendSuccessful() >= hideBefore)
+                activePeers++;
+            else if (profile.getLastHeardFrom() >= hideBefore)
+                activePeers++;
+        }
         return activePeers;
     }
-    
-    private boolean isX(Map<Hash, PeerProfile> m, Hash peer) {
-        getReadLock();
-        try {
-            return m.containsKey(peer);
-        } finally { releaseReadLock(); }
-    }
 
-    public boolean isFast(Hash peer) { return isX(_fastPeers, peer); }
-    public boolean isHighCapacity(Hash peer) { return isX(_highCapacityPeers, peer); }
-    public boolean isWellIntegrated(Hash peer) { return isX(_wellIntegratedPeers, peer); }
+    public boolean isFast(Hash peer) { return _tiers.fast.containsKey(peer); }
+    public boolean isHighCapacity(Hash peer) { return _tiers.highCap.containsKey(peer); }
+    public boolean isWellIntegrated(Hash peer) { return _tiers.wellIntegrated.containsKey(peer); }
 
     /**
      *  Deprecated for now, always false
@@ -297,9 +299,11 @@ public class ProfileOrganizer {
             _fastPeers.clear();
             _highCapacityPeers.clear();
             _notFailingPeers.clear();
-            _notFailingPeersList.clear();
             _wellIntegratedPeers.clear();
             _strictCapacityOrder.clear();
+            _capacityRanking.clear();
+            _activeRanking.clear();
+            locked_publish();
         } finally { releaseWriteLock(); }
     }
 
@@ -369,10 +373,7 @@ public class ProfileOrganizer {
      *
      */
     public void selectFastPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
-        getReadLock();
-        try {
-            locked_selectPeers(_fastPeers, howMany, exclude, matches, mask);
-        } finally { releaseReadLock(); }
+        locked_selectPeers(_tiers.fast, howMany, exclude, matches, mask);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectFastPeers("+howMany+"), not enough fast (" + matches.size() + ") going on to highCap");
@@ -429,18 +430,16 @@ public class ProfileOrganizer {
      *</pre>
      */
     public void selectFastPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, Hash randomKey, Slice subTierMode) {
-        getReadLock();
-        try {
-            if (subTierMode != Slice.SLICE_ALL) {
-                int sz = _fastPeers.size();
-                if (sz < 6 || (subTierMode.mask >= 3 && sz < 12))
-                    subTierMode = Slice.SLICE_ALL;
-            }
-            if (subTierMode != Slice.SLICE_ALL)
-                locked_selectPeers(_fastPeers, howMany, exclude, matches, randomKey, subTierMode);
-            else
-                locked_selectPeers(_fastPeers, howMany, exclude, matches, 2);
-        } finally { releaseReadLock(); }
+        Map<Hash, PeerProfile> fast = _tiers.fast;
+        if (subTierMode != Slice.SLICE_ALL) {
+            int sz = fast.size();
+            if (sz < 6 || (subTierMode.mask >= 3 && sz < 12))
+                subTierMode = Slice.SLICE_ALL;
+        }
+        if (subTierMode != Slice.SLICE_ALL)
+            locked_selectPeers(fast, howMany, exclude, matches, randomKey, subTierMode);
+        else
+            locked_selectPeers(fast, howMany, exclude, matches, 2);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectFastPeers("+howMany+"), not enough fast (" + matches.size() + ") going on to highCap");
@@ -465,19 +464,16 @@ public class ProfileOrganizer {
      *             not be in the same tunnel. 0 = disable check; 1 = /8; 2 = /16; 3 = /24; 4 = exact IP match
      */
     public void selectHighCapacityPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
-        getReadLock();
-        try {
-            // we only use selectHighCapacityPeers when we are selecting for PURPOSE_TEST
-            // or we are falling back due to _fastPeers being too small, so we can always 
-            // exclude the fast peers
-            /*
-            if (exclude == null)
-                exclude = new HashSet(_fastPeers.keySet());
-            else
-                exclude.addAll(_fastPeers.keySet());
-             */
-            locked_selectPeers(_highCapacityPeers, howMany, exclude, matches, mask);
-        } finally { releaseReadLock(); }
+        // we only use selectHighCapacityPeers when we are selecting for PURPOSE_TEST
+        // or we are falling back due to _fastPeers being too small, so we can always 
+        // exclude the fast peers
+        /*
+        if (exclude == null)
+            exclude = new HashSet(_fastPeers.keySet());
+        else
+            exclude.addAll(_fastPeers.keySet());
+         */
+        locked_selectPeers(_tiers.highCap, howMany, exclude, matches, mask);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectHighCap("+howMany+"), not enough highcap (" + matches.size() + ") going on to ANFP2");
@@ -508,10 +504,7 @@ public class ProfileOrganizer {
      */
     @Deprecated
     public void selectWellIntegratedPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
-        getReadLock();
-        try {
-            locked_selectPeers(_wellIntegratedPeers, howMany, exclude, matches, mask);
-        } finally { releaseReadLock(); }
+        locked_selectPeers(_tiers.wellIntegrated, howMany, exclude, matches, mask);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectWellIntegrated("+howMany+"), not enough integrated (" + matches.size() + ") going on to notFailing");
@@ -576,14 +569,12 @@ public class ProfileOrganizer {
      */
     public void selectActiveNotFailingPeers(int howMany, Set<Hash> exclude, Set<Hash> matches) {
         if (matches.size() < howMany) {
-            getReadLock();
-            try {
-                for (Hash peer : _notFailingPeers.keySet()) {
-                    if (!_context.commSystem().isEstablished(peer))
-                        exclude.add(peer);
-                }
-                locked_selectPeers(_notFailingPeers, howMany, exclude, matches, 0);
-            } finally { releaseReadLock(); }
+            Map<Hash, PeerProfile> notFailing = _tiers.notFailing;
+            for (Hash peer : notFailing.keySet()) {
+                if (!_context.commSystem().isEstablished(peer))
+                    exclude.add(peer);
+            }
+            locked_selectPeers(notFailing, howMany, exclude, matches, 0);
         }
     }
 
@@ -603,14 +594,11 @@ public class ProfileOrganizer {
     private void selectActiveNotFailingPeers2(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
         if (matches.size() < howMany) {
             Map<Hash, PeerProfile> activePeers = new HashMap<Hash, PeerProfile>();
-            getReadLock();
-            try {
-                for (Map.Entry<Hash, PeerProfile> e : _notFailingPeers.entrySet()) {
-                    if (_context.commSystem().isEstablished(e.getKey()))
-                        activePeers.put(e.getKey(), e.getValue());
-                }
-                locked_selectPeers(activePeers, howMany, exclude, matches, mask);
-            } finally { releaseReadLock(); }
+            for (Map.Entry<Hash, PeerProfile> e : _tiers.notFailing.entrySet()) {
+                if (_context.commSystem().isEstablished(e.getKey()))
+                    activePeers.put(e.getKey(), e.getValue());
+            }
+            locked_selectPeers(activePeers, howMany, exclude, matches, mask);
         }
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
@@ -639,30 +627,33 @@ public class ProfileOrganizer {
             int orig = matches.size();
             int needed = howMany - orig;
             List<Hash> selected = new ArrayList<Hash>(needed);
-            getReadLock();
-            try {
-                // use RandomIterator to avoid shuffling the whole thing
-                for (Iterator<Hash> iter = new RandomIterator<Hash>(_notFailingPeersList); (selected.size() < needed) && iter.hasNext(); ) {
-                    Hash cur = iter.next();
-                    if (matches.contains(cur) ||
-                        (exclude != null && exclude.contains(cur))) {
-                        if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("matched? " + matches.contains(cur) + " exclude: " + exclude + " cur=" + cur.toBase64());
-                        continue;
-                    } else if (onlyNotFailing && _highCapacityPeers.containsKey(cur)) {
-                        // we dont want the good peers, just random ones
-                        continue;
-                    } else {
-                        if (isSelectable(cur))
-                            selected.add(cur);
-                        else if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("Not selectable: " + cur.toBase64());
-                    }
+            Tiers t = _tiers;
+            // use RandomIterator to avoid shuffling the whole thing,
+            // over the keys snapshotted when the tiers last changed, so we don't copy them every time
+            List<Hash> all = t.notFailingKeys;
+            for (Iterator<Hash> iter = new RandomIterator<Hash>(all); (selected.size() < needed) && iter.hasNext(); ) {
+                Hash cur = iter.next();
+                if (!t.notFailing.containsKey(cur)) {
+                    // removed since
+                    continue;
+                } else if (matches.contains(cur) ||
+                    (exclude != null && exclude.contains(cur))) {
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("matched? " + matches.contains(cur) + " exclude: " + exclude + " cur=" + cur.toBase64());
+                    continue;
+                } else if (onlyNotFailing && t.highCap.containsKey(cur)) {
+                    // we dont want the good peers, just random ones
+                    continue;
+                } else {
+                    if (isSelectable(cur))
+                        selected.add(cur);
+                    else if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Not selectable: " + cur.toBase64());
                 }
-            } finally { releaseReadLock(); }
+            }
             if (_log.shouldLog(Log.INFO))
                 _log.info("Selecting all not failing (strict? " + onlyNotFailing
-                          + ") found " + selected.size() + " new peers: " + selected + " all=" + _notFailingPeersList.size() + " strict=" + _strictCapacityOrder.size());
+                          + ") found " + selected.size() + " new peers: " + selected + " all=" + all.size());
             matches.addAll(selected);
         }
         if (matches.size() < howMany) {
@@ -681,10 +672,7 @@ public class ProfileOrganizer {
      *
      */
     public void selectFailingPeers(int howMany, Set<Hash> exclude, Set<Hash> matches) {
-        getReadLock();
-        try {
-            locked_selectPeers(_failingPeers, howMany, exclude, matches);
-        } finally { releaseReadLock(); }
+        locked_selectPeers(_tiers.failing, howMany, exclude, matches);
         return;        
     }                  
 
@@ -695,13 +683,9 @@ public class ProfileOrganizer {
      *                 
      */                
     public List<Hash> selectPeersLocallyUnreachable() { 
-        List<Hash> n;
-        int count;
-        getReadLock();
-        try {
-            count = _notFailingPeers.size();
-            n = new ArrayList<Hash>(_notFailingPeers.keySet());
-        } finally { releaseReadLock(); }
+        Map<Hash, PeerProfile> notFailing = _tiers.notFailing;
+        int count = notFailing.size();
+        List<Hash> n = new ArrayList<Hash>(notFailing.keySet());
         List<Hash> l = new ArrayList<Hash>(count / 4);
         for (Hash peer : n) {
             if (_context.commSystem().wasUnreachable(peer))
@@ -748,17 +732,15 @@ public class ProfileOrganizer {
      *
      */
     public List<Hash> selectPeersRecentlyRejecting() { 
-        getReadLock();
-        try {
-            long cutoff = _context.clock().now() - (20*1000);
-            int count = _notFailingPeers.size();
-            List<Hash> l = new ArrayList<Hash>(count / 128);
-            for (PeerProfile prof : _notFailingPeers.values()) {
-                if (prof.getTunnelHistory().getLastRejectedBandwidth() > cutoff)
-                    l.add(prof.getPeer());
-            }
-            return l;
-        } finally { releaseReadLock(); }
+        long cutoff = _context.clock().now() - (20*1000);
+        Map<Hash, PeerProfile> notFailing = _tiers.notFailing;
+        int count = notFailing.size();
+        List<Hash> l = new ArrayList<Hash>(count / 128);
+        for (PeerProfile prof : notFailing.values()) {
+            if (prof.getTunnelHistory().getLastRejectedBandwidth() > cutoff)
+                l.add(prof.getPeer());
+        }
+        return l;
     }
 
     /**
@@ -766,15 +748,13 @@ public class ProfileOrganizer {
      *
      */
     public Set<Hash> selectAllPeers() {
-        getReadLock();
-        try {
-            Set<Hash> allPeers = new HashSet<Hash>(_failingPeers.size() + _notFailingPeers.size() + _highCapacityPeers.size() + _fastPeers.size());
-            allPeers.addAll(_failingPeers.keySet());
-            allPeers.addAll(_notFailingPeers.keySet());
-            allPeers.addAll(_highCapacityPeers.keySet());
-            allPeers.addAll(_fastPeers.keySet());
-            return allPeers;
-        } finally { releaseReadLock(); }
+        Tiers t = _tiers;
+        Set<Hash> allPeers = new HashSet<Hash>(t.failing.size() + t.notFailing.size() + t.highCap.size() + t.fast.size());
+        allPeers.addAll(t.failing.keySet());
+        allPeers.addAll(t.notFailing.keySet());
+        allPeers.addAll(t.highCap.keySet());
+        allPeers.addAll(t.fast.keySet());
+        return allPeers;
     }
     
     private static final long MIN_EXPIRE_TIME = 2*60*60*1000;
@@ -799,7 +779,8 @@ public class ProfileOrganizer {
         int profileCount = 0;
         int expiredCount = 0;
         
-        long uptime = _context.router().getUptime();
+        // the CLI and tests have no router
+        long uptime = _context.router() != null ? _context.router().getUptime() : 0;
         long expireOlderThan = -1;
         if (uptime > 60*60*1000) {
             // dynamically adjust expire time to control memory usage
@@ -814,7 +795,7 @@ public class ProfileOrganizer {
         if (shouldCoalesce) {
             getReadLock();
             try {
-                for (PeerProfile prof : _strictCapacityOrder) {
+                for (PeerProfile prof : byCapacity()) {
                     if ( (expireOlderThan > 0) && (prof.getLastSendSuccessful() <= expireOlderThan) ) {
                         continue;
                     }
@@ -830,57 +811,78 @@ public class ProfileOrganizer {
         if (!getWriteLock())
             return;
         long start = System.currentTimeMillis();
-        try {
-            Set<PeerProfile> allPeers = _strictCapacityOrder; //new HashSet(_failingPeers.size() + _notFailingPeers.size() + _highCapacityPeers.size() + _fastPeers.size());
-            //allPeers.addAll(_failingPeers.values());
-            //allPeers.addAll(_notFailingPeers.values());
-            //allPeers.addAll(_highCapacityPeers.values());
-            //allPeers.addAll(_fastPeers.values());
-
-            Set<PeerProfile> reordered = new TreeSet<PeerProfile>(_comp);
-            long sortStart = System.currentTimeMillis();
-            for (Iterator<PeerProfile> iter = _strictCapacityOrder.iterator(); iter.hasNext(); ) {
-                PeerProfile prof = iter.next();
-                if ( (expireOlderThan > 0) && (prof.getLastSendSuccessful() <= expireOlderThan) ) {
-                    expiredCount++;
-                    continue; // drop, but no need to delete, since we don't periodically reread
-                    // TODO maybe we should delete files, otherwise they are only deleted at restart
+        if (_incremental) {
+            try {
+                long sortStart = start;
+                int[] counts = locked_updateRankings(expireOlderThan);
+                profileCount = counts[0];
+                expiredCount = counts[1];
+                sortTime = System.currentTimeMillis() - sortStart;
+
+                long thresholdStart = System.currentTimeMillis();
+                locked_calculateThresholdsIncremental();
+                thresholdTime = System.currentTimeMillis()-thresholdStart;
+
+                long placeStart = System.currentTimeMillis();
+                locked_placeIncremental();
+                locked_unfailAsNecessary();
+                locked_promoteFastAsNecessary();
+                locked_demoteFastAsNecessary();
+                locked_publish();
+                placeTime = System.currentTimeMillis()-placeStart;
+            } finally { releaseWriteLock(); }
+        } else {
+            try {
+                Set<PeerProfile> allPeers = _strictCapacityOrder; //new HashSet(_failingPeers.size() + _notFailingPeers.size() + _highCapacityPeers.size() + _fastPeers.size());
+                //allPeers.addAll(_failingPeers.values());
+                //allPeers.addAll(_notFailingPeers.values());
+                //allPeers.addAll(_highCapacityPeers.values());
+                //allPeers.addAll(_fastPeers.values());
+
+                Set<PeerProfile> reordered = new TreeSet<PeerProfile>(_comp);
+                long sortStart = System.currentTimeMillis();
+                for (Iterator<PeerProfile> iter = _strictCapacityOrder.iterator(); iter.hasNext(); ) {
+                    PeerProfile prof = iter.next();
+                    if ( (expireOlderThan > 0) && (prof.getLastSendSuccessful() <= expireOlderThan) ) {
+                        expiredCount++;
+                        continue; // drop, but no need to delete, since we don't periodically reread
+                        // TODO maybe we should delete files, otherwise they are only deleted at restart
+                    }
+                    prof.updateValues();
+                    reordered.add(prof);
+                    profileCount++;
                 }
-                prof.updateValues();
-                reordered.add(prof);
-                profileCount++;
-            }
-            sortTime = System.currentTimeMillis() - sortStart;
-            _strictCapacityOrder = reordered;
+                sortTime = System.currentTimeMillis() - sortStart;
+                _strictCapacityOrder = reordered;
 
-            long thresholdStart = System.currentTimeMillis();
-            locked_calculateThresholds(allPeers);
-            thresholdTime = System.currentTimeMillis()-thresholdStart;
+                long thresholdStart = System.currentTimeMillis();
+                locked_calculateThresholds(allPeers);
+                thresholdTime = System.currentTimeMillis()-thresholdStart;
 
-            _failingPeers.clear();
-            _fastPeers.clear();
-            _highCapacityPeers.clear();
-            _notFailingPeers.clear();
-            _notFailingPeersList.clear();
-            _wellIntegratedPeers.clear();
+                _failingPeers.clear();
+                _fastPeers.clear();
+                _highCapacityPeers.clear();
+                _notFailingPeers = new ConcurrentHashMap<Hash, PeerProfile>(_notFailingPeers.size());
+                _wellIntegratedPeers.clear();
 
-            long placeStart = System.currentTimeMillis();
+                long placeStart = System.currentTimeMillis();
 
-            for (PeerProfile profile : _strictCapacityOrder) {
-                locked_placeProfile(profile);
-            }
+                for (PeerProfile profile : _strictCapacityOrder) {
+                    locked_placeProfile(profile);
+                }
 
-            locked_unfailAsNecessary();
-            locked_demoteHighCapAsNecessary();
-            locked_promoteFastAsNecessary();
-            locked_demoteFastAsNecessary();
+                locked_unfailAsNecessary();
+                locked_demoteHighCapAsNecessary();
+                locked_promoteFastAsNecessary();
+                locked_demoteFastAsNecessary();
 
-            // we now use a random iterator in selectAllNotFailingPeers(),
-            // as it was picking peers in-order before the first reorganization
-            //Collections.shuffle(_notFailingPeersList, _context.random());
+                // we now use a random iterator in selectAllNotFailingPeers(),
+                // as it was picking peers in-order before the first reorganization
 
-            placeTime = System.currentTimeMillis()-placeStart;
-        } finally { releaseWriteLock(); }
+                locked_publish();
+                placeTime = System.currentTimeMillis()-placeStart;
+            } finally { releaseWriteLock(); }
+        }
 
 
         if (_log.shouldLog(Log.INFO))
@@ -921,7 +923,7 @@ public class ProfileOrganizer {
         if (numToPromote > 0) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("Need to explicitly promote " + numToPromote + " peers to the fast group");
-            for (PeerProfile cur : _strictCapacityOrder) {
+            for (PeerProfile cur : byCapacity()) {
                 if ( (!_fastPeers.containsKey(cur.getPeer())) && (!cur.getIsFailing()) ) {
                     if (!isSelectable(cur.getPeer())) {
                         // skip peers we dont have in the netDb
@@ -982,7 +984,7 @@ public class ProfileOrganizer {
         int numToDemote = _highCapacityPeers.size() - maxHighCapPeers;
         if (numToDemote > 0) {
             // sorted by capacity, highest-first
-            Iterator<PeerProfile> iter = _strictCapacityOrder.iterator();
+            Iterator<PeerProfile> iter = byCapacity().iterator();
             for (int i = 0; iter.hasNext() && i < maxHighCapPeers; ) {
                 if (_highCapacityPeers.containsKey(iter.next().getPeer()))
                     i++;
@@ -1023,7 +1025,9 @@ public class ProfileOrganizer {
         int needToUnfail = MIN_NOT_FAILING_ACTIVE - notFailingActive;
         if (needToUnfail > 0) {
             int unfailed = 0;
-            for (PeerProfile best : _strictCapacityOrder) {
+            // copy, locked_placeProfile() may change the ranking
+            List<PeerProfile> byCap = _incremental ? _capacityRanking.toList() : new ArrayList<PeerProfile>(_strictCapacityOrder);
+            for (PeerProfile best : byCap) {
                 if ( (best.getIsActive()) && (best.getIsFailing()) ) {
                     if (_log.shouldLog(Log.WARN))
                         _log.warn("All peers were failing, so we have overridden the failing flag for one of the most reliable active peers (" + best.getPeer().toBase64() + ")");
@@ -1037,6 +1041,186 @@ public class ProfileOrganizer {
         }
     }
     
+    /**
+     *  Copy of the tiers for the readers. Never modify the maps.
+     *
+     *  All are immutable copies except notFailing, which is the concurrent
+     *  _notFailingPeers itself, so addProfile() doesn't have to copy
+     *  all the profiles.
+     *
+     *  @since 0.9.31
+     */
+    private static class Tiers {
+        final Map<Hash, PeerProfile> fast;
+        final Map<Hash, PeerProfile> highCap;
+        final Map<Hash, PeerProfile> wellIntegrated;
+        final Map<Hash, PeerProfile> notFailing;
+        final Map<Hash, PeerProfile> failing;
+        /** notFailing keys when published, for selectAllNotFailingPeers(); do not modify */
+        final List<Hash> notFailingKeys;
+
+        /** copies everything but notFailing, which is live; snapshots its keys */
+        public Tiers(Map<Hash, PeerProfile> fast, Map<Hash, PeerProfile> highCap,
+                     Map<Hash, PeerProfile> wellIntegrated, Map<Hash, PeerProfile> notFailing,
+                     Map<Hash, PeerProfile> failing) {
+            this.fast = new HashMap<Hash, PeerProfile>(fast);
+            this.highCap = new HashMap<Hash, PeerProfile>(highCap);
+            this.wellIntegrated = new HashMap<Hash, PeerProfile>(wellIntegrated);
+            this.notFailing = notFailing;
+            this.failing = new HashMap<Hash, PeerProfile>(failing);
+            this.notFailingKeys = new ArrayList<Hash>(notFailing.keySet());
+        }
+
+        /** same as old, with a copy of a new highCap and a new snapshot of the notFailing keys */
+        public Tiers(Tiers old, Map<Hash, PeerProfile> highCap) {
+            this.fast = old.fast;
+            this.highCap = new HashMap<Hash, PeerProfile>(highCap);
+            this.wellIntegrated = old.wellIntegrated;
+            this.notFailing = old.notFailing;
+            this.failing = old.failing;
+            this.notFailingKeys = new ArrayList<Hash>(notFailing.keySet());
+        }
+    }
+
+    /**
+     *  Make the changes visible to the readers.
+     *  Call at the end of every rebuild of the tiers, with the write lock held.
+     *
+     *  @since 0.9.31
+     */
+    private void locked_publish() {
+        _tiers = new Tiers(_fastPeers, _highCapacityPeers, _wellIntegratedPeers,
+                           _notFailingPeers, _failingPeers);
+    }
+
+    /**
+     *  All peers, highest capacity first.
+     *  Caller must hold a lock. Do not modify.
+     *
+     *  @since 0.9.31
+     */
+    private Iterable<PeerProfile> byCapacity() {
+        return _incremental ? _capacityRanking : _strictCapacityOrder;
+    }
+
+    /**
+     *  Is it used for the thresholds?
+     *  Same as the test in locked_calculateThresholds().
+     *
+     *  @since 0.9.31
+     */
+    private boolean isRanked(PeerProfile profile) {
+        return !profile.getIsFailing() && profile.getIsActive() && !profile.getPeer().equals(_us);
+    }
+
+    /**
+     *  Incremental mode only.
+     *  Drop the expired profiles and update the values of the rest,
+     *  moving only those whose values changed in the rankings.
+     *
+     *  @param expireOlderThan -1 for never
+     *  @return profile count, expired count
+     *  @since 0.9.31
+     */
+    private int[] locked_updateRankings(long expireOlderThan) {
+        int profileCount = 0;
+        int expiredCount = 0;
+        int moved = 0;
+        for (PeerProfile prof : _capacityRanking.toList()) {
+            Hash peer = prof.getPeer();
+            if ( (expireOlderThan > 0) && (prof.getLastSendSuccessful() <= expireOlderThan) ) {
+                _capacityRanking.remove(peer);
+                _activeRanking.remove(peer);
+                expiredCount++;
+                continue;
+            }
+            prof.updateValues();
+            if (_capacityRanking.update(prof))
+                moved++;
+            if (isRanked(prof))
+                _activeRanking.update(prof);
+            else
+                _activeRanking.remove(peer);
+            profileCount++;
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Incremental reorg: " + moved + " of " + profileCount + " moved, " + expiredCount + " expired");
+        return new int[] { profileCount, expiredCount };
+    }
+
+    /**
+     *  Incremental mode only.
+     *  Same as locked_calculateThresholds(), using the order statistics
+     *  of the active ranking instead of sorting.
+     *
+     *  @since 0.9.31
+     */
+    private void locked_calculateThresholdsIncremental() {
+        ProfileRanking r = _activeRanking;
+        int sz = r.size();
+        double meanCapacity = avg(r.getCapacitySum(), sz);
+        int minHighCapacityPeers = getMinimumHighCapacityPeers();
+        double thresholdAtMedian = sz > 0 ? r.getCapacity(sz / 2) : 0;
+        double thresholdAtMinHighCap = (minHighCapacityPeers > 0 && minHighCapacityPeers <= sz) ?
+                                       r.getCapacity(minHighCapacityPeers - 1) : 0;
+        double thresholdAtLowest = sz > 0 ? r.getCapacity(sz - 1) : CapacityCalculator.GROWTH_FACTOR;
+        locked_setCapacityThreshold(meanCapacity, sz, r.countAbove(meanCapacity),
+                                    thresholdAtMedian, thresholdAtMinHighCap, thresholdAtLowest);
+
+        // mean speed of those at or above the capacity threshold
+        int count = r.countAtLeast(_thresholdCapacityValue);
+        if (count > 0)
+            _thresholdSpeedValue = r.getSpeedSum(count) / count;
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Threshold value for speed: " + _thresholdSpeedValue + " out of speeds: " + count);
+
+        double totalIntegration = r.getIntegrationSum();
+        if (totalIntegration > 0)
+            _thresholdIntegrationValue = 1.0d * avg(totalIntegration, sz);
+        else    // Make nobody rather than everybody well-integrated
+            _thresholdIntegrationValue = 1.0d;
+    }
+
+    /**
+     *  Incremental mode only.
+     *  Same result as placing every profile with locked_placeProfile()
+     *  followed by locked_demoteHighCapAsNecessary(), but the high capacity
+     *  and fast tiers come from the top of the capacity ranking only,
+     *  so we don't check whether every profile above the threshold is selectable.
+     *
+     *  @since 0.9.31
+     */
+    private void locked_placeIncremental() {
+        _failingPeers.clear();
+        _fastPeers.clear();
+        _highCapacityPeers.clear();
+        _notFailingPeers = new ConcurrentHashMap<Hash, PeerProfile>(_notFailingPeers.size());
+        _wellIntegratedPeers.clear();
+        int maxHighCapPeers = getMaximumHighCapPeers();
+        for (PeerProfile profile : _capacityRanking) {
+            Hash peer = profile.getPeer();
+            if (profile.getIsFailing()) {
+                if (!shouldDrop(profile))
+                    _failingPeers.put(peer, profile);
+                continue;
+            }
+            _notFailingPeers.put(peer, profile);
+            if (_thresholdIntegrationValue <= profile.getIntegrationValue())
+                _wellIntegratedPeers.put(peer, profile);
+            if (_highCapacityPeers.size() >= maxHighCapPeers ||
+                _thresholdCapacityValue > profile.getCapacityValue())
+                continue;
+            // if not selectable for a tunnel (banlisted for example),
+            // don't allow them in the high-cap pool, what would the point of that be?
+            if (isSelectable(peer) &&
+                !_context.commSystem().isInBadCountry(peer)) {
+                _highCapacityPeers.put(peer, profile);
+                if (_thresholdSpeedValue <= profile.getSpeedValue() && profile.getIsActive())
+                    _fastPeers.put(peer, profile);
+            }
+        }
+    }
+
     ////////
     // no more public stuff below
     ////////
@@ -1114,7 +1298,21 @@ public class ProfileOrganizer {
                 thresholdAtLowest = val;
             cur++;
         }
-        
+        locked_setCapacityThreshold(meanCapacity, numNotFailing, numExceedingMean,
+                                    thresholdAtMedian, thresholdAtMinHighCap, thresholdAtLowest);
+    }
+
+    /**
+     *  The decision part of locked_calculateCapacityThreshold(),
+     *  pulled out so the incremental mode can use it.
+     *
+     *  @param numNotFailing number of active nonfailing peers
+     *  @since 0.9.31
+     */
+    private void locked_setCapacityThreshold(double meanCapacity, int numNotFailing, int numExceedingMean,
+                                             double thresholdAtMedian, double thresholdAtMinHighCap,
+                                             double thresholdAtLowest) {
+        int minHighCapacityPeers = getMinimumHighCapacityPeers();
         if (numExceedingMean >= minHighCapacityPeers) {
             // our average is doing well (growing, not recovering from failures)
             if (_log.shouldLog(Log.INFO))
@@ -1122,13 +1320,13 @@ public class ProfileOrganizer {
                           + "], and includes " + numExceedingMean);
             _thresholdCapacityValue = meanCapacity;
         } else if (meanCapacity > thresholdAtMedian &&
-                   reordered.size()/2 > minHighCapacityPeers) {
+                   numNotFailing/2 > minHighCapacityPeers) {
             // avg > median, get the min High Cap peers
             if (_log.shouldLog(Log.INFO))
                 _log.info("Our average capacity [" + meanCapacity + "] is greater than the median,"
                           + " so threshold is that reqd to get the min high cap peers " + thresholdAtMinHighCap);
             _thresholdCapacityValue = thresholdAtMinHighCap;
-        } else if (reordered.size()/2 >= minHighCapacityPeers) {
+        } else if (numNotFailing/2 >= minHighCapacityPeers) {
             // ok mean is skewed low, but we still have enough to use the median
             // We really don't want to be here, since the default is 5.0 and the median
             // is inevitably 5.01 or so.
@@ -1219,12 +1417,12 @@ public class ProfileOrganizer {
             return 0.0d;
     }
     
-    /** called after locking the reorganizeLock */
-    private PeerProfile locked_getProfile(Hash peer) {
-        PeerProfile cur = _notFailingPeers.get(peer);
+    /** @since 0.9.31 was locked_getProfile() */
+    private static PeerProfile getProfile(Tiers t, Hash peer) {
+        PeerProfile cur = t.notFailing.get(peer);
         if (cur != null) 
             return cur;
-        cur = _failingPeers.get(peer);
+        cur = t.failing.get(peer);
         return cur;
     }
     
@@ -1385,7 +1583,6 @@ public class ProfileOrganizer {
             _highCapacityPeers.remove(peer);
             _wellIntegratedPeers.remove(peer);
             _notFailingPeers.remove(peer);
-            _notFailingPeersList.remove(peer);
         } else {
             _failingPeers.remove(peer);
             _fastPeers.remove(peer);
@@ -1393,7 +1590,6 @@ public class ProfileOrganizer {
             _wellIntegratedPeers.remove(peer);
             
             _notFailingPeers.put(peer, profile);
-            _notFailingPeersList.add(peer);
             // if not selectable for a tunnel (banlisted for example),
             // don't allow them in the high-cap pool, what would the point of that be?
             if (_thresholdCapacityValue <= profile.getCapacityValue() &&
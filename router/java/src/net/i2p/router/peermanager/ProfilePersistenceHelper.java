@@ -2,6 +2,12 @@ package net.i2p.router.peermanager;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
@@ -9,9 +15,12 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
@@ -21,6 +30,7 @@ import net.i2p.data.Base64;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
 import net.i2p.router.RouterContext;
+import net.i2p.router.util.RecordLog;
 import net.i2p.util.FileUtil;
 import net.i2p.util.Log;
 import net.i2p.util.SecureDirectory;
@@ -32,6 +42,11 @@ import net.i2p.util.SecureFileOutputStream;
  *  The files are gzip compressed, we previously stored them
  *  with a ".dat" extension instead of ".txt.gz", so it wasn't apparent.
  *  Now migrated to a ".txt.gz" extension.
+ *
+ *  As of 0.9.31, if router.profiles.singleFile=true, profiles are instead
+ *  stored in a compact binary form in a single ProfileLog, and only
+ *  the ones that have changed are written. Existing text files are
+ *  migrated to the log and deleted at startup.
  */
 class ProfilePersistenceHelper {
     private final Log _log;
@@ -47,6 +62,11 @@ class ProfilePersistenceHelper {
     private static final int MIN_NAME_LENGTH = PREFIX.length() + 44 + OLD_SUFFIX.length();
     private static final String DIR_PREFIX = "p";
     private static final String B64 = Base64.ALPHABET_I2P;
+    /** @since 0.9.31 */
+    public static final String PROP_SINGLE_FILE = "router.profiles.singleFile";
+    /** for the binary form */
+    private static final int FLAG_EXPANDED = 0x01;
+    private static final int FLAG_EXPANDED_DB = 0x02;
     
     /**
      * If we haven't been able to get a message through to the peer in this much time,
@@ -57,6 +77,8 @@ class ProfilePersistenceHelper {
     private static final long EXPIRE_AGE = 15*24*60*60*1000;
     
     private final File _profileDir;
+    /** null unless PROP_SINGLE_FILE */
+    private final ProfileLog _profileLog;
     private Hash _us;
     
     public ProfilePersistenceHelper(RouterContext ctx) {
@@ -71,12 +93,21 @@ class ProfilePersistenceHelper {
             if (!subdir.exists())
                 subdir.mkdir();
         }
+        _profileLog = _context.getBooleanProperty(PROP_SINGLE_FILE) ? new ProfileLog(ctx, _profileDir) : null;
     }
     
     public void setUs(Hash routerIdentHash) { _us = routerIdentHash; }
     
-    /** write out the data from the profile to the stream */
+    /**
+     *  Write out the data from the profile to its file.
+     *  With the single file, it is appended but not synced,
+     *  the next writeProfiles() does that.
+     */
     public void writeProfile(PeerProfile profile) {
+        if (_profileLog != null) {
+            writeProfiles(Collections.singletonList(profile), false);
+            return;
+        }
         if (isExpired(profile.getLastSendSuccessful()))
             return;
         
@@ -176,7 +207,144 @@ class ProfilePersistenceHelper {
         buf.append(name).append('=').append(val).append(NL).append(NL);
     }
     
+    /**
+     *  Write out all the profiles.
+     *  With the single file, only those that have changed are written,
+     *  and expired ones are removed, then the log is synced once for the batch.
+     *
+     *  @since 0.9.31
+     */
+    public void writeProfiles(Collection<PeerProfile> profiles) {
+        writeProfiles(profiles, true);
+    }
+
+    /**
+     *  @param sync with the single file, sync and maybe compact after the batch
+     *  @since 0.9.31
+     */
+    private void writeProfiles(Collection<PeerProfile> profiles, boolean sync) {
+        if (_profileLog == null) {
+            for (PeerProfile prof : profiles) {
+                writeProfile(prof);
+            }
+            return;
+        }
+        long before = System.currentTimeMillis();
+        int written = 0;
+        int removed = 0;
+        try {
+            if (!_profileLog.isOpen())
+                _profileLog.load();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(2048);
+            DataOutputStream out = new DataOutputStream(baos);
+            for (PeerProfile prof : profiles) {
+                if (isExpired(prof.getLastSendSuccessful())) {
+                    if (_profileLog.remove(prof.getPeer()))
+                        removed++;
+                    continue;
+                }
+                baos.reset();
+                writeBinaryProfile(prof, out);
+                out.flush();
+                if (_profileLog.write(prof.getPeer(), ProfileLog.TYPE_PROFILE_V1, baos.toByteArray()))
+                    written++;
+            }
+            if (!sync)
+                return;
+            _profileLog.sync();
+            if (_profileLog.shouldCompact())
+                _profileLog.compact();
+        } catch (IOException ioe) {
+            _log.error("Error writing profile log", ioe);
+        }
+        long delay = System.currentTimeMillis() - before;
+        _profileLog.storeTime(delay);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Wrote " + written + " changed profiles of " + profiles.size() +
+                      ", removed " + removed + " expired, in " + delay + "ms");
+    }
+
+    /**
+     *  Write out the data from the profile in a compact binary form,
+     *  the same data as the text form.
+     *  Version ProfileLog.TYPE_PROFILE_V1.
+     *
+     *  @since 0.9.31
+     */
+    void writeBinaryProfile(PeerProfile profile, DataOutput out) throws IOException {
+        out.writeInt(profile.getSpeedBonus());
+        out.writeInt(profile.getCapacityBonus());
+        out.writeInt(profile.getIntegrationBonus());
+        out.writeLong(profile.getFirstHeardAbout());
+        out.writeLong(profile.getLastHeardAbout());
+        out.writeLong(profile.getLastHeardFrom());
+        out.writeLong(profile.getLastSendSuccessful());
+        out.writeLong(profile.getLastSendFailed());
+        out.writeFloat(profile.getTunnelTestTimeAverage());
+        out.writeFloat(profile.getPeakThroughputKBps());
+        out.writeFloat(profile.getPeakTunnelThroughputKBps());
+        out.writeFloat(profile.getPeakTunnel1mThroughputKBps());
+        int flags = 0;
+        if (profile.getIsExpanded())
+            flags |= FLAG_EXPANDED;
+        // as in readProfile(File), only if there is something interesting there
+        if (profile.getIsExpandedDB()) {
+            DBHistory dh = profile.getDBHistory();
+            if (dh.getLastLookupSuccessful() > 0 || dh.getLastLookupFailed() > 0 ||
+                dh.getLastStoreSuccessful() > 0 || dh.getLastStoreFailed() > 0)
+                flags |= FLAG_EXPANDED_DB;
+        }
+        out.writeByte(flags);
+        if ((flags & FLAG_EXPANDED) != 0) {
+            profile.getTunnelHistory().store(out);
+            profile.getTunnelCreateResponseTime().store(out);
+            profile.getTunnelTestResponseTime().store(out);
+        }
+        if ((flags & FLAG_EXPANDED_DB) != 0) {
+            profile.getDBHistory().store(out);
+            profile.getDbIntroduction().store(out);
+            profile.getDbResponseTime().store(out);
+        }
+    }
+
+    /**
+     *  Read the data written by writeBinaryProfile()
+     *
+     *  @throws IOException if truncated
+     *  @since 0.9.31
+     */
+    PeerProfile readBinaryProfile(Hash peer, DataInput in) throws IOException {
+        PeerProfile profile = new PeerProfile(_context, peer);
+        profile.setSpeedBonus(in.readInt());
+        profile.setCapacityBonus(in.readInt());
+        profile.setIntegrationBonus(in.readInt());
+        profile.setFirstHeardAbout(in.readLong());
+        profile.setLastHeardAbout(in.readLong());
+        profile.setLastHeardFrom(in.readLong());
+        profile.setLastSendSuccessful(in.readLong());
+        profile.setLastSendFailed(in.readLong());
+        profile.setTunnelTestTimeAverage(in.readFloat());
+        profile.setPeakThroughputKBps(in.readFloat());
+        profile.setPeakTunnelThroughputKBps(in.readFloat());
+        profile.setPeakTunnel1mThroughputKBps(in.readFloat());
+        int flags = in.readUnsignedByte();
+        if ((flags & FLAG_EXPANDED) != 0) {
+            profile.getTunnelHistory().load(in);
+            profile.getTunnelCreateResponseTime().load(in);
+            profile.getTunnelTestResponseTime().load(in);
+        }
+        if ((flags & FLAG_EXPANDED_DB) != 0) {
+            profile.expandDBProfile();
+            profile.getDBHistory().load(in);
+            profile.getDbIntroduction().load(in);
+            profile.getDbResponseTime().load(in);
+        }
+        return profile;
+    }
+
     public Set<PeerProfile> readProfiles() {
+        if (_profileLog != null)
+            return readProfileLog();
         long start = _context.clock().now();
         List<File> files = selectFiles();
         Set<PeerProfile> profiles = new HashSet<PeerProfile>(files.size());
@@ -191,6 +359,86 @@ class ProfilePersistenceHelper {
         return profiles;
     }
     
+    /**
+     *  Read the single file, then migrate any text files to it.
+     *
+     *  @since 0.9.31
+     */
+    private Set<PeerProfile> readProfileLog() {
+        long start = System.currentTimeMillis();
+        Map<Hash, RecordLog.Record> records;
+        try {
+            records = _profileLog.load();
+        } catch (IOException ioe) {
+            _log.error("Error reading profile log", ioe);
+            return new HashSet<PeerProfile>(0);
+        }
+        Set<PeerProfile> profiles = new HashSet<PeerProfile>(records.size());
+        Set<Hash> peers = new HashSet<Hash>(records.size());
+        List<Hash> toRemove = new ArrayList<Hash>();
+        for (Map.Entry<Hash, RecordLog.Record> e : records.entrySet()) {
+            Hash peer = e.getKey();
+            RecordLog.Record rec = e.getValue();
+            if (rec.type != ProfileLog.TYPE_PROFILE_V1) {
+                // from a newer version, will be replaced at the next store
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Unknown profile format " + rec.type + " for " + peer);
+                continue;
+            }
+            PeerProfile profile;
+            try {
+                profile = readBinaryProfile(peer, new DataInputStream(new ByteArrayInputStream(rec.data)));
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Corrupt profile for " + peer, ioe);
+                toRemove.add(peer);
+                continue;
+            }
+            if (isExpired(profile.getLastSendSuccessful())) {
+                toRemove.add(peer);
+                continue;
+            }
+            fixupFirstHeardAbout(profile);
+            profiles.add(profile);
+            peers.add(peer);
+        }
+        int fromLog = profiles.size();
+
+        List<File> files = selectFiles();
+        List<PeerProfile> migrated = new ArrayList<PeerProfile>(files.size());
+        for (File f : files) {
+            // deletes it if expired
+            PeerProfile profile = readProfile(f);
+            if (profile != null && peers.add(profile.getPeer())) {
+                profiles.add(profile);
+                migrated.add(profile);
+            }
+        }
+        try {
+            for (Hash peer : toRemove) {
+                _profileLog.remove(peer);
+            }
+            for (PeerProfile prof : migrated) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(2048);
+                DataOutputStream out = new DataOutputStream(baos);
+                writeBinaryProfile(prof, out);
+                out.flush();
+                _profileLog.write(prof.getPeer(), ProfileLog.TYPE_PROFILE_V1, baos.toByteArray());
+            }
+            _profileLog.sync();
+            // only delete the files once they are safely in the log
+            for (File f : files) {
+                f.delete();
+            }
+        } catch (IOException ioe) {
+            _log.error("Error migrating profiles to the profile log", ioe);
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Loaded " + fromLog + " profiles from the profile log and migrated " + migrated.size() +
+                      " from files in " + (System.currentTimeMillis() - start) + "ms");
+        return profiles;
+    }
+
     private static class ProfileFilter implements FilenameFilter {
         public boolean accept(File dir, String filename) {
             return (filename.startsWith(PREFIX) &&
@@ -237,6 +485,17 @@ class ProfilePersistenceHelper {
      */
     public void deleteOldProfiles(long age) {
         long cutoff = System.currentTimeMillis() - age;
+        if (_profileLog != null) {
+            try {
+                int removed = _profileLog.removeOlderThan(_context.clock().now() - age);
+                _profileLog.sync();
+                if (_log.shouldWarn())
+                    _log.warn("Removed " + removed + " old profiles from the profile log");
+            } catch (IOException ioe) {
+                _log.error("Error writing profile log", ioe);
+            }
+            return;
+        }
         List<File> files = selectFiles();
         int i = 0;
         for (File f :  files) {
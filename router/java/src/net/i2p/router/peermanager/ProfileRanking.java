@@ -0,0 +1,352 @@
+package net.i2p.router.peermanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+
+/**
+ * Profiles ordered by capacity, highest first, in the same order as
+ * InverseCapacityComparator, with order statistics,
+ * so ProfileOrganizer can find the thresholds without sorting everybody.
+ *
+ * This is a treap with subtree sizes and sums. The capacity, speed, and
+ * integration values are copied in at update(), so the order does not
+ * change underneath us when the profile values change; call update() again.
+ *
+ * All operations are O(log(n)) except iteration and toList().
+ *
+ * Not thread safe.
+ *
+ * @since 0.9.31
+ */
+class ProfileRanking implements Iterable<PeerProfile> {
+    private final Map<Hash, Node> _nodes;
+    private final Random _rand;
+    private Node _root;
+
+    public ProfileRanking() {
+        _nodes = new HashMap<Hash, Node>(256);
+        _rand = new Random();
+    }
+
+    public int size() {
+        return _nodes.size();
+    }
+
+    public boolean contains(Hash peer) {
+        return _nodes.containsKey(peer);
+    }
+
+    public void clear() {
+        _nodes.clear();
+        _root = null;
+    }
+
+    /**
+     *  Add the profile, or move it if its values have changed
+     *  since it was last added or updated.
+     *
+     *  @return true if added or moved
+     */
+    public boolean update(PeerProfile prof) {
+        Hash peer = prof.getPeer();
+        Node old = _nodes.get(peer);
+        if (old != null) {
+            if (old.profile == prof &&
+                old.capacity == prof.getCapacityValue() &&
+                old.speed == prof.getSpeedValue() &&
+                old.integration == prof.getIntegrationValue())
+                return false;
+            _root = remove(_root, old);
+        }
+        Node n = new Node(prof, _rand.nextInt());
+        _nodes.put(peer, n);
+        _root = insert(_root, n);
+        return true;
+    }
+
+    /**
+     *  @return true if it was there
+     */
+    public boolean remove(Hash peer) {
+        Node old = _nodes.remove(peer);
+        if (old == null)
+            return false;
+        _root = remove(_root, old);
+        return true;
+    }
+
+    /** sum of capacity values */
+    public double getCapacitySum() {
+        return _root != null ? _root.capacitySum : 0;
+    }
+
+    /** sum of integration values */
+    public double getIntegrationSum() {
+        return _root != null ? _root.integrationSum : 0;
+    }
+
+    /**
+     *  @param rank 0 is the highest capacity
+     *  @throws IndexOutOfBoundsException
+     */
+    public PeerProfile get(int rank) {
+        return select(rank).profile;
+    }
+
+    /**
+     *  The value as of the last update()
+     *  @param rank 0 is the highest capacity
+     *  @throws IndexOutOfBoundsException
+     */
+    public double getCapacity(int rank) {
+        return select(rank).capacity;
+    }
+
+    /**
+     *  @return how many have a capacity greater than val
+     */
+    public int countAbove(double val) {
+        int rv = 0;
+        Node n = _root;
+        while (n != null) {
+            if (n.capacity > val) {
+                rv += size(n.left) + 1;
+                n = n.right;
+            } else {
+                n = n.left;
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  @return how many have a capacity greater than or equal to val
+     */
+    public int countAtLeast(double val) {
+        int rv = 0;
+        Node n = _root;
+        while (n != null) {
+            if (n.capacity >= val) {
+                rv += size(n.left) + 1;
+                n = n.right;
+            } else {
+                n = n.left;
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  @param count how many, starting with the highest capacity
+     *  @return sum of the speed values of those
+     */
+    public double getSpeedSum(int count) {
+        double rv = 0;
+        Node n = _root;
+        while (n != null && count > 0) {
+            int ls = size(n.left);
+            if (count <= ls) {
+                n = n.left;
+            } else {
+                rv += (n.left != null ? n.left.speedSum : 0) + n.speed;
+                count -= ls + 1;
+                n = n.right;
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  A copy, highest capacity first
+     */
+    public List<PeerProfile> toList() {
+        List<PeerProfile> rv = new ArrayList<PeerProfile>(size());
+        for (PeerProfile p : this) {
+            rv.add(p);
+        }
+        return rv;
+    }
+
+    /**
+     *  Highest capacity first.
+     *  Do not update() or remove() while iterating. Iterator.remove() not supported.
+     */
+    public Iterator<PeerProfile> iterator() {
+        return new RankIterator();
+    }
+
+    ////// treap internals
+
+    private static class Node {
+        final PeerProfile profile;
+        final byte[] peer;
+        final double capacity, speed, integration;
+        final int priority;
+        Node left, right;
+        int size;
+        double capacitySum, speedSum, integrationSum;
+
+        Node(PeerProfile prof, int prio) {
+            profile = prof;
+            peer = prof.getPeer().getData();
+            capacity = prof.getCapacityValue();
+            speed = prof.getSpeedValue();
+            integration = prof.getIntegrationValue();
+            priority = prio;
+            recalc();
+        }
+
+        void recalc() {
+            size = 1;
+            capacitySum = capacity;
+            speedSum = speed;
+            integrationSum = integration;
+            if (left != null) {
+                size += left.size;
+                capacitySum += left.capacitySum;
+                speedSum += left.speedSum;
+                integrationSum += left.integrationSum;
+            }
+            if (right != null) {
+                size += right.size;
+                capacitySum += right.capacitySum;
+                speedSum += right.speedSum;
+                integrationSum += right.integrationSum;
+            }
+        }
+    }
+
+    private static int size(Node n) {
+        return n != null ? n.size : 0;
+    }
+
+    /**
+     *  Same as InverseCapacityComparator
+     *  @return negative if l comes first
+     */
+    private static int compare(Node l, Node r) {
+        if (l.capacity != r.capacity)
+            return l.capacity > r.capacity ? -1 : 1;
+        if (l.speed != r.speed)
+            return l.speed > r.speed ? -1 : 1;
+        return DataHelper.compareTo(r.peer, l.peer);
+    }
+
+    private static Node insert(Node t, Node n) {
+        if (t == null)
+            return n;
+        if (compare(n, t) < 0) {
+            t.left = insert(t.left, n);
+            if (t.left.priority > t.priority)
+                t = rotateRight(t);
+        } else {
+            t.right = insert(t.right, n);
+            if (t.right.priority > t.priority)
+                t = rotateLeft(t);
+        }
+        t.recalc();
+        return t;
+    }
+
+    private static Node remove(Node t, Node n) {
+        if (t == null)
+            return null;
+        if (t == n)
+            return merge(t.left, t.right);
+        if (compare(n, t) < 0)
+            t.left = remove(t.left, n);
+        else
+            t.right = remove(t.right, n);
+        t.recalc();
+        return t;
+    }
+
+    /** all of l comes before all of r */
+    private static Node merge(Node l, Node r) {
+        if (l == null)
+            return r;
+        if (r == null)
+            return l;
+        if (l.priority > r.priority) {
+            l.right = merge(l.right, r);
+            l.recalc();
+            return l;
+        }
+        r.left = merge(l, r.left);
+        r.recalc();
+        return r;
+    }
+
+    private static Node rotateRight(Node t) {
+        Node l = t.left;
+        t.left = l.right;
+        t.recalc();
+        l.right = t;
+        return l;
+    }
+
+    private static Node rotateLeft(Node t) {
+        Node r = t.right;
+        t.right = r.left;
+        t.recalc();
+        r.left = t;
+        return r;
+    }
+
+    private Node select(int rank) {
+        if (rank < 0 || rank >= size())
+            throw new IndexOutOfBoundsException(rank + " size " + size());
+        Node n = _root;
+        while (true) {
+            int ls = size(n.left);
+            if (rank < ls) {
+                n = n.left;
+            } else if (rank == ls) {
+                return n;
+            } else {
+                rank -= ls + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    /** in-order */
+    private class RankIterator implements Iterator<PeerProfile> {
+        private final List<Node> _stack = new ArrayList<Node>(32);
+
+        public RankIterator() {
+            push(_root);
+        }
+
+        private void push(Node n) {
+            while (n != null) {
+                _stack.add(n);
+                n = n.left;
+            }
+        }
+
+        public boolean hasNext() {
+            return !_stack.isEmpty();
+        }
+
+        public PeerProfile next() {
+            if (_stack.isEmpty())
+                throw new NoSuchElementException();
+            Node n = _stack.remove(_stack.size() - 1);
+            push(n.right);
+            return n.profile;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
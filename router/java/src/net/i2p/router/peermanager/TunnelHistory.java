@@ -1,5 +1,7 @@
 package net.i2p.router.peermanager;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Date;
@@ -189,6 +191,46 @@ public class TunnelHistory {
         }
     }
     
+    /**
+     *  Compact binary form of the same data as store(OutputStream),
+     *  for ProfileLog.
+     *
+     *  @since 0.9.31
+     */
+    public void store(DataOutput out) throws IOException {
+        out.writeLong(_lastAgreedTo);
+        out.writeLong(_lastFailed);
+        out.writeLong(_lastRejectedCritical);
+        out.writeLong(_lastRejectedBandwidth);
+        out.writeLong(_lastRejectedTransient);
+        out.writeLong(_lastRejectedProbabalistic);
+        out.writeLong(_lifetimeAgreedTo.get());
+        out.writeLong(_lifetimeFailed.get());
+        out.writeLong(_lifetimeRejected.get());
+        _rejectRate.store(out);
+        _failRate.store(out);
+    }
+
+    /**
+     *  Load the data written by store(DataOutput)
+     *
+     *  @throws IOException on EOF
+     *  @since 0.9.31
+     */
+    public void load(DataInput in) throws IOException {
+        _lastAgreedTo = in.readLong();
+        _lastFailed = in.readLong();
+        _lastRejectedCritical = in.readLong();
+        _lastRejectedBandwidth = in.readLong();
+        _lastRejectedTransient = in.readLong();
+        _lastRejectedProbabalistic = in.readLong();
+        _lifetimeAgreedTo.set(in.readLong());
+        _lifetimeFailed.set(in.readLong());
+        _lifetimeRejected.set(in.readLong());
+        _rejectRate.load(in);
+        _failRate.load(in);
+    }
+    
     private final static long getLong(Properties props, String key) {
         return ProfilePersistenceHelper.getLong(props, key);
     }
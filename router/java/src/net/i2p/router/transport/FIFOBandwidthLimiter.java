@@ -3,7 +3,10 @@ package net.i2p.router.transport;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -15,27 +18,26 @@ import net.i2p.util.Log;
 /**
  *  Concurrent plan:
  *
- *  It's difficult to get rid of the locks on _pendingInboundRequests
- *  since locked_satisyInboundAvailable() leaves Requests on the head
- *  of the queue.
+ *  The available byte counts are token buckets in AtomicIntegers.
+ *  When nothing is queued and the bucket has enough, a request is
+ *  granted with a single CAS and no object allocation (the 'shortcut' methods).
+ *  Tokens are never taken with a plain get-then-add, so concurrent
+ *  requests can't drive the bucket below zero, and the refiller
+ *  CASes its update too, so it can't undo a concurrent grant.
  *
- *  When we go to Java 6, we can convert from a locked ArrayList to
- *  a LinkedBlockingDeque, where locked_sIA will poll() from the
- *  head of the queue, and if the request is not fully satisfied,
- *  offerFirst() (i.e. push) it back on the head.
- *
- *  Ditto outbound of course.
- *
- *  In the meantime, for Java 5, we have lockless 'shortcut'
- *  methods for the common case where we are under the bandwidth limits.
- *  And the volatile counters are now AtomicIntegers / AtomicLongs.
+ *  Only when the bucket runs dry is a SimpleRequest created and queued.
+ *  The pending queues are lock-free for adds and the empty check;
+ *  the lock on each queue is only held while satisfying queued requests,
+ *  which may leave a partially-satisfied Request on the head of the queue.
  *
  */
 public class FIFOBandwidthLimiter {
     private final Log _log;
     private final I2PAppContext _context;
-    private final List<SimpleRequest> _pendingInboundRequests;
-    private final List<SimpleRequest> _pendingOutboundRequests;
+    /** add and isEmpty() are lock-free, synch on it to satisfy or remove */
+    private final Queue<SimpleRequest> _pendingInboundRequests;
+    /** add and isEmpty() are lock-free, synch on it to satisfy or remove */
+    private final Queue<SimpleRequest> _pendingOutboundRequests;
     /** how many bytes we can consume for inbound transmission immediately */
     private final AtomicInteger _availableInbound = new AtomicInteger();
     /** how many bytes we can consume for outbound transmission immediately */
@@ -91,8 +93,8 @@ public class FIFOBandwidthLimiter {
         _context.statManager().createRateStat("bwLimiter.pendingInboundRequests", "How many inbound requests are ahead of the current one (ignoring ones with 0)?", "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
         _context.statManager().createRateStat("bwLimiter.outboundDelayedTime", "How long it takes to honor an outbound request (ignoring ones with that go instantly)?", "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
         _context.statManager().createRateStat("bwLimiter.inboundDelayedTime", "How long it takes to honor an inbound request (ignoring ones with that go instantly)?", "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
-        _pendingInboundRequests = new ArrayList<SimpleRequest>(16);
-        _pendingOutboundRequests = new ArrayList<SimpleRequest>(16);
+        _pendingInboundRequests = new ConcurrentLinkedQueue<SimpleRequest>();
+        _pendingOutboundRequests = new ConcurrentLinkedQueue<SimpleRequest>();
         _lastTotalSent = _totalAllocatedOutboundBytes.get();
         _lastTotalReceived = _totalAllocatedInboundBytes.get();
         _lastStatsUpdated = now();
@@ -214,11 +216,9 @@ public class FIFOBandwidthLimiter {
     private void requestInbound(SimpleRequest req, int bytesIn, String purpose) {
         // don't init twice - uncomment if we make public again?
         //req.init(bytesIn, 0, purpose);
-        int pending;
-        synchronized (_pendingInboundRequests) {
-            pending = _pendingInboundRequests.size();
-            _pendingInboundRequests.add(req);
-        }
+        // size() is O(n) but we are already in the slow path
+        int pending = _pendingInboundRequests.size();
+        _pendingInboundRequests.offer(req);
         satisfyInboundRequests(req.satisfiedBuffer);
         req.satisfiedBuffer.clear();
         if (pending > 0)
@@ -240,11 +240,9 @@ public class FIFOBandwidthLimiter {
     private void requestOutbound(SimpleRequest req, int bytesOut, String purpose) {
         // don't init twice - uncomment if we make public again?
         //req.init(0, bytesOut, purpose);
-        int pending;
-        synchronized (_pendingOutboundRequests) {
-            pending = _pendingOutboundRequests.size();
-            _pendingOutboundRequests.add(req);
-        }
+        // size() is O(n) but we are already in the slow path
+        int pending = _pendingOutboundRequests.size();
+        _pendingOutboundRequests.offer(req);
         satisfyOutboundRequests(req.satisfiedBuffer);
         req.satisfiedBuffer.clear();
         if (pending > 0)
@@ -283,77 +281,97 @@ public class FIFOBandwidthLimiter {
         //if (_log.shouldLog(Log.DEBUG))
         //    _log.debug("Refilling the queues with " + bytesInbound + "/" + bytesOutbound + ": " + getStatus().toString());
 
-        // Take some care throughout to minimize accesses to the atomics,
-        // both for efficiency and to not let strange things happen if
-        // it changes out from under us
-        // This never had locks before concurrent, anyway
-
-        // FIXME wrap - change to AtomicLong or detect
-        int avi = _availableInbound.addAndGet((int) bytesInbound);
-        if (avi > _maxInbound) {
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("available inbound (" + avi + ") exceeds our inbound burst (" + _maxInbound + "), so no supplement");
-            int uib = _unavailableInboundBurst.addAndGet(avi - _maxInbound);
-            _availableInbound.set(_maxInbound);
-            if (uib > _maxInboundBurst) {
-                //_totalWastedInboundBytes.addAndGet(uib - _maxInboundBurst);
-                _unavailableInboundBurst.set(_maxInboundBurst);
-            }
-        } else {
-            // try to pull in up to 1/10th of the burst rate, since we refill every 100ms
-            int want = (int)maxBurstIn;
-            if (want > (_maxInbound - avi))
-                want = _maxInbound - avi;
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("want to pull " + want + " from the inbound burst (" + _unavailableInboundBurst + ") to supplement " + avi + " (max: " + _maxInbound + ")");
-            
-            if (want > 0) {
-                int uib = _unavailableInboundBurst.get();
-                if (want <= uib) {
-                    _availableInbound.addAndGet(want);
-                    _unavailableInboundBurst.addAndGet(0 - want);
-                } else {
-                    _availableInbound.addAndGet(uib);
-                    _unavailableInboundBurst.set(0);
-                }
+        // Consumers may be taking from the available counts concurrently,
+        // so refill() only moves tokens with CAS or add, never a blind set.
+        // The burst counts are only changed here, in the refiller thread.
+        refill(_availableInbound, _unavailableInboundBurst, bytesInbound,
+               _maxInbound, _maxInboundBurst, maxBurstIn);
+        refill(_availableOutbound, _unavailableOutboundBurst, bytesOutbound,
+               _maxOutbound, _maxOutboundBurst, maxBurstOut);
+        
+        satisfyRequests(buf);
+        updateStats();
+    }
+    
+    /**
+     *  Add bytes to the available bucket, up to max.
+     *  Any excess goes to the burst bucket, up to maxBurst, and the rest is wasted.
+     *  If there was no excess, pull up to maxBurstPull from the burst bucket.
+     *
+     *  @param maxBurstPull may be negative
+     *  @since 0.9.31 pulled out of refillBandwidthQueues()
+     */
+    private static void refill(AtomicInteger available, AtomicInteger burst, long bytes,
+                               int max, int maxBurst, long maxBurstPull) {
+        int avail;
+        long excess;
+        while (true) {
+            int cur = available.get();
+            long total = cur + bytes;
+            if (total > max) {
+                avail = max;
+                excess = total - max;
+            } else {
+                avail = (int) total;
+                excess = 0;
             }
+            if (available.compareAndSet(cur, avail))
+                break;
         }
-        
-        int avo = _availableOutbound.addAndGet((int) bytesOutbound);
-        if (avo > _maxOutbound) {
+        if (excess > 0) {
             //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("available outbound (" + avo + ") exceeds our outbound burst (" + _maxOutbound + "), so no supplement");
-            int uob = _unavailableOutboundBurst.getAndAdd(avo - _maxOutbound);
-            _availableOutbound.set(_maxOutbound);
-
-            if (uob > _maxOutboundBurst) {
-                //_totalWastedOutboundBytes.getAndAdd(uob - _maxOutboundBurst);
-                _unavailableOutboundBurst.set(_maxOutboundBurst);
-            }
+            //    _log.debug("available (" + total + ") exceeds our burst (" + max + "), so no supplement");
+            long b = burst.get() + excess;
+            //if (b > maxBurst)
+            //    _totalWastedBytes.addAndGet(b - maxBurst);
+            burst.set((int) Math.min(b, maxBurst));
         } else {
             // try to pull in up to the burst rate, since we refill periodically
-            int want = (int)maxBurstOut;
-            if (want > (_maxOutbound - avo))
-                want = _maxOutbound - avo;
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("want to pull " + want + " from the outbound burst (" + _unavailableOutboundBurst + ") to supplement " + avo + " (max: " + _maxOutbound + ")");
-            
+            long want = Math.min(maxBurstPull, max - avail);
             if (want > 0) {
-                int uob = _unavailableOutboundBurst.get();
-                if (want <= uob) {
-                    _availableOutbound.addAndGet(want);
-                    _unavailableOutboundBurst.addAndGet(0 - want);
-                } else {
-                    _availableOutbound.addAndGet(uob);
-                    _unavailableOutboundBurst.set(0);
+                int b = burst.get();
+                int pull = (int) Math.min(want, b);
+                if (pull > 0) {
+                    burst.set(b - pull);
+                    available.addAndGet(pull);
                 }
             }
         }
-        
-        satisfyRequests(buf);
-        updateStats();
     }
-    
+
+    /**
+     *  Take up to requested tokens, as many as are available.
+     *
+     *  @return the number taken, 0 if none available
+     *  @since 0.9.31
+     */
+    private static int take(AtomicInteger available, int requested) {
+        while (true) {
+            int cur = available.get();
+            if (cur <= 0)
+                return 0;
+            int rv = Math.min(cur, requested);
+            if (available.compareAndSet(cur, cur - rv))
+                return rv;
+        }
+    }
+
+    /**
+     *  Take exactly requested tokens or none.
+     *
+     *  @return success
+     *  @since 0.9.31
+     */
+    private static boolean takeAll(AtomicInteger available, int requested) {
+        while (true) {
+            int cur = available.get();
+            if (cur < requested)
+                return false;
+            if (available.compareAndSet(cur, cur - requested))
+                return true;
+        }
+    }
+
     private void updateStats() {
         long now = now();
         long time = now - _lastStatsUpdated;
@@ -451,8 +469,7 @@ public class FIFOBandwidthLimiter {
     /** called from debug logging only */
     private long locked_getLongestInboundWait() {
         long start = -1;
-        for (int i = 0; i < _pendingInboundRequests.size(); i++) {
-            Request req = _pendingInboundRequests.get(i);
+        for (Request req : _pendingInboundRequests) {
             if ( (start < 0) || (start > req.getRequestTime()) )
                 start = req.getRequestTime();
         }
@@ -465,9 +482,7 @@ public class FIFOBandwidthLimiter {
     /** called from debug logging only */
     private long locked_getLongestOutboundWait() {
         long start = -1;
-        for (int i = 0; i < _pendingOutboundRequests.size(); i++) {
-            Request req = _pendingOutboundRequests.get(i);
-            if (req == null) continue;
+        for (Request req : _pendingOutboundRequests) {
             if ( (start < 0) || (start > req.getRequestTime()) )
                 start = req.getRequestTime();
         }
@@ -482,8 +497,8 @@ public class FIFOBandwidthLimiter {
      *
      */
     private final void locked_satisfyInboundUnlimited(List<Request> satisfied) {
-        while (!_pendingInboundRequests.isEmpty()) {
-            SimpleRequest req = _pendingInboundRequests.remove(0);
+        SimpleRequest req;
+        while ((req = _pendingInboundRequests.poll()) != null) {
             int allocated = req.getPendingRequested();
             _totalAllocatedInboundBytes.addAndGet(allocated);
             req.allocateBytes(allocated);
@@ -506,8 +521,8 @@ public class FIFOBandwidthLimiter {
      * @return list of requests that were completely satisfied
      */
     private final void locked_satisfyInboundAvailable(List<Request> satisfied) {
-        for (int i = 0; i < _pendingInboundRequests.size(); i++) {
-            SimpleRequest req = _pendingInboundRequests.get(i);
+        for (Iterator<SimpleRequest> iter = _pendingInboundRequests.iterator(); iter.hasNext(); ) {
+            SimpleRequest req = iter.next();
             long waited = now() - req.getRequestTime();
             if (req.getAborted()) {
                 // connection decided they dont want the data anymore
@@ -517,12 +532,10 @@ public class FIFOBandwidthLimiter {
                                 + " waited " 
                                 + waited
                                 + "ms) pending " + _pendingInboundRequests.size());
-                _pendingInboundRequests.remove(i);
-                i--;
+                iter.remove();
                 continue;
             }
-            int avi = _availableInbound.get();
-            if (avi <= 0) break;
+            if (_availableInbound.get() <= 0) break;
             // NO, don't do this, since SSU requires a full allocation to proceed.
             // By stopping after a partial allocation, we stall SSU.
             // This never affected NTCP (which also requires a full allocation)
@@ -537,12 +550,8 @@ public class FIFOBandwidthLimiter {
             //}
             // ok, they are really waiting for us to give them stuff
             int requested = req.getPendingRequested();
-            int allocated;
-            if (avi >= requested) 
-                allocated = requested;
-            else
-                allocated = avi;
-            _availableInbound.addAndGet(0 - allocated);
+            int allocated = take(_availableInbound, requested);
+            if (allocated <= 0) break;
             _totalAllocatedInboundBytes.addAndGet(allocated);
             req.allocateBytes(allocated);
             satisfied.add(req);
@@ -562,8 +571,7 @@ public class FIFOBandwidthLimiter {
                                 + waited
                                 + "ms) pending " + _pendingInboundRequests.size()
                                 + ", longest waited " + locked_getLongestInboundWait() + " out");
-                _pendingInboundRequests.remove(i);
-                i--;
+                iter.remove();
                 if (waited > 10)
                     _context.statManager().addRateData("bwLimiter.inboundDelayedTime", waited);
             }
@@ -603,8 +611,8 @@ public class FIFOBandwidthLimiter {
      *
      */
     private final void locked_satisfyOutboundUnlimited(List<Request> satisfied) {
-        while (!_pendingOutboundRequests.isEmpty()) {
-            SimpleRequest req = _pendingOutboundRequests.remove(0);
+        SimpleRequest req;
+        while ((req = _pendingOutboundRequests.poll()) != null) {
             int allocated = req.getPendingRequested();
             _totalAllocatedOutboundBytes.addAndGet(allocated);
             req.allocateBytes(allocated);
@@ -628,8 +636,8 @@ public class FIFOBandwidthLimiter {
      * @return list of requests that were completely satisfied
      */
     private final void locked_satisfyOutboundAvailable(List<Request> satisfied) {
-        for (int i = 0; i < _pendingOutboundRequests.size(); i++) {
-            SimpleRequest req = _pendingOutboundRequests.get(i);
+        for (Iterator<SimpleRequest> iter = _pendingOutboundRequests.iterator(); iter.hasNext(); ) {
+            SimpleRequest req = iter.next();
             long waited = now() - req.getRequestTime();
             if (req.getAborted()) {
                 // connection decided they dont want the data anymore
@@ -639,12 +647,10 @@ public class FIFOBandwidthLimiter {
                                 + " waited " 
                                 + waited
                                 + "ms) pending " + _pendingOutboundRequests.size());
-                _pendingOutboundRequests.remove(i);
-                i--;
+                iter.remove();
                 continue;
             }
-            int avo = _availableOutbound.get();
-            if (avo <= 0) break;
+            if (_availableOutbound.get() <= 0) break;
             // NO, don't do this, since SSU requires a full allocation to proceed.
             // By stopping after a partial allocation, we stall SSU.
             // This never affected NTCP (which also requires a full allocation)
@@ -659,12 +665,8 @@ public class FIFOBandwidthLimiter {
             //}
             // ok, they are really waiting for us to give them stuff
             int requested = req.getPendingRequested();
-            int allocated;
-            if (avo >= requested) 
-                allocated = requested;
-            else
-                allocated = avo;
-            _availableOutbound.addAndGet(0 - allocated);
+            int allocated = take(_availableOutbound, requested);
+            if (allocated <= 0) break;
             _totalAllocatedOutboundBytes.addAndGet(allocated);
             req.allocateBytes(allocated);
             satisfied.add(req);
@@ -684,8 +686,7 @@ public class FIFOBandwidthLimiter {
                                 + waited
                                 + "ms) pending " + _pendingOutboundRequests.size()
                                 + ", longest waited " + locked_getLongestOutboundWait() + " out)");
-                _pendingOutboundRequests.remove(i);
-                i--;
+                iter.remove();
                 if (waited > 10)
                     _context.statManager().addRateData("bwLimiter.outboundDelayedTime", waited);
             }
@@ -693,9 +694,9 @@ public class FIFOBandwidthLimiter {
     }
     
     /**
-     *  Lockless total satisfaction,
-     *  at some minor risk of exceeding the limits
-     *  and driving the available counter below zero
+     *  Lockless total satisfaction, a CAS on the bucket, no allocation.
+     *  Fails if anything is queued, so we don't jump ahead of it
+     *  (although we may race with a request being queued).
      *
      *  @param requested number of bytes
      *  @return satisfaction
@@ -704,20 +705,18 @@ public class FIFOBandwidthLimiter {
     private boolean shortcutSatisfyInboundRequest(int requested) {
         boolean rv = _inboundUnlimited ||
                      (_pendingInboundRequests.isEmpty() &&
-                      _availableInbound.get() >= requested);
-        if (rv) {
-            _availableInbound.addAndGet(0 - requested);
+                      takeAll(_availableInbound, requested));
+        if (rv)
             _totalAllocatedInboundBytes.addAndGet(requested);
-        }
         //if (_log.shouldLog(Log.INFO))
         //    _log.info("IB shortcut for " + requested + "B? " + rv);
         return rv;
     }
     
     /**
-     *  Lockless total satisfaction,
-     *  at some minor risk of exceeding the limits
-     *  and driving the available counter below zero
+     *  Lockless total satisfaction, a CAS on the bucket, no allocation.
+     *  Fails if anything is queued, so we don't jump ahead of it
+     *  (although we may race with a request being queued).
      *
      *  @param requested number of bytes
      *  @return satisfaction
@@ -726,11 +725,9 @@ public class FIFOBandwidthLimiter {
     private boolean shortcutSatisfyOutboundRequest(int requested) {
         boolean rv = _outboundUnlimited ||
                      (_pendingOutboundRequests.isEmpty() &&
-                      _availableOutbound.get() >= requested);
-        if (rv) {
-            _availableOutbound.addAndGet(0 - requested);
+                      takeAll(_availableOutbound, requested));
+        if (rv)
             _totalAllocatedOutboundBytes.addAndGet(requested);
-        }
         //if (_log.shouldLog(Log.INFO))
         //    _log.info("OB shortcut for " + requested + "B? " + rv);
         return rv;
@@ -37,12 +37,21 @@ import net.i2p.util.SystemVersion;
 
 /**
  *  The main NTCP NIO thread.
+ *
+ *  There may be several, each with its own Selector, see NTCPTransport.PROP_PUMPERS.
+ *  Each connection stays with the pumper it was registered on.
+ *  The listening sockets are registered with all of them,
+ *  so that whichever pumper is free takes the accept.
  */
 class EventPumper implements Runnable {
     private final RouterContext _context;
     private final Log _log;
     private volatile boolean _alive;
     private Selector _selector;
+    /** 0 to (number of pumpers - 1) */
+    private final int _id;
+    /** null if only one pumper */
+    private final String _loopTimeStat, _keySetStat;
     private final Set<NTCPConnection> _wantsWrite = new ConcurrentHashSet<NTCPConnection>(32);
     /**
      *  The following 3 are unbounded and lockless for performance in runDelayedEvents()
@@ -103,11 +112,31 @@ class EventPumper implements Runnable {
     }
 
     public EventPumper(RouterContext ctx, NTCPTransport transport) {
+        this(ctx, transport, 0, 1, new ObjectCounter<ByteArray>());
+    }
+
+    /**
+     *  @param id 0 to count - 1
+     *  @param count total number of pumpers
+     *  @param blockedIPs shared among all the pumpers
+     *  @since 0.9.31
+     */
+    EventPumper(RouterContext ctx, NTCPTransport transport, int id, int count, ObjectCounter<ByteArray> blockedIPs) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
         _transport = transport;
+        _id = id;
         _expireIdleWriteTime = MAX_EXPIRE_IDLE_TIME;
-        _blockedIPs = new ObjectCounter<ByteArray>();
+        _blockedIPs = blockedIPs;
+        if (count > 1) {
+            _loopTimeStat = "ntcp.pumperLoopTime." + id;
+            _keySetStat = "ntcp.pumperKeySetSize." + id;
+            _context.statManager().createRateStat(_loopTimeStat, "Average busy time per loop of pumper " + id + " (us)", "ntcp", new long[] {60*1000, 10*60*1000} );
+            _context.statManager().createRateStat(_keySetStat, "Keys registered on pumper " + id, "ntcp", new long[] {60*1000, 10*60*1000} );
+        } else {
+            _loopTimeStat = null;
+            _keySetStat = null;
+        }
         _context.statManager().createRateStat("ntcp.pumperKeySetSize", "", "ntcp", new long[] {10*60*1000} );
         //_context.statManager().createRateStat("ntcp.pumperKeysPerLoop", "", "ntcp", new long[] {10*60*1000} );
         _context.statManager().createRateStat("ntcp.pumperLoopsPerSecond", "", "ntcp", new long[] {10*60*1000} );
@@ -122,7 +151,8 @@ class EventPumper implements Runnable {
         try {
             _selector = Selector.open();
             _alive = true;
-            new I2PThread(this, "NTCP Pumper", true).start();
+            String name = _loopTimeStat != null ? "NTCP Pumper " + (_id + 1) : "NTCP Pumper";
+            new I2PThread(this, name, true).start();
         } catch (IOException ioe) {
             _log.log(Log.CRIT, "Error opening the NTCP selector", ioe);
         } catch (java.lang.InternalError jlie) {
@@ -161,6 +191,7 @@ class EventPumper implements Runnable {
     public void registerConnect(NTCPConnection con) {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Registering " + con);
+        con.setPumper(this);
         _context.statManager().addRateData("ntcp.registerConnect", 1);
         _wantsConRegister.offer(con);
         _selector.wakeup();
@@ -173,6 +204,8 @@ class EventPumper implements Runnable {
      */
     public void run() {
         int loopCount = 0;
+        // only used if more than one pumper
+        long busyTime = 0;
         long lastFailsafeIteration = System.currentTimeMillis();
         long lastBlockedIPClear = lastFailsafeIteration;
         while (_alive && _selector.isOpen()) {
@@ -187,11 +220,14 @@ class EventPumper implements Runnable {
                     if (count > 0) {
                         //if (_log.shouldLog(Log.DEBUG))
                         //    _log.debug("select returned " + count);
+                        long begin = _loopTimeStat != null ? System.nanoTime() : 0;
                         Set<SelectionKey> selected = _selector.selectedKeys();
                         //_context.statManager().addRateData("ntcp.pumperKeysPerLoop", selected.size());
                         processKeys(selected);
                         // does clear() do anything useful?
                         selected.clear();
+                        if (_loopTimeStat != null)
+                            busyTime += System.nanoTime() - begin;
                     }
                 } catch (ClosedSelectorException cse) {
                     continue;
@@ -215,6 +251,12 @@ class EventPumper implements Runnable {
                         Set<SelectionKey> all = _selector.keys();
                         _context.statManager().addRateData("ntcp.pumperKeySetSize", all.size());
                         _context.statManager().addRateData("ntcp.pumperLoopsPerSecond", loopCount / (FAILSAFE_ITERATION_FREQ / 1000));
+                        if (_loopTimeStat != null) {
+                            _context.statManager().addRateData(_keySetStat, all.size());
+                            if (loopCount > 0)
+                                _context.statManager().addRateData(_loopTimeStat, busyTime / (1000 * loopCount));
+                            busyTime = 0;
+                        }
                         loopCount = 0;
                         
                         int failsafeWrites = 0;
@@ -314,7 +356,8 @@ class EventPumper implements Runnable {
                         } catch (InterruptedException ie) {}
                     }
                 }
-                if (lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
+                // shared, only one pumper clears it
+                if (_id == 0 && lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
                     _blockedIPs.clear();
                     lastBlockedIPClear = now;
                 }
@@ -564,7 +607,7 @@ class EventPumper implements Runnable {
                 chan.socket().setKeepAlive(true);
 
             SelectionKey ckey = chan.register(_selector, SelectionKey.OP_READ);
-            new NTCPConnection(_context, _transport, chan, ckey);
+            new NTCPConnection(_context, _transport, this, chan, ckey);
             //if (_log.shouldLog(Log.DEBUG))
             //    _log.debug("new NTCP connection established: " +con);
         } catch (IOException ioe) {
@@ -932,10 +975,13 @@ class EventPumper implements Runnable {
             }
         }
         
-        long now = System.currentTimeMillis();
-        if (_lastExpired + 1000 <= now) {
-            expireTimedOut();
-            _lastExpired = now;
+        // transport-wide, so only do it in one pumper
+        if (_id == 0) {
+            long now = System.currentTimeMillis();
+            if (_lastExpired + 1000 <= now) {
+                expireTimedOut();
+                _lastExpired = now;
+            }
         }
     }
     
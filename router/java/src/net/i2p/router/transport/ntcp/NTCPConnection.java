@@ -33,7 +33,7 @@ import net.i2p.router.Router;
 import net.i2p.router.RouterContext;
 import net.i2p.router.transport.FIFOBandwidthLimiter;
 import net.i2p.router.transport.FIFOBandwidthLimiter.Request;
-import net.i2p.router.util.PriBlockingQueue;
+import net.i2p.router.util.CoDelPriorityBlockingQueue;
 import net.i2p.util.ByteCache;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.HexDump;
@@ -73,6 +73,8 @@ public class NTCPConnection implements Closeable {
     private final Log _log;
     private SocketChannel _chan;
     private SelectionKey _conKey;
+    /** the pumper our channel is registered with, null before registration */
+    private volatile EventPumper _pumper;
     private final FIFOBandwidthLimiter.CompleteListener _inboundListener;
     private final FIFOBandwidthLimiter.CompleteListener _outboundListener;
     /**
@@ -100,8 +102,7 @@ public class NTCPConnection implements Closeable {
     /**
      * pending unprepared OutNetMessage instances
      */
-    //private final CoDelPriorityBlockingQueue<OutNetMessage> _outbound;
-    private final PriBlockingQueue<OutNetMessage> _outbound;
+    private final CoDelPriorityBlockingQueue<OutNetMessage> _outbound;
     /**
      *  current prepared OutNetMessage, or null - synchronize on _outbound to modify or read
      *  FIXME why do we need this???
@@ -161,7 +162,15 @@ public class NTCPConnection implements Closeable {
      */
     public static final int BUFFER_SIZE = 16*1024;
     private static final int MAX_DATA_READ_BUFS = 16;
-    private static final ByteCache _dataReadBufs = ByteCache.getInstance(MAX_DATA_READ_BUFS, BUFFER_SIZE);
+    /**
+     *  Holds a whole frame: size, data, padding, and checksum.
+     *  A max-size message plus overhead rounds up to one more block.
+     */
+    private static final int FRAME_BUF_SIZE = BUFFER_SIZE + 16;
+    private static final ByteCache _dataReadBufs = ByteCache.getInstance(MAX_DATA_READ_BUFS, FRAME_BUF_SIZE);
+    /** same size as the EventPumper buffers */
+    private static final int READ_CHUNK_SIZE = 8*1024;
+    private static final ByteCache _readChunks = ByteCache.getInstance(MAX_DATA_READ_BUFS, READ_CHUNK_SIZE);
     /** 2 bytes for length and 4 for CRC */
     public static final int MAX_MSG_SIZE = BUFFER_SIZE - (2 + 4);
 
@@ -173,9 +182,12 @@ public class NTCPConnection implements Closeable {
     /**
      * Create an inbound connected (though not established) NTCP connection
      *
+     * @param pumper the one that accepted it, which key is registered with
      */
-    public NTCPConnection(RouterContext ctx, NTCPTransport transport, SocketChannel chan, SelectionKey key) {
+    public NTCPConnection(RouterContext ctx, NTCPTransport transport, EventPumper pumper,
+                          SocketChannel chan, SelectionKey key) {
         _context = ctx;
+        _pumper = pumper;
         _log = ctx.logManager().getLog(getClass());
         _created = ctx.clock().now();
         _transport = transport;
@@ -185,8 +197,8 @@ public class NTCPConnection implements Closeable {
         _writeBufs = new ConcurrentLinkedQueue<ByteBuffer>();
         _bwInRequests = new ConcurrentHashSet<Request>(2);
         _bwOutRequests = new ConcurrentHashSet<Request>(8);
-        //_outbound = new CoDelPriorityBlockingQueue(ctx, "NTCP-Connection", 32);
-        _outbound = new PriBlockingQueue<OutNetMessage>(ctx, "NTCP-Connection", 32);
+        // measure only unless router.codel.NTCP-Connection.drop=true
+        _outbound = new CoDelPriorityBlockingQueue<OutNetMessage>(ctx, "NTCP-Connection", 32, false);
         _isInbound = true;
         _decryptBlockBuf = new byte[BLOCK_SIZE];
         _curReadState = new ReadState();
@@ -213,8 +225,8 @@ public class NTCPConnection implements Closeable {
         _writeBufs = new ConcurrentLinkedQueue<ByteBuffer>();
         _bwInRequests = new ConcurrentHashSet<Request>(2);
         _bwOutRequests = new ConcurrentHashSet<Request>(8);
-        //_outbound = new CoDelPriorityBlockingQueue(ctx, "NTCP-Connection", 32);
-        _outbound = new PriBlockingQueue<OutNetMessage>(ctx, "NTCP-Connection", 32);
+        // measure only unless router.codel.NTCP-Connection.drop=true
+        _outbound = new CoDelPriorityBlockingQueue<OutNetMessage>(ctx, "NTCP-Connection", 32, false);
         _isInbound = false;
         _establishState = new EstablishState(ctx, transport, this);
         _decryptBlockBuf = new byte[BLOCK_SIZE];
@@ -242,6 +254,22 @@ public class NTCPConnection implements Closeable {
      *  Valid for inbound; valid for outbound shortly after creation
      */
     public SelectionKey getKey() { return _conKey; }
+
+    /**
+     *  The pumper our channel is registered with.
+     *  Falls back to the first one before registration.
+     *  @since 0.9.31
+     */
+    EventPumper getPumper() {
+        EventPumper rv = _pumper;
+        return rv != null ? rv : _transport.getPumper();
+    }
+
+    /**
+     *  Outbound, set by EventPumper.registerConnect()
+     *  @since 0.9.31
+     */
+    void setPumper(EventPumper pumper) { _pumper = pumper; }
     public void setChannel(SocketChannel chan) { _chan = chan; }
     public void setKey(SelectionKey key) { _conKey = key; }
     public boolean isInbound() { return _isInbound; }
@@ -452,8 +480,7 @@ public class NTCPConnection implements Closeable {
         }
 
         List<OutNetMessage> pending = new ArrayList<OutNetMessage>();
-        //_outbound.drainAllTo(pending);
-        _outbound.drainTo(pending);
+        _outbound.drainAllTo(pending);
         for (OutNetMessage msg : pending) 
             _transport.afterSend(msg, false, allowRequeue, msg.getLifetime());
 
@@ -770,7 +797,7 @@ public class NTCPConnection implements Closeable {
         //    _log.debug("Encrypting " + msg + " [" + System.identityHashCode(msg) + "] crc=" + crc.getValue() + "\nas: " 
         //               + Base64.encode(encrypted, 0, 16) + "...\ndecrypted: " 
         //               + Base64.encode(unencrypted, 0, 16) + "..." + "\nIV=" + Base64.encode(_prevWriteEnd, 0, 16));
-        _transport.getPumper().wantsWrite(this, encrypted);
+        getPumper().wantsWrite(this, encrypted);
 
         // for every 6-12 hours that we are connected to a peer, send them
 	// our updated netDb info (they may not accept it and instead query
@@ -862,7 +889,7 @@ public class NTCPConnection implements Closeable {
         //    _log.debug("Encrypting " + msg + " [" + System.identityHashCode(msg) + "] crc=" + crc.getValue() + "\nas: " 
         //               + Base64.encode(encrypted, 0, 16) + "...\ndecrypted: " 
         //               + Base64.encode(unencrypted, 0, 16) + "..." + "\nIV=" + Base64.encode(_prevWriteEnd, 0, 16));
-        _transport.getPumper().wantsWrite(this, buf.encrypted);
+        getPumper().wantsWrite(this, buf.encrypted);
         //long wantsTime = System.currentTimeMillis();
         //long releaseTime = System.currentTimeMillis();
         //if (_log.shouldLog(Log.DEBUG))
@@ -983,7 +1010,7 @@ public class NTCPConnection implements Closeable {
             // our reads used to be bw throttled (during which time we were no
             // longer interested in reading from the network), but we aren't
             // throttled anymore, so we should resume being interested in reading
-            _transport.getPumper().wantsRead(NTCPConnection.this);
+            getPumper().wantsRead(NTCPConnection.this);
             //_transport.getReader().wantsRead(this);
         }
     }
@@ -1060,7 +1087,7 @@ public class NTCPConnection implements Closeable {
         //if (_log.shouldLog(Log.DEBUG)) _log.debug("Before write(buf)");
         _writeBufs.offer(buf);
         //if (_log.shouldLog(Log.DEBUG)) _log.debug("After write(buf)");
-        _transport.getPumper().wantsWrite(this);
+        getPumper().wantsWrite(this);
     }
     
     /** @return null if none available */
@@ -1192,105 +1219,132 @@ public class NTCPConnection implements Closeable {
      * The NTCP connection now owns the buffer
      * BUT it must copy out the data
      * as reader will call EventPumper.releaseBuf().
+     *
+     * Whole blocks are decrypted straight into the ReadState frame buffer;
+     * only a partial block at either end goes through _curReadBlock.
+     * The pumper's buffers are direct, so the ciphertext is first copied
+     * in bulk to a pooled heap chunk, since the AES engine works on arrays.
      */
     synchronized void recvEncryptedI2NP(ByteBuffer buf) {
         //if (_log.shouldLog(Log.DEBUG))
         //    _log.debug("receive encrypted i2np: " + buf.remaining());
-        // hasArray() is false for direct buffers, at least on my system...
-        if (_curReadBlockIndex == 0 && buf.hasArray()) {
-            // fast way
-            int tot = buf.remaining();
-            if (tot >= 32 && tot % 16 == 0) {
-                recvEncryptedFast(buf);
+        // finish a partial block from last time
+        if (_curReadBlockIndex > 0) {
+            int want = Math.min(buf.remaining(), BLOCK_SIZE - _curReadBlockIndex);
+            buf.get(_curReadBlock, _curReadBlockIndex, want);
+            _curReadBlockIndex += want;
+            if (_curReadBlockIndex < BLOCK_SIZE)
+                return;
+            _curReadBlockIndex = 0;
+            if (!recvEncryptedBlocks(_curReadBlock, 0, BLOCK_SIZE, buf))
                 return;
-            }
         }
 
-        while (buf.hasRemaining() && !_closed.get()) {
-            int want = Math.min(buf.remaining(), BLOCK_SIZE - _curReadBlockIndex);
-            if (want > 0) {
-                buf.get(_curReadBlock, _curReadBlockIndex, want);
-                _curReadBlockIndex += want;
-            }
-            //_curReadBlock[_curReadBlockIndex++] = buf.get();
-            if (_curReadBlockIndex >= BLOCK_SIZE) {
-                // cbc
-                _context.aes().decryptBlock(_curReadBlock, 0, _sessionKey, _decryptBlockBuf, 0);
-                //DataHelper.xor(_decryptBlockBuf, 0, _prevReadBlock, 0, _decryptBlockBuf, 0, BLOCK_SIZE);
-                for (int i = 0; i < BLOCK_SIZE; i++) {
-                    _decryptBlockBuf[i] ^= _prevReadBlock[i];
-                }
-                //if (_log.shouldLog(Log.DEBUG))
-                //    _log.debug("parse decrypted i2np block (remaining: " + buf.remaining() + ")");
-                boolean ok = recvUnencryptedI2NP();
-                if (!ok) {
-                    if (_log.shouldLog(Log.INFO))
-                        _log.info("Read buffer " + System.identityHashCode(buf) + " contained corrupt data");
-                    _context.statManager().addRateData("ntcp.corruptDecryptedI2NP", 1);
+        int whole = buf.remaining() & ~(BLOCK_SIZE - 1);
+        if (whole > 0) {
+            if (buf.hasArray()) {
+                int pos = buf.arrayOffset() + buf.position();
+                if (!recvEncryptedBlocks(buf.array(), pos, whole, buf))
                     return;
+                buf.position(buf.position() + whole);
+            } else {
+                ByteArray ba = _readChunks.acquire();
+                try {
+                    byte[] chunk = ba.getData();
+                    while (whole > 0) {
+                        int len = Math.min(whole, chunk.length);
+                        buf.get(chunk, 0, len);
+                        if (!recvEncryptedBlocks(chunk, 0, len, buf))
+                            return;
+                        whole -= len;
+                    }
+                } finally {
+                    _readChunks.release(ba, false);
                 }
-                byte swap[] = _prevReadBlock;
-                _prevReadBlock = _curReadBlock;
-                _curReadBlock = swap;
-                _curReadBlockIndex = 0;
             }
         }
+
+        // save a partial block for next time
+        int rem = buf.remaining();
+        if (rem > 0 && !_closed.get()) {
+            buf.get(_curReadBlock, 0, rem);
+            _curReadBlockIndex = rem;
+        }
     }
 
     /**
-     *  Decrypt directly out of the ByteBuffer instead of copying the bytes
-     *  16 at a time to the _curReadBlock / _prevReadBlock flip buffers.
+     *  Decrypt whole blocks out of the array.
+     *  The first block of each message goes to _decryptBlockBuf so we can
+     *  get the size; the rest are decrypted directly into the ReadState frame,
+     *  so the cleartext is never copied again before I2NP parsing.
      *
-     *  More efficient but can only be used if buf.hasArray == true AND
-     *  _curReadBlockIndex must be 0 and buf.getRemaining() % 16 must be 0
-     *  and buf.getRemaining() must be >= 16.
-     *  All this is true for most buffers.
-     *  In theory this could be fixed up to handle the other cases too but that's hard.
+     *  On return, _prevReadBlock holds the last ciphertext block.
      *  Caller must synchronize!
-     *  @since 0.8.12
+     *
+     *  @param len multiple of 16, greater than 0
+     *  @param buf for logging only
+     *  @return success
+     *  @since 0.9.31 replaces recvEncryptedFast()
      */
-    private void recvEncryptedFast(ByteBuffer buf) {
-        byte[] array = buf.array();
-        int pos = buf.arrayOffset();
-        int end = pos + buf.remaining();
-        boolean first = true;
-
-        for ( ; pos < end && !_closed.get(); pos += BLOCK_SIZE) {
-            _context.aes().decryptBlock(array, pos, _sessionKey, _decryptBlockBuf, 0);
-            if (first) {
-                // XOR with _prevReadBlock the first time...
-                //DataHelper.xor(_decryptBlockBuf, 0, _prevReadBlock, 0, _decryptBlockBuf, 0, BLOCK_SIZE);
-                for (int i = 0; i < BLOCK_SIZE; i++) {
-                    _decryptBlockBuf[i] ^= _prevReadBlock[i];
-                }
-                first = false;
+    private boolean recvEncryptedBlocks(byte[] array, int off, int len, ByteBuffer buf) {
+        final int end = off + len;
+        int pos = off;
+        while (pos < end && !_closed.get()) {
+            byte[] out;
+            int outOff;
+            int count;
+            if (_curReadState.inFrame()) {
+                out = _curReadState.getFrame();
+                outOff = _curReadState.getFrameWritten();
+                count = Math.min(end - pos, _curReadState.getFrameRemaining());
             } else {
-                //DataHelper.xor(_decryptBlockBuf, 0, array, pos - BLOCK_SIZE, _decryptBlockBuf, 0, BLOCK_SIZE);
-                int start = pos - BLOCK_SIZE;
-                for (int i = 0; i < BLOCK_SIZE; i++) {
-                    _decryptBlockBuf[i] ^= array[start + i];
+                out = _decryptBlockBuf;
+                outOff = 0;
+                count = BLOCK_SIZE;
+            }
+            // cbc
+            for (int i = 0; i < count; i += BLOCK_SIZE) {
+                int cur = pos + i;
+                int o = outOff + i;
+                _context.aes().decryptBlock(array, cur, _sessionKey, out, o);
+                if (cur == off) {
+                    // first block, the IV is the end of the previous buffer
+                    for (int j = 0; j < BLOCK_SIZE; j++) {
+                        out[o + j] ^= _prevReadBlock[j];
+                    }
+                } else {
+                    int prev = cur - BLOCK_SIZE;
+                    for (int j = 0; j < BLOCK_SIZE; j++) {
+                        out[o + j] ^= array[prev + j];
+                    }
                 }
             }
-            boolean ok = recvUnencryptedI2NP();
+            pos += count;
+            boolean ok;
+            if (out == _decryptBlockBuf)
+                ok = recvUnencryptedI2NP();
+            else
+                ok = _curReadState.frameWritten(count);
             if (!ok) {
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Read buffer " + System.identityHashCode(buf) + " contained corrupt data");
                 _context.statManager().addRateData("ntcp.corruptDecryptedI2NP", 1);
-                return;
+                return false;
             }
         }
         // ...and copy to _prevReadBlock the last time
         System.arraycopy(array, end - BLOCK_SIZE, _prevReadBlock, 0, BLOCK_SIZE);
+        return !_closed.get();
     }
     
     /**
-     *  Append the next 16 bytes of cleartext to the read state.
-     *  _decryptBlockBuf contains another cleartext block of I2NP to parse.
+     *  Start a new message with the first 16 bytes of cleartext.
+     *  _decryptBlockBuf contains the first cleartext block of I2NP to parse.
      *  Caller must synchronize!
      *  @return success
      */
     private boolean recvUnencryptedI2NP() {
-        _curReadState.receiveBlock(_decryptBlockBuf);
+        _curReadState.receiveInitial(_decryptBlockBuf);
         // FIXME move check to ReadState; must we close? possible attack vector?
         if (_curReadState.getSize() > BUFFER_SIZE) {
             if (_log.shouldLog(Log.WARN))
@@ -1370,7 +1424,7 @@ public class NTCPConnection implements Closeable {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Sending NTCP metadata");
         _sendingMeta = true;
-        _transport.getPumper().wantsWrite(this, encrypted);
+        getPumper().wantsWrite(this, encrypted);
         // enqueueInfoMessage(); // this often?
     }
     
@@ -1412,7 +1466,7 @@ public class NTCPConnection implements Closeable {
     }
 
     /**
-     * Read the unencrypted message (16 bytes at a time).
+     * Read the unencrypted message.
      * verify the checksum, and pass it on to
      * an I2NPMessageHandler.  The unencrypted message is encoded as follows:
      *
@@ -1424,15 +1478,21 @@ public class NTCPConnection implements Closeable {
      *
      * sizeof(data)+data+pad+crc.
      *
-     * perhaps to reduce the per-con memory footprint, we can acquire/release
-     * the ReadState._data and ._bais when _size is > 0, so there are only
+     * The whole frame is assembled in one buffer, acquired when the first
+     * block arrives and released when the message is complete, so there are only
      * J 16KB buffers for the cons actually transmitting, instead of one per
-     * con (including idle ones)
+     * con (including idle ones).
+     * The remaining blocks are decrypted directly into getFrame().
+     * The checksum is computed over the frame in one pass, and the I2NP
+     * message is parsed from the frame at offset 2.
      */
     private class ReadState {
         private int _size;
         private ByteArray _dataBuf;
+        /** bytes of the frame written so far, including the size */
         private int _nextWrite;
+        /** total frame length, multiple of 16 */
+        private int _frameLength;
         private long _expectedCrc;
         private final Adler32 _crc;
         private long _stateBegin;
@@ -1446,6 +1506,7 @@ public class NTCPConnection implements Closeable {
         private void init() {
             _size = -1;
             _nextWrite = 0;
+            _frameLength = 0;
             _expectedCrc = -1;
             _stateBegin = -1;
             _blocks = -1;
@@ -1458,16 +1519,30 @@ public class NTCPConnection implements Closeable {
         public int getSize() { return _size; }
 
         /**
-         *  Caller must synchronize
-         *  @param buf 16 bytes
+         *  @return true if the first block was received and more are expected
+         *  @since 0.9.31
          */
-        public void receiveBlock(byte buf[]) {
-            if (_size == -1) {
-                receiveInitial(buf);
-            } else {
-                receiveSubsequent(buf);
-            }
-        }
+        public boolean inFrame() { return _dataBuf != null; }
+
+        /**
+         *  Only valid if inFrame()
+         *  @since 0.9.31
+         */
+        public byte[] getFrame() { return _dataBuf.getData(); }
+
+        /**
+         *  Only valid if inFrame()
+         *  @return offset in getFrame() of the next block
+         *  @since 0.9.31
+         */
+        public int getFrameWritten() { return _nextWrite; }
+
+        /**
+         *  Only valid if inFrame()
+         *  @return bytes left in the frame, multiple of 16
+         *  @since 0.9.31
+         */
+        public int getFrameRemaining() { return _frameLength - _nextWrite; }
 
      /****
         public long getReadTime() {
@@ -1480,57 +1555,47 @@ public class NTCPConnection implements Closeable {
         }
       ****/
 
-        /** @param buf 16 bytes */
-        private void receiveInitial(byte buf[]) {
+        /**
+         *  Caller must synchronize.
+         *  Does not acquire a frame if the size is too big, caller must check getSize().
+         *  @param buf 16 bytes
+         */
+        public void receiveInitial(byte buf[]) {
             _size = (int)DataHelper.fromLong(buf, 0, 2);
             if (_size == 0) {
                 readMeta(buf);
                 init();
-            } else {
+            } else if (_size <= BUFFER_SIZE) {
                 _stateBegin = _context.clock().now();
                 _dataBuf = acquireReadBuf();
-                System.arraycopy(buf, 2, _dataBuf.getData(), 0, buf.length-2);
-                _nextWrite += buf.length-2;
-                _crc.update(buf);
-                _blocks++;
+                System.arraycopy(buf, 0, _dataBuf.getData(), 0, BLOCK_SIZE);
+                _nextWrite = BLOCK_SIZE;
+                // the checksum is always at least one block after the first
+                _frameLength = Math.max(2 * BLOCK_SIZE, (2 + _size + 4 + BLOCK_SIZE - 1) & ~(BLOCK_SIZE - 1));
+                _blocks = 0;
                 if (_log.shouldLog(Log.DEBUG))
                     _log.debug("new I2NP message with size: " + _size + " for message " + _messagesRead);
             }
         }
 
-        /** @param buf 16 bytes */
-        private void receiveSubsequent(byte buf[]) {
-            _blocks++;
-            int remaining = _size - _nextWrite;
-            int blockUsed = Math.min(buf.length, remaining);
-            if (remaining > 0) {
-                System.arraycopy(buf, 0, _dataBuf.getData(), _nextWrite, blockUsed);
-                _nextWrite += blockUsed;
-                remaining -= blockUsed;
-            }
-            if ( (remaining <= 0) && (buf.length-blockUsed < 4) ) {
-                // we've received all the data but not the 4-byte checksum
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("crc wraparound required on block " + _blocks + " in message " + _messagesRead);
-                _crc.update(buf);
-                return;
-            } else if (remaining <= 0) {
-                receiveLastBlock(buf);
-            } else {
-                _crc.update(buf);
-                //if (_log.shouldLog(Log.DEBUG))
-                //    _log.debug("update read state with another block (remaining: " + remaining + ")");
-            }
+        /**
+         *  Caller must synchronize.
+         *  @param len bytes just decrypted into getFrame() at getFrameWritten(), multiple of 16
+         *  @return success
+         *  @since 0.9.31
+         */
+        public boolean frameWritten(int len) {
+            _nextWrite += len;
+            _blocks += len / BLOCK_SIZE;
+            if (_nextWrite >= _frameLength)
+                receiveLastBlock();
+            return true;
         }
 
-        /** @param buf 16 bytes */
-        private void receiveLastBlock(byte buf[]) {
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("block remaining in the last block: " + (buf.length-blockUsed));
-
-            // on the last block
-            _expectedCrc = DataHelper.fromLong(buf, buf.length-4, 4);
-            _crc.update(buf, 0, buf.length-4);
+        private void receiveLastBlock() {
+            byte[] frame = _dataBuf.getData();
+            _expectedCrc = DataHelper.fromLong(frame, _frameLength - 4, 4);
+            _crc.update(frame, 0, _frameLength - 4);
             long val = _crc.getValue();
             //if (_log.shouldLog(Log.DEBUG))
             //    _log.debug("CRC value computed: " + val + " expected: " + _expectedCrc + " size: " + _size);
@@ -1543,13 +1608,13 @@ public class NTCPConnection implements Closeable {
                     // We could extend BAIS to adjust the protected count variable to _size
                     // so that readBytes() doesn't read too far, but it could still read too far.
                     // So use the new handler method that limits the size.
-                    h.readMessage(_dataBuf.getData(), 0, _size);
+                    h.readMessage(frame, 2, _size);
                     I2NPMessage read = h.lastRead();
                     long timeToRecv = _context.clock().now() - _stateBegin;
                     releaseHandler(h);
                     if (_log.shouldLog(Log.DEBUG))
                         _log.debug("I2NP message " + _messagesRead + "/" + (read != null ? read.getUniqueId() : 0) 
-                                   + " received after " + timeToRecv + " with " + _size +"/"+ (_blocks*16) + " bytes on " + NTCPConnection.this.toString());
+                                   + " received after " + timeToRecv + " with " + _size +"/"+ (_frameLength) + " bytes on " + NTCPConnection.this.toString());
                     _context.statManager().addRateData("ntcp.receiveTime", timeToRecv);
                     _context.statManager().addRateData("ntcp.receiveSize", _size);
 
@@ -1564,8 +1629,8 @@ public class NTCPConnection implements Closeable {
                 } catch (I2NPMessageException ime) {
                     if (_log.shouldLog(Log.WARN)) {
                         _log.warn("Error parsing I2NP message" +
-                                  "\nDUMP:\n" + HexDump.dump(_dataBuf.getData(), 0, _size) +
-                                  "\nRAW:\n" + Base64.encode(_dataBuf.getData(), 0, _size) +
+                                  "\nDUMP:\n" + HexDump.dump(frame, 2, _size) +
+                                  "\nRAW:\n" + Base64.encode(frame, 2, _size) +
                                   ime);
                     }
                     _context.statManager().addRateData("ntcp.corruptI2NPIME", 1);
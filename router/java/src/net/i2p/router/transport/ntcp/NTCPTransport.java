@@ -23,8 +23,10 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.crypto.SigType;
+import net.i2p.data.ByteArray;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
 import net.i2p.data.router.RouterAddress;
@@ -47,6 +49,7 @@ import net.i2p.router.util.DecayingBloomFilter;
 import net.i2p.util.Addresses;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.Log;
+import net.i2p.util.ObjectCounter;
 import net.i2p.util.OrderedProperties;
 import net.i2p.util.SystemVersion;
 import net.i2p.util.VersionComparator;
@@ -65,7 +68,9 @@ public class NTCPTransport extends TransportImpl {
     private final SharedBid _transientFail;
     private final Object _conLock;
     private final Map<Hash, NTCPConnection> _conByIdent;
-    private final EventPumper _pumper;
+    /** at least one */
+    private final EventPumper[] _pumpers;
+    private final AtomicInteger _nextPumper = new AtomicInteger();
     private final Reader _reader;
     private net.i2p.router.transport.ntcp.Writer _writer;
     private int _ssuPort;
@@ -97,6 +102,13 @@ public class NTCPTransport extends TransportImpl {
     
     /** this is rarely if ever used, default is to bind to wildcard address */
     public static final String PROP_BIND_INTERFACE = "i2np.ntcp.bindInterface";
+    /**
+     *  Number of EventPumper threads, each with its own Selector. Default 1.
+     *  Restart required.
+     *  @since 0.9.31
+     */
+    public static final String PROP_PUMPERS = "i2np.ntcp.pumpers";
+    private static final int MAX_PUMPERS = 8;
 
     private final NTCPSendFinisher _finisher;
     private final DHSessionKeyBuilder.Factory _dhFactory;
@@ -191,7 +203,16 @@ public class NTCPTransport extends TransportImpl {
 
         _finisher = new NTCPSendFinisher(ctx, this);
 
-        _pumper = new EventPumper(ctx, this);
+        int pumpers = Math.max(1, Math.min(MAX_PUMPERS, ctx.getProperty(PROP_PUMPERS, 1)));
+        _pumpers = new EventPumper[pumpers];
+        if (pumpers == 1) {
+            _pumpers[0] = new EventPumper(ctx, this);
+        } else {
+            ObjectCounter<ByteArray> blockedIPs = new ObjectCounter<ByteArray>();
+            for (int i = 0; i < pumpers; i++) {
+                _pumpers[i] = new EventPumper(ctx, this, i, pumpers, blockedIPs);
+            }
+        }
         _reader = new Reader(ctx);
         _writer = new net.i2p.router.transport.ntcp.Writer(ctx);
 
@@ -287,7 +308,7 @@ public class NTCPTransport extends TransportImpl {
                     SocketChannel channel = SocketChannel.open();
                     con.setChannel(channel);
                     channel.configureBlocking(false);
-                    _pumper.registerConnect(con);
+                    nextPumper().registerConnect(con);
                     con.getEstablishState().prepareOutbound();
                 } catch (IOException ioe) {
                     if (_log.shouldLog(Log.ERROR))
@@ -329,7 +350,7 @@ public class NTCPTransport extends TransportImpl {
                         SocketChannel channel = SocketChannel.open();
                         con.setChannel(channel);
                         channel.configureBlocking(false);
-                        _pumper.registerConnect(con);
+                        nextPumper().registerConnect(con);
                     } catch (IOException ioe) {
                         if (_log.shouldLog(Log.ERROR))
                             _log.error("Error opening a channel", ioe);
@@ -631,7 +652,7 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void startListening() {
         // try once again to prevent two pumpers which is fatal
-        if (_pumper.isAlive())
+        if (isAlive())
             return;
         if (_log.shouldLog(Log.WARN)) _log.warn("Starting NTCP transport listening");
 
@@ -702,7 +723,9 @@ public class NTCPTransport extends TransportImpl {
      */
     private void startIt() {
         _finisher.start();
-        _pumper.startPumping();
+        for (EventPumper pumper : _pumpers) {
+            pumper.startPumping();
+        }
 
         long maxMemory = SystemVersion.getMaxMemory();
         int nr, nw;
@@ -719,7 +742,11 @@ public class NTCPTransport extends TransportImpl {
     }
 
     public boolean isAlive() {
-        return _pumper.isAlive();
+        for (EventPumper pumper : _pumpers) {
+            if (pumper.isAlive())
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -795,7 +822,10 @@ public class NTCPTransport extends TransportImpl {
                 _endpoints.add(addr);
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Listening on " + addr);
-                _pumper.register(chan);
+                // each pumper races for the accept
+                for (EventPumper pumper : _pumpers) {
+                    pumper.register(chan);
+                }
             } catch (IOException ioe) {
                 _log.error("Error listening", ioe);
                 myAddress = null;
@@ -858,7 +888,17 @@ public class NTCPTransport extends TransportImpl {
     /**
      *  Hook for NTCPConnection
      */
-    EventPumper getPumper() { return _pumper; }
+    EventPumper getPumper() { return _pumpers[0]; }
+
+    /**
+     *  Round-robin, for outbound connections
+     *  @since 0.9.31
+     */
+    private EventPumper nextPumper() {
+        if (_pumpers.length == 1)
+            return _pumpers[0];
+        return _pumpers[(_nextPumper.getAndIncrement() & Integer.MAX_VALUE) % _pumpers.length];
+    }
 
     /**
      *  @since 0.9
@@ -1328,7 +1368,9 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void stopListening() {
         if (_log.shouldLog(Log.WARN)) _log.warn("Stopping ntcp transport");
-        _pumper.stopPumping();
+        for (EventPumper pumper : _pumpers) {
+            pumper.stopPumping();
+        }
         _writer.stopWriting();
         _reader.stopReading();
         _finisher.stop();
@@ -25,6 +25,11 @@ import net.i2p.util.SystemVersion;
  * an actual pool of packet handler threads, each pulling off the inbound
  * receiver's queue and pushing them as necessary.
  *
+ * If i2np.udp.shardedHandlers=true, each handler thread instead has
+ * its own queue, and packets are assigned to a queue by a hash of the
+ * RemoteHostId. All packets from a given peer are then handled in order
+ * by the same thread, while different peers are handled in parallel.
+ *
  */
 class PacketHandler {
     private final RouterContext _context;
@@ -37,7 +42,12 @@ class PacketHandler {
     private volatile boolean _keepReading;
     private final Handler[] _handlers;
     private final Map<RemoteHostId, Object> _failCache;
+    /** all handlers pull from this one unless sharded */
     private final BlockingQueue<UDPPacket> _inboundQueue;
+    /** one per handler if sharded, else null */
+    private final BlockingQueue<UDPPacket>[] _shardQueues;
+    /** queue depth stat names, one per shard, or null */
+    private final String[] _shardStats;
     private static final Object DUMMY = new Object();
     
     private static final int TYPE_POISON = -99999;
@@ -45,6 +55,11 @@ class PacketHandler {
     private static final int MAX_QUEUE_SIZE = 192;
     private static final int MIN_NUM_HANDLERS = 1;  // unless < 32MB
     private static final int MAX_NUM_HANDLERS = 1;
+    /** @since 0.9.31 */
+    private static final String PROP_SHARDED = "i2np.udp.shardedHandlers";
+    /** @since 0.9.31 */
+    private static final String PROP_NUM_SHARDS = "i2np.udp.handlerShards";
+    private static final int MAX_DEFAULT_SHARDS = 8;
     /** let packets be up to 30s slow */
     private static final long GRACE_PERIOD = Router.CLOCK_FUDGE_FACTOR + 30*1000;
     private static final long MAX_SKEW = 90*24*60*60*1000L;
@@ -64,17 +79,37 @@ class PacketHandler {
 
         long maxMemory = SystemVersion.getMaxMemory();
         int qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (2*1024*1024)));
-        _inboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Receiver", qsize);
         int num_handlers;
-        if (maxMemory < 32*1024*1024)
-            num_handlers = 1;
-        else if (maxMemory < 64*1024*1024)
-            num_handlers = 2;
-        else
-            num_handlers = Math.max(MIN_NUM_HANDLERS, Math.min(MAX_NUM_HANDLERS, ctx.bandwidthLimiter().getInboundKBytesPerSecond() / 20));
-        _handlers = new Handler[num_handlers];
-        for (int i = 0; i < num_handlers; i++) {
-            _handlers[i] = new Handler();
+        if (_context.getBooleanProperty(PROP_SHARDED) && maxMemory >= 64*1024*1024) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            num_handlers = Math.max(1, _context.getProperty(PROP_NUM_SHARDS,
+                                                            Math.min(cores, MAX_DEFAULT_SHARDS)));
+            _inboundQueue = null;
+            _shardQueues = newQueueArray(num_handlers);
+            _shardStats = new String[num_handlers];
+            _handlers = new Handler[num_handlers];
+            for (int i = 0; i < num_handlers; i++) {
+                _shardQueues[i] = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Receiver." + i, qsize);
+                _handlers[i] = new Handler(_shardQueues[i]);
+                _shardStats[i] = "udp.handlerQueueDepth." + i;
+                _context.statManager().createRateStat(_shardStats[i],
+                                                      "Packets waiting for this handler shard when a packet is queued",
+                                                      "udp", UDPTransport.RATES);
+            }
+        } else {
+            _inboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Receiver", qsize);
+            _shardQueues = null;
+            _shardStats = null;
+            if (maxMemory < 32*1024*1024)
+                num_handlers = 1;
+            else if (maxMemory < 64*1024*1024)
+                num_handlers = 2;
+            else
+                num_handlers = Math.max(MIN_NUM_HANDLERS, Math.min(MAX_NUM_HANDLERS, ctx.bandwidthLimiter().getInboundKBytesPerSecond() / 20));
+            _handlers = new Handler[num_handlers];
+            for (int i = 0; i < num_handlers; i++) {
+                _handlers[i] = new Handler(_inboundQueue);
+            }
         }
 
         _context.statManager().createRateStat("udp.handleTime", "How long it takes to handle a received packet after its been pulled off the queue", "udp", UDPTransport.RATES);
@@ -120,12 +155,20 @@ class PacketHandler {
         stopQueue();
     }
 
+    /** @since 0.9.31 */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static BlockingQueue<UDPPacket>[] newQueueArray(int size) {
+        return (BlockingQueue<UDPPacket>[]) new BlockingQueue[size];
+    }
+
     String getHandlerStatus() {
         StringBuilder rv = new StringBuilder();
         rv.append("Handlers: ").append(_handlers.length);
         for (int i = 0; i < _handlers.length; i++) {
             Handler handler = _handlers[i];
             rv.append(" handler ").append(i).append(" state: ").append(handler._state);
+            if (_shardQueues != null)
+                rv.append(" queued: ").append(_shardQueues[i].size());
         }
         return rv.toString();
     }
@@ -137,7 +180,25 @@ class PacketHandler {
      * @since IPv6 moved from UDPReceiver
      */
     public void queueReceived(UDPPacket packet) throws InterruptedException {
-        _inboundQueue.put(packet);
+        if (_shardQueues != null) {
+            int shard = getShard(packet.getRemoteHost());
+            BlockingQueue<UDPPacket> queue = _shardQueues[shard];
+            _context.statManager().addRateData(_shardStats[shard], queue.size());
+            queue.put(packet);
+        } else {
+            _inboundQueue.put(packet);
+        }
+    }
+
+    /**
+     *  Same peer, same shard, so per-peer ordering is preserved.
+     *  @since 0.9.31
+     */
+    private int getShard(RemoteHostId rem) {
+        // spread the bits, the IP/port hash is weak in the low bits
+        int h = rem.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % _shardQueues.length;
     }
 
 
@@ -147,32 +208,46 @@ class PacketHandler {
      * @since IPv6 moved from UDPReceiver
      */
     private void stopQueue() {
-        _inboundQueue.clear();
+        for (int i = 0; i < _handlers.length; i++) {
+            _handlers[i]._queue.clear();
+        }
         for (int i = 0; i < _handlers.length; i++) {
             UDPPacket poison = UDPPacket.acquire(_context, false);
             poison.setMessageType(TYPE_POISON);
-            _inboundQueue.offer(poison);
+            _handlers[i]._queue.offer(poison);
         }
-        for (int i = 1; i <= 5 && !_inboundQueue.isEmpty(); i++) {
+        for (int i = 1; i <= 5 && !queuesEmpty(); i++) {
             try {
                 Thread.sleep(i * 50);
             } catch (InterruptedException ie) {}
         }
-        _inboundQueue.clear();
+        for (int i = 0; i < _handlers.length; i++) {
+            _handlers[i]._queue.clear();
+        }
+    }
+
+    /** @since 0.9.31 */
+    private boolean queuesEmpty() {
+        for (int i = 0; i < _handlers.length; i++) {
+            if (!_handlers[i]._queue.isEmpty())
+                return false;
+        }
+        return true;
     }
 
     /**
      * Blocking call to retrieve the next inbound packet, or null if we have
      * shut down.
      *
+     * @param queue the handler's queue, shared unless sharded
      * @since IPv6 moved from UDPReceiver
      */
-    public UDPPacket receiveNext() {
+    private UDPPacket receiveNext(BlockingQueue<UDPPacket> queue) {
         UDPPacket rv = null;
         //int remaining = 0;
         while (_keepReading && rv == null) {
             try {
-                rv = _inboundQueue.take();
+                rv = queue.take();
             } catch (InterruptedException ie) {}
             if (rv != null && rv.getMessageType() == TYPE_POISON)
                 return null;
@@ -190,18 +265,20 @@ class PacketHandler {
     
     private class Handler implements Runnable { 
         private final UDPPacketReader _reader;
+        private final BlockingQueue<UDPPacket> _queue;
         // TODO comment out all uses of _state
         public /* volatile */ int _state;
 
-        public Handler() {
+        public Handler(BlockingQueue<UDPPacket> queue) {
             _reader = new UDPPacketReader(_context);
+            _queue = queue;
         }
         
         public void run() {
             _state = 1;
             while (_keepReading) {
                 _state = 2;
-                UDPPacket packet = receiveNext();
+                UDPPacket packet = receiveNext(_queue);
                 _state = 3;
                 if (packet == null) break; // keepReading is probably false, or bind failed...
 
@@ -19,7 +19,6 @@ import net.i2p.router.OutNetMessage;
 import net.i2p.router.RouterContext;
 import net.i2p.router.util.CachedIteratorArrayList;
 import net.i2p.router.util.CoDelPriorityBlockingQueue;
-import net.i2p.router.util.PriBlockingQueue;
 import net.i2p.util.Log;
 import net.i2p.util.ConcurrentHashSet;
 
@@ -216,8 +215,7 @@ public class PeerState {
      *  Priority queue of messages that have not yet been sent.
      *  They are taken from here and put in _outboundMessages.
      */
-    //private final CoDelPriorityBlockingQueue<OutboundMessageState> _outboundQueue;
-    private final PriBlockingQueue<OutboundMessageState> _outboundQueue;
+    private final CoDelPriorityBlockingQueue<OutboundMessageState> _outboundQueue;
 
     /** which outbound message is currently being retransmitted */
     private OutboundMessageState _retransmitter;
@@ -371,8 +369,8 @@ public class PeerState {
         _rttDeviation = _rtt;
         _inboundMessages = new HashMap<Long, InboundMessageState>(8);
         _outboundMessages = new CachedIteratorArrayList<OutboundMessageState>(32);
-        //_outboundQueue = new CoDelPriorityBlockingQueue(ctx, "UDP-PeerState", 32);
-        _outboundQueue = new PriBlockingQueue<OutboundMessageState>(ctx, "UDP-PeerState", 32);
+        // measure only unless router.codel.UDP-PeerState.drop=true
+        _outboundQueue = new CoDelPriorityBlockingQueue<OutboundMessageState>(ctx, "UDP-PeerState", 32, false);
         // all createRateStat() moved to EstablishmentManager
         _remoteIP = remoteIP;
         _remotePeer = remotePeer;
@@ -1522,8 +1520,7 @@ public class PeerState {
                     tempList = new ArrayList<OutboundMessageState>(_outboundMessages);
                     _outboundMessages.clear();
             }
-            //_outboundQueue.drainAllTo(tempList);
-            _outboundQueue.drainTo(tempList);
+            _outboundQueue.drainAllTo(tempList);
             for (OutboundMessageState oms : tempList) {
                 _transport.failed(oms, false);
             }
@@ -1,11 +1,20 @@
 package net.i2p.router.transport.udp;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.router.RouterContext;
@@ -15,6 +24,10 @@ import net.i2p.util.Log;
 /**
  * Coordinate the low-level datagram socket, creating and managing the UDPSender and
  * UDPReceiver.
+ *
+ * If i2np.udp.nio=true, the socket is a non-blocking DatagramChannel,
+ * and the UDPReceiver and UDPSender move packets in batches, draining
+ * everything readable on each wakeup and everything queued on each send pass.
  */
 class UDPEndpoint implements SocketListener {
     private final RouterContext _context;
@@ -24,6 +37,11 @@ class UDPEndpoint implements SocketListener {
     private UDPSender _sender;
     private UDPReceiver _receiver;
     private DatagramSocket _socket;
+    /** non-null only in NIO mode, _socket is then its adaptor */
+    private DatagramChannel _channel;
+    /** for receive() in NIO mode, synch on this */
+    private Selector _readSelector;
+    private final boolean _useNIO;
     private final InetAddress _bindAddress;
     private final boolean _isIPv4, _isIPv6;
     private static final AtomicInteger _counter = new AtomicInteger();
@@ -41,6 +59,7 @@ class UDPEndpoint implements SocketListener {
         _listenPort = listenPort;
         _isIPv4 = bindAddress == null || bindAddress instanceof Inet4Address;
         _isIPv6 = bindAddress == null || bindAddress instanceof Inet6Address;
+        _useNIO = ctx.getBooleanProperty(PROP_NIO);
     }
     
     /**
@@ -58,10 +77,16 @@ class UDPEndpoint implements SocketListener {
             throw new SocketException("SSU Unable to bind to a port on " + _bindAddress);
         }
         int count = _counter.incrementAndGet();
-        _sender = new UDPSender(_context, _socket, "UDPSender " + count, this);
+        if (_channel != null)
+            _sender = new UDPSender(_context, _channel, "UDPSender " + count, this);
+        else
+            _sender = new UDPSender(_context, _socket, "UDPSender " + count, this);
         _sender.startup();
         if (_transport != null) {
-            _receiver = new UDPReceiver(_context, _transport, _socket, "UDPReceiver " + count, this);
+            if (_channel != null)
+                _receiver = new UDPReceiver(_context, _transport, _channel, "UDPReceiver " + count, this);
+            else
+                _receiver = new UDPReceiver(_context, _transport, _socket, "UDPReceiver " + count, this);
             _receiver.startup();
         }
     }
@@ -71,6 +96,18 @@ class UDPEndpoint implements SocketListener {
             _sender.shutdown();
             _receiver.shutdown();
         }
+        if (_channel != null) {
+            try {
+                _channel.close();
+            } catch (IOException ioe) {}
+            _channel = null;
+        }
+        if (_readSelector != null) {
+            try {
+                _readSelector.close();
+            } catch (IOException ioe) {}
+            _readSelector = null;
+        }
         if (_socket != null) {
             _socket.close();
         }
@@ -103,12 +140,19 @@ class UDPEndpoint implements SocketListener {
     private static final int MIN_RANDOM_PORT = 9111;
     private static final int MAX_RANDOM_PORT = 30777;
     private static final int MAX_PORT_RETRIES = 20;
+    /**
+     *  Use a non-blocking DatagramChannel with batched receive and send.
+     *  Takes effect at the next (re)start.
+     *  @since 0.9.31
+     */
+    public static final String PROP_NIO = "i2np.udp.nio";
 
     /**
      *  Open socket using requested port in _listenPort and  bind host in _bindAddress.
      *  If _listenPort <= 0, or requested port is busy, repeatedly try a new random port.
      *  @return null on failure
      *  Sets _listenPort to actual port or -1 on failure
+     *  Sets _channel if in NIO mode
      */
     private DatagramSocket getSocket() {
         DatagramSocket socket = null;
@@ -127,12 +171,16 @@ class UDPEndpoint implements SocketListener {
                  port = selectRandomPort(_context);
              }
              try {
-                 if (_bindAddress == null)
+                 if (_useNIO) {
+                     _channel = openChannel(port);
+                     socket = _channel.socket();
+                 } else if (_bindAddress == null) {
                      socket = new DatagramSocket(port);
-                 else
+                 } else {
                      socket = new DatagramSocket(port, _bindAddress);
+                 }
                  break;
-             } catch (SocketException se) {
+             } catch (IOException se) {
                  if (_log.shouldLog(Log.WARN))
                      _log.warn("Binding to port " + port + " failed", se);
              }
@@ -150,6 +198,28 @@ class UDPEndpoint implements SocketListener {
         return socket;
     }
 
+    /**
+     *  Open a non-blocking channel bound to port and _bindAddress
+     *  @since 0.9.31
+     */
+    private DatagramChannel openChannel(int port) throws IOException {
+        DatagramChannel chan;
+        if (_bindAddress instanceof Inet6Address)
+            chan = DatagramChannel.open(StandardProtocolFamily.INET6);
+        else if (_bindAddress instanceof Inet4Address)
+            chan = DatagramChannel.open(StandardProtocolFamily.INET);
+        else
+            chan = DatagramChannel.open();
+        try {
+            chan.socket().bind(new InetSocketAddress(_bindAddress, port));
+            chan.configureBlocking(false);
+        } catch (IOException ioe) {
+            chan.close();
+            throw ioe;
+        }
+        return chan;
+    }
+
     /**
      *  Pick a random port between the configured boundaries
      *  @since IPv6
@@ -185,14 +255,48 @@ class UDPEndpoint implements SocketListener {
     public UDPPacket receive() { 
         UDPPacket packet = UDPPacket.acquire(_context, true);
         try {
-            _socket.receive(packet.getPacket());
+            DatagramChannel chan = _channel;
+            if (chan != null) {
+                // non-blocking, wait on a selector
+                DatagramPacket dp = packet.getPacket();
+                ByteBuffer buf = ByteBuffer.wrap(dp.getData());
+                SocketAddress from;
+                while ((from = chan.receive(buf)) == null) {
+                    Selector sel = getReadSelector(chan);
+                    sel.select(1000);
+                    sel.selectedKeys().clear();
+                }
+                dp.setLength(buf.position());
+                dp.setSocketAddress(from);
+            } else {
+                _socket.receive(packet.getPacket());
+            }
             return packet; 
         } catch (IOException ioe) {
             packet.release();
             return null;
+        } catch (ClosedSelectorException cse) {
+            // shut down
+            packet.release();
+            return null;
         }
     }
     
+    /**
+     *  For receive() in NIO mode
+     *  @throws IOException if closed
+     *  @since 0.9.31
+     */
+    private synchronized Selector getReadSelector(DatagramChannel chan) throws IOException {
+        if (_channel != chan)
+            throw new IOException("closed");
+        if (_readSelector == null) {
+            _readSelector = Selector.open();
+            chan.register(_readSelector, SelectionKey.OP_READ);
+        }
+        return _readSelector;
+    }
+
     /**
      *  Clear outbound queue, probably in preparation for sending destroy() to everybody.
      *  @since 0.9.2
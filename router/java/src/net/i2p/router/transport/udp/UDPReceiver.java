@@ -3,6 +3,12 @@ package net.i2p.router.transport.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.Arrays;
 
 import net.i2p.router.RouterContext;
@@ -21,32 +27,59 @@ import net.i2p.util.SystemVersion;
  * There is a UDPReceiver for each UDPEndpoint.
  * It contains a thread but no queue. Received packets are queued
  * in the common PacketHandler queue.
+ *
+ * In NIO mode, the thread waits on a Selector, then drains every readable
+ * datagram into a ring of direct buffers before copying them into
+ * UDPPackets and handing the batch to the PacketHandler, so there is one
+ * wakeup per burst instead of one blocking receive per packet.
  */
 class UDPReceiver {
     private final RouterContext _context;
     private final Log _log;
     private final DatagramSocket _socket;
+    /** null unless NIO */
+    private final DatagramChannel _channel;
     private String _name;
     private volatile boolean _keepRunning;
-    private final Runner _runner;
+    private final Runnable _runner;
     private final UDPTransport _transport;
     private final PacketHandler _handler;
     private final SocketListener _endpoint;
 
     private static final boolean _isAndroid = SystemVersion.isAndroid();
+    /** max datagrams drained per wakeup in NIO mode */
+    private static final int BATCH_SIZE = 64;
 
     public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramSocket socket, String name,
                        SocketListener lsnr) {
+        this(ctx, transport, socket, null, name, lsnr);
+    }
+
+    /**
+     *  NIO mode
+     *  @param channel non-blocking
+     *  @since 0.9.31
+     */
+    public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramChannel channel, String name,
+                       SocketListener lsnr) {
+        this(ctx, transport, channel.socket(), channel, name, lsnr);
+    }
+
+    private UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramSocket socket,
+                        DatagramChannel channel, String name, SocketListener lsnr) {
         _context = ctx;
         _log = ctx.logManager().getLog(UDPReceiver.class);
         _name = name;
         _socket = socket;
+        _channel = channel;
         _transport = transport;
         _endpoint = lsnr;
         _handler = transport.getPacketHandler();
         if (_handler == null)
             throw new IllegalStateException();
-        _runner = new Runner();
+        _runner = channel != null ? new ChannelRunner() : new Runner();
+        if (channel != null)
+            _context.statManager().createRateStat("udp.receiveBatchSize", "How many datagrams are read per wakeup (NIO)", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.receivePacketSize", "How large packets received are", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.receiveRemaining", "How many packets are left sitting on the receiver's queue", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.droppedInbound", "How many packet are queued up but not yet received when we drop", "udp", UDPTransport.RATES);
@@ -67,6 +100,8 @@ class UDPReceiver {
     
     public synchronized void shutdown() {
         _keepRunning = false;
+        if (_runner instanceof ChannelRunner)
+            ((ChannelRunner) _runner).wakeup();
     }
     
 /*********
@@ -217,6 +252,64 @@ class UDPReceiver {
   ****/
     
     
+    /**
+     *  Bandwidth limit and queue a packet fresh from the socket,
+     *  or handle a hole punch.
+     *
+     *  @param size the datagram length, packet remote address and port must be set
+     *  @since 0.9.31 pulled out of Runner.run()
+     */
+    private void received(UDPPacket packet, int size) {
+        DatagramPacket dpacket = packet.getPacket();
+        if (_context.commSystem().isDummy()) {
+            // testing
+            packet.release();
+        } else if (size > 0) {
+            //FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
+            //_context.bandwidthLimiter().requestInbound(req, size, "UDP receiver");
+            FIFOBandwidthLimiter.Request req =
+                  _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
+            // failsafe, don't wait forever
+            int waitCount = 0;
+            while (req.getPendingRequested() > 0 && waitCount++ < 5) {
+                req.waitForNextAllocation();
+            }
+            if (waitCount >= 5) {
+                // tell FBL we didn't receive it, but receive it anyway
+                req.abort();
+                _context.statManager().addRateData("udp.receiveFailsafe", 1);
+            }
+            
+            receive(packet);
+            //_context.statManager().addRateData("udp.receivePacketSize", size);
+        } else {
+            _context.statManager().addRateData("udp.receiveHolePunch", 1);
+            // nat hole punch packets are 0 bytes
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Received a 0 byte udp packet from " + dpacket.getAddress() + ":" + dpacket.getPort());
+            _transport.getEstablisher().receiveHolePunch(dpacket.getAddress(), dpacket.getPort());
+            packet.release();
+        }
+    }
+
+    /**
+     *  Socket closed or error
+     *  @since 0.9.31 pulled out of Runner.run()
+     */
+    private void receiveFailed(IOException ioe) {
+        if (_log.shouldLog(Log.WARN))
+            _log.warn("Error receiving", ioe);
+        if (_socket.isClosed()) {
+            if (_keepRunning) {
+                _keepRunning = false;
+                _endpoint.fail();
+            }
+        } else if (_keepRunning) {
+            // TODO count consecutive errors, give up after too many?
+            try { Thread.sleep(100); } catch (InterruptedException ie) {}
+        }
+    }
+
     private class Runner implements Runnable {
         //private volatile boolean _socketChanged;
 
@@ -258,53 +351,15 @@ class UDPReceiver {
                         // DatagramSocket javadocs: If the message is longer than the packet's length, the message is truncated.
                         throw new IOException("packet too large! truncated and dropped from: " + packet.getRemoteHost());
                     }
-                    if (_context.commSystem().isDummy()) {
-                        // testing
-                        packet.release();
-                    } else if (size > 0) {
-                        //FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
-                        //_context.bandwidthLimiter().requestInbound(req, size, "UDP receiver");
-                        FIFOBandwidthLimiter.Request req =
-                              _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
-                        // failsafe, don't wait forever
-                        int waitCount = 0;
-                        while (req.getPendingRequested() > 0 && waitCount++ < 5) {
-                            req.waitForNextAllocation();
-                        }
-                        if (waitCount >= 5) {
-                            // tell FBL we didn't receive it, but receive it anyway
-                            req.abort();
-                            _context.statManager().addRateData("udp.receiveFailsafe", 1);
-                        }
-                        
-                        receive(packet);
-                        //_context.statManager().addRateData("udp.receivePacketSize", size);
-                    } else {
-                        _context.statManager().addRateData("udp.receiveHolePunch", 1);
-                        // nat hole punch packets are 0 bytes
-                        if (_log.shouldLog(Log.INFO))
-                            _log.info("Received a 0 byte udp packet from " + dpacket.getAddress() + ":" + dpacket.getPort());
-                        _transport.getEstablisher().receiveHolePunch(dpacket.getAddress(), dpacket.getPort());
-                        packet.release();
-                    }
+                    received(packet, size);
                 } catch (IOException ioe) {
                     //if (_socketChanged) {
                     //    if (_log.shouldLog(Log.INFO))
                     //        _log.info("Changing ports...");
                     //} else {
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn("Error receiving", ioe);
                     //}
                     packet.release();
-                    if (_socket.isClosed()) {
-                        if (_keepRunning) {
-                            _keepRunning = false;
-                            _endpoint.fail();
-                        }
-                    } else if (_keepRunning) {
-                        // TODO count consecutive errors, give up after too many?
-                        try { Thread.sleep(100); } catch (InterruptedException ie) {}
-                    }
+                    receiveFailed(ioe);
                 }
             }
             if (_log.shouldLog(Log.WARN))
@@ -326,4 +381,107 @@ class UDPReceiver {
         }
       *****/
     }
+
+    /**
+     *  NIO mode. Drain all readable datagrams on each wakeup.
+     *
+     *  @since 0.9.31
+     */
+    private class ChannelRunner implements Runnable {
+        private final ByteBuffer[] _ring;
+        private final SocketAddress[] _from;
+        private volatile Selector _selector;
+
+        public ChannelRunner() {
+            _ring = new ByteBuffer[BATCH_SIZE];
+            _from = new SocketAddress[BATCH_SIZE];
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                _ring[i] = ByteBuffer.allocateDirect(UDPPacket.MAX_PACKET_SIZE);
+            }
+        }
+
+        public void wakeup() {
+            Selector sel = _selector;
+            if (sel != null)
+                sel.wakeup();
+        }
+
+        public void run() {
+            Selector selector;
+            try {
+                selector = Selector.open();
+                _channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException ioe) {
+                _log.error("Unable to register " + _endpoint, ioe);
+                if (_keepRunning) {
+                    _keepRunning = false;
+                    _endpoint.fail();
+                }
+                return;
+            }
+            _selector = selector;
+            try {
+                while (_keepRunning) {
+                    // block before we read...
+                    while (!_context.throttle().acceptNetworkMessage())
+                        try { Thread.sleep(10); } catch (InterruptedException ie) {}
+
+                    int count = 0;
+                    try {
+                        selector.select(1000);
+                        selector.selectedKeys().clear();
+                        // first pass, only syscalls
+                        while (count < BATCH_SIZE) {
+                            ByteBuffer buf = _ring[count];
+                            buf.clear();
+                            SocketAddress from = _channel.receive(buf);
+                            if (from == null)
+                                break;
+                            buf.flip();
+                            _from[count++] = from;
+                        }
+                    } catch (IOException ioe) {
+                        if (count <= 0) {
+                            receiveFailed(ioe);
+                            continue;
+                        }
+                        // handle what we got, the next receive will fail again
+                    }
+                    if (count <= 0)
+                        continue;
+                    _context.statManager().addRateData("udp.receiveBatchSize", count);
+                    // second pass, copy out and hand off
+                    for (int i = 0; i < count; i++) {
+                        ByteBuffer buf = _ring[i];
+                        InetSocketAddress from = (InetSocketAddress) _from[i];
+                        _from[i] = null;
+                        int size = buf.remaining();
+                        if (size >= UDPPacket.MAX_PACKET_SIZE) {
+                            // receive() silently discards what doesn't fit
+                            if (_log.shouldLog(Log.WARN))
+                                _log.warn("packet too large! truncated and dropped from: " + from);
+                            continue;
+                        }
+                        UDPPacket packet = UDPPacket.acquire(_context, true);
+                        DatagramPacket dpacket = packet.getPacket();
+                        buf.get(dpacket.getData(), 0, size);
+                        dpacket.setLength(size);
+                        dpacket.setAddress(from.getAddress());
+                        dpacket.setPort(from.getPort());
+                        packet.resetBegin();
+                        if (_log.shouldLog(Log.INFO))
+                            _log.info("After channel receive: packet is " + size + " bytes on " + System.identityHashCode(packet));
+                        received(packet, size);
+                    }
+                }
+            } finally {
+                _selector = null;
+                try {
+                    selector.close();
+                } catch (IOException ioe) {}
+            }
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Stop receiving on " + _endpoint);
+        }
+    }
 }
@@ -3,6 +3,12 @@ package net.i2p.router.transport.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 
 import net.i2p.router.RouterContext;
@@ -18,11 +24,20 @@ import net.i2p.util.SystemVersion;
  * There is a UDPSender for each UDPEndpoint.
  * It contains a thread and a queue. Packet to be sent are queued
  * by the PacketPusher.
+ *
+ * In NIO mode, each wakeup drains up to BATCH_SIZE packets from the queue
+ * and writes them back-to-back through a direct buffer.
  */
 class UDPSender {
     private final RouterContext _context;
     private final Log _log;
     private final DatagramSocket _socket;
+    /** null unless NIO */
+    private final DatagramChannel _channel;
+    /** NIO only, only used by the runner thread */
+    private final ByteBuffer _sendBuf;
+    private final List<UDPPacket> _batch;
+    private Selector _writeSelector;
     private String _name;
     private final BlockingQueue<UDPPacket> _outboundQueue;
     private volatile boolean _keepRunning;
@@ -37,8 +52,26 @@ class UDPSender {
     // When full, packets back up into the PacketPusher thread, pre-CoDel.
     private static final int MIN_QUEUE_SIZE = 64;
     private static final int MAX_QUEUE_SIZE = 384;
+    /** max packets sent per wakeup in NIO mode */
+    private static final int BATCH_SIZE = 32;
+    /** max time to wait for socket buffer space in NIO mode */
+    private static final long WRITE_WAIT = 100;
     
     public UDPSender(RouterContext ctx, DatagramSocket socket, String name, SocketListener lsnr) {
+        this(ctx, socket, null, name, lsnr);
+    }
+
+    /**
+     *  NIO mode
+     *  @param channel non-blocking
+     *  @since 0.9.31
+     */
+    public UDPSender(RouterContext ctx, DatagramChannel channel, String name, SocketListener lsnr) {
+        this(ctx, channel.socket(), channel, name, lsnr);
+    }
+
+    private UDPSender(RouterContext ctx, DatagramSocket socket, DatagramChannel channel,
+                      String name, SocketListener lsnr) {
         _context = ctx;
         _dummy = false; // ctx.commSystem().isDummy();
         _log = ctx.logManager().getLog(UDPSender.class);
@@ -46,6 +79,15 @@ class UDPSender {
         int qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (1024*1024)));
         _outboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Sender", qsize);
         _socket = socket;
+        _channel = channel;
+        if (channel != null) {
+            _sendBuf = ByteBuffer.allocateDirect(UDPPacket.MAX_PACKET_SIZE);
+            _batch = new ArrayList<UDPPacket>(BATCH_SIZE);
+            _context.statManager().createRateStat("udp.sendBatchSize", "How many packets are sent per wakeup (NIO)", "udp", UDPTransport.RATES);
+        } else {
+            _sendBuf = null;
+            _batch = null;
+        }
         _runner = new Runner();
         _name = name;
         _endpoint = lsnr;
@@ -228,85 +270,157 @@ class UDPSender {
                 
                 UDPPacket packet = getNextPacket();
                 if (packet != null) {
-                    if (_log.shouldLog(Log.DEBUG))
-                        _log.debug("Packet to send known: " + packet);
-                    long acquireTime = _context.clock().now();
-                    int size = packet.getPacket().getLength();
-                    // ?? int size2 = packet.getPacket().getLength();
-                    if (size > 0) {
-                        //_context.bandwidthLimiter().requestOutbound(req, size, "UDP sender");
-                        FIFOBandwidthLimiter.Request req = packet.getBandwidthRequest();
-                        if (req != null) {
-                            // failsafe, don't wait forever
-                            int waitCount = 0;
-                            while (req.getPendingRequested() > 0 && waitCount++ < 5) {
-                                req.waitForNextAllocation();
-                            }
-                            if (waitCount >= 5) {
-                                // tell FBL we didn't send it, but send it anyway
-                                req.abort();
-                                _context.statManager().addRateData("udp.sendFailsafe", 1);
-                            }
-                        }
-                    }
-                    
-                    long afterBW = _context.clock().now();
-                    
-                    //if (_log.shouldLog(Log.DEBUG)) {
-                        //if (len > 128)
-                        //    len = 128;
-                        //_log.debug("Sending packet: (size="+size + "/"+size2 +")\nraw: " + Base64.encode(packet.getPacket().getData(), 0, size));
-                    //}
-                    
-                    if (packet.getMessageType() >= PacketBuilder.TYPE_FIRST)
-                        _context.statManager().addRateData("udp.sendPacketSize." + packet.getMessageType(), size, packet.getFragmentCount());
-                    
-                    //packet.getPacket().setLength(size);
-                    try {
-                        //long before = _context.clock().now();
-                        //synchronized (Runner.this) {
-                            // synchronization lets us update safely
-                            //_log.debug("Break out datagram for " + packet);
-                            DatagramPacket dp = packet.getPacket();
-                            //if (_log.shouldLog(Log.DEBUG))
-                            //    _log.debug("Just before socket.send of " + packet);
-                            _socket.send(dp);
-                            //if (_log.shouldLog(Log.DEBUG))
-                            //    _log.debug("Just after socket.send of " + packet);
-                        //}
-                        //long sendTime = _context.clock().now() - before;
-                        // less than 50 microsec
-                        //_context.statManager().addRateData("udp.socketSendTime", sendTime, packet.getLifetime());
-                        if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("Sent the packet " + packet);
-                        long throttleTime = afterBW - acquireTime;
-                        if (throttleTime > 10)
-                            _context.statManager().addRateData("udp.sendBWThrottleTime", throttleTime, acquireTime - packet.getBegin());
-                        if (packet.getMarkedType() == 1)
-                            _context.statManager().addRateData("udp.sendACKTime", throttleTime, packet.getLifetime());
-                        _context.statManager().addRateData("udp.pushTime", packet.getLifetime(), packet.getLifetime());
-                        _context.statManager().addRateData("udp.sendPacketSize", size, packet.getLifetime());
-                    } catch (IOException ioe) {
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn("Error sending to " + packet.getPacket().getAddress(), ioe);
-                        _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
-                        if (_socket.isClosed()) {
-                            if (_keepRunning) {
-                                _keepRunning = false;
-                                _endpoint.fail();
-                            }
-                        }
-                    }
-                    
-                    // back to the cache
-                    packet.release();
+                    send(packet);
+                    if (_channel != null)
+                        sendBatch();
                 }
             }
+            if (_writeSelector != null) {
+                try {
+                    _writeSelector.close();
+                } catch (IOException ioe) {}
+            }
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Stop sending on " + _endpoint);
             _outboundQueue.clear();
         }
         
+        /**
+         *  Bandwidth limit and send one packet, then release it.
+         *  @since 0.9.31 pulled out of run()
+         */
+        private void send(UDPPacket packet) {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Packet to send known: " + packet);
+            long acquireTime = _context.clock().now();
+            int size = packet.getPacket().getLength();
+            // ?? int size2 = packet.getPacket().getLength();
+            if (size > 0) {
+                //_context.bandwidthLimiter().requestOutbound(req, size, "UDP sender");
+                FIFOBandwidthLimiter.Request req = packet.getBandwidthRequest();
+                if (req != null) {
+                    // failsafe, don't wait forever
+                    int waitCount = 0;
+                    while (req.getPendingRequested() > 0 && waitCount++ < 5) {
+                        req.waitForNextAllocation();
+                    }
+                    if (waitCount >= 5) {
+                        // tell FBL we didn't send it, but send it anyway
+                        req.abort();
+                        _context.statManager().addRateData("udp.sendFailsafe", 1);
+                    }
+                }
+            }
+            
+            long afterBW = _context.clock().now();
+            
+            //if (_log.shouldLog(Log.DEBUG)) {
+                //if (len > 128)
+                //    len = 128;
+                //_log.debug("Sending packet: (size="+size + "/"+size2 +")\nraw: " + Base64.encode(packet.getPacket().getData(), 0, size));
+            //}
+            
+            if (packet.getMessageType() >= PacketBuilder.TYPE_FIRST)
+                _context.statManager().addRateData("udp.sendPacketSize." + packet.getMessageType(), size, packet.getFragmentCount());
+            
+            //packet.getPacket().setLength(size);
+            try {
+                //long before = _context.clock().now();
+                //synchronized (Runner.this) {
+                    // synchronization lets us update safely
+                    //_log.debug("Break out datagram for " + packet);
+                    DatagramPacket dp = packet.getPacket();
+                    //if (_log.shouldLog(Log.DEBUG))
+                    //    _log.debug("Just before socket.send of " + packet);
+                    if (_channel != null)
+                        channelSend(dp);
+                    else
+                        _socket.send(dp);
+                    //if (_log.shouldLog(Log.DEBUG))
+                    //    _log.debug("Just after socket.send of " + packet);
+                //}
+                //long sendTime = _context.clock().now() - before;
+                // less than 50 microsec
+                //_context.statManager().addRateData("udp.socketSendTime", sendTime, packet.getLifetime());
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("Sent the packet " + packet);
+                long throttleTime = afterBW - acquireTime;
+                if (throttleTime > 10)
+                    _context.statManager().addRateData("udp.sendBWThrottleTime", throttleTime, acquireTime - packet.getBegin());
+                if (packet.getMarkedType() == 1)
+                    _context.statManager().addRateData("udp.sendACKTime", throttleTime, packet.getLifetime());
+                _context.statManager().addRateData("udp.pushTime", packet.getLifetime(), packet.getLifetime());
+                _context.statManager().addRateData("udp.sendPacketSize", size, packet.getLifetime());
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Error sending to " + packet.getPacket().getAddress(), ioe);
+                _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
+                if (_socket.isClosed()) {
+                    if (_keepRunning) {
+                        _keepRunning = false;
+                        _endpoint.fail();
+                    }
+                }
+            }
+            
+            // back to the cache
+            packet.release();
+        }
+
+        /**
+         *  NIO only. Send whatever else is already queued, up to BATCH_SIZE - 1,
+         *  without going back to sleep on the queue.
+         *  @since 0.9.31
+         */
+        private void sendBatch() {
+            int count = _outboundQueue.drainTo(_batch, BATCH_SIZE - 1);
+            if (count <= 0)
+                return;
+            _context.statManager().addRateData("udp.sendBatchSize", count + 1);
+            for (int i = 0; i < count; i++) {
+                UDPPacket packet = _batch.get(i);
+                if (packet.getMessageType() == TYPE_POISON || !_keepRunning) {
+                    packet.release();
+                    continue;
+                }
+                if (packet.getLifetime() > MAX_HEAD_LIFETIME) {
+                    _context.statManager().addRateData("udp.sendQueueTrimmed", 1);
+                    packet.release();
+                    continue;
+                }
+                send(packet);
+            }
+            _batch.clear();
+        }
+
+        /**
+         *  NIO only. Copy to the direct buffer and send.
+         *  If the socket buffer is full, wait up to WRITE_WAIT for space, then drop.
+         *  A datagram is sent whole or not at all, so it was sent if nothing remains.
+         *  Zero-length packets (hole punches) always return 0 from send(),
+         *  and are never retried.
+         *  @since 0.9.31
+         */
+        private void channelSend(DatagramPacket dp) throws IOException {
+            _sendBuf.clear();
+            _sendBuf.put(dp.getData(), dp.getOffset(), dp.getLength());
+            _sendBuf.flip();
+            _channel.send(_sendBuf, dp.getSocketAddress());
+            if (!_sendBuf.hasRemaining())
+                return;
+            if (_writeSelector == null) {
+                _writeSelector = Selector.open();
+                _channel.register(_writeSelector, SelectionKey.OP_WRITE);
+            }
+            if (_writeSelector.select(WRITE_WAIT) > 0) {
+                _writeSelector.selectedKeys().clear();
+                _channel.send(_sendBuf, dp.getSocketAddress());
+                if (!_sendBuf.hasRemaining())
+                    return;
+            }
+            throw new IOException("send buffer full");
+        }
+
         /** @return next packet in queue. Will discard any packet older than MAX_HEAD_LIFETIME */
         private UDPPacket getNextPacket() {
             UDPPacket packet = null;
@@ -76,6 +76,23 @@ public class BuildMessageProcessor {
         return new DecayingBloomFilter(ctx, 60*60*1000, 32, "TunnelBMP", m);
     }
 
+    /**
+     * Cheap check for a record addressed to us, before the expensive ElGamal decryption.
+     * No crypto, and does not change the message.
+     *
+     * @return the index of the first record with our hash prefix, or -1 if none
+     * @since 0.9.31
+     */
+    public int findRecord(TunnelBuildMessage msg, Hash ourHash) {
+        byte[] ourHashData = ourHash.getData();
+        for (int i = 0; i < msg.getRecordCount(); i++) {
+            EncryptedBuildRecord rec = msg.getRecord(i);
+            if (rec != null && DataHelper.eq(ourHashData, 0, rec.getData(), 0, BuildRequestRecord.PEER_SIZE))
+                return i;
+        }
+        return -1;
+    }
+
     /**
      * Decrypt the record targetting us, encrypting all of the other records with the included 
      * reply key and IV.  The original, encrypted record targetting us is removed from the request
@@ -3,10 +3,12 @@ package net.i2p.router.tunnel;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import net.i2p.router.RouterContext;
+import net.i2p.router.util.SojournHistogram;
 import net.i2p.util.I2PThread;
 import net.i2p.util.SimpleTimer;
 import net.i2p.util.SystemVersion;
@@ -21,8 +23,11 @@ import net.i2p.util.SystemVersion;
  */
 class TunnelGatewayPumper implements Runnable {
     private final RouterContext _context;
-    private final Set<PumpedTunnelGateway> _wantsPumping;
+    /** gateway to the time it was added */
+    private final Map<PumpedTunnelGateway, Long> _wantsPumping;
     private final Set<PumpedTunnelGateway> _backlogged;
+    /** time gateways wait for a pumper, the messages wait in the gateway's CoDel queue */
+    private final SojournHistogram _histogram;
     private volatile boolean _stop;
     private static final int MIN_PUMPERS = 1;
     private static final int MAX_PUMPERS = 4;
@@ -37,8 +42,9 @@ class TunnelGatewayPumper implements Runnable {
     /** Creates a new instance of TunnelGatewayPumper */
     public TunnelGatewayPumper(RouterContext ctx) {
         _context = ctx;
-        _wantsPumping = new LinkedHashSet<PumpedTunnelGateway>(16);
+        _wantsPumping = new LinkedHashMap<PumpedTunnelGateway, Long>(16);
         _backlogged = new HashSet<PumpedTunnelGateway>(16);
+        _histogram = SojournHistogram.getInstance(ctx, "TunnelGW-Pumper");
         if (ctx.getBooleanProperty("i2p.dummyTunnelManager")) {
             _pumpers = 1;
         } else {
@@ -67,11 +73,38 @@ class TunnelGatewayPumper implements Runnable {
     public void wantsPumping(PumpedTunnelGateway gw) {
         if (!_stop) {
             synchronized (_wantsPumping) {
-                if ((!_backlogged.contains(gw)) && _wantsPumping.add(gw))
+                if ((!_backlogged.contains(gw)) && add(gw))
                     _wantsPumping.notify();
             }
         }
     }
+
+    /**
+     *  Caller must synch on _wantsPumping
+     *  @return true if added
+     *  @since 0.9.31
+     */
+    private boolean add(PumpedTunnelGateway gw) {
+        if (_wantsPumping.containsKey(gw))
+            return false;
+        _wantsPumping.put(gw, Long.valueOf(_context.clock().now()));
+        return true;
+    }
+
+    /**
+     *  Caller must synch on _wantsPumping
+     *  @return the longest waiting gateway, or null if none
+     *  @since 0.9.31
+     */
+    private PumpedTunnelGateway removeFirst() {
+        Iterator<Map.Entry<PumpedTunnelGateway, Long>> iter = _wantsPumping.entrySet().iterator();
+        if (!iter.hasNext())
+            return null;
+        Map.Entry<PumpedTunnelGateway, Long> e = iter.next();
+        iter.remove();
+        _histogram.add(_context.clock().now() - e.getValue().longValue());
+        return e.getKey();
+    }
     
     public void run() {
         PumpedTunnelGateway gw = null;
@@ -90,9 +123,7 @@ class TunnelGatewayPumper implements Runnable {
                     if (_wantsPumping.isEmpty()) {
                         _wantsPumping.wait();
                     } else {
-                        Iterator<PumpedTunnelGateway> iter = _wantsPumping.iterator();
-                        gw = iter.next();
-                        iter.remove();
+                        gw = removeFirst();
                     }
                 }
             } catch (InterruptedException ie) {}
@@ -114,7 +145,7 @@ class TunnelGatewayPumper implements Runnable {
         public void timeReached() {
             synchronized (_wantsPumping) {
                 _backlogged.remove(_ptg);
-                if (_wantsPumping.add(_ptg))
+                if (add(_ptg))
                     _wantsPumping.notify();
             }
         }
@@ -97,6 +97,7 @@ class TunnelParticipant {
             if (_config != null)
                 _config.incrementProcessedMessages();
             _context.statManager().addRateData("tunnel.corruptMessage", 1, 1);
+            msg.releaseData();
             return;
         }
         
@@ -184,8 +185,10 @@ class TunnelParticipant {
 
     private void send(HopConfig config, TunnelDataMessage msg, RouterInfo ri) {
         if (_context.tunnelDispatcher().shouldDropParticipatingMessage(TunnelDispatcher.Location.PARTICIPANT,
-                                                                       TunnelDataMessage.MESSAGE_TYPE, 1024))
+                                                                       TunnelDataMessage.MESSAGE_TYPE, 1024)) {
+            msg.releaseData();
             return;
+        }
         //_config.incrementSentMessages();
         _context.bandwidthLimiter().sentParticipatingMessage(1024);
         long oldId = msg.getUniqueId();
@@ -224,6 +227,7 @@ class TunnelParticipant {
                     if (_log.shouldLog(Log.WARN))
                         _log.warn("Lookup the nextHop (" + _config.getSendTo()
                                   + " failed!  where do we go for " + _config + "?  msg dropped: " + _msg);
+                    _msg.releaseData();
                     stat = 0;
                 }
                 _context.statManager().addRateData("tunnel.participantLookupSuccess", stat);
@@ -1,5 +1,6 @@
 package net.i2p.router.tunnel.pool;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -8,6 +9,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import net.i2p.data.Base64;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
+import net.i2p.data.PrivateKey;
 import net.i2p.data.router.RouterIdentity;
 import net.i2p.data.router.RouterInfo;
 import net.i2p.data.TunnelId;
@@ -51,6 +53,11 @@ import net.i2p.util.Log;
  * There is only one of these objects but there may be multiple
  * threads running it. Instantiated and started by TunnelPoolManager.
  *
+ * As of 0.9.31, if router.buildHandlerBatch is greater than 1,
+ * each thread takes a batch of requests off the queue, drops the ones
+ * that fail the cheap checks before any crypto, and decrypts the rest
+ * in parallel with a BuildRequestDecryptor.
+ *
  */
 class BuildHandler implements Runnable {
     private final RouterContext _context;
@@ -64,6 +71,11 @@ class BuildHandler implements Runnable {
     private final RequestThrottler _requestThrottler;
     private final ParticipatingThrottler _throttler;
     private final BuildReplyHandler _buildReplyHandler;
+    /** null if not batching */
+    private final BuildRequestDecryptor _decryptor;
+    private final int _batchSize;
+    /** queue size at which the pre-decrypt hop throttle applies */
+    private final int _overloadQueueSize;
     private final AtomicInteger _currentLookups = new AtomicInteger();
     private volatile boolean _isRunning;
     private final Object _startupLock = new Object();
@@ -99,6 +111,21 @@ class BuildHandler implements Runnable {
 
     private static final long JOB_LAG_LIMIT_TUNNEL = 350;
 
+    /**
+     *  Max requests to decrypt at once per handler thread, 1 to disable batching
+     *  @since 0.9.31
+     */
+    public static final String PROP_BATCH = "router.buildHandlerBatch";
+    /** @since 0.9.31 */
+    private static final int DEFAULT_BATCH = 1;
+    /** @since 0.9.31 */
+    private static final int MAX_BATCH = 32;
+    /**
+     *  Decryption pool size when batching, default is the number of processors, max 8
+     *  @since 0.9.31
+     */
+    public static final String PROP_DECRYPT_THREADS = "router.buildHandlerDecryptThreads";
+
 
     public BuildHandler(RouterContext ctx, TunnelPoolManager manager, BuildExecutor exec) {
         _context = ctx;
@@ -109,6 +136,7 @@ class BuildHandler implements Runnable {
         int sz = Math.min(MAX_QUEUE, Math.max(MIN_QUEUE, TunnelDispatcher.getShareBandwidth(ctx) * MIN_QUEUE / 48));
         //_inboundBuildMessages = new CoDelBlockingQueue(ctx, "BuildHandler", sz);
         _inboundBuildMessages = new LinkedBlockingQueue<BuildMessageState>(sz);
+        _overloadQueueSize = sz / 2;
     
         _context.statManager().createRateStat("tunnel.reject.10", "How often we reject a tunnel probabalistically", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRateStat("tunnel.reject.20", "How often we reject a tunnel because of transient overload", "Tunnels", new long[] { 60*1000, 10*60*1000 });
@@ -127,6 +155,8 @@ class BuildHandler implements Runnable {
         _context.statManager().createRequiredRateStat("tunnel.dropReqThrottle", "Drop per-hop limit", "Tunnels", new long[] { 60*60*1000 });
         _context.statManager().createRequiredRateStat("tunnel.dropLookupThrottle", "Drop next hop lookup", "Tunnels", new long[] { 60*60*1000 });
         _context.statManager().createRateStat("tunnel.dropDecryptFail", "Can't find our slot", "Tunnels", new long[] { 60*60*1000 });
+        _context.statManager().createRateStat("tunnel.dropHopThrottle", "Drop previous hop limit before decrypt when overloaded", "Tunnels", new long[] { 60*60*1000 });
+        _context.statManager().createRateStat("tunnel.decryptBatchSize", "Requests decrypted together", "Tunnels", new long[] { 60*1000, 10*60*1000 });
 
         _context.statManager().createRequiredRateStat("tunnel.rejectOverloaded", "Delay to process rejected request (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRequiredRateStat("tunnel.acceptLoad", "Delay to process accepted request (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
@@ -154,6 +184,14 @@ class BuildHandler implements Runnable {
         // used for previous and next hops, for successful builds only
         _throttler = new ParticipatingThrottler(ctx);
         _buildReplyHandler = new BuildReplyHandler(ctx);
+        _batchSize = Math.max(1, Math.min(MAX_BATCH, ctx.getProperty(PROP_BATCH, DEFAULT_BATCH)));
+        if (_batchSize > 1) {
+            int threads = ctx.getProperty(PROP_DECRYPT_THREADS,
+                                          Math.min(8, Runtime.getRuntime().availableProcessors()));
+            _decryptor = new BuildRequestDecryptor(ctx, _processor, Math.max(1, threads));
+        } else {
+            _decryptor = null;
+        }
         _buildMessageHandlerJob = new TunnelBuildMessageHandlerJob(ctx);
         _buildReplyMessageHandlerJob = new TunnelBuildReplyMessageHandlerJob(ctx);
         TunnelBuildMessageHandlerJobBuilder tbmhjb = new TunnelBuildMessageHandlerJobBuilder();
@@ -207,6 +245,8 @@ class BuildHandler implements Runnable {
         for (int i = 0; i < numThreads; i++) {
             _inboundBuildMessages.offer(poison);
         }
+        if (_decryptor != null)
+            _decryptor.shutdown();
     }
 
     /**
@@ -217,7 +257,10 @@ class BuildHandler implements Runnable {
         _isRunning = true;
         while (_isRunning && !_manager.isShutdown()) {
             try {
-                handleInboundRequest();
+                if (_batchSize > 1)
+                    handleInboundRequests();
+                else
+                    handleInboundRequest();
             } catch (RuntimeException e) {
                 _log.log(Log.CRIT, "B0rked in the tunnel handler", e);
             }
@@ -245,6 +288,84 @@ class BuildHandler implements Runnable {
                 return;
             }
 
+            if (!checkLoad(state))
+                return;
+
+            handleRequest(state);
+
+        //int remaining = _inboundBuildMessages.size();
+        //if (remaining > 0)
+        //    _context.statManager().addRateData("tunnel.handleRemaining", remaining, 0);
+        //return remaining;
+    }
+
+    /**
+     * Blocking call to handle a batch of inbound requests,
+     * decrypting them in parallel.
+     *
+     * @since 0.9.31
+     */
+    private void handleInboundRequests() {
+        BuildMessageState first;
+        try {
+            first = _inboundBuildMessages.take();
+        } catch (InterruptedException ie) {
+            return;
+        }
+        List<BuildMessageState> batch = new ArrayList<BuildMessageState>(_batchSize);
+        batch.add(first);
+        _inboundBuildMessages.drainTo(batch, _batchSize - 1);
+
+        // cheap checks first, the survivors go to the front
+        BuildMessageState[] states = new BuildMessageState[batch.size()];
+        TunnelBuildMessage[] msgs = new TunnelBuildMessage[batch.size()];
+        int count = 0;
+        int poison = 0;
+        for (BuildMessageState state : batch) {
+            if (state.msg == null) {
+                poison++;
+                continue;
+            }
+            if (poison > 0 || !_isRunning)
+                continue;
+            if (checkLoad(state) && checkDelay(state) && checkBeforeDecrypt(state)) {
+                states[count] = state;
+                msgs[count++] = state.msg;
+            }
+        }
+        if (poison > 0) {
+            _isRunning = false;
+            // one each, put back any we took for the other threads
+            for (int i = 1; i < poison; i++) {
+                _inboundBuildMessages.offer(new BuildMessageState(_context, null, null, null));
+            }
+            return;
+        }
+        if (count <= 0)
+            return;
+        _context.statManager().addRateData("tunnel.decryptBatchSize", count);
+
+        BuildRequestRecord[] reqs = new BuildRequestRecord[count];
+        long[] times = new long[count];
+        Hash us = _context.routerHash();
+        PrivateKey pk = _context.keyManager().getPrivateKey();
+        _decryptor.decrypt(msgs, count, us, pk, reqs, times);
+        for (int i = 0; i < count; i++) {
+            try {
+                handleRequest(states[i], reqs[i], times[i]);
+            } catch (RuntimeException e) {
+                _log.log(Log.CRIT, "B0rked in the tunnel handler", e);
+            }
+        }
+    }
+
+    /**
+     *  Drop the request if it's too old or the router is too busy.
+     *
+     *  @return true to continue processing
+     *  @since 0.9.31 pulled out of handleInboundRequest()
+     */
+    private boolean checkLoad(BuildMessageState state) {
             long now = _context.clock().now();
             long dropBefore = now - (BuildRequestor.REQUEST_TIMEOUT/4);
             if (state.recvTime <= dropBefore) {
@@ -253,7 +374,7 @@ class BuildHandler implements Runnable {
                               + ", since we received it a long time ago: " + (now - state.recvTime));
                 _context.statManager().addRateData("tunnel.dropLoadDelay", now - state.recvTime);
                 _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: Too slow"));
-                return;
+                return false;
             }       
 
             long lag = _context.jobQueue().getMaxLag();
@@ -263,15 +384,50 @@ class BuildHandler implements Runnable {
                     _log.warn("Dropping tunnel request, as the job lag is " + lag);
                 _context.statManager().addRateData("router.throttleTunnelCause", lag);
                 _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: High job lag"));
-                return;
+                return false;
             }       
+            return true;
+    }
 
-            handleRequest(state);
-
-        //int remaining = _inboundBuildMessages.size();
-        //if (remaining > 0)
-        //    _context.statManager().addRateData("tunnel.handleRemaining", remaining, 0);
-        //return remaining;
+    /**
+     *  The fast reject path, before the ElGamal decryption.
+     *  Drop the request if there's no record for us.
+     *  The previous hop has also passed the RequestThrottler check before queueing.
+     *  We can't send a reject without decrypting, so these are drops.
+     *
+     *  Only when the inbound queue is at least half full, also drop the request
+     *  if the previous hop is already over its ParticipatingThrottler limit.
+     *  This differs from the post-decrypt hop throttle in handleRequest(),
+     *  because we can't tell yet whether we are the inbound gateway, and
+     *  those requests are exempt there. So when overloaded, an IBGW request
+     *  from a throttled previous hop is dropped here instead of accepted,
+     *  and times out at the requester. When not overloaded, the
+     *  hop throttle is only applied after decrypt, as in the unbatched path.
+     *
+     *  @return true to continue processing
+     *  @since 0.9.31
+     */
+    private boolean checkBeforeDecrypt(BuildMessageState state) {
+        Hash from = state.fromHash;
+        if (from == null && state.from != null)
+            from = state.from.calculateHash();
+        if (_processor.findRecord(state.msg, _context.routerHash()) < 0) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("The request " + state.msg.getUniqueId() + " has no record for us, from: " + from);
+            _context.statManager().addRateData("tunnel.dropDecryptFail", 1);
+            if (from != null)
+                _context.commSystem().mayDisconnect(from);
+            return false;
+        }
+        if (from != null &&
+            _inboundBuildMessages.size() >= _overloadQueueSize &&
+            _throttler.isThrottled(from)) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Dropping tunnel request before decrypt (hop throttle, queue overloaded), previous hop: " + from);
+            _context.statManager().addRateData("tunnel.dropHopThrottle", 1);
+            return false;
+        }
+        return true;
     }
     
     /**
@@ -447,15 +603,30 @@ class BuildHandler implements Runnable {
      *  @return handle time or -1 if it wasn't completely handled
      */
     private long handleRequest(BuildMessageState state) {
+        if (!checkDelay(state))
+            return -1;
+        // ok, this is not our own tunnel, so we need to do some heavy lifting
+        // this not only decrypts the current hop's record, but encrypts the other records
+        // with the enclosed reply key
+        long beforeDecrypt = System.currentTimeMillis();
+        BuildRequestRecord req = _processor.decrypt(state.msg, _context.routerHash(), _context.keyManager().getPrivateKey());
+        long decryptTime = System.currentTimeMillis() - beforeDecrypt;
+        return handleRequest(state, req, decryptTime);
+    }
+
+    /**
+     *  @return true to continue processing
+     *  @since 0.9.31 pulled out of handleRequest()
+     */
+    private boolean checkDelay(BuildMessageState state) {
         long timeSinceReceived = _context.clock().now()-state.recvTime;
         //if (_log.shouldLog(Log.DEBUG))
         //    _log.debug(state.msg.getUniqueId() + ": handling request after " + timeSinceReceived);
         
-        Hash from = state.fromHash;
-        if (from == null && state.from != null)
-            from = state.from.calculateHash();
-
         if (timeSinceReceived > (BuildRequestor.REQUEST_TIMEOUT*3)) {
+            Hash from = state.fromHash;
+            if (from == null && state.from != null)
+                from = state.from.calculateHash();
             // don't even bother, since we are so overloaded locally
             _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: Overloaded"));
             if (_log.shouldLog(Log.WARN))
@@ -464,14 +635,25 @@ class BuildHandler implements Runnable {
             _context.statManager().addRateData("tunnel.dropLoadDelay", timeSinceReceived);
             if (from != null)
                 _context.commSystem().mayDisconnect(from);
-            return -1;
+            return false;
         }
-        // ok, this is not our own tunnel, so we need to do some heavy lifting
-        // this not only decrypts the current hop's record, but encrypts the other records
-        // with the enclosed reply key
-        long beforeDecrypt = System.currentTimeMillis();
-        BuildRequestRecord req = _processor.decrypt(state.msg, _context.routerHash(), _context.keyManager().getPrivateKey());
-        long decryptTime = System.currentTimeMillis() - beforeDecrypt;
+        return true;
+    }
+
+    /**
+     *  Lookup the RI locally for the decrypted request,
+     *  and call handleReq() if found or queue a lookup job.
+     *
+     *  @param req the decrypted record, null if decryption failed
+     *  @param decryptTime ms
+     *  @return handle time or -1 if it wasn't completely handled
+     *  @since 0.9.31 pulled out of handleRequest(BuildMessageState)
+     */
+    private long handleRequest(BuildMessageState state, BuildRequestRecord req, long decryptTime) {
+        long timeSinceReceived = _context.clock().now() - state.recvTime - decryptTime;
+        Hash from = state.fromHash;
+        if (from == null && state.from != null)
+            from = state.from.calculateHash();
         _context.statManager().addRateData("tunnel.decryptRequestTime", decryptTime);
         if (decryptTime > 500 && _log.shouldLog(Log.WARN))
             _log.warn("Took too long to decrypt the request: " + decryptTime + " for message " + state.msg.getUniqueId() + " received " + (timeSinceReceived+decryptTime) + " ago");
@@ -0,0 +1,113 @@
+package net.i2p.router.tunnel.pool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+import net.i2p.data.Hash;
+import net.i2p.data.PrivateKey;
+import net.i2p.data.i2np.BuildRequestRecord;
+import net.i2p.data.i2np.TunnelBuildMessage;
+import net.i2p.router.RouterContext;
+import net.i2p.router.tunnel.BuildMessageProcessor;
+import net.i2p.util.Log;
+
+/**
+ * Decrypt a batch of tunnel build requests in parallel on a bounded
+ * fork-join pool, so a build storm isn't limited to one ElGamal
+ * decryption at a time per BuildHandler thread.
+ * The requests are independent; BuildMessageProcessor is thread safe.
+ *
+ * One per BuildHandler, shared by all its threads.
+ *
+ * @since 0.9.31
+ */
+class BuildRequestDecryptor {
+    private final Log _log;
+    private final BuildMessageProcessor _processor;
+    private final ForkJoinPool _pool;
+
+    /**
+     *  @param threads the pool size
+     */
+    public BuildRequestDecryptor(RouterContext ctx, BuildMessageProcessor processor, int threads) {
+        _log = ctx.logManager().getLog(BuildRequestDecryptor.class);
+        _processor = processor;
+        _pool = new ForkJoinPool(threads, new Factory(), null, false);
+    }
+
+    /**
+     *  Decrypt msgs[0] through msgs[count - 1], blocking until all are done.
+     *  Each message is layer-decrypted in place as in BuildMessageProcessor.decrypt().
+     *
+     *  @param rv out parameter, the decrypted records, null for failures
+     *  @param times out parameter, the decryption time for each record (ms)
+     */
+    public void decrypt(TunnelBuildMessage[] msgs, int count, Hash ourHash, PrivateKey privKey,
+                        BuildRequestRecord[] rv, long[] times) {
+        if (count == 1) {
+            // not worth a handoff
+            long before = System.currentTimeMillis();
+            rv[0] = _processor.decrypt(msgs[0], ourHash, privKey);
+            times[0] = System.currentTimeMillis() - before;
+            return;
+        }
+        List<Task> tasks = new ArrayList<Task>(count);
+        for (int i = 0; i < count; i++) {
+            tasks.add(new Task(msgs[i], ourHash, privKey));
+        }
+        List<Future<BuildRequestRecord>> results = _pool.invokeAll(tasks);
+        for (int i = 0; i < count; i++) {
+            try {
+                rv[i] = results.get(i).get();
+            } catch (InterruptedException ie) {
+                rv[i] = null;
+            } catch (ExecutionException ee) {
+                _log.error("Build request decrypt failure", ee);
+                rv[i] = null;
+            }
+            times[i] = tasks.get(i).time;
+        }
+    }
+
+    public void shutdown() {
+        _pool.shutdownNow();
+    }
+
+    private class Task implements Callable<BuildRequestRecord> {
+        private final TunnelBuildMessage _msg;
+        private final Hash _ourHash;
+        private final PrivateKey _privKey;
+        /** written by the pool thread, read after invokeAll() returns */
+        volatile long time;
+
+        public Task(TunnelBuildMessage msg, Hash ourHash, PrivateKey privKey) {
+            _msg = msg;
+            _ourHash = ourHash;
+            _privKey = privKey;
+        }
+
+        public BuildRequestRecord call() {
+            long before = System.currentTimeMillis();
+            BuildRequestRecord rv = _processor.decrypt(_msg, _ourHash, _privKey);
+            time = System.currentTimeMillis() - before;
+            return rv;
+        }
+    }
+
+    /**
+     *  Just to name and prioritize the threads
+     */
+    private static class Factory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread rv = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            rv.setName("BuildDecrypt " + rv.getPoolIndex());
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+}
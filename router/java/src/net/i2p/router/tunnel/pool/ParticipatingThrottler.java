@@ -46,9 +46,24 @@ class ParticipatingThrottler {
 
     /** increments before checking */
     boolean shouldThrottle(Hash h) {
+        return this.counter.increment(h) > getLimit();
+    }
+
+    /**
+     *  Would the next shouldThrottle() call return true?
+     *  Does not increment, for checks before the request is decrypted.
+     *  Note that the counter is only incremented for non-IBGW requests.
+     *
+     *  @since 0.9.31
+     */
+    boolean isThrottled(Hash h) {
+        return this.counter.count(h) >= getLimit();
+    }
+
+    /** @since 0.9.31 */
+    private int getLimit() {
         int numTunnels = this.context.tunnelManager().getParticipatingCount();
-        int limit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, numTunnels * PERCENT_LIMIT / 100));
-        return this.counter.increment(h) > limit;
+        return Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, numTunnels * PERCENT_LIMIT / 100));
     }
 
     private class Cleaner implements SimpleTimer.TimedEvent {
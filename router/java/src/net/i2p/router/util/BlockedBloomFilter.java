@@ -0,0 +1,116 @@
+package net.i2p.router.util;
+
+import java.util.Arrays;
+
+/**
+ * A blocked Bloom filter: each member sets its k bits within a single
+ * 512-bit block, one 64-byte cache line, instead of in k random places
+ * across the whole filter, so an insert or a lookup touches one cache line
+ * instead of k of them.
+ *
+ * The caller supplies a good 64-bit hash of the member, e.g. a keyed
+ * SipHash. The top bits pick the block, and the bit positions within the
+ * block come from a SplitMix64 stream seeded with the hash.
+ *
+ * For the same m and k, the false positive rate is somewhat higher than
+ * for a standard Bloom filter, as the blocks don't fill evenly.
+ * falsePositives() returns the standard estimate.
+ *
+ * Same threading rules as BloomSHA1: the locked_foo() methods may be
+ * called concurrently, with a minor risk of false negatives if two threads
+ * set bits in the same word at the same time.
+ *
+ * @since 0.9.31
+ */
+class BlockedBloomFilter {
+    private final long[] _filter;
+    private final int _k;
+    private final int _blockShift;
+    private final long _filterBits;
+    private int _count;
+
+    /** 8 longs == 512 bits == one cache line */
+    private static final int BLOCK_WORDS_SHIFT = 3;
+    private static final int BLOCK_BITS_SHIFT = 9;
+    private static final int BLOCK_BITS_MASK = (1 << BLOCK_BITS_SHIFT) - 1;
+    /** 9-bit positions per 64-bit mixer output */
+    private static final int POSITIONS_PER_LONG = 64 / BLOCK_BITS_SHIFT;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Memory usage is 2**m bits or 2**(m-3) bytes.
+     *
+     * @param m filter size exponent, 10 to 29
+     * @param k bits per member, 1 to 32
+     */
+    public BlockedBloomFilter(int m, int k) {
+        if (m <= BLOCK_BITS_SHIFT || m > 29)
+            throw new IllegalArgumentException("Bad m " + m);
+        if (k <= 0 || k > 32)
+            throw new IllegalArgumentException("Bad k " + k);
+        _k = k;
+        _filter = new long[1 << (m - 6)];
+        _filterBits = 1L << m;
+        // the block number is the top (m - 9) bits of the hash
+        _blockShift = 64 - (m - BLOCK_BITS_SHIFT);
+    }
+
+    /**
+     * @param hash a good 64-bit hash of the member
+     */
+    public void locked_insert(long hash) {
+        int base = (int) (hash >>> _blockShift) << BLOCK_WORDS_SHIFT;
+        long bits = 0;
+        for (int i = 0; i < _k; i++) {
+            if (i % POSITIONS_PER_LONG == 0) {
+                bits = mix(hash + (1 + i / POSITIONS_PER_LONG) * GOLDEN_GAMMA);
+            }
+            int pos = (int) bits & BLOCK_BITS_MASK;
+            bits >>>= BLOCK_BITS_SHIFT;
+            _filter[base + (pos >>> 6)] |= 1L << pos;
+        }
+        _count++;
+    }
+
+    /**
+     * @param hash a good 64-bit hash of the member
+     */
+    public boolean locked_member(long hash) {
+        int base = (int) (hash >>> _blockShift) << BLOCK_WORDS_SHIFT;
+        long bits = 0;
+        for (int i = 0; i < _k; i++) {
+            if (i % POSITIONS_PER_LONG == 0) {
+                bits = mix(hash + (1 + i / POSITIONS_PER_LONG) * GOLDEN_GAMMA);
+            }
+            int pos = (int) bits & BLOCK_BITS_MASK;
+            bits >>>= BLOCK_BITS_SHIFT;
+            if ((_filter[base + (pos >>> 6)] & (1L << pos)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** SplitMix64 finalizer */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(_filter, 0);
+        _count = 0;
+    }
+
+    /** number of members inserted, unsynchronized */
+    public int size() {
+        return _count;
+    }
+
+    /**
+     * @return approximate false positive rate, (1 - e(-kN/M))^k
+     */
+    public double falsePositives() {
+        return Math.pow(1d - Math.exp(0d - ((double) _k) * _count / _filterBits), _k);
+    }
+}
@@ -45,6 +45,12 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
     /** following is a per-request global for ease of use, locked by this */
     private long _now;
 
+    /** configured per-instance, see CoDelConfig */
+    private final long _target;
+    private final long _interval;
+    private final boolean _drop;
+    private transient final SojournHistogram _histogram;
+
     /** debugging */
     private static final AtomicLong __id = new AtomicLong();
     private final long _id;
@@ -56,7 +62,7 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
      *
      *  I2P: Raise to 15 due to multithreading environment
      *
-     *  Maybe need to make configurable per-instance.
+     *  Default, configurable per-instance, see CoDelConfig.
      */
     private static final long TARGET = 15;
 
@@ -64,7 +70,7 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
      *  Quote:
      *  A setting of 100 ms works well across a range of RTTs from 10 ms to 1 second
      *
-     *  Maybe need to make configurable per-instance.
+     *  Default, configurable per-instance, see CoDelConfig.
      */
     private static final long INTERVAL = 100;
     //private static final int MAXPACKET = 512;
@@ -75,10 +81,22 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
     private static final long BACKLOG_TIME = 2*1000;
 
     /**
-     *  @param name for stats
+     *  @param name for stats and config, see CoDelConfig
      */
     public CoDelBlockingQueue(I2PAppContext ctx, String name, int capacity) {
+        this(ctx, name, capacity, new CoDelConfig(ctx, name, TARGET, INTERVAL, true));
+    }
+
+    /**
+     *  @param name for stats
+     *  @since 0.9.31
+     */
+    public CoDelBlockingQueue(I2PAppContext ctx, String name, int capacity, CoDelConfig config) {
         super(capacity);
+        _target = config.getTarget();
+        _interval = config.getInterval();
+        _drop = config.shouldDrop();
+        _histogram = config.getHistogram();
         _context = ctx;
         _log = ctx.logManager().getLog(CoDelBlockingQueue.class);
         _name = name;
@@ -206,14 +224,15 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
         boolean ok_to_drop = false;
         long sojurn = _now - entry.getEnqueueTime();
         _context.statManager().addRateData(STAT_DELAY, sojurn);
+        _histogram.add(sojurn);
         // I2P use isEmpty instead of size() < MAXPACKET
-        if (sojurn < TARGET || isEmpty()) {
+        if (sojurn < _target || isEmpty()) {
             _first_above_time = 0;
         } else {
             if (_first_above_time == 0) {
                 // just went above from below. if we stay above
-                // for at least INTERVAL we'll say it's ok to drop
-                _first_above_time = _now + INTERVAL;
+                // for at least interval we'll say it's ok to drop
+                _first_above_time = _now + _interval;
             } else if (_now >= _first_above_time) {
                 ok_to_drop = true;
             }
@@ -235,6 +254,15 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
      *  @return rv or a subequent entry or null if dropped
      */
     private E codel(E rv) {
+        if (!_drop) {
+            // measure only
+            if (rv != null) {
+                long sojurn = _context.clock().now() - rv.getEnqueueTime();
+                _context.statManager().addRateData(STAT_DELAY, sojurn);
+                _histogram.add(sojurn);
+            }
+            return rv;
+        }
         synchronized (this) {
             // non-blocking inside this synchronized block
 
@@ -270,7 +298,7 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
                     }
                 }
             } else if (ok_to_drop &&
-                       (_now - _drop_next < INTERVAL || _now - _first_above_time >= INTERVAL)) {
+                       (_now - _drop_next < _interval || _now - _first_above_time >= _interval)) {
                 // If we get here, then we're not in dropping state. If the sojourn time has been above
                 // target for interval, then we decide whether it's time to enter dropping state.
                 // We do so if we've been either in dropping state recently or above target for a relatively
@@ -287,7 +315,7 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
                 _dropping = true;
                 // If we're in a drop cycle, the drop rate that controlled the queue
                 // on the last cycle is a good starting point to control it now.
-                if (_now - _drop_next < INTERVAL)
+                if (_now - _drop_next < _interval)
                     _count = _count > 2 ? _count - 2 : 1;
                 else
                     _count = 1;
@@ -313,6 +341,6 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
      *  Caller must synch on this
      */
     private void control_law(long t) {
-        _drop_next = t + (long) (INTERVAL / Math.sqrt(_count));
+        _drop_next = t + (long) (_interval / Math.sqrt(_count));
     }
 }
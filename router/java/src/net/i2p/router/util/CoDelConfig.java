@@ -0,0 +1,76 @@
+package net.i2p.router.util;
+
+import net.i2p.I2PAppContext;
+
+/**
+ *  Per-queue active queue management settings, shared by
+ *  CoDelBlockingQueue and CoDelPriorityBlockingQueue,
+ *  so each queue can be tuned for the deployment without a rebuild.
+ *
+ *  For a queue named e.g. UDP-Sender, in order of preference,
+ *  shown with the CoDelBlockingQueue defaults:
+ *<pre>
+ *  router.codel.UDP-Sender.target=15
+ *  router.codel.target=15
+ *  router.codel.UDP-Sender.interval=100
+ *  router.codel.interval=100
+ *  router.codel.UDP-Sender.drop=true
+ *  router.codel.drop=true
+ *</pre>
+ *  Target and interval are in ms.
+ *  The default interval is 100 for CoDelBlockingQueue and 300 for CoDelPriorityBlockingQueue.
+ *  If drop is false, the queue only measures; it does not drop,
+ *  and it behaves the same as a plain queue.
+ *
+ *  Sojourn times of all queues are recorded in a SojournHistogram.
+ *
+ *  @since 0.9.31
+ */
+public class CoDelConfig {
+
+    private final long _target;
+    private final long _interval;
+    private final boolean _drop;
+    private final SojournHistogram _histogram;
+
+    public static final String PROP_PREFIX = "router.codel.";
+
+    /**
+     *  @param name for stats and config
+     *  @param target default target (ms)
+     *  @param interval default interval (ms)
+     *  @param drop default drop setting
+     */
+    public CoDelConfig(I2PAppContext ctx, String name, long target, long interval, boolean drop) {
+        _target = Math.max(1, getLong(ctx, name, "target", target));
+        _interval = Math.max(1, getLong(ctx, name, "interval", interval));
+        String v = ctx.getProperty(PROP_PREFIX + name + ".drop");
+        if (v == null)
+            v = ctx.getProperty(PROP_PREFIX + "drop");
+        _drop = v != null ? Boolean.parseBoolean(v) : drop;
+        _histogram = SojournHistogram.getInstance(ctx, name);
+    }
+
+    /** ms */
+    public long getTarget() { return _target; }
+
+    /** ms */
+    public long getInterval() { return _interval; }
+
+    /** if false, only measure */
+    public boolean shouldDrop() { return _drop; }
+
+    public SojournHistogram getHistogram() { return _histogram; }
+
+    private static long getLong(I2PAppContext ctx, String name, String key, long def) {
+        String v = ctx.getProperty(PROP_PREFIX + name + '.' + key);
+        if (v == null)
+            v = ctx.getProperty(PROP_PREFIX + key);
+        if (v != null) {
+            try {
+                return Long.parseLong(v.trim());
+            } catch (NumberFormatException nfe) {}
+        }
+        return def;
+    }
+}
@@ -39,6 +39,12 @@ public class CoDelPriorityBlockingQueue<E extends CDPQEntry> extends PriBlocking
 
     private int _lastDroppedPriority;
 
+    /** configured per-instance, see CoDelConfig */
+    private final long _target;
+    private final long _interval;
+    private final boolean _drop;
+    private transient final SojournHistogram _histogram;
+
     /** debugging */
     static final AtomicLong __id = new AtomicLong();
     private final long _id;
@@ -50,7 +56,7 @@ public class CoDelPriorityBlockingQueue<E extends CDPQEntry> extends PriBlocking
      *
      *  I2P: Raise to 15 due to multithreading environment
      *
-     *  Maybe need to make configurable per-instance.
+     *  Default, configurable per-instance, see CoDelConfig.
      */
     private static final long TARGET = 15;
 
@@ -60,7 +66,7 @@ public class CoDelPriorityBlockingQueue<E extends CDPQEntry> extends PriBlocking
      *
      *  I2P: Raise to 300 due to longer end-to-end RTTs
      *
-     *  Maybe need to make configurable per-instance.
+     *  Default, configurable per-instance, see CoDelConfig.
      */
     private static final long INTERVAL = 300;
     //private static final int MAXPACKET = 512;
@@ -74,10 +80,31 @@ public class CoDelPriorityBlockingQueue<E extends CDPQEntry> extends PriBlocking
     private static final long BACKLOG_TIME = 2*1000;
 
     /**
-     *  @param name for stats
+     *  @param name for stats and config, see CoDelConfig
      */
     public CoDelPriorityBlockingQueue(I2PAppContext ctx, String name, int initialCapacity) {
+        this(ctx, name, initialCapacity, true);
+    }
+
+    /**
+     *  @param name for stats and config, see CoDelConfig
+     *  @param drop default, if false, only measure, unless configured otherwise
+     *  @since 0.9.31
+     */
+    public CoDelPriorityBlockingQueue(I2PAppContext ctx, String name, int initialCapacity, boolean drop) {
+        this(ctx, name, initialCapacity, new CoDelConfig(ctx, name, TARGET, INTERVAL, drop));
+    }
+
+    /**
+     *  @param name for stats
+     *  @since 0.9.31
+     */
+    public CoDelPriorityBlockingQueue(I2PAppContext ctx, String name, int initialCapacity, CoDelConfig config) {
         super(ctx, name, initialCapacity);
+        _target = config.getTarget();
+        _interval = config.getInterval();
+        _drop = config.shouldDrop();
+        _histogram = config.getHistogram();
         STAT_DROP = ("codel." + name + ".drop.").intern();
         STAT_DELAY = ("codel." + name + ".delay").intern();
         for (int i = 0; i < PRIORITIES.length; i++) {
@@ -153,6 +180,8 @@ public class CoDelPriorityBlockingQueue<E extends CDPQEntry> extends PriBlocking
      */
     @Override
     public boolean isBacklogged() {
+        if (!_drop)
+            return super.isBacklogged();
         E e = peek();
         if (e == null)
             return false;
@@ -189,14 +218,15 @@ public class CoDelPriorityBlockingQueue<E extends CDPQEntry> extends PriBlocking
         boolean ok_to_drop = false;
         long sojurn = _now - entry.getEnqueueTime();
         _context.statManager().addRateData(STAT_DELAY, sojurn);
+        _histogram.add(sojurn);
         // I2P use isEmpty instead of size() < MAXPACKET
-        if (sojurn < TARGET || isEmpty()) {
+        if (sojurn < _target || isEmpty()) {
             _first_above_time = 0;
         } else {
             if (_first_above_time == 0) {
                 // just went above from below. if we stay above
-                // for at least INTERVAL we'll say it's ok to drop
-                _first_above_time = _now + INTERVAL;
+                // for at least interval we'll say it's ok to drop
+                _first_above_time = _now + _interval;
             } else if (_now >= _first_above_time) {
                 ok_to_drop = true;
             }
@@ -217,6 +247,15 @@ public class CoDelPriorityBlockingQueue<E extends CDPQEntry> extends PriBlocking
      *  @return rv or a subequent entry or null if dropped
      */
     private E codel(E rv) {
+        if (!_drop) {
+            // measure only
+            if (rv != null) {
+                long sojurn = _context.clock().now() - rv.getEnqueueTime();
+                _context.statManager().addRateData(STAT_DELAY, sojurn);
+                _histogram.add(sojurn);
+            }
+            return rv;
+        }
         synchronized (this) {
             // non-blocking inside this synchronized block
 
@@ -253,7 +292,7 @@ public class CoDelPriorityBlockingQueue<E extends CDPQEntry> extends PriBlocking
                 }
             } else if (ok_to_drop &&
                        rv.getPriority() < DONT_DROP_PRIORITY &&
-                       (_now - _drop_next < INTERVAL || _now - _first_above_time >= INTERVAL)) {
+                       (_now - _drop_next < _interval || _now - _first_above_time >= _interval)) {
                 // If we get here, then we're not in dropping state. If the sojourn time has been above
                 // target for interval, then we decide whether it's time to enter dropping state.
                 // We do so if we've been either in dropping state recently or above target for a relatively
@@ -271,7 +310,7 @@ public class CoDelPriorityBlockingQueue<E extends CDPQEntry> extends PriBlocking
                 _dropping = true;
                 // If we're in a drop cycle, the drop rate that controlled the queue
                 // on the last cycle is a good starting point to control it now.
-                if (_now - _drop_next < INTERVAL)
+                if (_now - _drop_next < _interval)
                     _count = _count > 2 ? _count - 2 : 1;
                 else
                     _count = 1;
@@ -301,6 +340,6 @@ public class CoDelPriorityBlockingQueue<E extends CDPQEntry> extends PriBlocking
      *  Caller must synch on this
      */
     private void control_law(long t) {
-        _drop_next = t + (long) (INTERVAL / Math.sqrt(_count));
+        _drop_next = t + (long) (_interval / Math.sqrt(_count));
     }
 }
@@ -4,6 +4,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.i2p.I2PAppContext;
+import net.i2p.crypto.SipHashInline;
 import net.i2p.data.DataHelper;
 import net.i2p.util.Log;
 import net.i2p.util.SimpleTimer2;
@@ -19,6 +20,12 @@ import org.xlattice.crypto.filters.BloomSHA1;
  * contained bloom filters.
  *
  * See main() for an analysis of false positive rate.
+ *
+ * As of 0.9.31, with router.blockedBloomFilter=true, the two filters are
+ * BlockedBloomFilters indexed by a keyed SipHash of the entry, instead of
+ * BloomSHA1s, so each add touches one cache line per filter.
+ * Memory usage for a given m is the same.
+ *
  * See BloomFilterIVValidator for instantiation parameters.
  * See DecayingHashSet for a smaller and simpler version.
  * See net.i2p.router.tunnel.BloomFilterIVValidator
@@ -29,6 +36,10 @@ public class DecayingBloomFilter {
     protected final Log _log;
     private BloomSHA1 _current;
     private BloomSHA1 _previous;
+    /** if non-null, used instead of _current and _previous */
+    private BlockedBloomFilter _currentBlocked;
+    private BlockedBloomFilter _previousBlocked;
+    private final long _sipk0, _sipk1;
     protected final int _durationMs;
     protected final int _entryBytes;
     private final byte _extenders[][];
@@ -45,6 +56,8 @@ public class DecayingBloomFilter {
     
     private static final int DEFAULT_M = 23;
     private static final int DEFAULT_K = 11;
+    /** @since 0.9.31 */
+    public static final String PROP_BLOCKED = "router.blockedBloomFilter";
     /** true for debugging */
     private static final boolean ALWAYS_MISS = false;
    
@@ -60,6 +73,8 @@ public class DecayingBloomFilter {
         _extended = null;
         _longToEntry = null;
         _longToEntryMask = 0;
+        _sipk0 = 0;
+        _sipk1 = 0;
         context.addShutdownTask(new Shutdown());
         _keepDecaying = true;
         if (_durationMs == 60*60*1000) {
@@ -115,12 +130,24 @@ public class DecayingBloomFilter {
                     throw new IllegalArgumentException("Max m is 29");
             }
         }
-        _current = new BloomSHA1(m, k);
-        _previous = new BloomSHA1(m, k);
         _durationMs = durationMs;
-        int numExtenders = (32+ (entryBytes-1))/entryBytes - 1;
-        if (numExtenders < 0)
+        int numExtenders;
+        if (context.getBooleanProperty(PROP_BLOCKED)) {
+            _currentBlocked = new BlockedBloomFilter(m, k);
+            _previousBlocked = new BlockedBloomFilter(m, k);
+            _sipk0 = context.random().nextLong();
+            _sipk1 = context.random().nextLong();
+            // the SipHash takes care of short entries
             numExtenders = 0;
+        } else {
+            _current = new BloomSHA1(m, k);
+            _previous = new BloomSHA1(m, k);
+            _sipk0 = 0;
+            _sipk1 = 0;
+            numExtenders = (32+ (entryBytes-1))/entryBytes - 1;
+            if (numExtenders < 0)
+                numExtenders = 0;
+        }
         _extenders = new byte[numExtenders][entryBytes];
         for (int i = 0; i < numExtenders; i++)
             _context.random().nextBytes(_extenders[i]);
@@ -128,6 +155,10 @@ public class DecayingBloomFilter {
             _extended = new byte[32];
             _longToEntry = new byte[_entryBytes];
             _longToEntryMask = (1l << (_entryBytes * 8l)) -1;
+        } else if (_currentBlocked != null && _entryBytes < 32) {
+            _extended = null;
+            _longToEntry = new byte[_entryBytes];
+            _longToEntryMask = (1l << (_entryBytes * 8l)) -1;
         } else {
             // final
             _extended = null;
@@ -144,6 +175,7 @@ public class DecayingBloomFilter {
         }
         if (_log.shouldLog(Log.WARN))
            _log.warn("New DBF " + name + " m = " + m + " k = " + k + " entryBytes = " + entryBytes +
+                     " blocked? " + (_currentBlocked != null) +
                      " numExtenders = " + numExtenders + " cycle (s) = " + (durationMs / 1000));
         // try to get a handle on memory usage vs. false positives
         context.statManager().createRateStat("router.decayingBloomFilter." + name + ".size",
@@ -169,11 +201,15 @@ public class DecayingBloomFilter {
 
     /** unsynchronized but only used for logging elsewhere */
     public int getInsertedCount() { 
+            if (_currentBlocked != null)
+                return _currentBlocked.size() + _previousBlocked.size();
             return _current.size() + _previous.size(); 
     }
 
     /** unsynchronized, only used for logging elsewhere */
     public double getFalsePositiveRate() { 
+            if (_currentBlocked != null)
+                return _currentBlocked.falsePositives();
             return _current.falsePositives(); 
     }
     
@@ -245,6 +281,19 @@ public class DecayingBloomFilter {
     }
     
     private boolean locked_add(byte entry[], int offset, int len, boolean addIfNew) {
+        if (_currentBlocked != null) {
+            long hash = SipHashInline.hash24(_sipk0, _sipk1, entry, offset, len);
+            boolean seen = _currentBlocked.locked_member(hash);
+            if (!seen)
+                seen = _previousBlocked.locked_member(hash);
+            if (seen) {
+                _currentDuplicates++;
+                return true;
+            }
+            if (addIfNew)
+                _currentBlocked.locked_insert(hash);
+            return false;
+        }
         if (_extended != null) {
             // extend the entry to 32 bytes
             System.arraycopy(entry, offset, _extended, 0, len);
@@ -289,8 +338,13 @@ public class DecayingBloomFilter {
         if (!getWriteLock())
             return;
         try {
-            _current.clear();
-            _previous.clear();
+            if (_currentBlocked != null) {
+                _currentBlocked.clear();
+                _previousBlocked.clear();
+            } else {
+                _current.clear();
+                _previous.clear();
+            }
             _currentDuplicates = 0;
         } finally { releaseWriteLock(); }
     }
@@ -307,13 +361,23 @@ public class DecayingBloomFilter {
         if (!getWriteLock())
             return;
         try {
-            BloomSHA1 tmp = _previous;
-            currentCount = _current.size();
-            if (_log.shouldLog(Log.DEBUG) && currentCount > 0)
-                fpr = _current.falsePositives();
-            _previous = _current;
-            _current = tmp;
-            _current.clear();
+            if (_currentBlocked != null) {
+                BlockedBloomFilter tmp = _previousBlocked;
+                currentCount = _currentBlocked.size();
+                if (_log.shouldLog(Log.DEBUG) && currentCount > 0)
+                    fpr = _currentBlocked.falsePositives();
+                _previousBlocked = _currentBlocked;
+                _currentBlocked = tmp;
+                _currentBlocked.clear();
+            } else {
+                BloomSHA1 tmp = _previous;
+                currentCount = _current.size();
+                if (_log.shouldLog(Log.DEBUG) && currentCount > 0)
+                    fpr = _current.falsePositives();
+                _previous = _current;
+                _current = tmp;
+                _current.clear();
+            }
             dups = _currentDuplicates;
             _currentDuplicates = 0;
         } finally { releaseWriteLock(); }
@@ -0,0 +1,302 @@
+package net.i2p.router.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  A set of IPv4 and IPv6 addresses with no boxing, for Blocklist.
+ *  Each address is stored as two longs in an open-addressed table
+ *  with linear probing, so add, remove, and contains are O(1)
+ *  and don't create any objects.
+ *
+ *  The size is limited. When full, add() either fails or
+ *  removes the oldest address, as set in the constructor.
+ *
+ *  Thread safe. Reads are lock-free on a volatile snapshot of the table.
+ *  Writes are synchronized and copy the table, so they are O(capacity);
+ *  that's fine for Blocklist, which checks on every packet but adds rarely.
+ *
+ *  @since 0.9.31
+ */
+public class IPAddressSet {
+    private final int _max;
+    private final boolean _evictOldest;
+    /** copy-on-write, never modified once published */
+    private volatile Table _table;
+    /** evictOldest only, addresses in the order added; may include removed ones */
+    private final long[] _ringHi;
+    private final long[] _ringLo;
+    private int _ringStart;
+    private int _ringCount;
+
+    private static final int MIN_CAPACITY = 16;
+    /** ::ffff:0:0/96 */
+    private static final long IPV4_MAPPED = 0xffffL << 32;
+
+    /**
+     *  @param max maximum number of addresses
+     *  @param evictOldest if true, add() removes the oldest address when full;
+     *                     if false, add() fails when full
+     */
+    public IPAddressSet(int max, boolean evictOldest) {
+        _max = max;
+        _evictOldest = evictOldest;
+        if (evictOldest) {
+            _ringHi = new long[max];
+            _ringLo = new long[max];
+        } else {
+            _ringHi = null;
+            _ringLo = null;
+        }
+        _table = new Table(MIN_CAPACITY);
+    }
+
+    /**
+     *  @param ip 4 or 16 bytes
+     *  @return true if added, false if already present, full, or bad length
+     */
+    public synchronized boolean add(byte[] ip) {
+        if (ip.length != 4 && ip.length != 16)
+            return false;
+        long hi = getHi(ip);
+        long lo = getLo(ip);
+        Table cur = _table;
+        if (cur.find(hi, lo) >= 0)
+            return false;
+        if (!_evictOldest && cur.size >= _max)
+            return false;
+        int capacity = cur.hi.length;
+        if ((cur.size + 1) * 2 > capacity)
+            capacity *= 2;
+        Table t = cur.copy(capacity);
+        if (_evictOldest) {
+            while (_ringCount >= _max)
+                evictOldest(t);
+        }
+        t.insert(hi, lo);
+        t.size++;
+        if (_evictOldest) {
+            int idx = (_ringStart + _ringCount++) % _max;
+            _ringHi[idx] = hi;
+            _ringLo[idx] = lo;
+        }
+        _table = t;
+        return true;
+    }
+
+    /**
+     *  @param ip 4 or 16 bytes
+     *  @return true if it was there
+     */
+    public synchronized boolean remove(byte[] ip) {
+        if (ip.length != 4 && ip.length != 16)
+            return false;
+        long hi = getHi(ip);
+        long lo = getLo(ip);
+        Table cur = _table;
+        if (cur.find(hi, lo) < 0)
+            return false;
+        Table t = cur.copy(cur.hi.length);
+        t.remove(hi, lo);
+        _table = t;
+        return true;
+    }
+
+    /**
+     *  @param ip 4 or 16 bytes
+     */
+    public boolean contains(byte[] ip) {
+        if (ip.length != 4 && ip.length != 16)
+            return false;
+        return _table.find(getHi(ip), getLo(ip)) >= 0;
+    }
+
+    /**
+     *  IPv4 only, no byte array needed
+     *  @param ip as in Blocklist, big-endian
+     */
+    public boolean contains(int ip) {
+        Table t = _table;
+        if (t.size == 0)
+            return false;
+        return t.find(0, IPV4_MAPPED | (ip & 0xffffffffL)) >= 0;
+    }
+
+    public int size() {
+        return _table.size;
+    }
+
+    public boolean isEmpty() {
+        return _table.size == 0;
+    }
+
+    public synchronized void clear() {
+        _table = new Table(MIN_CAPACITY);
+        _ringStart = 0;
+        _ringCount = 0;
+    }
+
+    /**
+     *  @return a copy, unsorted; 4 or 16 bytes each
+     */
+    public List<byte[]> getAll() {
+        Table t = _table;
+        List<byte[]> rv = new ArrayList<byte[]>(t.size);
+        for (int i = 0; i < t.hi.length; i++) {
+            if (t.used[i])
+                rv.add(toBytes(t.hi[i], t.lo[i]));
+        }
+        return rv;
+    }
+
+    ////// internals
+
+    /**
+     *  IPv6 is (first 8 bytes, last 8 bytes).
+     *  IPv4 is stored as the IPv4-mapped IPv6 address ::ffff:a.b.c.d,
+     *  which is the same address anyway.
+     */
+    private static long getHi(byte[] ip) {
+        if (ip.length == 4)
+            return 0;
+        return fromBytes(ip, 0);
+    }
+
+    private static long getLo(byte[] ip) {
+        if (ip.length == 4)
+            return IPV4_MAPPED | (((ip[0] & 0xffL) << 24) | ((ip[1] & 0xff) << 16) |
+                                 ((ip[2] & 0xff) << 8) | (ip[3] & 0xff));
+        return fromBytes(ip, 8);
+    }
+
+    private static long fromBytes(byte[] b, int off) {
+        long rv = 0;
+        for (int i = off; i < off + 8; i++) {
+            rv = (rv << 8) | (b[i] & 0xff);
+        }
+        return rv;
+    }
+
+    private static byte[] toBytes(long hi, long lo) {
+        if (hi == 0 && (lo & ~0xffffffffL) == IPV4_MAPPED) {
+            byte[] rv = new byte[4];
+            for (int i = 3; i >= 0; i--) {
+                rv[i] = (byte) lo;
+                lo >>>= 8;
+            }
+            return rv;
+        }
+        byte[] rv = new byte[16];
+        for (int i = 7; i >= 0; i--) {
+            rv[i] = (byte) hi;
+            hi >>>= 8;
+            rv[i + 8] = (byte) lo;
+            lo >>>= 8;
+        }
+        return rv;
+    }
+
+    private static int hash(long hi, long lo) {
+        long z = hi * 0x9e3779b97f4a7c15L + lo;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return (int) (z ^ (z >>> 31));
+    }
+
+    /**
+     *  Remove the oldest in the ring, which may already be gone
+     */
+    private void evictOldest(Table t) {
+        long hi = _ringHi[_ringStart];
+        long lo = _ringLo[_ringStart];
+        _ringStart = (_ringStart + 1) % _max;
+        _ringCount--;
+        t.remove(hi, lo);
+    }
+
+    /**
+     *  Open-addressed table with linear probing.
+     *  Only modified by the writer that created it, before it is published.
+     */
+    private static class Table {
+        final long[] hi;
+        final long[] lo;
+        final boolean[] used;
+        final int mask;
+        int size;
+
+        /** @param capacity power of 2 */
+        Table(int capacity) {
+            hi = new long[capacity];
+            lo = new long[capacity];
+            used = new boolean[capacity];
+            mask = capacity - 1;
+        }
+
+        /**
+         *  Same capacity is a straight copy, otherwise rehash everything
+         *
+         *  @param capacity power of 2
+         */
+        Table copy(int capacity) {
+            Table rv = new Table(capacity);
+            if (capacity == hi.length) {
+                System.arraycopy(hi, 0, rv.hi, 0, capacity);
+                System.arraycopy(lo, 0, rv.lo, 0, capacity);
+                System.arraycopy(used, 0, rv.used, 0, capacity);
+            } else {
+                for (int i = 0; i < used.length; i++) {
+                    if (used[i])
+                        rv.insert(hi[i], lo[i]);
+                }
+            }
+            rv.size = size;
+            return rv;
+        }
+
+        /** @return slot or -1 */
+        int find(long h, long l) {
+            int i = hash(h, l) & mask;
+            while (used[i]) {
+                if (hi[i] == h && lo[i] == l)
+                    return i;
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        /** does not check for dups or change size */
+        void insert(long h, long l) {
+            int i = hash(h, l) & mask;
+            while (used[i]) {
+                i = (i + 1) & mask;
+            }
+            used[i] = true;
+            hi[i] = h;
+            lo[i] = l;
+        }
+
+        boolean remove(long h, long l) {
+            int i = find(h, l);
+            if (i < 0)
+                return false;
+            // backward shift deletion, no tombstones
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (!used[j])
+                    break;
+                int home = hash(hi[j], lo[j]) & mask;
+                // move j to i if its home is not cyclically in (i, j]
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    hi[i] = hi[j];
+                    lo[i] = lo[j];
+                    i = j;
+                }
+            }
+            used[i] = false;
+            size--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package net.i2p.router.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+import net.i2p.util.FileUtil;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  Append-only store of records keyed by Hash, in a single file.
+ *  Subclasses define the record types and what is kept in the index.
+ *
+ *  After the header (magic and version byte), each record is a type byte,
+ *  the hash, a date, the length, the data, and a CRC32 of all of that.
+ *  A removal is a record of the removal type with no data.
+ *  Later records replace earlier ones.
+ *  The whole file is read sequentially at load time, and an index of
+ *  hash to offset and subclass data is kept in memory.
+ *
+ *  When more than half of the file is dead, compact() copies the live
+ *  records to a temp file, which is then renamed over the old one.
+ *  The rename is the commit point.
+ *
+ *  After a crash, a truncated or corrupt tail is discarded at load time,
+ *  and an unfinished compaction is deleted or completed.
+ *
+ *  All public methods are synchronized. Subclasses must also
+ *  synchronize on this when using the index.
+ *
+ *  @since 0.9.31
+ */
+public abstract class RecordLog<E extends RecordLog.Entry> {
+    protected final RouterContext _context;
+    protected final Log _log;
+    /** hash to live record */
+    protected final Map<Hash, E> _index;
+    private final File _file;
+    private final File _tmpFile;
+    private final byte[] _magic;
+    private final int _headerLen;
+    private final int _removeType;
+    private final int _maxDataLen;
+    /** for logging */
+    private final String _name;
+    private RandomAccessFile _raf;
+    /** bytes in superseded and removal records */
+    private long _dead;
+    private long _end;
+    private boolean _dirty;
+
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int VERSION = 1;
+    /** type, hash, date, length */
+    private static final int RECORD_HEADER_LEN = 1 + Hash.HASH_LENGTH + 8 + 4;
+    private static final int RECORD_OVERHEAD = RECORD_HEADER_LEN + 4;
+    private static final long MIN_COMPACT_DEAD = 256*1024;
+
+    /**
+     *  The location of a live record. Subclasses add what they need.
+     */
+    public static class Entry {
+        long offset;
+        int length;
+
+        /** @return the record length including overhead */
+        public int getLength() { return length; }
+    }
+
+    /**
+     *  A live record as read by loadRecords()
+     */
+    public static class Record {
+        public final int type;
+        public final long date;
+        public final byte[] data;
+
+        public Record(int type, long date, byte[] data) {
+            this.type = type;
+            this.date = date;
+            this.data = data;
+        }
+    }
+
+    /**
+     *  Does not open the file, call loadRecords() first.
+     *
+     *  @param magic 7 ASCII bytes
+     *  @param removeType the type byte of a removal record
+     *  @param maxDataLen max data length of a record
+     *  @param name for logging, e.g. "netDb log"
+     */
+    protected RecordLog(RouterContext ctx, File file, byte[] magic, int removeType,
+                        int maxDataLen, String name) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(getClass());
+        _file = file;
+        _tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        _magic = magic;
+        _headerLen = magic.length + 1;
+        _removeType = removeType;
+        _maxDataLen = maxDataLen;
+        _name = name;
+        _index = new HashMap<Hash, E>(4096);
+    }
+
+    /**
+     *  Is this a known non-removal type?
+     *  Records of other types end the good part of the file at load time.
+     */
+    protected abstract boolean isValidType(int type);
+
+    /**
+     *  The index entry for a record read by loadRecords().
+     */
+    protected abstract E createEntry(int type, long date, byte[] data);
+
+    /**
+     *  Read the whole file in one pass, recovering from a crash if necessary,
+     *  and open it for appending. May be called again to reload.
+     *
+     *  @return the live records, in file order
+     */
+    protected synchronized Map<Hash, Record> loadRecords() throws IOException {
+        if (_raf != null) {
+            try { _raf.close(); } catch (IOException ioe) {}
+            _raf = null;
+        }
+        recoverCompaction();
+        Map<Hash, Record> rv = new LinkedHashMap<Hash, Record>(4096);
+        _index.clear();
+        _dead = 0;
+        long good = 0;
+        if (_file.exists() && _file.length() > 0) {
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(new FileInputStream(_file), 64*1024);
+                good = read(new DataInputStream(in), rv);
+            } finally {
+                if (in != null) try { in.close(); } catch (IOException ioe) {}
+            }
+        }
+        if (good <= 0) {
+            if (_file.exists() && _file.length() > 0) {
+                File bad = new File(_file.getPath() + ".bad");
+                _log.error("Bad " + _name + " header, moving to " + bad);
+                FileUtil.rename(_file, bad);
+            }
+            writeHeader();
+            good = _headerLen;
+        }
+        _raf = new RandomAccessFile(_file, "rw");
+        if (_raf.length() > good) {
+            _log.logAlways(Log.WARN, "Discarding " + (_raf.length() - good) +
+                           " bytes of truncated or corrupt " + _name + " at offset " + good);
+            _raf.setLength(good);
+        }
+        _end = good;
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Read " + rv.size() + " records, " + _end + " bytes, " +
+                      _dead + " dead, from " + _file);
+        return rv;
+    }
+
+    public synchronized boolean isOpen() {
+        return _raf != null;
+    }
+
+    /**
+     *  @return number of live records
+     */
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    /**
+     *  Appends a removal record if we have it.
+     *
+     *  @return true if we had it, false if not or not loaded yet
+     */
+    public synchronized boolean remove(Hash key) throws IOException {
+        if (_raf == null)
+            return false;
+        E old = _index.remove(key);
+        if (old == null)
+            return false;
+        int len = append(_removeType, key, _context.clock().now(), null);
+        _dead += old.length + len;
+        return true;
+    }
+
+    /**
+     *  Force all appends to disk
+     */
+    public synchronized void sync() throws IOException {
+        if (_raf != null && _dirty) {
+            _raf.getFD().sync();
+            _dirty = false;
+        }
+    }
+
+    /**
+     *  Is more than half of the file dead?
+     */
+    public synchronized boolean shouldCompact() {
+        return _dead >= MIN_COMPACT_DEAD && _dead > _end / 2;
+    }
+
+    /**
+     *  Copy the live records to a new file and replace the old one.
+     *
+     *  @return the time taken (ms)
+     */
+    public synchronized long compact() throws IOException {
+        if (_raf == null)
+            throw new IOException("not open");
+        long begin = System.currentTimeMillis();
+        long oldEnd = _end;
+        // new offsets, in index order, applied after the commit
+        long[] offsets = new long[_index.size()];
+        OutputStream out = null;
+        SecureFileOutputStream fos = null;
+        try {
+            fos = new SecureFileOutputStream(_tmpFile);
+            out = new BufferedOutputStream(fos, 64*1024);
+            out.write(_magic);
+            out.write(VERSION);
+            long off = _headerLen;
+            byte[] buf = new byte[RECORD_OVERHEAD + _maxDataLen];
+            int i = 0;
+            for (E ent : _index.values()) {
+                _raf.seek(ent.offset);
+                _raf.readFully(buf, 0, ent.length);
+                out.write(buf, 0, ent.length);
+                offsets[i++] = off;
+                off += ent.length;
+            }
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+            _raf.close();
+            _raf = null;
+            if (!FileUtil.rename(_tmpFile, _file))
+                throw new IOException("rename failed");
+            _raf = new RandomAccessFile(_file, "rw");
+            i = 0;
+            for (E ent : _index.values()) {
+                ent.offset = offsets[i++];
+            }
+            _end = off;
+            _dead = 0;
+            _dirty = false;
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+            // gone if committed
+            if (_tmpFile.exists())
+                _tmpFile.delete();
+            if (_raf == null) {
+                // rename failed, keep going with the old file
+                _raf = new RandomAccessFile(_file, "rw");
+            }
+        }
+        long time = System.currentTimeMillis() - begin;
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Compacted " + _name + " from " + oldEnd + " to " + _end + " bytes, " +
+                      _index.size() + " records, in " + time + "ms");
+        return time;
+    }
+
+    public synchronized void close() {
+        if (_raf == null)
+            return;
+        try {
+            sync();
+        } catch (IOException ioe) {
+            _log.error("Error syncing " + _name, ioe);
+        }
+        try { _raf.close(); } catch (IOException ioe) {}
+        _raf = null;
+    }
+
+    /**
+     *  Append a record and put its entry in the index,
+     *  replacing any previous one. Caller must synchronize on this.
+     *
+     *  @param type not the removal type
+     *  @param data non-empty
+     *  @param entry the new index entry for this record
+     *  @throws IOException if not open, or on a bad length
+     */
+    protected void appendRecord(int type, Hash key, long date, byte[] data, E entry) throws IOException {
+        if (_raf == null)
+            throw new IOException("not open");
+        if (data.length == 0 || data.length > _maxDataLen)
+            throw new IOException("bad length: " + data.length);
+        int len = append(type, key, date, data);
+        entry.offset = _end - len;
+        entry.length = len;
+        E old = _index.put(key, entry);
+        if (old != null)
+            _dead += old.length;
+    }
+
+    /**
+     *  @return the record length for this much data
+     */
+    protected static int recordLength(int dataLen) {
+        return RECORD_OVERHEAD + dataLen;
+    }
+
+    /////// private below here
+
+    /**
+     *  The rename in compact() is the commit point.
+     *  If there is no log but there is a temp file, a Windows rename
+     *  (delete then rename) was interrupted, so finish it.
+     *  Otherwise the temp file is incomplete.
+     */
+    private void recoverCompaction() {
+        if (!_tmpFile.exists())
+            return;
+        if (_file.exists()) {
+            _log.logAlways(Log.WARN, "Deleting incomplete " + _name + " compaction " + _tmpFile);
+            _tmpFile.delete();
+        } else {
+            _log.logAlways(Log.WARN, "Finishing " + _name + " compaction " + _tmpFile);
+            FileUtil.rename(_tmpFile, _file);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        OutputStream out = null;
+        try {
+            out = new SecureFileOutputStream(_file);
+            out.write(_magic);
+            out.write(VERSION);
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  @return the offset after the last good record, or 0 if the header is bad
+     */
+    private long read(DataInputStream in, Map<Hash, Record> rv) throws IOException {
+        byte[] magic = new byte[_magic.length];
+        try {
+            in.readFully(magic);
+            if (!DataHelper.eq(magic, _magic) || in.readUnsignedByte() != VERSION)
+                return 0;
+        } catch (EOFException eofe) {
+            return 0;
+        }
+        long off = _headerLen;
+        byte[] hdr = new byte[RECORD_HEADER_LEN];
+        byte[] crcBuf = new byte[4];
+        CRC32 crc = new CRC32();
+        while (true) {
+            try {
+                in.readFully(hdr);
+            } catch (EOFException eofe) {
+                // clean end, or a partial header
+                break;
+            }
+            int type = hdr[0] & 0xff;
+            int len = (int) DataHelper.fromLong(hdr, RECORD_HEADER_LEN - 4, 4);
+            boolean isRemove = type == _removeType;
+            if (len < 0 || len > _maxDataLen ||
+                (isRemove && len != 0) ||
+                (!isRemove && (len == 0 || !isValidType(type)))) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Bad " + _name + " record at " + off);
+                break;
+            }
+            byte[] data = new byte[len];
+            try {
+                in.readFully(data);
+                in.readFully(crcBuf);
+            } catch (EOFException eofe) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Truncated " + _name + " record at " + off);
+                break;
+            }
+            crc.reset();
+            crc.update(hdr);
+            crc.update(data);
+            if (crc.getValue() != DataHelper.fromLong(crcBuf, 0, 4)) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Bad CRC in " + _name + " record at " + off);
+                break;
+            }
+            Hash key = Hash.create(hdr, 1);
+            long date = DataHelper.fromLong(hdr, 1 + Hash.HASH_LENGTH, 8);
+            int rlen = RECORD_OVERHEAD + len;
+            E old;
+            if (!isRemove) {
+                E ent = createEntry(type, date, data);
+                ent.offset = off;
+                ent.length = rlen;
+                old = _index.put(key, ent);
+                rv.remove(key);
+                rv.put(key, new Record(type, date, data));
+            } else {
+                old = _index.remove(key);
+                rv.remove(key);
+                _dead += rlen;
+            }
+            if (old != null)
+                _dead += old.length;
+            off += rlen;
+        }
+        return off;
+    }
+
+    /**
+     *  @param data null for removal
+     *  @return the record length
+     */
+    private int append(int type, Hash key, long date, byte[] data) throws IOException {
+        int len = data != null ? data.length : 0;
+        byte[] rec = new byte[RECORD_OVERHEAD + len];
+        rec[0] = (byte) type;
+        System.arraycopy(key.getData(), 0, rec, 1, Hash.HASH_LENGTH);
+        DataHelper.toLong(rec, 1 + Hash.HASH_LENGTH, 8, date);
+        DataHelper.toLong(rec, RECORD_HEADER_LEN - 4, 4, len);
+        if (len > 0)
+            System.arraycopy(data, 0, rec, RECORD_HEADER_LEN, len);
+        CRC32 crc = new CRC32();
+        crc.update(rec, 0, RECORD_HEADER_LEN + len);
+        DataHelper.toLong(rec, RECORD_HEADER_LEN + len, 4, crc.getValue());
+        _raf.seek(_end);
+        _raf.write(rec);
+        _end += rec.length;
+        _dirty = true;
+        return rec.length;
+    }
+}
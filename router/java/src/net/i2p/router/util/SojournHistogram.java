@@ -0,0 +1,239 @@
+package net.i2p.router.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.SimpleTimer2;
+
+/**
+ *  Queue sojourn time histogram, one per context and queue name, shared by all
+ *  queues with that name (e.g. every NTCP connection's outbound queue).
+ *
+ *  Buckets are exact below 16 ms, then 8 per power of two,
+ *  so percentiles are within 12.5%. Adding is lock-free.
+ *
+ *  Once a minute the median, 99th, and 99.9th percentiles of the
+ *  past minute are added to the rate stats
+ *  codel.(name).p50, codel.(name).p99, and codel.(name).p999, and the
+ *  histogram is cleared.
+ *
+ *  @since 0.9.31
+ */
+public class SojournHistogram {
+
+    private final I2PAppContext _context;
+    private final AtomicLongArray _buckets;
+    private final String STAT_P50;
+    private final String STAT_P99;
+    private final String STAT_P999;
+    /** null if unregistered */
+    private Reporter _reporter;
+
+    private static final int LINEAR = 16;
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    /** 2**20 ms, about 17 minutes */
+    private static final int MAX_BITS = 20;
+    private static final int BUCKETS = LINEAR + (MAX_BITS - 4 + 1) * SUB;
+    private static final long REPORT_TIME = 60*1000;
+    private static final long[] RATES = {60*1000, 10*60*1000, 60*60*1000};
+
+    private static final Map<Key, SojournHistogram> _histograms = new ConcurrentHashMap<Key, SojournHistogram>();
+
+    /**
+     *  The shared histogram for this context and queue name, created and scheduled if necessary.
+     *
+     *  @param name for stats
+     */
+    public static SojournHistogram getInstance(I2PAppContext ctx, String name) {
+        Key key = new Key(ctx, name);
+        SojournHistogram rv = _histograms.get(key);
+        if (rv != null)
+            return rv;
+        synchronized (_histograms) {
+            rv = _histograms.get(key);
+            if (rv == null) {
+                rv = new SojournHistogram(ctx, name);
+                rv._reporter = new Reporter(ctx, rv);
+                _histograms.put(key, rv);
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  Cancel the reporting and forget all the shared histograms for this context.
+     *  Call at shutdown.
+     */
+    public static void clearCache(I2PAppContext ctx) {
+        synchronized (_histograms) {
+            for (Iterator<SojournHistogram> iter = _histograms.values().iterator(); iter.hasNext(); ) {
+                SojournHistogram h = iter.next();
+                if (h._context == ctx) {
+                    h._reporter.cancel();
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     *  Unregistered, not reported, for testing.
+     *  Call report() to update the stats.
+     *
+     *  @param name for stats
+     */
+    public SojournHistogram(I2PAppContext ctx, String name) {
+        this(ctx, "codel." + name, "queue delay", "Router");
+    }
+
+    /**
+     *  Unregistered, not reported, for other times than queue sojourns.
+     *  Call report() periodically to update the stats
+     *  (prefix).p50, (prefix).p99, and (prefix).p999.
+     *
+     *  @param statPrefix e.g. "netDb.lookupLatency"
+     *  @param desc what is measured, for the stat descriptions
+     *  @param group stat group
+     *  @since 0.9.31
+     */
+    public SojournHistogram(I2PAppContext ctx, String statPrefix, String desc, String group) {
+        _context = ctx;
+        _buckets = new AtomicLongArray(BUCKETS);
+        STAT_P50 = (statPrefix + ".p50").intern();
+        STAT_P99 = (statPrefix + ".p99").intern();
+        STAT_P999 = (statPrefix + ".p999").intern();
+        ctx.statManager().createRateStat(STAT_P50, "median " + desc + " (ms)", group, RATES);
+        ctx.statManager().createRateStat(STAT_P99, "99th percentile " + desc + " (ms)", group, RATES);
+        ctx.statManager().createRateStat(STAT_P999, "99.9th percentile " + desc + " (ms)", group, RATES);
+    }
+
+    /**
+     *  @param sojourn time in queue (ms), negative is treated as zero
+     */
+    public void add(long sojourn) {
+        _buckets.incrementAndGet(bucket(sojourn));
+    }
+
+    /**
+     *  @param pct 0.0 to 1.0
+     *  @return the sojourn time (ms) at that percentile since the last report or clear, or 0 if none
+     */
+    public long getPercentile(double pct) {
+        long[] counts = snapshot(false);
+        return percentile(counts, total(counts), pct);
+    }
+
+    public void clear() {
+        snapshot(true);
+    }
+
+    /**
+     *  Add the percentiles since the last report to the stats, and clear.
+     *  Does nothing if there were no samples.
+     */
+    public void report() {
+        long[] counts = snapshot(true);
+        long total = total(counts);
+        if (total <= 0)
+            return;
+        _context.statManager().addRateData(STAT_P50, percentile(counts, total, 0.5d));
+        _context.statManager().addRateData(STAT_P99, percentile(counts, total, 0.99d));
+        _context.statManager().addRateData(STAT_P999, percentile(counts, total, 0.999d));
+    }
+
+    /////// private below here
+
+    private long[] snapshot(boolean clear) {
+        long[] rv = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            rv[i] = clear ? _buckets.getAndSet(i, 0) : _buckets.get(i);
+        }
+        return rv;
+    }
+
+    private static long total(long[] counts) {
+        long rv = 0;
+        for (int i = 0; i < counts.length; i++) {
+            rv += counts[i];
+        }
+        return rv;
+    }
+
+    private static long percentile(long[] counts, long total, double pct) {
+        if (total <= 0)
+            return 0;
+        long rank = (long) Math.ceil(total * pct);
+        if (rank <= 0)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return value(i);
+        }
+        return value(counts.length - 1);
+    }
+
+    private static int bucket(long v) {
+        if (v < LINEAR)
+            return v > 0 ? (int) v : 0;
+        int bits = 63 - Long.numberOfLeadingZeros(v);
+        if (bits > MAX_BITS)
+            return BUCKETS - 1;
+        int sub = (int) (v >>> (bits - SUB_BITS)) & (SUB - 1);
+        return LINEAR + ((bits - 4) << SUB_BITS) + sub;
+    }
+
+    /**
+     *  @return the lower bound of the bucket
+     */
+    private static long value(int bucket) {
+        if (bucket < LINEAR)
+            return bucket;
+        int b = bucket - LINEAR;
+        int bits = (b >> SUB_BITS) + 4;
+        long sub = b & (SUB - 1);
+        return (SUB + sub) << (bits - SUB_BITS);
+    }
+
+    private static class Reporter extends SimpleTimer2.TimedEvent {
+        private final SojournHistogram _h;
+
+        public Reporter(I2PAppContext ctx, SojournHistogram h) {
+            super(ctx.simpleTimer2(), REPORT_TIME);
+            _h = h;
+        }
+
+        public void timeReached() {
+            _h.report();
+            schedule(REPORT_TIME);
+        }
+    }
+
+    private static class Key {
+        private final I2PAppContext _ctx;
+        private final String _name;
+
+        public Key(I2PAppContext ctx, String name) {
+            _ctx = ctx;
+            _name = name;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(_ctx) ^ _name.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return _ctx == k._ctx && _name.equals(k._name);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package net.i2p.router;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *  Range list parsing, merging, and lookup, with and without the /16 index.
+ *  The range lookups are checked against a brute force model.
+ */
+public class BlocklistTest {
+
+    private static RouterContext _context;
+    private File _file;
+
+    @BeforeClass
+    public static void init() {
+        _context = new RouterContext(null);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        _file = File.createTempFile("blocklist", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        _file.delete();
+    }
+
+    private Blocklist load(String... lines) throws IOException {
+        List<String> l = new ArrayList<String>(lines.length);
+        Collections.addAll(l, lines);
+        return load(l);
+    }
+
+    private Blocklist load(List<String> lines) throws IOException {
+        write(lines);
+        Blocklist bl = new Blocklist(_context);
+        bl.readFiles(Collections.singletonList(_file));
+        return bl;
+    }
+
+    private void write(List<String> lines) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(_file), "UTF-8");
+        try {
+            for (String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testHighBit() throws IOException {
+        Blocklist bl = load("test:200.1.0.0-200.1.255.255",
+                            "255.255.255.0/24",
+                            "130.0.0.1");
+        assertTrue(bl.isBlocklisted("200.1.0.0"));
+        assertTrue(bl.isBlocklisted("200.1.128.7"));
+        assertTrue(bl.isBlocklisted("200.1.255.255"));
+        assertFalse(bl.isBlocklisted("200.0.255.255"));
+        assertFalse(bl.isBlocklisted("200.2.0.0"));
+        assertTrue(bl.isBlocklisted("255.255.255.0"));
+        assertTrue(bl.isBlocklisted("255.255.255.255"));
+        assertFalse(bl.isBlocklisted("255.255.254.255"));
+        assertTrue(bl.isBlocklisted("130.0.0.1"));
+        assertFalse(bl.isBlocklisted("130.0.0.0"));
+        assertFalse(bl.isBlocklisted("130.0.0.2"));
+        assertFalse(bl.isBlocklisted("72.1.0.0"));
+    }
+
+    /** a range crossing 128.0.0.0 is split in two */
+    @Test
+    public void testWrap() throws IOException {
+        Blocklist bl = load("127.255.255.0-128.0.0.255");
+        assertTrue(bl.isBlocklisted("127.255.255.0"));
+        assertTrue(bl.isBlocklisted("127.255.255.255"));
+        assertTrue(bl.isBlocklisted("128.0.0.0"));
+        assertTrue(bl.isBlocklisted("128.0.0.255"));
+        assertFalse(bl.isBlocklisted("127.255.254.255"));
+        assertFalse(bl.isBlocklisted("128.0.1.0"));
+    }
+
+    @Test
+    public void testOverlapMerge() throws IOException {
+        // each one overlaps the previous one merged, but not the first one alone,
+        // in both halves of the signed order, and one inside another
+        Blocklist bl = load("10.0.0.0-10.0.0.10",
+                            "10.0.0.5-10.0.0.20",
+                            "10.0.0.15-10.0.0.30",
+                            "10.0.0.25-10.0.0.40",
+                            "10.0.0.32-10.0.0.33",
+                            "200.0.0.0-200.0.0.10",
+                            "200.0.0.5-200.0.0.20",
+                            "200.0.0.15-200.0.0.30",
+                            "200.0.0.12-200.0.0.13",
+                            "10.0.0.50-10.0.0.60");
+        for (int i = 0; i <= 40; i++) {
+            assertTrue("10.0.0." + i, bl.isBlocklisted("10.0.0." + i));
+        }
+        for (int i = 41; i < 50; i++) {
+            assertFalse("10.0.0." + i, bl.isBlocklisted("10.0.0." + i));
+        }
+        for (int i = 50; i <= 60; i++) {
+            assertTrue("10.0.0." + i, bl.isBlocklisted("10.0.0." + i));
+        }
+        assertFalse(bl.isBlocklisted("10.0.0.61"));
+        assertFalse(bl.isBlocklisted("9.255.255.255"));
+        for (int i = 0; i <= 30; i++) {
+            assertTrue("200.0.0." + i, bl.isBlocklisted("200.0.0." + i));
+        }
+        assertFalse(bl.isBlocklisted("200.0.0.31"));
+        assertFalse(bl.isBlocklisted("199.255.255.255"));
+    }
+
+    @Test
+    public void testAdjacent() throws IOException {
+        Blocklist bl = load("20.0.0.0-20.0.0.9",
+                            "20.0.0.10-20.0.0.19",
+                            "20.0.0.20",
+                            "220.0.0.0-220.0.0.9",
+                            "220.0.0.10-220.0.0.19",
+                            "20.0.0.30-20.0.0.30",
+                            "20.0.0.30-20.0.0.39");
+        for (int i = 0; i <= 20; i++) {
+            assertTrue("20.0.0." + i, bl.isBlocklisted("20.0.0." + i));
+        }
+        for (int i = 21; i < 30; i++) {
+            assertFalse("20.0.0." + i, bl.isBlocklisted("20.0.0." + i));
+        }
+        for (int i = 30; i <= 39; i++) {
+            assertTrue("20.0.0." + i, bl.isBlocklisted("20.0.0." + i));
+        }
+        assertFalse(bl.isBlocklisted("20.0.0.40"));
+        for (int i = 0; i <= 19; i++) {
+            assertTrue("220.0.0." + i, bl.isBlocklisted("220.0.0." + i));
+        }
+        assertFalse(bl.isBlocklisted("220.0.0.20"));
+    }
+
+    /** binary search over the whole list */
+    @Test
+    public void testRandomSmall() throws IOException {
+        randomTest(300, 1);
+    }
+
+    /** large enough for the /16 index */
+    @Test
+    public void testRandomIndexed() throws IOException {
+        randomTest(20000, 2);
+    }
+
+    /**
+     *  Reloaded from indexed to too small for the index,
+     *  the old index must not be used for the new list
+     */
+    @Test
+    public void testReloadSmaller() throws IOException {
+        List<String> lines = new ArrayList<String>(5000);
+        for (int i = 0; i < 5000; i++) {
+            long start = (10L << 24) | (i << 8);
+            lines.add(toStr(start) + '-' + toStr(start + 99));
+        }
+        Blocklist bl = load(lines);
+        assertTrue(bl.isBlocklisted("10.0.0.0"));
+        assertTrue(bl.isBlocklisted("10.0.1.50"));
+        assertFalse(bl.isBlocklisted("10.0.1.100"));
+        lines.clear();
+        lines.add("10.0.1.200-10.0.1.210");
+        lines.add("11.0.0.0-11.0.0.255");
+        write(lines);
+        bl.readFiles(Collections.singletonList(_file));
+        assertFalse(bl.isBlocklisted("10.0.0.0"));
+        assertFalse(bl.isBlocklisted("10.0.1.50"));
+        assertTrue(bl.isBlocklisted("10.0.1.200"));
+        assertTrue(bl.isBlocklisted("10.0.1.210"));
+        assertFalse(bl.isBlocklisted("10.0.1.211"));
+        assertTrue(bl.isBlocklisted("11.0.0.7"));
+        assertFalse(bl.isBlocklisted("11.0.1.0"));
+    }
+
+    /**
+     *  Random, overlapping ranges, within one /8 each so none cross 128.0.0.0,
+     *  mostly clustered in a few /16s so the index has several entries per /16.
+     */
+    private void randomTest(int count, long seed) throws IOException {
+        Random rand = new Random(seed);
+        long[] from = new long[count];
+        long[] to = new long[count];
+        List<String> lines = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            long start;
+            if (rand.nextBoolean())
+                start = (rand.nextInt(256) & 0xffL) << 24 | rand.nextInt(1 << 24);
+            else
+                start = (10L + rand.nextInt(4) * 60) << 24 | rand.nextInt(8) << 16 | rand.nextInt(1 << 16);
+            long max = Math.min(start | 0xffffffL, start + (rand.nextBoolean() ? 100 : 70000));
+            long end = start + (long) (rand.nextDouble() * (max - start));
+            from[i] = start;
+            to[i] = end;
+            if (start == end && rand.nextBoolean())
+                lines.add(toStr(start));
+            else
+                lines.add("random " + i + ':' + toStr(start) + '-' + toStr(end));
+        }
+        Blocklist bl = load(lines);
+        for (int j = 0; j < 20000; j++) {
+            long ip;
+            int i = rand.nextInt(count);
+            switch (rand.nextInt(4)) {
+                case 0: ip = from[i] - 1; break;
+                case 1: ip = to[i] + 1; break;
+                case 2: ip = from[i] + rand.nextInt((int) (to[i] - from[i] + 1)); break;
+                default: ip = rand.nextInt() & 0xffffffffL; break;
+            }
+            if (ip < 0 || ip > 0xffffffffL)
+                continue;
+            boolean expected = false;
+            for (int k = 0; k < count; k++) {
+                if (ip >= from[k] && ip <= to[k]) {
+                    expected = true;
+                    break;
+                }
+            }
+            assertEquals(toStr(ip), expected, bl.isBlocklisted(toStr(ip)));
+        }
+    }
+
+    private static String toStr(long ip) {
+        return ((ip >> 24) & 0xff) + "." + ((ip >> 16) & 0xff) + '.' +
+               ((ip >> 8) & 0xff) + '.' + (ip & 0xff);
+    }
+}
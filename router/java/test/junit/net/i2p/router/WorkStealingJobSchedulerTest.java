@@ -0,0 +1,247 @@
+package net.i2p.router;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  Delayed jobs come off the timing wheel in start order and never early,
+ *  rescheduled and removed jobs run at most once at their latest time,
+ *  and jobs on one runner's deque are stolen by the others.
+ */
+public class WorkStealingJobSchedulerTest {
+
+    /** WorkStealingJobScheduler.TimingWheel.TICK */
+    private static final long TICK = 10;
+    /** generous, for a loaded test machine */
+    private static final long MAX_LATE = 1000;
+
+    private RouterContext _context;
+    private WorkStealingJobScheduler _sched;
+    private final List<Thread> _runners = new ArrayList<Thread>();
+
+    @Before
+    public void setUp() {
+        _context = new RouterContext(null);
+        _sched = new WorkStealingJobScheduler(_context, new JobQueue(_context));
+        _sched.startup();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        _sched.shutdown(new PoisonJob());
+        for (Thread t : _runners) {
+            t.join(5000);
+            assertFalse(t.isAlive());
+        }
+    }
+
+    /**
+     *  Delays out past the first level of the wheel, so some entries cascade.
+     *  With one runner, jobs come off in tick order.
+     */
+    @Test
+    public void testDelayedOrdering() throws InterruptedException {
+        int count = 500;
+        CountDownLatch done = new CountDownLatch(count);
+        List<TestJob> ran = Collections.synchronizedList(new ArrayList<TestJob>());
+        Random rand = new Random(1);
+        long now = _context.clock().now();
+        List<TestJob> jobs = new ArrayList<TestJob>(count);
+        for (int i = 0; i < count; i++) {
+            // far enough out that all are in the wheel before any fire
+            TestJob j = new TestJob(_context, done, ran);
+            schedule(j, now + 300 + rand.nextInt(3700));
+            jobs.add(j);
+        }
+        assertEquals(count, _sched.getTimedCount());
+        assertEquals(0, _sched.getReadyCount());
+        startRunners(1);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(count, ran.size());
+        assertEquals(0, _sched.getTimedCount());
+        assertEquals(0, _sched.getReadyCount());
+        long prevTick = 0;
+        for (TestJob j : ran) {
+            long start = j.getTiming().getStartAfter();
+            assertEquals(1, j.runs.get());
+            assertTrue("early by " + (start - j.ranAt), j.ranAt >= start);
+            assertTrue("late by " + (j.ranAt - start), j.ranAt - start <= MAX_LATE);
+            long tick = (start + TICK - 1) / TICK;
+            assertTrue("out of order", tick >= prevTick);
+            prevTick = tick;
+            assertFalse(_sched.isScheduled(j));
+        }
+    }
+
+    /**
+     *  Later, sooner, removed, and made ready while waiting
+     */
+    @Test
+    public void testReschedule() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(3);
+        List<TestJob> ran = Collections.synchronizedList(new ArrayList<TestJob>());
+        long now = _context.clock().now();
+        TestJob later = new TestJob(_context, done, ran);
+        TestJob sooner = new TestJob(_context, done, ran);
+        TestJob removed = new TestJob(_context, done, ran);
+        TestJob ready = new TestJob(_context, done, ran);
+        schedule(later, now + 300);
+        schedule(sooner, now + 3000);
+        schedule(removed, now + 200);
+        schedule(ready, now + 5000);
+        assertEquals(4, _sched.getTimedCount());
+        assertTrue(_sched.isScheduled(later));
+        assertFalse(_sched.isReady(later));
+
+        schedule(later, now + 1500);
+        schedule(sooner, now + 500);
+        _sched.remove(removed);
+        assertFalse(_sched.isScheduled(removed));
+        ready.madeReady();
+        _sched.addReady(ready);
+        assertTrue(_sched.isReady(ready));
+        // can't reschedule once it's ready
+        schedule(ready, now + 5000);
+        assertTrue(_sched.isReady(ready));
+        assertEquals(2, _sched.getTimedCount());
+        assertEquals(1, _sched.getReadyCount());
+
+        startRunners(1);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // past the old times, nothing else runs
+        Thread.sleep(500);
+        assertEquals(3, ran.size());
+        assertSame(ready, ran.get(0));
+        assertSame(sooner, ran.get(1));
+        assertSame(later, ran.get(2));
+        assertEquals(1, ready.runs.get());
+        assertEquals(1, sooner.runs.get());
+        assertEquals(1, later.runs.get());
+        assertEquals(0, removed.runs.get());
+        assertTrue(sooner.ranAt >= now + 500);
+        assertTrue(sooner.ranAt < now + 3000);
+        assertTrue(later.ranAt >= now + 1500);
+        assertEquals(0, _sched.getTimedCount());
+        assertEquals(0, _sched.getReadyCount());
+    }
+
+    /**
+     *  Jobs added from outside a runner go round-robin over all the deques.
+     *  A single runner must steal the rest, then four runners
+     *  share a larger batch, each job run exactly once.
+     */
+    @Test
+    public void testStealing() throws InterruptedException {
+        int runners = 4;
+        _sched.ensureWorkers(runners);
+        int count = 1000;
+        CountDownLatch done = new CountDownLatch(count);
+        List<TestJob> ran = Collections.synchronizedList(new ArrayList<TestJob>());
+        List<TestJob> jobs = new ArrayList<TestJob>(count);
+        for (int i = 0; i < count; i++) {
+            TestJob j = new TestJob(_context, done, ran);
+            j.madeReady();
+            _sched.addReady(j);
+            jobs.add(j);
+        }
+        assertEquals(count, _sched.getReadyCount());
+        // runner 0 only
+        startRunner(0);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(count, ran.size());
+        for (TestJob j : jobs) {
+            assertEquals(1, j.runs.get());
+        }
+
+        count = 20000;
+        done = new CountDownLatch(count);
+        ran.clear();
+        jobs.clear();
+        for (int i = 1; i < runners; i++) {
+            startRunner(i);
+        }
+        for (int i = 0; i < count; i++) {
+            TestJob j = new TestJob(_context, done, ran);
+            j.madeReady();
+            _sched.addReady(j);
+            jobs.add(j);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(count, ran.size());
+        for (TestJob j : jobs) {
+            assertEquals(1, j.runs.get());
+        }
+        assertEquals(0, _sched.getReadyCount());
+    }
+
+    private void schedule(TestJob j, long start) {
+        j.getTiming().setStartAfter(start);
+        _sched.addTimed(j, start);
+    }
+
+    private void startRunners(int count) {
+        for (int i = 0; i < count; i++) {
+            startRunner(i);
+        }
+    }
+
+    /**
+     *  Not a JobQueueRunner, so adds go round-robin
+     */
+    private void startRunner(final int id) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                Job j;
+                while ((j = _sched.getNext(id)) != null && !(j instanceof PoisonJob)) {
+                    j.runJob();
+                }
+            }
+        }, "Test runner " + id);
+        t.setDaemon(true);
+        _runners.add(t);
+        t.start();
+    }
+
+    private static class TestJob extends JobImpl {
+        final AtomicInteger runs = new AtomicInteger();
+        private final CountDownLatch _done;
+        private final List<TestJob> _ran;
+        volatile long ranAt;
+
+        public TestJob(RouterContext ctx, CountDownLatch done, List<TestJob> ran) {
+            super(ctx);
+            _done = done;
+            _ran = ran;
+        }
+
+        public String getName() { return "Test job"; }
+
+        public void runJob() {
+            ranAt = getContext().clock().now();
+            runs.incrementAndGet();
+            _ran.add(this);
+            _done.countDown();
+        }
+    }
+
+    /** no timing, like JobQueue.PoisonJob */
+    private static class PoisonJob implements Job {
+        public String getName() { return null; }
+        public long getJobId() { return -99999; }
+        public JobTiming getTiming() { return null; }
+        public void runJob() {}
+        public Exception getAddedBy() { return null; }
+        public void dropped() {}
+    }
+}
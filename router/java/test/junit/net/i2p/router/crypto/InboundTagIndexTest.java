@@ -0,0 +1,172 @@
+package net.i2p.router.crypto;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.SessionTag;
+
+/**
+ *  Checked against a HashMap model, plus the group that last added each tag
+ *  for expiration. Half the tags share a few 8-byte prefixes so they collide in the index,
+ *  and some are added again in later groups.
+ */
+public class InboundTagIndexTest {
+
+    @Test
+    public void testBasic() {
+        InboundTagIndex<String> idx = new InboundTagIndex<String>(I2PAppContext.getGlobalContext());
+        Random rand = new Random(1);
+        SessionTag t1 = tag(rand, 0);
+        SessionTag t2 = tag(rand, 0);
+        SessionTag t3 = tag(rand, 1);
+        Set<SessionTag> tags = new HashSet<SessionTag>();
+        tags.add(t1);
+        tags.add(t2);
+        String a = "a";
+        String b = "b";
+        assertNull(idx.add(tags, a, 1000));
+        assertEquals(2, idx.size());
+        tags.clear();
+        tags.add(t2);
+        tags.add(t3);
+        List<String> old = idx.add(tags, b, 2000);
+        assertEquals(1, old.size());
+        assertSame(a, old.get(0));
+        assertEquals(3, idx.size());
+        assertSame(b, idx.consume(t2));
+        assertNull(idx.consume(t2));
+        assertEquals(2, idx.size());
+        // t2 moved to b, so only t1 expires with a
+        assertEquals(1, idx.expire(1000));
+        assertNull(idx.consume(t1));
+        assertEquals(1, idx.size());
+        assertEquals(1, idx.removeOldest(1));
+        assertEquals(0, idx.size());
+        assertNull(idx.consume(t3));
+    }
+
+    @Test
+    public void testRandom() {
+        InboundTagIndex<String> idx = new InboundTagIndex<String>(I2PAppContext.getGlobalContext());
+        Random rand = new Random(2);
+        Map<SessionTag, String> model = new HashMap<SessionTag, String>();
+        Map<SessionTag, Integer> owner = new HashMap<SessionTag, Integer>();
+        // by expiration, all distinct so the removal order is known
+        TreeMap<Long, Integer> byExpiration = new TreeMap<Long, Integer>();
+        List<String> values = new ArrayList<String>();
+        List<SessionTag> seen = new ArrayList<SessionTag>();
+        long now = 0;
+        for (int i = 0; i < 20000; i++) {
+            int op = rand.nextInt(20);
+            if (op < 8) {
+                // add a group, with some tags from earlier groups
+                int id = values.size();
+                String value = "group " + id;
+                values.add(value);
+                int count = 1 + rand.nextInt(rand.nextInt(10) == 0 ? 200 : 20);
+                Set<SessionTag> tags = new HashSet<SessionTag>(count);
+                for (int j = 0; j < count; j++) {
+                    if (!seen.isEmpty() && rand.nextInt(5) == 0) {
+                        tags.add(seen.get(rand.nextInt(seen.size())));
+                    } else {
+                        SessionTag tag = tag(rand, rand.nextInt(16));
+                        tags.add(tag);
+                        seen.add(tag);
+                    }
+                }
+                long expiration;
+                do {
+                    expiration = now + 1 + rand.nextInt(100000);
+                } while (byExpiration.containsKey(expiration));
+                byExpiration.put(expiration, id);
+                Set<String> expected = new HashSet<String>();
+                for (SessionTag tag : tags) {
+                    String oldValue = model.put(tag, value);
+                    if (oldValue != null)
+                        expected.add(oldValue);
+                    owner.put(tag, id);
+                }
+                List<String> old = idx.add(tags, value, expiration);
+                if (expected.isEmpty()) {
+                    assertNull(old);
+                } else {
+                    assertEquals(expected.size(), old.size());
+                    assertEquals(expected, new HashSet<String>(old));
+                }
+            } else if (op < 16) {
+                if (seen.isEmpty())
+                    continue;
+                // mostly ones we added, some never added
+                SessionTag tag = rand.nextInt(10) != 0 ? seen.get(rand.nextInt(seen.size()))
+                                                       : tag(rand, rand.nextInt(16));
+                assertEquals(model.remove(tag), idx.consume(tag));
+                owner.remove(tag);
+            } else if (op < 19) {
+                now += rand.nextInt(2000);
+                int removed = 0;
+                for (Iterator<Map.Entry<Long, Integer>> iter = byExpiration.entrySet().iterator(); iter.hasNext(); ) {
+                    Map.Entry<Long, Integer> e = iter.next();
+                    if (e.getKey() > now)
+                        break;
+                    iter.remove();
+                    removed += removeGroup(model, owner, e.getValue());
+                }
+                assertEquals(removed, idx.expire(now));
+            } else {
+                int count = rand.nextInt(50);
+                int removed = 0;
+                while (removed < count && !byExpiration.isEmpty()) {
+                    removed += removeGroup(model, owner, byExpiration.pollFirstEntry().getValue());
+                }
+                assertEquals(removed, idx.removeOldest(count));
+            }
+            assertEquals(model.size(), idx.size());
+        }
+        // everything left, then nothing
+        int sz = model.size();
+        assertTrue(sz > 0);
+        for (SessionTag tag : seen) {
+            assertEquals(model.get(tag), idx.consume(tag));
+            model.remove(tag);
+        }
+        assertEquals(0, idx.size());
+        assertEquals(0, idx.expire(Long.MAX_VALUE));
+        assertEquals(0, idx.removeOldest(1));
+    }
+
+    /** tags still owned by the group */
+    private static int removeGroup(Map<SessionTag, String> model, Map<SessionTag, Integer> owner, int id) {
+        int rv = 0;
+        for (Iterator<Map.Entry<SessionTag, Integer>> iter = owner.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<SessionTag, Integer> e = iter.next();
+            if (e.getValue().intValue() == id) {
+                iter.remove();
+                model.remove(e.getKey());
+                rv++;
+            }
+        }
+        return rv;
+    }
+
+    /** prefixes 0-7 set the first 8 bytes, others are all random */
+    private static SessionTag tag(Random rand, int prefix) {
+        byte[] b = new byte[SessionTag.BYTE_LENGTH];
+        rand.nextBytes(b);
+        for (int i = 0; i < 8 && prefix < 8; i++) {
+            b[i] = (byte) (prefix * 31 + i);
+        }
+        return new SessionTag(b);
+    }
+}
@@ -0,0 +1,137 @@
+package net.i2p.router.crypto;
+
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.SessionKey;
+import net.i2p.data.SessionTag;
+
+/**
+ * Inbound tags in TransientSessionKeyManager, with the HashMap
+ * and with router.stripedTagIndex=true.
+ *
+ * Receives tags in sets of 40, as GarlicMessageBuilder sends them,
+ * and reports the heap used per tag. Then consumes them all in random order,
+ * single threaded and then from several threads at once, and reports the time
+ * per consumeTag().
+ *
+ * Usage: TransientSessionKeyManagerBench [tags [threads]]
+ *
+ * @since 0.9.31
+ */
+public class TransientSessionKeyManagerBench {
+
+    private static final int SET_SIZE = TransientSessionKeyManager.DEFAULT_TAGS;
+
+    public static void main(String args[]) throws Exception {
+        int count = 500 * 1000;
+        int threads = 4;
+        if (args.length > 0)
+            count = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            threads = Integer.parseInt(args[1]);
+        count -= count % SET_SIZE;
+        for (int i = 0; i < 2; i++) {
+            // first round is warmup
+            if (i == 1)
+                System.out.println();
+            run(false, count, 1);
+            run(true, count, 1);
+            run(false, count, threads);
+            run(true, count, threads);
+        }
+    }
+
+    private static void run(boolean striped, int count, int threads) throws Exception {
+        Properties props = new Properties();
+        props.setProperty(TransientSessionKeyManager.PROP_STRIPED_INDEX, Boolean.toString(striped));
+        I2PAppContext ctx = new I2PAppContext(props);
+        TransientSessionKeyManager skm = new TransientSessionKeyManager(ctx);
+        SessionKey key = new SessionKey(new byte[SessionKey.KEYSIZE_BYTES]);
+
+        long before = usedMemory();
+        long start = System.nanoTime();
+        Random r = new Random(42);
+        for (int i = 0; i < count; i += SET_SIZE) {
+            Set<SessionTag> tags = new HashSet<SessionTag>(SET_SIZE);
+            for (int j = 0; j < SET_SIZE; j++) {
+                tags.add(new SessionTag(nextTag(r)));
+            }
+            skm.tagsReceived(key, tags);
+        }
+        long addTime = System.nanoTime() - start;
+        long after = usedMemory();
+
+        // same tags again, in random order
+        final SessionTag[] tags = new SessionTag[count];
+        r = new Random(42);
+        for (int i = 0; i < count; i++) {
+            tags[i] = new SessionTag(nextTag(r));
+        }
+        for (int i = count - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            SessionTag t = tags[i];
+            tags[i] = tags[j];
+            tags[j] = t;
+        }
+
+        final TransientSessionKeyManager fskm = skm;
+        final int perThread = count / threads;
+        final int[] found = new int[threads];
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread thr = new Thread() {
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException ie) {}
+                    int n = 0;
+                    for (int i = id * perThread; i < (id + 1) * perThread; i++) {
+                        if (fskm.consumeTag(tags[i]) != null)
+                            n++;
+                    }
+                    found[id] = n;
+                    done.countDown();
+                }
+            };
+            thr.start();
+        }
+        start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long consumeTime = System.nanoTime() - start;
+        int total = 0;
+        for (int n : found) {
+            total += n;
+        }
+        skm.shutdown();
+
+        System.out.println((striped ? "striped" : "hashmap") + ' ' + threads + " thread(s): " +
+                           count + " tags, " +
+                           ((after - before) / count) + " bytes/tag, " +
+                           (addTime / count) + " ns/tag received, " +
+                           (consumeTime / (perThread * threads)) + " ns/consume, " +
+                           total + " found");
+    }
+
+    private static byte[] nextTag(Random r) {
+        byte[] b = new byte[SessionTag.BYTE_LENGTH];
+        r.nextBytes(b);
+        return b;
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
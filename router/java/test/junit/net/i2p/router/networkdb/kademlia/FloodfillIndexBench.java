@@ -0,0 +1,116 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.i2p.data.Hash;
+import net.i2p.kademlia.XORComparator;
+
+/**
+ * Floodfill selection for a lookup or store, the closest few floodfills to a key:
+ *
+ *   treeset: sort all the floodfills with an XORComparator,
+ *            as FloodfillPeerSelector did before 0.9.31
+ *   index: FloodfillIndex walk
+ *
+ * Also checks that both return the same peers in the same order.
+ *
+ * Usage: FloodfillIndexBench [floodfills [lookups]]
+ *
+ * @since 0.9.31
+ */
+public class FloodfillIndexBench {
+
+    /** 5 == FNDF.MAX_TO_FLOOD + 1, IterativeSearchJob asks for more */
+    private static final int[] WANTED = { 5, 12 };
+
+    public static void main(String args[]) {
+        int count = 5000;
+        int lookups = 20000;
+        if (args.length > 0)
+            count = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            lookups = Integer.parseInt(args[1]);
+        Random rand = new Random(42);
+        Set<Hash> ffs = new HashSet<Hash>(count);
+        while (ffs.size() < count) {
+            ffs.add(random(rand));
+        }
+        Hash[] keys = new Hash[lookups];
+        for (int i = 0; i < lookups; i++) {
+            keys[i] = random(rand);
+        }
+        // a couple of peers to ignore, as StoreJob does
+        Set<Hash> ignore = new HashSet<Hash>();
+        List<Hash> ffl = new ArrayList<Hash>(ffs);
+        Collections.shuffle(ffl, rand);
+        ignore.addAll(ffl.subList(0, Math.min(3, count)));
+
+        long start = System.nanoTime();
+        FloodfillIndex.Snapshot snap = new FloodfillIndex.Snapshot(ffs, 0);
+        long build = System.nanoTime() - start;
+        System.out.println(count + " floodfills, index built in " + (build / 1000) + " us");
+
+        for (int wanted : WANTED) {
+            for (int round = 0; round < 2; round++) {
+                // first round is warmup
+                boolean print = round > 0;
+                long dummy = 0;
+
+                start = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    dummy += treeSet(ffs, keys[i], wanted, ignore).size();
+                }
+                long tree = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    List<Hash> rv = new ArrayList<Hash>(wanted);
+                    snap.selectClosest(keys[i], wanted, ignore, ffs, null, rv);
+                    dummy += rv.size();
+                }
+                long index = System.nanoTime() - start;
+
+                for (int i = 0; i < Math.min(lookups, 1000); i++) {
+                    List<Hash> rv = new ArrayList<Hash>(wanted);
+                    snap.selectClosest(keys[i], wanted, ignore, ffs, null, rv);
+                    if (!rv.equals(treeSet(ffs, keys[i], wanted, ignore)))
+                        throw new IllegalStateException("Mismatch for " + keys[i] + ": " + rv);
+                }
+
+                if (print) {
+                    System.out.println("closest " + wanted + ", " + lookups + " lookups:");
+                    System.out.println("    treeset: " + (tree / lookups) + " ns/lookup");
+                    System.out.println("    index:   " + (index / lookups) + " ns/lookup");
+                    System.out.println("    avg. found: " + (dummy / (2 * lookups)));
+                }
+            }
+        }
+    }
+
+    private static List<Hash> treeSet(Set<Hash> ffs, Hash key, int wanted, Set<Hash> ignore) {
+        List<Hash> l = new ArrayList<Hash>(ffs.size());
+        for (Hash h : ffs) {
+            if (!ignore.contains(h))
+                l.add(h);
+        }
+        TreeSet<Hash> sorted = new TreeSet<Hash>(new XORComparator<Hash>(key));
+        sorted.addAll(l);
+        List<Hash> rv = new ArrayList<Hash>(wanted);
+        for (int i = 0; i < wanted && !sorted.isEmpty(); i++) {
+            rv.add(sorted.pollFirst());
+        }
+        return rv;
+    }
+
+    private static Hash random(Random rand) {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        rand.nextBytes(b);
+        return new Hash(b);
+    }
+}
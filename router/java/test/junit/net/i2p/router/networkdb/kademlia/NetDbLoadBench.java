@@ -0,0 +1,159 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import net.i2p.crypto.SigType;
+import net.i2p.data.KeyCertificate;
+import net.i2p.data.PublicKey;
+import net.i2p.data.SigningPrivateKey;
+import net.i2p.data.SigningPublicKey;
+import net.i2p.data.SimpleDataStructure;
+import net.i2p.data.router.RouterAddress;
+import net.i2p.data.router.RouterIdentity;
+import net.i2p.data.router.RouterInfo;
+import net.i2p.router.RouterContext;
+import net.i2p.util.OrderedProperties;
+
+/**
+ * Startup time for a large stored netDb, from RouterInfo bytes
+ * (as read from the files or the single-file log) to RouterInfo objects:
+ *
+ *   serial: parse and verify one at a time, as ReadJob did before 0.9.31
+ *   parallel: parse and verify on the RouterInfoLoader pool
+ *   lazy: parse only on the pool; the netDb is ready here.
+ *         Then the signatures of a first tunnel's worth of peers are
+ *         checked on use, and the rest in the background in batches.
+ *
+ * File I/O is not included, so this is the CPU part only.
+ *
+ * Usage: NetDbLoadBench [routers [threads]]
+ *
+ * @since 0.9.31
+ */
+public class NetDbLoadBench {
+
+    /** peers we need verified for our first tunnels */
+    private static final int FIRST_USE = 24;
+    private static final int BATCH = 256;
+
+    public static void main(String args[]) throws Exception {
+        int count = 5000;
+        int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        if (args.length > 0)
+            count = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            threads = Integer.parseInt(args[1]);
+        RouterContext ctx = new RouterContext(null);
+        System.out.println("Generating " + count + " RouterInfos, " + threads + " threads");
+        List<byte[]> data = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            data.add(create(ctx, i).toByteArray());
+        }
+        RouterInfoLoader loader = new RouterInfoLoader(ctx, threads);
+
+        for (int round = 0; round < 2; round++) {
+            // first round is warmup
+            boolean print = round > 0;
+
+            long start = System.nanoTime();
+            int ok = 0;
+            for (byte[] b : data) {
+                RouterInfo ri = new RouterInfo();
+                ri.readBytes(new ByteArrayInputStream(b), true);
+                ok++;
+            }
+            long serial = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            RouterInfo[] ris = loader.parse(data, true);
+            long parallel = System.nanoTime() - start;
+            check(ris);
+
+            start = System.nanoTime();
+            ris = loader.parse(data, false);
+            long ready = System.nanoTime() - start;
+            check(ris);
+            start = System.nanoTime();
+            for (int i = 0; i < FIRST_USE; i++) {
+                if (!ris[i].isValid())
+                    throw new IllegalStateException("bad sig");
+            }
+            long firstUse = System.nanoTime() - start;
+            start = System.nanoTime();
+            List<RouterInfo> batch = new ArrayList<RouterInfo>(BATCH);
+            int bad = 0;
+            for (int i = FIRST_USE; i < ris.length; ) {
+                batch.clear();
+                for ( ; batch.size() < BATCH && i < ris.length; i++) {
+                    batch.add(ris[i]);
+                }
+                bad += loader.verify(batch).size();
+            }
+            long background = System.nanoTime() - start;
+            if (bad != 0)
+                throw new IllegalStateException(bad + " bad sigs");
+
+            if (print) {
+                System.out.println("serial parse+verify:   " + ok + " in " + (serial / 1000000) + " ms");
+                System.out.println("parallel parse+verify: " + ris.length + " in " + (parallel / 1000000) + " ms");
+                System.out.println("lazy: ready in " + (ready / 1000000) + " ms, " +
+                                   FIRST_USE + " verified on first use in " + (firstUse / 1000000) + " ms, " +
+                                   "rest verified in background batches in " + (background / 1000000) + " ms");
+            }
+        }
+        loader.shutdown();
+    }
+
+    private static void check(RouterInfo[] ris) {
+        for (int i = 0; i < ris.length; i++) {
+            if (ris[i] == null)
+                throw new IllegalStateException("parse failed");
+        }
+    }
+
+    /**
+     * A typical Ed25519 RI with NTCP and SSU addresses and stats.
+     * The encryption key is random, we don't need a real one.
+     */
+    private static RouterInfo create(RouterContext ctx, int i) throws Exception {
+        SimpleDataStructure[] keys = ctx.keyGenerator().generateSigningKeys(SigType.EdDSA_SHA512_Ed25519);
+        SigningPublicKey spk = (SigningPublicKey) keys[0];
+        SigningPrivateKey sprivk = (SigningPrivateKey) keys[1];
+        byte[] pk = new byte[PublicKey.KEYSIZE_BYTES];
+        ctx.random().nextBytes(pk);
+        RouterIdentity ident = new RouterIdentity();
+        ident.setCertificate(new KeyCertificate(spk));
+        ident.setPublicKey(new PublicKey(pk));
+        ident.setSigningPublicKey(spk);
+        byte[] padding = new byte[SigningPublicKey.KEYSIZE_BYTES - spk.length()];
+        ctx.random().nextBytes(padding);
+        ident.setPadding(padding);
+        RouterInfo ri = new RouterInfo();
+        ri.setIdentity(ident);
+        ri.setPublished(ctx.clock().now());
+        String host = "10." + ((i >> 16) & 0xff) + '.' + ((i >> 8) & 0xff) + '.' + (i & 0xff);
+        List<RouterAddress> addrs = new ArrayList<RouterAddress>(2);
+        for (String style : new String[] { "NTCP", "SSU" }) {
+            OrderedProperties opts = new OrderedProperties();
+            opts.setProperty("host", host);
+            opts.setProperty("port", "12345");
+            if (style.equals("SSU"))
+                opts.setProperty("key", "ZXhhbXBsZWV4YW1wbGVleGFtcGxlZXhhbXBsZWV4YW0=");
+            addrs.add(new RouterAddress(style, opts, 10));
+        }
+        ri.setAddresses(addrs);
+        Properties stats = new OrderedProperties();
+        stats.setProperty("caps", "LR");
+        stats.setProperty("netId", "2");
+        stats.setProperty("router.version", "0.9.31");
+        stats.setProperty("coreVersion", "0.9.31");
+        stats.setProperty("netdb.knownRouters", "5000");
+        stats.setProperty("netdb.knownLeaseSets", "50");
+        ri.setOptions(stats);
+        ri.sign(sprivk);
+        return ri;
+    }
+}
@@ -0,0 +1,174 @@
+package net.i2p.router.peermanager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+import net.i2p.util.FileUtil;
+
+/**
+ * Storing and loading a large number of profiles:
+ *
+ *   text: one gzipped Properties file per peer, as before 0.9.31
+ *   log: the single binary ProfileLog, router.profiles.singleFile=true.
+ *        The first store writes everything, later ones only
+ *        the profiles that have changed.
+ *
+ * Also checks that the profiles loaded both ways are the same.
+ *
+ * Usage: ProfilePersistenceBench [profiles [percent changed]]
+ *
+ * @since 0.9.31
+ */
+public class ProfilePersistenceBench {
+
+    public static void main(String args[]) throws Exception {
+        int count = 5000;
+        int pctChanged = 10;
+        if (args.length > 0)
+            count = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            pctChanged = Integer.parseInt(args[1]);
+        File dir = new File(System.getProperty("java.io.tmpdir"), "profilebench-" + System.currentTimeMillis());
+        dir.mkdirs();
+        Properties props = new Properties();
+        props.setProperty("i2p.dir.router", dir.getAbsolutePath());
+        props.setProperty("i2p.dir.config", dir.getAbsolutePath());
+        // the text writer asks the organizer for the tiers, for the comments
+        RouterContext ctx = new RouterContext(null, props) {
+            private ProfileOrganizer _po;
+            @Override
+            public synchronized ProfileOrganizer profileOrganizer() {
+                if (_po == null)
+                    _po = new ProfileOrganizer(this);
+                return _po;
+            }
+        };
+        Random rand = new Random(42);
+        List<PeerProfile> profiles = new ArrayList<PeerProfile>(count);
+        for (int i = 0; i < count; i++) {
+            profiles.add(create(ctx, rand, i % 10 == 0));
+        }
+        System.out.println(count + " profiles in " + dir);
+
+        try {
+            System.setProperty(ProfilePersistenceHelper.PROP_PEER_PROFILE_DIR, "text");
+            ProfilePersistenceHelper text = new ProfilePersistenceHelper(ctx);
+            long start = System.nanoTime();
+            text.writeProfiles(profiles);
+            long textStore = System.nanoTime() - start;
+            start = System.nanoTime();
+            Set<PeerProfile> textLoaded = text.readProfiles();
+            long textLoad = System.nanoTime() - start;
+
+            System.setProperty(ProfilePersistenceHelper.PROP_PEER_PROFILE_DIR, "log");
+            System.setProperty(ProfilePersistenceHelper.PROP_SINGLE_FILE, "true");
+            ProfilePersistenceHelper log = new ProfilePersistenceHelper(ctx);
+            log.readProfiles();
+            start = System.nanoTime();
+            log.writeProfiles(profiles);
+            long logStore = System.nanoTime() - start;
+            check(textLoaded, new ProfilePersistenceHelper(ctx).readProfiles(), count);
+            int changed = count * pctChanged / 100;
+            for (int i = 0; i < changed; i++) {
+                PeerProfile p = profiles.get(rand.nextInt(count));
+                p.setLastHeardFrom(ctx.clock().now());
+                p.getTunnelHistory().incrementAgreedTo();
+            }
+            start = System.nanoTime();
+            log.writeProfiles(profiles);
+            long logIncr = System.nanoTime() - start;
+            // as after a restart
+            log = new ProfilePersistenceHelper(ctx);
+            start = System.nanoTime();
+            int loaded = log.readProfiles().size();
+            long logLoad = System.nanoTime() - start;
+            if (loaded != count)
+                throw new IllegalStateException("loaded " + loaded);
+
+            System.out.println("text: store " + (textStore / 1000000) + " ms, " + size(new File(dir, "text")) +
+                               " bytes; load " + (textLoad / 1000000) + " ms");
+            System.out.println("log:  store " + (logStore / 1000000) + " ms, " + size(new File(dir, "log")) +
+                               " bytes; store with " + pctChanged + "% changed " + (logIncr / 1000000) +
+                               " ms; load " + (logLoad / 1000000) + " ms");
+        } finally {
+            FileUtil.rmdir(dir, false);
+        }
+    }
+
+    /**
+     * A profile with some tunnel history and rates,
+     * and for some, netDb history
+     */
+    private static PeerProfile create(RouterContext ctx, Random rand, boolean ff) {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        rand.nextBytes(b);
+        PeerProfile p = new PeerProfile(ctx, new Hash(b));
+        long now = ctx.clock().now();
+        p.setFirstHeardAbout(now - rand.nextInt(10*24*60*60*1000));
+        p.setLastHeardAbout(now - rand.nextInt(60*60*1000));
+        p.setLastHeardFrom(now - rand.nextInt(60*60*1000));
+        p.setLastSendSuccessful(now - rand.nextInt(60*60*1000));
+        p.setPeakThroughputKBps(rand.nextInt(500));
+        for (int i = 0; i < 5; i++) {
+            p.getTunnelHistory().incrementAgreedTo();
+            p.getTunnelCreateResponseTime().addData(rand.nextInt(2000));
+            p.getTunnelTestResponseTime().addData(rand.nextInt(2000));
+        }
+        p.getTunnelHistory().incrementRejected(TunnelHistory.TUNNEL_REJECT_BANDWIDTH);
+        if (ff) {
+            p.expandDBProfile();
+            p.getDBHistory().lookupSuccessful();
+            p.getDbResponseTime().addData(rand.nextInt(2000));
+            p.getDbIntroduction().addData(3);
+        }
+        return p;
+    }
+
+    private static void check(Set<PeerProfile> text, Set<PeerProfile> log, int count) {
+        if (text.size() != count || log.size() != count)
+            throw new IllegalStateException("loaded " + text.size() + " text, " + log.size() + " log");
+        Map<Hash, PeerProfile> byHash = new HashMap<Hash, PeerProfile>(count);
+        for (PeerProfile p : text) {
+            byHash.put(p.getPeer(), p);
+        }
+        for (PeerProfile l : log) {
+            PeerProfile t = byHash.get(l.getPeer());
+            if (t == null)
+                throw new IllegalStateException("missing " + l.getPeer());
+            if (t.getFirstHeardAbout() != l.getFirstHeardAbout() ||
+                t.getLastSendSuccessful() != l.getLastSendSuccessful() ||
+                t.getPeakThroughputKBps() != l.getPeakThroughputKBps() ||
+                t.getIsExpandedDB() != l.getIsExpandedDB() ||
+                t.getTunnelHistory().getLifetimeRejected() != l.getTunnelHistory().getLifetimeRejected() ||
+                t.getTunnelCreateResponseTime().getLifetimeEventCount() !=
+                    l.getTunnelCreateResponseTime().getLifetimeEventCount() ||
+                t.getTunnelTestResponseTime().getLifetimeAverageValue() !=
+                    l.getTunnelTestResponseTime().getLifetimeAverageValue() ||
+                (t.getIsExpandedDB() &&
+                 (t.getDBHistory().getLastLookupSuccessful() != l.getDBHistory().getLastLookupSuccessful() ||
+                  t.getDbResponseTime().getLifetimeEventCount() != l.getDbResponseTime().getLifetimeEventCount())))
+                throw new IllegalStateException("mismatch for " + l.getPeer());
+        }
+    }
+
+    private static long size(File f) {
+        if (f.isFile())
+            return f.length();
+        long rv = 0;
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File c : files) {
+                rv += size(c);
+            }
+        }
+        return rv;
+    }
+}
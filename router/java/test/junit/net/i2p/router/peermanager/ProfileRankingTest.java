@@ -0,0 +1,316 @@
+package net.i2p.router.peermanager;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import net.i2p.data.Hash;
+import net.i2p.router.ClientManagerFacade;
+import net.i2p.router.CommSystemFacade;
+import net.i2p.router.RouterContext;
+import net.i2p.router.dummy.DummyClientManagerFacade;
+import net.i2p.router.dummy.VMCommSystem;
+
+/**
+ *  ProfileRanking must stay equivalent to the InverseCapacityComparator TreeSet,
+ *  and ProfileOrganizer must give the same thresholds and tiers in both modes.
+ */
+public class ProfileRankingTest {
+
+    private static final int COUNT = 6000;
+    private static final int PASSES = 3;
+    private static final int PCT_CHANGED = 10;
+
+    /**
+     *  Order, rank queries, and sums, over several passes
+     *  with some of the values changed and some profiles removed each time.
+     */
+    @Test
+    public void testRanking() {
+        RouterContext ctx = createContext(false);
+        Random rand = new Random(1);
+        List<TestProfile> profiles = createProfiles(ctx, rand, COUNT);
+        ProfileRanking ranking = new ProfileRanking();
+        for (TestProfile p : profiles) {
+            p.updateValues();
+            assertTrue(ranking.update(p));
+        }
+        for (int pass = 0; pass < PASSES; pass++) {
+            Set<PeerProfile> tree = new TreeSet<PeerProfile>(new InverseCapacityComparator());
+            tree.addAll(profiles);
+            check(ranking, tree);
+
+            for (int i = 0; i < COUNT * PCT_CHANGED / 100; i++) {
+                TestProfile p = profiles.get(rand.nextInt(profiles.size()));
+                change(p, rand);
+                p.updateValues();
+                ranking.update(p);
+            }
+            // unchanged is not moved
+            assertFalse(ranking.update(profiles.get(0)));
+            for (int i = 0; i < COUNT / 100; i++) {
+                TestProfile p = profiles.remove(rand.nextInt(profiles.size()));
+                assertTrue(ranking.remove(p.getPeer()));
+                assertFalse(ranking.remove(p.getPeer()));
+            }
+            assertEquals(profiles.size(), ranking.size());
+        }
+        ranking.clear();
+        assertEquals(0, ranking.size());
+        assertFalse(ranking.iterator().hasNext());
+        assertEquals(0, ranking.countAbove(0));
+    }
+
+    private static void check(ProfileRanking ranking, Set<PeerProfile> tree) {
+        List<PeerProfile> expected = new ArrayList<PeerProfile>(tree);
+        assertEquals(expected, ranking.toList());
+        int sz = expected.size();
+        assertEquals(sz, ranking.size());
+        double capSum = 0;
+        double intSum = 0;
+        double speedSum = 0;
+        for (int i = 0; i < sz; i++) {
+            PeerProfile p = expected.get(i);
+            assertSame(p, ranking.get(i));
+            assertEquals(p.getCapacityValue(), ranking.getCapacity(i), 0);
+            capSum += p.getCapacityValue();
+            intSum += p.getIntegrationValue();
+            speedSum += p.getSpeedValue();
+            if (i % 97 == 0)
+                assertEquals(speedSum, ranking.getSpeedSum(i + 1), 1e-6 * speedSum);
+        }
+        assertEquals(capSum, ranking.getCapacitySum(), 1e-6 * capSum);
+        assertEquals(intSum, ranking.getIntegrationSum(), 1e-6 * intSum);
+        // at existing values to check the ties, and in between
+        for (int i = 0; i < sz; i += 13) {
+            double val = expected.get(i).getCapacityValue();
+            checkCounts(ranking, expected, val);
+            checkCounts(ranking, expected, val + 0.5);
+        }
+        checkCounts(ranking, expected, -1);
+        checkCounts(ranking, expected, 1e6);
+    }
+
+    private static void checkCounts(ProfileRanking ranking, List<PeerProfile> expected, double val) {
+        int above = 0;
+        int atLeast = 0;
+        for (PeerProfile p : expected) {
+            if (p.getCapacityValue() > val)
+                above++;
+            if (p.getCapacityValue() >= val)
+                atLeast++;
+        }
+        assertEquals(above, ranking.countAbove(val));
+        assertEquals(atLeast, ranking.countAtLeast(val));
+    }
+
+    /**
+     *  The same profiles in an incremental and a TreeSet organizer,
+     *  over several reorganize passes with some values changed each time.
+     */
+    @Test
+    public void testOrganizer() {
+        RouterContext ctx = createContext(false);
+        RouterContext ictx = createContext(true);
+        ProfileOrganizer po = new ProfileOrganizer(ctx);
+        ProfileOrganizer ipo = new ProfileOrganizer(ictx);
+        Hash us = new Hash(new byte[Hash.HASH_LENGTH]);
+        po.setUs(us);
+        ipo.setUs(us);
+        Random rand = new Random(2);
+        List<TestProfile> profiles = createProfiles(ctx, rand, COUNT);
+        for (TestProfile p : profiles) {
+            p.updateValues();
+            po.addProfile(p);
+            ipo.addProfile(p);
+        }
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (int i = 0; i < COUNT * PCT_CHANGED / 100; i++) {
+                change(profiles.get(rand.nextInt(COUNT)), rand);
+            }
+            // both organizers call updateValues() on the same profiles, that's fine
+            po.reorganize();
+            ipo.reorganize();
+            assertEquals(po.getCapacityThreshold(), ipo.getCapacityThreshold(), 1e-9);
+            assertEquals(po.getSpeedThreshold(), ipo.getSpeedThreshold(), 1e-6 * po.getSpeedThreshold());
+            assertEquals(po.getIntegrationThreshold(), ipo.getIntegrationThreshold(), 1e-6 * po.getIntegrationThreshold());
+            assertTrue(po.countHighCapacityPeers() > 0);
+            assertTrue(po.countFastPeers() > 0);
+            assertEquals(po.countHighCapacityPeers(), ipo.countHighCapacityPeers());
+            assertEquals(po.countFastPeers(), ipo.countFastPeers());
+            assertEquals(po.countNotFailingPeers(), ipo.countNotFailingPeers());
+            assertEquals(po.countFailingPeers(), ipo.countFailingPeers());
+            for (TestProfile p : profiles) {
+                Hash h = p.getPeer();
+                assertEquals(po.isHighCapacity(h), ipo.isHighCapacity(h));
+                assertEquals(po.isFast(h), ipo.isFast(h));
+                assertEquals(po.isFailing(h), ipo.isFailing(h));
+            }
+        }
+    }
+
+    /**
+     *  Far more peers above the capacity threshold than the high capacity limit.
+     *  The incremental organizer fills the tier from the top of the ranking instead of
+     *  calling locked_demoteHighCapAsNecessary(), so it must stop at the limit,
+     *  with the highest capacity peers, same as the TreeSet organizer.
+     */
+    @Test
+    public void testHighCapLimit() {
+        RouterContext ctx = createContext(false);
+        RouterContext ictx = createContext(true);
+        ProfileOrganizer po = new ProfileOrganizer(ctx);
+        ProfileOrganizer ipo = new ProfileOrganizer(ictx);
+        Hash us = new Hash(new byte[Hash.HASH_LENGTH]);
+        po.setUs(us);
+        ipo.setUs(us);
+        int max = ipo.getMaximumHighCapPeers();
+        Random rand = new Random(3);
+        List<TestProfile> profiles = createProfiles(ctx, rand, COUNT);
+        for (TestProfile p : profiles) {
+            p.nextCapacity = (float) (CapacityCalculator.GROWTH_FACTOR + 1 + rand.nextDouble() * 100);
+            p.nextFailing = false;
+            p.nextActive = true;
+            p.updateValues();
+            po.addProfile(p);
+            ipo.addProfile(p);
+        }
+        for (int pass = 0; pass < PASSES; pass++) {
+            po.reorganize();
+            ipo.reorganize();
+            int above = 0;
+            for (TestProfile p : profiles) {
+                if (p.getCapacityValue() >= ipo.getCapacityThreshold())
+                    above++;
+            }
+            assertTrue(above > 2 * max);
+            assertEquals(max, ipo.countHighCapacityPeers());
+            assertEquals(max, po.countHighCapacityPeers());
+            assertTrue(ipo.countFastPeers() <= max);
+            float minHighCap = Float.MAX_VALUE;
+            float maxOther = 0;
+            for (TestProfile p : profiles) {
+                Hash h = p.getPeer();
+                assertEquals(po.isHighCapacity(h), ipo.isHighCapacity(h));
+                if (ipo.isHighCapacity(h))
+                    minHighCap = Math.min(minHighCap, p.getCapacityValue());
+                else
+                    maxOther = Math.max(maxOther, p.getCapacityValue());
+                if (ipo.isFast(h))
+                    assertTrue(ipo.isHighCapacity(h));
+            }
+            assertTrue(minHighCap >= maxOther);
+            for (int i = 0; i < COUNT * PCT_CHANGED / 100; i++) {
+                profiles.get(rand.nextInt(COUNT)).nextCapacity =
+                    (float) (CapacityCalculator.GROWTH_FACTOR + 1 + rand.nextDouble() * 100);
+            }
+        }
+    }
+
+    /**
+     *  No router, so ProfileOrganizer.isSelectable() is always true
+     */
+    private static RouterContext createContext(boolean incremental) {
+        Properties props = new Properties();
+        props.setProperty(ProfileOrganizer.PROP_INCREMENTAL, Boolean.toString(incremental));
+        return new RouterContext(null, props) {
+            private CommSystemFacade _cs;
+            private ClientManagerFacade _cm;
+
+            @Override
+            public synchronized CommSystemFacade commSystem() {
+                if (_cs == null)
+                    _cs = new VMCommSystem(this);
+                return _cs;
+            }
+
+            @Override
+            public synchronized ClientManagerFacade clientManager() {
+                if (_cm == null)
+                    _cm = new DummyClientManagerFacade(this);
+                return _cm;
+            }
+        };
+    }
+
+    private static List<TestProfile> createProfiles(RouterContext ctx, Random rand, int count) {
+        List<TestProfile> rv = new ArrayList<TestProfile>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] b = new byte[Hash.HASH_LENGTH];
+            rand.nextBytes(b);
+            TestProfile p = new TestProfile(ctx, new Hash(b));
+            change(p, rand);
+            rv.add(p);
+        }
+        return rv;
+    }
+
+    /**
+     *  Lots of ties in capacity, some in speed too.
+     *  Capacity starts at the growth factor, as for a new peer.
+     */
+    private static void change(TestProfile p, Random rand) {
+        int r = rand.nextInt(10);
+        if (r < 3)
+            p.nextCapacity = (float) CapacityCalculator.GROWTH_FACTOR;
+        else if (r < 6)
+            p.nextCapacity = (float) CapacityCalculator.GROWTH_FACTOR + rand.nextInt(40);
+        else
+            p.nextCapacity = (float) (CapacityCalculator.GROWTH_FACTOR + rand.nextDouble() * 100);
+        p.nextSpeed = rand.nextBoolean() ? rand.nextInt(4) : (float) (rand.nextDouble() * 1000);
+        p.nextIntegration = rand.nextInt(5) == 0 ? (float) (rand.nextDouble() * 10) : 0;
+        p.nextFailing = rand.nextInt(20) == 0;
+        p.nextActive = rand.nextInt(4) != 0;
+    }
+
+    /**
+     *  Values set directly, and copied in at updateValues() like the real ones
+     */
+    private static class TestProfile extends PeerProfile {
+        float capacity, speed, integration;
+        boolean failing, active;
+        float nextCapacity, nextSpeed, nextIntegration;
+        boolean nextFailing, nextActive;
+
+        public TestProfile(RouterContext ctx, Hash peer) {
+            super(ctx, peer);
+        }
+
+        @Override
+        public float getCapacityValue() { return capacity; }
+
+        @Override
+        public float getSpeedValue() { return speed; }
+
+        @Override
+        public float getIntegrationValue() { return integration; }
+
+        @Override
+        public boolean getIsFailing() { return failing; }
+
+        @Override
+        public boolean getIsActive() { return active; }
+
+        @Override
+        public void coalesceStats() {}
+
+        @Override
+        void coalesceOnly() {}
+
+        @Override
+        void updateValues() {
+            capacity = nextCapacity;
+            speed = nextSpeed;
+            integration = nextIntegration;
+            failing = nextFailing;
+            active = nextActive;
+        }
+    }
+}
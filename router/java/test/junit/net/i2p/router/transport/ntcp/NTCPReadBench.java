@@ -0,0 +1,185 @@
+package net.i2p.router.transport.ntcp;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+
+import net.i2p.data.Certificate;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.data.PublicKey;
+import net.i2p.data.SessionKey;
+import net.i2p.data.SigningPublicKey;
+import net.i2p.data.i2np.DataMessage;
+import net.i2p.data.i2np.I2NPMessage;
+import net.i2p.data.router.RouterIdentity;
+import net.i2p.router.Router;
+import net.i2p.router.RouterContext;
+import net.i2p.router.transport.crypto.DHSessionKeyBuilder;
+
+/**
+ * Allocation and throughput of the NTCP inbound path, from the
+ * pumper's direct buffers through decryption, checksum, and I2NP parsing.
+ *
+ * Sets up many established connections with pre-encrypted traffic cut into
+ * random-sized direct buffers, as the EventPumper would read them,
+ * and feeds them round-robin to recvEncryptedI2NP().
+ * Allocation is per-thread, from com.sun.management.ThreadMXBean,
+ * so only the reader path is counted; it includes the I2NP messages themselves.
+ *
+ * Usage: NTCPReadBench [connections [messagesPerConnection]]
+ *
+ * @since 0.9.31
+ */
+public class NTCPReadBench {
+
+    public static void main(String args[]) throws Exception {
+        int cons = 1000;
+        int msgs = 20;
+        if (args.length > 0)
+            cons = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            msgs = Integer.parseInt(args[1]);
+        RouterContext ctx = new RouterContext(new Router());
+        ctx.initAll();
+        final AtomicInteger received = new AtomicInteger();
+        // the connections never handshake, so share one DH builder
+        final DHSessionKeyBuilder dh = new DHSessionKeyBuilder.PrecalcRunner(ctx).getBuilder();
+        DHSessionKeyBuilder.Factory dhf = new DHSessionKeyBuilder.Factory() {
+            public DHSessionKeyBuilder getBuilder() { return dh; }
+            public void returnUnused(DHSessionKeyBuilder builder) {}
+        };
+        NTCPTransport transport = new NTCPTransport(ctx, dhf) {
+            @Override
+            public void messageReceived(I2NPMessage msg, RouterIdentity ident, Hash hash, long time, int size) {
+                received.incrementAndGet();
+            }
+        };
+        RouterIdentity peer = createIdentity(ctx);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        for (int i = 0; i < 3; i++) {
+            // first round is warmup
+            received.set(0);
+            Setup setup = new Setup(ctx, transport, peer, cons, msgs);
+            long allocBefore = mx.getThreadAllocatedBytes(tid);
+            long start = System.nanoTime();
+            setup.run();
+            long time = System.nanoTime() - start;
+            long alloc = mx.getThreadAllocatedBytes(tid) - allocBefore;
+            int rcvd = received.get();
+            if (i > 0) {
+                System.out.println(cons + " connections, " + rcvd + '/' + (cons * msgs) + " messages, " +
+                                   setup.bytes / 1024 + " KB in " + setup.buffers + " buffers, " +
+                                   (time / 1000000) + " ms, " +
+                                   (setup.bytes * 1000L / Math.max(1, time)) + " MB/s");
+                System.out.println("  allocated " + (alloc / 1024) + " KB total, " +
+                                   (alloc / Math.max(1, rcvd)) + " bytes/msg, " +
+                                   (alloc * 1024 / Math.max(1, setup.bytes)) + " bytes/KB received, " +
+                                   "message payloads " + (setup.payload / Math.max(1, rcvd)) + " bytes/msg");
+            }
+            for (NTCPConnection con : setup.cons) {
+                con.close();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static RouterIdentity createIdentity(RouterContext ctx) {
+        RouterIdentity rv = new RouterIdentity();
+        Object[] enc = ctx.keyGenerator().generatePKIKeypair();
+        Object[] sig = ctx.keyGenerator().generateSigningKeypair();
+        rv.setPublicKey((PublicKey) enc[0]);
+        rv.setSigningPublicKey((SigningPublicKey) sig[0]);
+        rv.setCertificate(Certificate.NULL_CERT);
+        return rv;
+    }
+
+    /**
+     * Established connections and their traffic, one list of buffers each
+     */
+    private static class Setup {
+        final List<NTCPConnection> cons;
+        final List<List<ByteBuffer>> traffic;
+        long bytes, payload;
+        int buffers;
+
+        public Setup(RouterContext ctx, NTCPTransport transport, RouterIdentity peer, int count, int msgs) {
+            cons = new ArrayList<NTCPConnection>(count);
+            traffic = new ArrayList<List<ByteBuffer>>(count);
+            for (int i = 0; i < count; i++) {
+                NTCPConnection con = new NTCPConnection(ctx, transport, peer, null);
+                SessionKey key = ctx.keyGenerator().generateSessionKey();
+                byte[] iv = new byte[16];
+                ctx.random().nextBytes(iv);
+                con.finishOutboundEstablishment(key, 0, new byte[16], iv);
+                cons.add(con);
+                traffic.add(encrypt(ctx, key, iv, msgs));
+            }
+        }
+
+        /**
+         * Frame and encrypt the messages like prepareNextWriteFast(),
+         * then cut the stream up like the pumper would.
+         */
+        private List<ByteBuffer> encrypt(RouterContext ctx, SessionKey key, byte[] iv, int msgs) {
+            byte[] stream = new byte[msgs * (NTCPConnection.BUFFER_SIZE + 16)];
+            int len = 0;
+            byte[] frame = new byte[NTCPConnection.BUFFER_SIZE + 16];
+            Adler32 crc = new Adler32();
+            for (int i = 0; i < msgs; i++) {
+                // mostly tunnel-sized, some big
+                int sz = ctx.random().nextInt(8) == 0 ? 512 + ctx.random().nextInt(8192) : 1028;
+                byte[] data = new byte[sz];
+                ctx.random().nextBytes(data);
+                DataMessage msg = new DataMessage(ctx);
+                msg.setData(data);
+                msg.setMessageExpiration(ctx.clock().now() + 60*1000);
+                byte[] m = msg.toByteArray();
+                int msz = m.length;
+                System.arraycopy(m, 0, frame, 2, msz);
+                int min = 2 + msz + 4;
+                int rem = min % 16;
+                int padding = rem > 0 ? 16 - rem : 0;
+                int flen = min + padding;
+                DataHelper.toLong(frame, 0, 2, msz);
+                crc.reset();
+                crc.update(frame, 0, flen - 4);
+                DataHelper.toLong(frame, flen - 4, 4, crc.getValue());
+                ctx.aes().encrypt(frame, 0, stream, len, key, iv, 0, flen);
+                System.arraycopy(stream, len + flen - 16, iv, 0, 16);
+                len += flen;
+                payload += sz;
+            }
+            bytes += len;
+            List<ByteBuffer> rv = new ArrayList<ByteBuffer>();
+            for (int off = 0; off < len; ) {
+                int blen = Math.min(len - off, 1 + ctx.random().nextInt(8*1024));
+                ByteBuffer buf = ByteBuffer.allocateDirect(blen);
+                buf.put(stream, off, blen);
+                buf.flip();
+                rv.add(buf);
+                off += blen;
+            }
+            buffers += rv.size();
+            return rv;
+        }
+
+        public void run() {
+            boolean more = true;
+            for (int i = 0; more; i++) {
+                more = false;
+                for (int j = 0; j < cons.size(); j++) {
+                    List<ByteBuffer> bufs = traffic.get(j);
+                    if (i < bufs.size()) {
+                        cons.get(j).recvEncryptedI2NP(bufs.get(i));
+                        more = true;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package net.i2p.router.tunnel;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.data.i2np.I2NPMessageHandler;
+import net.i2p.data.i2np.TunnelDataMessage;
+import net.i2p.router.RouterContext;
+
+/**
+ * Messages per second per core and allocation per message on the
+ * participating tunnel path: parse a TunnelDataMessage as the transports do,
+ * HopProcessor layer and IV crypto in place, set the next tunnel ID,
+ * write it out as the transports do, then release the buffer as
+ * OutNetMessage.discardData() does.
+ *
+ * Also checks that gateway, hop, and endpoint crypto still round-trip,
+ * and times the in-place inbound endpoint decrypt. The endpoint decrypt
+ * is called directly, as InboundEndpointProcessor needs a full router
+ * for its profile updates.
+ *
+ * Usage: HopProcessorBench [messages [threads]]
+ *
+ * @since 0.9.31
+ */
+public class HopProcessorBench {
+
+    private static final int HOPS = 3;
+
+    public static void main(String args[]) throws Exception {
+        int msgs = 500000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 0)
+            msgs = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            threads = Integer.parseInt(args[1]);
+        RouterContext ctx = new RouterContext(null);
+        verify(ctx, false);
+        verify(ctx, true);
+        System.out.println("gateway/hop/endpoint crypto round trip OK");
+
+        for (int i = 0; i < 2; i++) {
+            // first round is warmup
+            boolean print = i > 0;
+            participant(ctx, msgs, 1, true, print);
+            participant(ctx, msgs, 1, false, print);
+            if (threads > 1)
+                participant(ctx, msgs, threads, true, print);
+            endpoint(ctx, msgs / 2, print);
+        }
+    }
+
+    /**
+     * One thread per participating tunnel, like many tunnels on a busy router.
+     */
+    private static void participant(final RouterContext ctx, final int msgs, int threads,
+                                    final boolean release, boolean print) throws Exception {
+        final com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final AtomicLong alloc = new AtomicLong();
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            t[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        alloc.addAndGet(runParticipant(ctx, mx, msgs, release));
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            t[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            t[i].join();
+        }
+        long time = System.nanoTime() - start;
+        if (print) {
+            long total = msgs * (long) threads;
+            System.out.println("participant, " + threads + " thread(s), " +
+                               (release ? "released buffers: " : "unreleased buffers (pre-0.9.31): ") +
+                               total + " msgs in " + (time / 1000000) + " ms, " +
+                               (total * 1000000000L / time / threads) + " msgs/s/core, " +
+                               (alloc.get() / total) + " bytes allocated/msg");
+        }
+    }
+
+    /**
+     * @return bytes allocated by this thread
+     */
+    private static long runParticipant(RouterContext ctx, com.sun.management.ThreadMXBean mx,
+                                       int msgs, boolean release) throws Exception {
+        HopConfig cfg = new HopConfig();
+        cfg.setIVKey(ctx.keyGenerator().generateSessionKey());
+        cfg.setLayerKey(ctx.keyGenerator().generateSessionKey());
+        Hash prev = new Hash(new byte[Hash.HASH_LENGTH]);
+        cfg.setReceiveFrom(prev);
+        HopProcessor proc = new HopProcessor(ctx, cfg, DummyValidator.getInstance());
+        I2NPMessageHandler handler = new I2NPMessageHandler(ctx);
+        byte[] data = new byte[TunnelDataMessage.DATA_SIZE];
+        ctx.random().nextBytes(data);
+        TunnelDataMessage tdm = new TunnelDataMessage(ctx);
+        tdm.setTunnelId(1234);
+        tdm.setData(data);
+        byte[] in = tdm.toByteArray();
+        byte[] out = new byte[in.length];
+        long tid = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < msgs; i++) {
+            TunnelDataMessage msg = (TunnelDataMessage) handler.readMessage(in);
+            byte[] d = msg.getData();
+            if (!proc.process(d, 0, d.length, prev))
+                throw new IllegalStateException("process failed");
+            msg.setTunnelId(5678);
+            msg.toByteArray(out);
+            if (release)
+                msg.releaseData();
+            // feed the output back in, so we aren't encrypting the same thing
+            System.arraycopy(out, out.length - TunnelDataMessage.DATA_SIZE,
+                             in, in.length - TunnelDataMessage.DATA_SIZE, TunnelDataMessage.DATA_SIZE);
+        }
+        return mx.getThreadAllocatedBytes(tid) - before;
+    }
+
+    private static void endpoint(RouterContext ctx, int msgs, boolean print) {
+        TunnelCreatorConfig cfg = prepareConfig(ctx, HOPS, true);
+        byte[] data = new byte[TunnelDataMessage.DATA_SIZE];
+        ctx.random().nextBytes(data);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        for (int i = 0; i < msgs; i++) {
+            endpointDecrypt(ctx, cfg, data);
+        }
+        long time = System.nanoTime() - start;
+        long alloc = mx.getThreadAllocatedBytes(tid) - before;
+        if (print)
+            System.out.println("inbound endpoint, " + (HOPS - 1) + " layers: " + msgs + " msgs in " +
+                               (time / 1000000) + " ms, " + (msgs * 1000000000L / time) + " msgs/s/core, " +
+                               (alloc / msgs) + " bytes allocated/msg");
+    }
+
+    /**
+     * Gateway, hops, and endpoint, as in OutboundTest and InboundTest
+     */
+    private static void verify(RouterContext ctx, boolean inbound) {
+        TunnelCreatorConfig cfg = prepareConfig(ctx, HOPS, inbound);
+        byte orig[] = new byte[TunnelDataMessage.DATA_SIZE];
+        ctx.random().nextBytes(orig);
+        byte msg[] = new byte[orig.length];
+        System.arraycopy(orig, 0, msg, 0, orig.length);
+        if (inbound) {
+            for (int i = 0; i < HOPS - 1; i++) {
+                HopProcessor hop = new HopProcessor(ctx, cfg.getConfig(i), DummyValidator.getInstance());
+                if (!hop.process(msg, 0, msg.length, cfg.getConfig(i).getReceiveFrom()))
+                    throw new IllegalStateException("hop " + i);
+            }
+            endpointDecrypt(ctx, cfg, msg);
+        } else {
+            new OutboundGatewayProcessor(ctx, cfg).process(msg, 0, msg.length);
+            for (int i = 1; i < HOPS; i++) {
+                HopProcessor hop = new HopProcessor(ctx, cfg.getConfig(i), DummyValidator.getInstance());
+                if (!hop.process(msg, 0, msg.length, cfg.getConfig(i).getReceiveFrom()))
+                    throw new IllegalStateException("hop " + i);
+            }
+        }
+        if (!DataHelper.eq(orig, 16, msg, 16, orig.length - 16))
+            throw new IllegalStateException((inbound ? "inbound" : "outbound") + " round trip failed");
+    }
+
+    /**
+     * As in InboundEndpointProcessor
+     */
+    private static void endpointDecrypt(RouterContext ctx, TunnelCreatorConfig cfg, byte[] data) {
+        for (int i = cfg.getLength() - 2; i >= 0; i--) {
+            OutboundGatewayProcessor.decrypt(ctx, data, 0, data.length, cfg.getConfig(i));
+        }
+    }
+
+    private static TunnelCreatorConfig prepareConfig(RouterContext ctx, int numHops, boolean inbound) {
+        TunnelCreatorConfig config = new TunnelCreatorConfig(ctx, numHops, inbound);
+        Hash peers[] = new Hash[numHops];
+        for (int i = 0; i < numHops; i++) {
+            byte[] h = new byte[Hash.HASH_LENGTH];
+            ctx.random().nextBytes(h);
+            peers[i] = new Hash(h);
+            config.setPeer(i, peers[i]);
+        }
+        for (int i = 0; i < numHops; i++) {
+            HopConfig cfg = config.getConfig(i);
+            cfg.setIVKey(ctx.keyGenerator().generateSessionKey());
+            cfg.setLayerKey(ctx.keyGenerator().generateSessionKey());
+            cfg.setReceiveFrom(i > 0 ? peers[i-1] : null);
+            cfg.setSendTo(i < numHops - 1 ? peers[i+1] : null);
+        }
+        return config;
+    }
+}
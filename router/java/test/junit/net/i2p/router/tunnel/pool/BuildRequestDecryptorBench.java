@@ -0,0 +1,126 @@
+package net.i2p.router.tunnel.pool;
+
+import net.i2p.data.Hash;
+import net.i2p.data.PrivateKey;
+import net.i2p.data.PublicKey;
+import net.i2p.data.i2np.BuildRequestRecord;
+import net.i2p.data.i2np.EncryptedBuildRecord;
+import net.i2p.data.i2np.TunnelBuildMessage;
+import net.i2p.router.RouterContext;
+import net.i2p.router.tunnel.BuildMessageProcessor;
+
+/**
+ * Tunnel build requests decrypted per second, one at a time as
+ * a BuildHandler thread does, and in batches with BuildRequestDecryptor.
+ * Every request is a full 8-record TunnelBuildMessage with one real
+ * ElGamal record for us, so the time includes re-encrypting the other 7.
+ *
+ * A quarter of the batched requests have no record for us, like
+ * misdirected or garbage requests in a build storm; the fast path
+ * drops them without crypto.
+ *
+ * Usage: BuildRequestDecryptorBench [requests [batch [threads]]]
+ *
+ * @since 0.9.31
+ */
+public class BuildRequestDecryptorBench {
+
+    public static void main(String args[]) throws Exception {
+        int count = 400;
+        int batch = 8;
+        int threads = Math.min(8, Runtime.getRuntime().availableProcessors());
+        if (args.length > 0)
+            count = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            batch = Integer.parseInt(args[1]);
+        if (args.length > 2)
+            threads = Integer.parseInt(args[2]);
+        RouterContext ctx = new RouterContext(null);
+        Object[] keys = ctx.keyGenerator().generatePKIKeypair();
+        PublicKey pub = (PublicKey) keys[0];
+        PrivateKey priv = (PrivateKey) keys[1];
+        byte[] h = new byte[Hash.HASH_LENGTH];
+        ctx.random().nextBytes(h);
+        Hash us = new Hash(h);
+        System.out.println("Generating " + (count * 2) + " requests, " + threads + " decrypt threads, batch " + batch);
+        TunnelBuildMessage[] serial = create(ctx, us, pub, count, false);
+        TunnelBuildMessage[] batched = create(ctx, us, pub, count, true);
+
+        BuildMessageProcessor proc = new BuildMessageProcessor(ctx);
+        // warmup
+        for (TunnelBuildMessage msg : create(ctx, us, pub, Math.max(20, count / 4), false)) {
+            proc.decrypt(msg, us, priv);
+        }
+        int ok = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (proc.decrypt(serial[i], us, priv) != null)
+                ok++;
+        }
+        long time = System.nanoTime() - start;
+        System.out.println("one at a time: " + ok + '/' + count + " decrypted in " + (time / 1000000) + " ms, " +
+                           (count * 1000000000L / time) + " builds/sec");
+
+        BuildRequestDecryptor dec = new BuildRequestDecryptor(ctx, proc, threads);
+        TunnelBuildMessage[] msgs = new TunnelBuildMessage[batch];
+        BuildRequestRecord[] reqs = new BuildRequestRecord[batch];
+        long[] times = new long[batch];
+        ok = 0;
+        int dropped = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < count; ) {
+            int n = 0;
+            for ( ; n < batch && i < count; i++) {
+                // as in BuildHandler.checkBeforeDecrypt()
+                if (proc.findRecord(batched[i], us) < 0)
+                    dropped++;
+                else
+                    msgs[n++] = batched[i];
+            }
+            if (n <= 0)
+                continue;
+            dec.decrypt(msgs, n, us, priv, reqs, times);
+            for (int j = 0; j < n; j++) {
+                if (reqs[j] != null)
+                    ok++;
+            }
+        }
+        time = System.nanoTime() - start;
+        System.out.println("batched:       " + ok + '/' + count + " decrypted, " + dropped + " dropped before decrypt, in " +
+                           (time / 1000000) + " ms, " + (count * 1000000000L / time) + " builds/sec");
+        dec.shutdown();
+    }
+
+    /**
+     *  @param misdirect if true, one in four has no record for us
+     */
+    private static TunnelBuildMessage[] create(RouterContext ctx, Hash us, PublicKey pub, int count, boolean misdirect) {
+        TunnelBuildMessage[] rv = new TunnelBuildMessage[count];
+        byte[] peer = new byte[Hash.HASH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            TunnelBuildMessage msg = new TunnelBuildMessage(ctx);
+            int ourSlot = (misdirect && (i % 4) == 3) ? -1 : ctx.random().nextInt(msg.getRecordCount());
+            for (int j = 0; j < msg.getRecordCount(); j++) {
+                if (j == ourSlot) {
+                    ctx.random().nextBytes(peer);
+                    byte[] iv = new byte[BuildRequestRecord.IV_SIZE];
+                    ctx.random().nextBytes(iv);
+                    BuildRequestRecord req = new BuildRequestRecord(ctx, 1 + ctx.random().nextInt(Integer.MAX_VALUE - 1),
+                                                                    us, 1 + ctx.random().nextInt(Integer.MAX_VALUE - 1),
+                                                                    new Hash(peer.clone()), ctx.random().nextLong(1L << 31),
+                                                                    ctx.keyGenerator().generateSessionKey(),
+                                                                    ctx.keyGenerator().generateSessionKey(),
+                                                                    ctx.keyGenerator().generateSessionKey(),
+                                                                    iv, false, false);
+                    msg.setRecord(j, req.encryptRecord(ctx, pub, us));
+                } else {
+                    byte[] data = new byte[EncryptedBuildRecord.LENGTH];
+                    ctx.random().nextBytes(data);
+                    msg.setRecord(j, new EncryptedBuildRecord(data));
+                }
+            }
+            rv[i] = msg;
+        }
+        return rv;
+    }
+}
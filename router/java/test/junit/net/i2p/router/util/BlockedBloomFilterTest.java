@@ -0,0 +1,159 @@
+package net.i2p.router.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.i2p.I2PAppContext;
+
+/**
+ *  No false negatives, clear() and decay, and the false positive rate
+ *  at the m and k DecayingBloomFilter uses by default, 23 and 11.
+ */
+public class BlockedBloomFilterTest {
+
+    private static final int M = 23;
+    private static final int K = 11;
+
+    @Test
+    public void testNoFalseNegatives() {
+        for (int m = 10; m <= M; m += 13) {
+            for (int k = 1; k <= 32; k += k < 11 ? 5 : 21) {
+                BlockedBloomFilter bf = new BlockedBloomFilter(m, k);
+                Random rand = new Random(m * 100 + k);
+                long[] hashes = new long[(1 << m) / 16];
+                for (int i = 0; i < hashes.length; i++) {
+                    hashes[i] = rand.nextLong();
+                    bf.locked_insert(hashes[i]);
+                }
+                assertEquals(hashes.length, bf.size());
+                for (int i = 0; i < hashes.length; i++) {
+                    assertTrue("m " + m + " k " + k, bf.locked_member(hashes[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testClear() {
+        BlockedBloomFilter bf = new BlockedBloomFilter(M, K);
+        Random rand = new Random(1);
+        long[] hashes = new long[100000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = rand.nextLong();
+            bf.locked_insert(hashes[i]);
+        }
+        bf.clear();
+        assertEquals(0, bf.size());
+        assertEquals(0, bf.falsePositives(), 0);
+        // all bits are clear, so none at all
+        for (int i = 0; i < hashes.length; i++) {
+            assertFalse(bf.locked_member(hashes[i]));
+            assertFalse(bf.locked_member(rand.nextLong()));
+        }
+        bf.locked_insert(hashes[0]);
+        assertTrue(bf.locked_member(hashes[0]));
+        assertEquals(1, bf.size());
+    }
+
+    /**
+     *  Two filters swapped and cleared the way DecayingBloomFilter.decay() does it
+     */
+    @Test
+    public void testSwap() {
+        BlockedBloomFilter current = new BlockedBloomFilter(M, K);
+        BlockedBloomFilter previous = new BlockedBloomFilter(M, K);
+        Random rand = new Random(2);
+        long[] a = new long[50000];
+        long[] b = new long[50000];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = rand.nextLong();
+            current.locked_insert(a[i]);
+        }
+        BlockedBloomFilter tmp = previous;
+        previous = current;
+        current = tmp;
+        current.clear();
+        for (int i = 0; i < b.length; i++) {
+            b[i] = rand.nextLong();
+            current.locked_insert(b[i]);
+        }
+        for (int i = 0; i < a.length; i++) {
+            assertTrue(previous.locked_member(a[i]));
+            assertTrue(current.locked_member(b[i]));
+        }
+        tmp = previous;
+        previous = current;
+        current = tmp;
+        current.clear();
+        assertEquals(0, current.size());
+        for (int i = 0; i < a.length; i++) {
+            assertFalse(current.locked_member(a[i]));
+            assertTrue(previous.locked_member(b[i]));
+        }
+    }
+
+    /**
+     *  Measured false positive rate against the standard estimate,
+     *  around the optimal load for k = 11, which is about M ln 2 / k.
+     *  Blocked filters do somewhat worse, as the blocks don't fill evenly,
+     *  about 2x at the optimal load and more below it.
+     */
+    @Test
+    public void testFalsePositives() {
+        Random rand = new Random(3);
+        for (int count : new int[] { 400000, 500000, 600000 }) {
+            BlockedBloomFilter bf = new BlockedBloomFilter(M, K);
+            for (int i = 0; i < count; i++) {
+                bf.locked_insert(rand.nextLong());
+            }
+            double expected = bf.falsePositives();
+            int tests = 4000000;
+            int fp = 0;
+            for (int i = 0; i < tests; i++) {
+                if (bf.locked_member(rand.nextLong()))
+                    fp++;
+            }
+            double rate = fp / (double) tests;
+            String msg = count + " expected " + expected + " actual " + rate;
+            assertTrue(msg, rate >= 0.8 * expected);
+            assertTrue(msg, rate <= 3 * expected);
+        }
+    }
+
+    /**
+     *  DecayingBloomFilter with router.blockedBloomFilter=true
+     */
+    @Test
+    public void testDecaying() {
+        Properties props = new Properties();
+        props.setProperty(DecayingBloomFilter.PROP_BLOCKED, "true");
+        I2PAppContext ctx = new I2PAppContext(props);
+        DecayingBloomFilter dbf = new DecayingBloomFilter(ctx, 60*60*1000, 8, "test");
+        try {
+            Random rand = new Random(4);
+            long[] a = new long[10000];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = rand.nextLong();
+                assertFalse(dbf.add(a[i]));
+            }
+            for (int i = 0; i < a.length; i++) {
+                assertTrue(dbf.isKnown(a[i]));
+                assertTrue(dbf.add(a[i]));
+            }
+            dbf.decay();
+            for (int i = 0; i < a.length; i++) {
+                assertTrue(dbf.isKnown(a[i]));
+            }
+            dbf.decay();
+            for (int i = 0; i < a.length; i++) {
+                assertFalse(dbf.isKnown(a[i]));
+            }
+        } finally {
+            dbf.stopDecaying();
+        }
+    }
+}
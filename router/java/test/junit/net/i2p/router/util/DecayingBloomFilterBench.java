@@ -0,0 +1,79 @@
+package net.i2p.router.util;
+
+import java.util.Random;
+
+import net.i2p.I2PAppContext;
+
+/**
+ * DecayingBloomFilter with 16-byte entries, as used by BloomFilterIVValidator,
+ * at several tunnel bandwidths:
+ *
+ *   sha1: two BloomSHA1s, as before 0.9.31
+ *   blocked: two BlockedBloomFilters, router.blockedBloomFilter=true
+ *
+ * For each, fills one period's worth of unique random IVs
+ * (one per KB over 10 minutes), decays, and adds another period's worth,
+ * timing the adds and counting the false positives in the second period,
+ * when both filters are full.
+ *
+ * Usage: DecayingBloomFilterBench [m [kbps...]]
+ *
+ * @since 0.9.31
+ */
+public class DecayingBloomFilterBench {
+
+    private static final int[] DEFAULT_KBPS = { 256, 512, 1024, 1536 };
+
+    public static void main(String args[]) {
+        int m = 23;
+        int[] rates = DEFAULT_KBPS;
+        if (args.length > 0)
+            m = Integer.parseInt(args[0]);
+        if (args.length > 1) {
+            rates = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                rates[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        System.out.println("m = " + m + ", memory " + (1 << (m - 2)) / 1024 + " KB per DBF");
+        // warmup
+        run(ctx, m, 256, false, false);
+        run(ctx, m, 256, true, false);
+        for (int kbps : rates) {
+            run(ctx, m, kbps, false, true);
+            run(ctx, m, kbps, true, true);
+        }
+    }
+
+    private static void run(I2PAppContext ctx, int m, int kbps, boolean blocked, boolean print) {
+        System.setProperty(DecayingBloomFilter.PROP_BLOCKED, Boolean.toString(blocked));
+        DecayingBloomFilter filter = new DecayingBloomFilter(ctx, 10*60*1000, 16, "bench", m);
+        filter.stopDecaying();
+        int count = 60 * 10 * kbps;
+        byte[][] iv = new byte[2 * count][16];
+        Random r = new Random(42);
+        for (int i = 0; i < iv.length; i++) {
+            r.nextBytes(iv[i]);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            filter.add(iv[i]);
+        }
+        filter.decay();
+        int falsePos = 0;
+        for (int i = count; i < 2 * count; i++) {
+            if (filter.add(iv[i]))
+                falsePos++;
+        }
+        long time = System.nanoTime() - start;
+        filter.clear();
+        if (print) {
+            System.out.println((blocked ? "blocked" : "sha1   ") + ' ' + kbps + " KBps: " +
+                               (time / (2 * count)) + " ns/add, " +
+                               ((2 * count) * 1000L / Math.max(1, time / 1000000)) + " adds/s, " +
+                               falsePos + " false positives in " + count + " (" +
+                               (((double) falsePos) / count) + ')');
+        }
+    }
+}
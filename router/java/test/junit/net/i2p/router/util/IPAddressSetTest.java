@@ -0,0 +1,163 @@
+package net.i2p.router.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import net.i2p.data.Base64;
+
+/**
+ *  Checked against a HashSet model, with enough removes to exercise
+ *  the backward shift deletion across table wraparound and growth.
+ */
+public class IPAddressSetTest {
+
+    @Test
+    public void testBasic() {
+        IPAddressSet set = new IPAddressSet(100, false);
+        byte[] ip4 = new byte[] { (byte) 200, 1, 2, 3 };
+        byte[] ip6 = new byte[16];
+        ip6[0] = 0x20;
+        ip6[15] = 1;
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(ip4));
+        assertFalse(set.add(ip4));
+        assertTrue(set.add(ip6));
+        assertEquals(2, set.size());
+        assertTrue(set.contains(ip4));
+        assertTrue(set.contains((200 << 24) | (1 << 16) | (2 << 8) | 3));
+        assertFalse(set.contains((200 << 24) | (1 << 16) | (2 << 8) | 4));
+        assertTrue(set.contains(ip6));
+        assertFalse(set.add(new byte[5]));
+        assertFalse(set.contains(new byte[5]));
+        assertTrue(set.remove(ip4));
+        assertFalse(set.remove(ip4));
+        assertFalse(set.contains(ip4));
+        assertEquals(1, set.size());
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(ip6));
+    }
+
+    /** IPv4 is stored as IPv4-mapped IPv6 */
+    @Test
+    public void testMapped() {
+        IPAddressSet set = new IPAddressSet(100, false);
+        byte[] ip4 = new byte[] { 10, 1, 2, 3 };
+        byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xff;
+        mapped[11] = (byte) 0xff;
+        System.arraycopy(ip4, 0, mapped, 12, 4);
+        assertTrue(set.add(mapped));
+        assertTrue(set.contains(ip4));
+        assertFalse(set.add(ip4));
+        List<byte[]> all = set.getAll();
+        assertEquals(1, all.size());
+        assertArrayEquals(ip4, all.get(0));
+    }
+
+    @Test
+    public void testRandom() {
+        Random rand = new Random(1);
+        IPAddressSet set = new IPAddressSet(100000, false);
+        Set<String> model = new HashSet<String>();
+        List<byte[]> added = new ArrayList<byte[]>();
+        for (int i = 0; i < 200000; i++) {
+            int op = rand.nextInt(10);
+            if (op < 5 || added.isEmpty()) {
+                byte[] ip = random(rand);
+                assertEquals(model.add(Base64.encode(ip)), set.add(ip));
+                added.add(ip);
+            } else if (op < 8) {
+                byte[] ip = added.get(rand.nextInt(added.size()));
+                assertEquals(model.remove(Base64.encode(ip)), set.remove(ip));
+            } else {
+                byte[] ip = rand.nextBoolean() ? added.get(rand.nextInt(added.size())) : random(rand);
+                assertEquals(model.contains(Base64.encode(ip)), set.contains(ip));
+            }
+            assertEquals(model.size(), set.size());
+        }
+        for (byte[] ip : added) {
+            assertEquals(model.contains(Base64.encode(ip)), set.contains(ip));
+        }
+        List<byte[]> all = set.getAll();
+        assertEquals(model.size(), all.size());
+        for (byte[] ip : all) {
+            assertTrue(model.contains(Base64.encode(ip)));
+        }
+    }
+
+    @Test
+    public void testFull() {
+        IPAddressSet set = new IPAddressSet(10, false);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(set.add(ip4(i)));
+        }
+        assertFalse(set.add(ip4(10)));
+        assertEquals(10, set.size());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(set.contains(ip4(i)));
+        }
+        assertTrue(set.remove(ip4(3)));
+        assertTrue(set.add(ip4(10)));
+        assertFalse(set.add(ip4(11)));
+    }
+
+    @Test
+    public void testEvictOldest() {
+        IPAddressSet set = new IPAddressSet(10, true);
+        for (int i = 0; i < 25; i++) {
+            assertTrue(set.add(ip4(i)));
+            assertEquals(Math.min(i + 1, 10), set.size());
+        }
+        for (int i = 0; i < 15; i++) {
+            assertFalse(set.contains(ip4(i)));
+        }
+        for (int i = 15; i < 25; i++) {
+            assertTrue(set.contains(ip4(i)));
+        }
+        // removed ones still take their turn in the eviction order
+        assertTrue(set.remove(ip4(20)));
+        assertEquals(9, set.size());
+        assertTrue(set.add(ip4(25)));
+        assertFalse(set.contains(ip4(15)));
+        assertTrue(set.contains(ip4(16)));
+        assertTrue(set.contains(ip4(25)));
+        assertEquals(9, set.size());
+        for (int i = 26; i < 1000; i++) {
+            assertTrue(set.add(ip4(i)));
+            assertTrue(set.size() <= 10);
+        }
+        for (int i = 990; i < 1000; i++) {
+            assertTrue(set.contains(ip4(i)));
+        }
+        assertEquals(10, set.size());
+    }
+
+    private static byte[] ip4(int i) {
+        return new byte[] { (byte) 192, (byte) 168, (byte) (i >> 8), (byte) i };
+    }
+
+    /** a small space so there are collisions and re-adds */
+    private static byte[] random(Random rand) {
+        byte[] rv;
+        if (rand.nextBoolean()) {
+            rv = new byte[4];
+            rv[0] = (byte) (rand.nextBoolean() ? 10 : 200);
+        } else {
+            rv = new byte[16];
+            rv[0] = 0x20;
+            rv[1] = 0x01;
+            rv[12] = (byte) rand.nextInt(4);
+        }
+        rv[rv.length - 1] = (byte) rand.nextInt(256);
+        rv[rv.length - 2] = (byte) rand.nextInt(256);
+        return rv;
+    }
+}